@@ -0,0 +1,187 @@
+package com.bbva.utils.filter;
+
+/**
+ * Finds the value of a single parameter in a raw query string, e.g. the
+ * filter of <code>filter=year%3Dge%3D2000%3Bname%3D%3DHeat&page=2&size=20</code>,
+ * and percent-decodes it as UTF-8 form data (<code>+</code> is a space).
+ * <p/>
+ * The query string is scanned once, without splitting it into parameters.
+ * A value without escapes is returned as a substring of the query; an
+ * encoded one is decoded into a per-thread buffer reused across requests,
+ * so the decoded value is the only object allocated. Parameters are
+ * separated by <code>&</code> only, since <code>;</code> is the FIQL
+ * conjunction, and names are matched as written, not decoded.
+ */
+public final class QueryStringExtractor {
+
+	public static final String DEFAULT_PARAMETER = "filter";
+
+	// values longer than this are decoded into a buffer of their own
+	private static final int MAX_BUFFER = 8192;
+	private static final int[] MIN_CODE_POINTS = { 0, 0x80, 0x800, 0x10000 };
+
+	private static final ThreadLocal<char[]> BUFFER = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[256];
+		}
+	};
+
+	private final String parameter;
+
+	public QueryStringExtractor() {
+		this(DEFAULT_PARAMETER);
+	}
+
+	/**
+	 * @param parameter
+	 *            name of the parameter holding the filter.
+	 */
+	public QueryStringExtractor(final String parameter) {
+		if (parameter == null || parameter.length() == 0) {
+			throw new IllegalArgumentException("parameter is empty");
+		}
+		this.parameter = parameter;
+	}
+
+	public String getParameter() {
+		return parameter;
+	}
+
+	/**
+	 * @param query
+	 *            raw query string, as returned by
+	 *            <code>HttpServletRequest.getQueryString()</code>.
+	 * @return decoded value of the first occurrence of the parameter, empty
+	 *         when it has no value, null when query is null or lacks it.
+	 * @throws IllegalArgumentException
+	 *             when the value has a malformed escape or is not UTF-8.
+	 */
+	public String extract(final String query) {
+		if (query == null) {
+			return null;
+		}
+		final int start = find(query);
+		if (start == -1) {
+			return null;
+		}
+		int end = query.indexOf('&', start);
+		if (end == -1) {
+			end = query.length();
+		}
+		for (int i = start; i < end; i++) {
+			final char c = query.charAt(i);
+			if (c == '%' || c == '+') {
+				return decode(query, start, end);
+			}
+		}
+		return query.substring(start, end);
+	}
+
+	/**
+	 * @return start of the value of the parameter, -1 when missing.
+	 */
+	private int find(final String query) {
+		final int length = parameter.length();
+		int pos = 0;
+		while (true) {
+			if (query.startsWith(parameter, pos)) {
+				final int next = pos + length;
+				if (next == query.length() || query.charAt(next) == '&') {
+					return next;
+				}
+				if (query.charAt(next) == '=') {
+					return next + 1;
+				}
+			}
+			pos = query.indexOf('&', pos);
+			if (pos == -1) {
+				return -1;
+			}
+			pos++;
+		}
+	}
+
+	private static String decode(final String query, final int start, final int end) {
+		// decoded value is never longer than the encoded one
+		final int length = end - start;
+		char[] buffer = BUFFER.get();
+		if (buffer.length < length) {
+			buffer = new char[length];
+			if (length <= MAX_BUFFER) {
+				BUFFER.set(buffer);
+			}
+		}
+		int n = 0;
+		int i = start;
+		while (i < end) {
+			final char c = query.charAt(i);
+			if (c == '+') {
+				buffer[n++] = ' ';
+				i++;
+			} else if (c != '%') {
+				buffer[n++] = c;
+				i++;
+			} else {
+				final int b = hex(query, i, end);
+				i += 3;
+				if (b < 0x80) {
+					buffer[n++] = (char) b;
+					continue;
+				}
+				final int extra;
+				int cp;
+				if ((b & 0xE0) == 0xC0) {
+					extra = 1;
+					cp = b & 0x1F;
+				} else if ((b & 0xF0) == 0xE0) {
+					extra = 2;
+					cp = b & 0x0F;
+				} else if ((b & 0xF8) == 0xF0) {
+					extra = 3;
+					cp = b & 0x07;
+				} else {
+					throw notUtf8(i - 3);
+				}
+				for (int k = 0; k < extra; k++) {
+					if (i == end || query.charAt(i) != '%') {
+						throw notUtf8(i);
+					}
+					final int cb = hex(query, i, end);
+					if ((cb & 0xC0) != 0x80) {
+						throw notUtf8(i);
+					}
+					cp = cp << 6 | cb & 0x3F;
+					i += 3;
+				}
+				if (cp < MIN_CODE_POINTS[extra] || cp > Character.MAX_CODE_POINT || cp >= Character.MIN_SURROGATE
+						&& cp <= Character.MAX_SURROGATE) {
+					throw notUtf8(i - 3 * (extra + 1));
+				}
+				n += Character.toChars(cp, buffer, n);
+			}
+		}
+		return new String(buffer, 0, n);
+	}
+
+	private static int hex(final String query, final int idx, final int end) {
+		if (idx + 2 >= end) {
+			throw new IllegalArgumentException(String.format("Incomplete escape at position %d", idx));
+		}
+		final int hi = Character.digit(query.charAt(idx + 1), 16);
+		final int lo = Character.digit(query.charAt(idx + 2), 16);
+		if (hi == -1 || lo == -1) {
+			throw new IllegalArgumentException(String.format("Malformed escape at position %d", idx));
+		}
+		return hi << 4 | lo;
+	}
+
+	private static IllegalArgumentException notUtf8(final int idx) {
+		return new IllegalArgumentException(String.format("Invalid UTF-8 sequence at position %d", idx));
+	}
+
+	@Override
+	public String toString() {
+		return "QueryStringExtractor[" + parameter + "]";
+	}
+}
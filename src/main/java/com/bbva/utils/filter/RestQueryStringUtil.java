@@ -2,10 +2,11 @@ package com.bbva.utils.filter;
 
 
 import com.bbva.utils.fiql.parser.ExtendableFiqlParser;
+import com.bbva.utils.fiql.parser.FiqlDialect;
+import com.bbva.utils.fiql.parser.FiqlOperators;
+import com.bbva.utils.fiql.parser.FiqlParseResult;
 import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.cxf.jaxrs.ext.search.ConditionType;
-import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
 import org.apache.cxf.jaxrs.ext.search.FiqlParser;
 import org.apache.cxf.jaxrs.ext.search.SearchCondition;
 
@@ -20,22 +21,19 @@ import java.util.Map;
 public class RestQueryStringUtil {
 
     static {
-        ExtendableFiqlParser.addOperator("=in=", ConditionType.CUSTOM);
-        ExtendableFiqlParser.addOperator("=out=", ConditionType.CUSTOM);
+        FiqlDialect.register(FiqlOperators.in("=in="), FiqlOperators.out("=out="));
     }
 
     public static Object toDtoExt(String queryString, Class dtoExtClass) throws IllegalArgumentException, IllegalAccessException, InstantiationException {
 
         ExtendableFiqlParser parser = new ExtendableFiqlParser(dtoExtClass);
-        try {
-            if (StringUtils.isNotBlank(queryString)) {
-//                SearchCondition condition1 = parser.parse(queryString);
-                parser.parse(queryString);
-                return parser.getBean();
+        if (StringUtils.isNotBlank(queryString)) {
+            // invalid filters are common, only the caller gets an exception
+            FiqlParseResult<?> result = parser.tryParse(queryString);
+            if (!result.isValid()) {
+                throw new IllegalArgumentException(result.toException());
             }
-        } catch (FiqlParseException e) {
-            e.printStackTrace();
-            throw new IllegalArgumentException(e);
+            return parser.getBean();
         }
         return null;
     }
@@ -43,4 +41,12 @@ public class RestQueryStringUtil {
     public static Object toDtoExt(HttpServletRequest request, Class dtoExtClass) throws IllegalArgumentException, InstantiationException, IllegalAccessException {
         return RestQueryStringUtil.toDtoExt(request.getQueryString(), dtoExtClass);
     }
+
+    /**
+     * Parses the filter held by a single parameter of the query string,
+     * leaving paging and other parameters out, see {@link QueryStringExtractor}.
+     */
+    public static Object toDtoExt(HttpServletRequest request, Class dtoExtClass, QueryStringExtractor extractor) throws IllegalArgumentException, InstantiationException, IllegalAccessException {
+        return RestQueryStringUtil.toDtoExt(extractor.extract(request.getQueryString()), dtoExtClass);
+    }
 }
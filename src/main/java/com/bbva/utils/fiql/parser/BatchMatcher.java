@@ -0,0 +1,211 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.collections.Predicate;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * Matches objects against many conditions at once, evaluating every shared
+ * node only once per object. Conditions built by parsers with a
+ * {@link ConditionInterner} share the nodes of their common subexpressions,
+ * e.g. the <code>year=ge=2000;genre==drama</code> of several stored filters,
+ * so the cost of matching grows with the number of distinct subexpressions
+ * rather than with the number of conditions. As in {@link EvaluationPlan},
+ * each property path is also read at most once per object.
+ * <p/>
+ * A matcher is immutable and can be used concurrently.
+ *
+ * @param <T>
+ *            type of search condition.
+ */
+public final class BatchMatcher<T> {
+
+	private static final byte UNKNOWN = 0;
+	private static final byte FALSE = 1;
+	private static final byte TRUE = 2;
+
+	private final Node[] roots;
+	private final int nodeCount;
+	private final Getter[] getters;
+	private final int[] parents;
+
+	/**
+	 * @param conditions
+	 *            conditions to match, whose index is the one of the bit set
+	 *            when matched.
+	 */
+	public BatchMatcher(final List<? extends SearchCondition<T>> conditions) {
+		if (conditions == null) {
+			throw new IllegalArgumentException("conditions is null");
+		}
+		final Map<SearchCondition<?>, Node> nodes = new IdentityHashMap<SearchCondition<?>, Node>();
+		final PathSlots slots = new PathSlots();
+		roots = new Node[conditions.size()];
+		for (int i = 0; i < roots.length; i++) {
+			SearchCondition<?> condition = conditions.get(i);
+			if (condition instanceof EvaluationPlan) {
+				condition = ((EvaluationPlan<?>) condition).getTree();
+			} else if (condition instanceof FiqlProgram) {
+				condition = ((FiqlProgram<?>) condition).getTree();
+			}
+			roots[i] = compile(condition, nodes, slots);
+		}
+		nodeCount = nodes.size();
+		getters = slots.getGetters();
+		parents = slots.getParents();
+	}
+
+	private static Node compile(final SearchCondition<?> sc, final Map<SearchCondition<?>, Node> nodes, final PathSlots slots) {
+		Node node = nodes.get(sc);
+		if (node != null) {
+			return node;
+		}
+		final List<? extends SearchCondition<?>> children = sc.getSearchConditions();
+		final ConditionType ct = sc.getConditionType();
+		// paths crossing collections are walked per element by the leaf
+		if (sc instanceof PropertyCondition && !((PropertyCondition<?>) sc).getPath().isQuantified()) {
+			final PropertyCondition<?> leaf = (PropertyCondition<?>) sc;
+			final int[] chain = slots.add(leaf.getPath());
+			node = new Leaf(nodes.size(), chain[chain.length - 1], leaf.getPredicate());
+		} else if (children != null && (ct == ConditionType.AND || ct == ConditionType.OR)) {
+			final Node[] compiled = new Node[children.size()];
+			for (int i = 0; i < compiled.length; i++) {
+				compiled[i] = compile(children.get(i), nodes, slots);
+			}
+			node = new Composite(nodes.size(), ct == ConditionType.AND, compiled);
+		} else {
+			node = new Opaque(nodes.size(), sc);
+		}
+		nodes.put(sc, node);
+		return node;
+	}
+
+	/**
+	 * @return indexes of the conditions met by given object.
+	 */
+	public BitSet match(final T pojo) {
+		return match(pojo, new Object[getters.length], new byte[nodeCount]);
+	}
+
+	/**
+	 * @return for each object, indexes of the conditions it meets.
+	 */
+	public List<BitSet> matchAll(final Collection<? extends T> pojos) {
+		final List<BitSet> result = new ArrayList<BitSet>(pojos.size());
+		final Object[] values = new Object[getters.length];
+		final byte[] states = new byte[nodeCount];
+		for (final T pojo : pojos) {
+			result.add(match(pojo, values, states));
+		}
+		return result;
+	}
+
+	private BitSet match(final T pojo, final Object[] values, final byte[] states) {
+		Arrays.fill(values, PathSlots.UNSET);
+		Arrays.fill(states, UNKNOWN);
+		final BitSet matched = new BitSet(roots.length);
+		for (int i = 0; i < roots.length; i++) {
+			if (roots[i].eval(this, pojo, values, states)) {
+				matched.set(i);
+			}
+		}
+		return matched;
+	}
+
+	Object fetch(final Object pojo, final Object[] values, final int slot) {
+		return PathSlots.fetch(getters, parents, pojo, values, slot);
+	}
+
+	/**
+	 * @return number of distinct nodes evaluated, at most once each, per
+	 *         object.
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public int size() {
+		return roots.length;
+	}
+
+	private abstract static class Node {
+		private final int id;
+
+		Node(final int id) {
+			this.id = id;
+		}
+
+		final boolean eval(final BatchMatcher<?> matcher, final Object pojo, final Object[] values, final byte[] states) {
+			final byte state = states[id];
+			if (state != UNKNOWN) {
+				return state == TRUE;
+			}
+			final boolean result = compute(matcher, pojo, values, states);
+			states[id] = result ? TRUE : FALSE;
+			return result;
+		}
+
+		abstract boolean compute(BatchMatcher<?> matcher, Object pojo, Object[] values, byte[] states);
+	}
+
+	private static final class Leaf extends Node {
+		private final int slot;
+		private final Predicate predicate;
+
+		Leaf(final int id, final int slot, final Predicate predicate) {
+			super(id);
+			this.slot = slot;
+			this.predicate = predicate;
+		}
+
+		@Override
+		boolean compute(final BatchMatcher<?> matcher, final Object pojo, final Object[] values, final byte[] states) {
+			final Object value = matcher.fetch(pojo, values, slot);
+			return value != null && predicate.evaluate(value);
+		}
+	}
+
+	private static final class Composite extends Node {
+		private final boolean and;
+		private final Node[] children;
+
+		Composite(final int id, final boolean and, final Node[] children) {
+			super(id);
+			this.and = and;
+			this.children = children;
+		}
+
+		@Override
+		boolean compute(final BatchMatcher<?> matcher, final Object pojo, final Object[] values, final byte[] states) {
+			for (final Node child : children) {
+				if (child.eval(matcher, pojo, values, states) != and) {
+					return !and;
+				}
+			}
+			return and;
+		}
+	}
+
+	private static final class Opaque extends Node {
+		private final SearchCondition<Object> condition;
+
+		@SuppressWarnings("unchecked")
+		Opaque(final int id, final SearchCondition<?> condition) {
+			super(id);
+			this.condition = (SearchCondition<Object>) condition;
+		}
+
+		@Override
+		boolean compute(final BatchMatcher<?> matcher, final Object pojo, final Object[] values, final byte[] states) {
+			return condition.isMet(pojo);
+		}
+	}
+}
@@ -4,18 +4,12 @@ package com.bbva.utils.fiql.parser;
  * Created by Alejandro on 20/11/2014.
  */
 
-import java.beans.IntrospectionException;
 import java.beans.PropertyDescriptor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.beanutils.PropertyUtils;
-import org.apache.commons.lang3.StringUtils;
 
 /**
  * Bean introspection utility.
@@ -24,8 +18,7 @@ class Beanspector<T> {
 
 	private Class<T> tclass;
 	private T tobj;
-	private final Map<String, Method> getters = new HashMap<String, Method>();
-	private final Map<String, Method> setters = new HashMap<String, Method>();
+	private ClassModel model;
 
 	public Beanspector(final Class<T> tclass) {
 		if (tclass == null) {
@@ -43,40 +36,8 @@ class Beanspector<T> {
 		init();
 	}
 
-	@SuppressWarnings("unchecked")
 	private void init() {
-		fill(tclass, tobj, getters, setters);
-	}
-
-	private void fill(Class tclass, final Object tobj, final Map<String, Method> getters, final Map<String, Method> setters) {
-		if (tclass == null) {
-			if (tobj != null) {
-				tclass = tobj.getClass();
-			}
-		}
-		if (tclass != null) {
-			for (final Method m : tclass.getMethods()) {
-				if (isGetter(m)) {
-					getters.put(getterName(m), m);
-				} else if (isSetter(m)) {
-					setters.put(setterName(m), m);
-				}
-			}
-			// check type equality for getter-setter pairs
-			final Set<String> pairs = new HashSet<String>(getters.keySet());
-			pairs.retainAll(setters.keySet());
-			for (final String accessor : pairs) {
-				final Class<?> getterClass = getters.get(accessor).getReturnType();
-				final Class<?> setterClass = setters.get(accessor).getParameterTypes()[0];
-				if (!getterClass.equals(setterClass)) {
-					throw new IllegalArgumentException(String.format(
-							"Accessor '%s' type mismatch, getter type is %s while setter type is %s", accessor, getterClass.getName(),
-							setterClass.getName()));
-				}
-			}
-		} else {
-			throw new IllegalArgumentException("Class and Object can not both be null");
-		}
+		model = ClassModel.of(tclass != null ? tclass : tobj.getClass());
 	}
 
 	public T getBean() {
@@ -84,49 +45,27 @@ class Beanspector<T> {
 	}
 
 	public Set<String> getGettersNames() {
-		return Collections.unmodifiableSet(getters.keySet());
+		return model.getGetters().keySet();
 	}
 
 	public Set<String> getSettersNames() {
-		return Collections.unmodifiableSet(setters.keySet());
+		return model.getSetters().keySet();
 	}
 
 	public Class<?> getAccessorType(final String getterOrSetterName) throws Exception {
-		final String[] tokens = getterOrSetterName.split("\\.");
-		if (tokens.length > 1) {
-			final String token = tokens[0];
-			final Class clazz = getAccessorType(token);
-			return getAccessorType(clazz, getterOrSetterName.replaceFirst(token + "\\.", StringUtils.EMPTY));
-		} else {
-			return getTopLevelAccesorType(getterOrSetterName, getters, setters);
-		}
+		return model.getPropertyType(getterOrSetterName);
 	}
 
-	private Class<?> getAccessorType(final Class clazz, final String getterOrSetterName) throws Exception {
-		final Map<String, Method> getters = new HashMap<String, Method>();
-		final Map<String, Method> setters = new HashMap<String, Method>();
-		fill(clazz, null, getters, setters);
-		final String[] tokens = getterOrSetterName.split("\\.");
-		if (tokens.length > 1) {
-			final String token = tokens[0];
-			return getAccessorType(clazz, getterOrSetterName.replaceFirst(token + "\\.", StringUtils.EMPTY));
-		} else {
-			return getTopLevelAccesorType(getterOrSetterName, getters, setters);
-		}
+	public Method[] getGetterChain(final String getterName) throws Exception {
+		return model.getGetterChain(getterName);
 	}
 
-	private Class<?> getTopLevelAccesorType(final String getterOrSetterName, final Map<String, Method> getters,
-			final Map<String, Method> setters) throws IntrospectionException {
-		Method m = getters.get(getterOrSetterName);
-		if (m == null) {
-			m = setters.get(getterOrSetterName);
-		}
-		if (m == null) {
-			final String msg = String.format("Accessor '%s' not found, " + "known setters are: %s, known getters are: %s",
-					getterOrSetterName, setters.keySet(), getters.keySet());
-			throw new IntrospectionException(msg);
-		}
-		return m.getReturnType();
+	PropertyPath getPath(final String getterName) throws Exception {
+		return model.getPath(getterName);
+	}
+
+	PropertyPath findPath(final String getterName) {
+		return model.findPath(getterName);
 	}
 
 	public Beanspector<T> swap(final T newobject) throws Exception {
@@ -139,19 +78,29 @@ class Beanspector<T> {
 
 	public Beanspector<T> instantiate() throws Exception {
 		if (tobj == null) {
-			tobj = tclass.newInstance();
+			tobj = tclass.getDeclaredConstructor().newInstance();
 		}
 		return this;
 	}
 
+	@SuppressWarnings("unchecked")
 	public Beanspector<T> setValue(final String setterName, final Object value) throws Throwable {
+		final GeneratedModel<Object> generated = (GeneratedModel<Object>) model.getGenerated();
+		if (generated != null && generated.set(getBean(), setterName, value)) {
+			return this;
+		}
 		instantiateNestedProperties(getBean(), setterName);
 		PropertyUtils.setProperty(getBean(), setterName, value);
 		return this;
 	}
 
+	@SuppressWarnings("unchecked")
 	public Object getValue(final String getterName) throws Throwable {
-		return getValue(getters.get(getterName));
+		final GeneratedModel<Object> generated = (GeneratedModel<Object>) model.getGenerated();
+		if (generated != null && generated.indexOf(getterName) >= 0) {
+			return generated.get(tobj, generated.indexOf(getterName));
+		}
+		return getValue(model.getGetters().get(getterName));
 	}
 
 	public Object getValue(final Method getter) throws Throwable {
@@ -164,24 +113,6 @@ class Beanspector<T> {
 		}
 	}
 
-	private boolean isGetter(final Method m) {
-		return m.getParameterTypes().length == 0 && (m.getName().startsWith("get") || m.getName().startsWith("is"));
-	}
-
-	private String getterName(final Method m) {
-		return StringUtils.uncapitalize(m.getName().startsWith("is") ? m.getName().substring(2) : m.getName().startsWith("get") ? m
-				.getName().substring(3) : m.getName());
-	}
-
-	private boolean isSetter(final Method m) {
-		return m.getReturnType().equals(void.class) && m.getParameterTypes().length == 1
-				&& (m.getName().startsWith("set") || m.getName().startsWith("is"));
-	}
-
-	private String setterName(final Method m) {
-		return StringUtils.uncapitalize(m.getName().replace("is", "").replace("set", ""));
-	}
-
 	private void instantiateNestedProperties(final Object obj, final String fieldName) {
 		try {
 			final String[] fieldNames = fieldName.split("\\.");
@@ -199,7 +130,7 @@ class Beanspector<T> {
 					if (value == null) {
 						final PropertyDescriptor propertyDescriptor = PropertyUtils.getPropertyDescriptor(obj, nestedProperty.toString());
 						final Class<?> propertyType = propertyDescriptor.getPropertyType();
-						final Object newInstance = propertyType.newInstance();
+						final Object newInstance = propertyType.getDeclaredConstructor().newInstance();
 						PropertyUtils.setProperty(obj, nestedProperty.toString(), newInstance);
 					}
 				}
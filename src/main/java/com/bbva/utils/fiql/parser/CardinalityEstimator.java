@@ -0,0 +1,215 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.RandomAccess;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * Estimates how many objects of a collection match a condition by
+ * evaluating a sample of them, taken once: stratified over random access
+ * lists, one random object per equal slice, and by reservoir sampling over
+ * other collections. Estimates cost one evaluation per sampled object,
+ * whatever the size of the collection, and come with a 95% confidence
+ * interval (Wilson score, corrected for sampling without replacement).
+ * <p/>
+ * {@link PropertyHistogram}s of the collection, given with
+ * {@link #withHistograms(PropertyHistogram...)}, answer single comparisons
+ * of their path, and bound the counts of ANDs and ORs of such comparisons,
+ * which tightens the sampled interval. Instances are immutable; sampled
+ * objects are evaluated when estimating, so they should not change
+ * meanwhile.
+ *
+ * @param <T>
+ *            type of sampled objects.
+ */
+public final class CardinalityEstimator<T> {
+
+	public static final int DEFAULT_SAMPLE_SIZE = 1024;
+
+	// 95% two-sided
+	private static final double Z = 1.959964;
+
+	private final List<T> sample;
+	private final int population;
+	private final Map<String, PropertyHistogram> histograms;
+
+	private CardinalityEstimator(final List<T> sample, final int population, final Map<String, PropertyHistogram> histograms) {
+		this.sample = sample;
+		this.population = population;
+		this.histograms = histograms;
+	}
+
+	public static <T> CardinalityEstimator<T> sample(final Collection<T> pojos) {
+		return sample(pojos, DEFAULT_SAMPLE_SIZE, new Random());
+	}
+
+	public static <T> CardinalityEstimator<T> sample(final Collection<T> pojos, final int sampleSize) {
+		return sample(pojos, sampleSize, new Random());
+	}
+
+	/**
+	 * @param sampleSize
+	 *            number of objects to sample; collections no larger are
+	 *            evaluated whole, giving exact counts.
+	 */
+	public static <T> CardinalityEstimator<T> sample(final Collection<T> pojos, final int sampleSize, final Random random) {
+		if (pojos == null) {
+			throw new IllegalArgumentException("pojos is null");
+		}
+		if (sampleSize < 1) {
+			throw new IllegalArgumentException("sampleSize must be positive");
+		}
+		if (random == null) {
+			throw new IllegalArgumentException("random is null");
+		}
+		final int size = pojos.size();
+		if (size <= sampleSize) {
+			return new CardinalityEstimator<T>(new ArrayList<T>(pojos), size, Collections.<String, PropertyHistogram> emptyMap());
+		}
+		final List<T> sample = new ArrayList<T>(sampleSize);
+		if (pojos instanceof List && pojos instanceof RandomAccess) {
+			final List<T> list = (List<T>) pojos;
+			for (int i = 0; i < sampleSize; i++) {
+				final int from = (int) ((long) i * size / sampleSize);
+				final int to = (int) ((long) (i + 1) * size / sampleSize);
+				sample.add(list.get(from + random.nextInt(to - from)));
+			}
+		} else {
+			int seen = 0;
+			for (final T pojo : pojos) {
+				if (seen < sampleSize) {
+					sample.add(pojo);
+				} else {
+					final int slot = random.nextInt(seen + 1);
+					if (slot < sampleSize) {
+						sample.set(slot, pojo);
+					}
+				}
+				seen++;
+			}
+		}
+		return new CardinalityEstimator<T>(sample, size, Collections.<String, PropertyHistogram> emptyMap());
+	}
+
+	/**
+	 * @return estimator using given histograms too, replacing any of the
+	 *         same path.
+	 * @throws IllegalArgumentException
+	 *             when some histogram was built over a collection of a
+	 *             different size.
+	 */
+	public CardinalityEstimator<T> withHistograms(final PropertyHistogram... more) {
+		final Map<String, PropertyHistogram> all = new HashMap<String, PropertyHistogram>(histograms);
+		for (final PropertyHistogram histogram : more) {
+			if (histogram.getRows() != population) {
+				throw new IllegalArgumentException(histogram + " was built over " + histogram.getRows() + " objects, not "
+						+ population);
+			}
+			all.put(histogram.getPath(), histogram);
+		}
+		return new CardinalityEstimator<T>(sample, population, Collections.unmodifiableMap(all));
+	}
+
+	public int getPopulation() {
+		return population;
+	}
+
+	public int getSampleSize() {
+		return sample.size();
+	}
+
+	public CountEstimate estimate(final SearchCondition<T> condition) {
+		if (condition == null) {
+			throw new IllegalArgumentException("condition is null");
+		}
+		final SearchCondition<?> tree = unwrap(condition);
+		if (tree instanceof PropertyCondition) {
+			final PropertyHistogram histogram = histograms.get(((PropertyCondition<?>) tree).getProperty());
+			final int[] bounds = histogram == null ? null : histogram.estimate((PropertyCondition<?>) tree);
+			if (bounds != null && (bounds[0] == bounds[1] || sample.size() < population)) {
+				return new CountEstimate(bounds[2], bounds[0], bounds[1], population, 0);
+			}
+		}
+		int matches = 0;
+		for (int i = 0; i < sample.size(); i++) {
+			if (condition.isMet(sample.get(i))) {
+				matches++;
+			}
+		}
+		final int n = sample.size();
+		if (n == population) {
+			return new CountEstimate(matches, matches, matches, population, n);
+		}
+		final double p = (double) matches / n;
+		final double z2 = Z * Z;
+		final double center = (p + z2 / (2 * n)) / (1 + z2 / n);
+		final double margin = Z * Math.sqrt(p * (1 - p) / n + z2 / (4.0 * n * n)) / (1 + z2 / n);
+		final double fpc = Math.sqrt((double) (population - n) / (population - 1));
+		// observed matches and misses are certain
+		final int[] bounds = bounds(tree);
+		final int floor = Math.max(matches, bounds[0]);
+		final int ceiling = Math.max(floor, Math.min(population - (n - matches), bounds[1]));
+		final int lower = clamp((int) Math.floor((p - (p - (center - margin)) * fpc) * population), floor, ceiling);
+		final int upper = clamp((int) Math.ceil((p + (center + margin - p) * fpc) * population), lower, ceiling);
+		return new CountEstimate(clamp((int) Math.round(p * population), lower, upper), lower, upper, population, n);
+	}
+
+	/**
+	 * @return <code>{lower, upper}</code> number of matching objects as
+	 *         histograms tell, the whole population when they do not.
+	 */
+	private int[] bounds(final SearchCondition<?> sc) {
+		if (sc instanceof PropertyCondition) {
+			final PropertyHistogram histogram = histograms.get(((PropertyCondition<?>) sc).getProperty());
+			final int[] bounds = histogram == null ? null : histogram.estimate((PropertyCondition<?>) sc);
+			return bounds == null ? new int[] { 0, population } : bounds;
+		}
+		final List<? extends SearchCondition<?>> children = sc.getSearchConditions();
+		final ConditionType ct = sc.getConditionType();
+		if (histograms.isEmpty() || children == null || ct != ConditionType.AND && ct != ConditionType.OR) {
+			return new int[] { 0, population };
+		}
+		long lower = 0;
+		long upper = ct == ConditionType.AND ? population : 0;
+		for (final SearchCondition<?> child : children) {
+			final int[] b = bounds(unwrap(child));
+			if (ct == ConditionType.AND) {
+				// at most the misses of every child add up
+				lower += b[0];
+				upper = Math.min(upper, b[1]);
+			} else {
+				lower = Math.max(lower, b[0]);
+				upper += b[1];
+			}
+		}
+		if (ct == ConditionType.AND) {
+			lower = Math.max(0, lower - (long) (children.size() - 1) * population);
+		}
+		return new int[] { (int) lower, (int) Math.min(upper, population) };
+	}
+
+	private static SearchCondition<?> unwrap(final SearchCondition<?> sc) {
+		if (sc instanceof EvaluationPlan) {
+			return unwrap(((EvaluationPlan<?>) sc).getTree());
+		}
+		if (sc instanceof FiqlProgram) {
+			return unwrap(((FiqlProgram<?>) sc).getTree());
+		}
+		if (sc instanceof LazySearchCondition) {
+			return unwrap(((LazySearchCondition<?>) sc).delegate());
+		}
+		return sc;
+	}
+
+	private static int clamp(final int value, final int min, final int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+}
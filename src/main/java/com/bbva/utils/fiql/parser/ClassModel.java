@@ -0,0 +1,287 @@
+package com.bbva.utils.fiql.parser;
+
+import java.beans.IntrospectionException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Introspected getters and setters of a class. Models are immutable and
+ * shared: {@link #of(Class)} introspects a class only once, and resolved
+ * property types of nested paths (e.g. "director.awards.year") are cached on
+ * the model of the root class. Properties of {@link FiqlSearchable} classes
+ * are read and written through their {@link GeneratedModel}.
+ * <p/>
+ * Models are attached to their class rather than held by a static map, so
+ * they never keep a class, nor its class loader, from being unloaded.
+ */
+final class ClassModel {
+
+	private static final ClassValue<ClassModel> MODELS = new ClassValue<ClassModel>() {
+		@Override
+		protected ClassModel computeValue(final Class<?> type) {
+			final ClassModel model = new ClassModel(type);
+			synchronized (TYPES) {
+				TYPES.put(type, Boolean.TRUE);
+			}
+			return model;
+		}
+	};
+	// classes whose model has been computed, weakly held
+	private static final Map<Class<?>, Boolean> TYPES = new WeakHashMap<Class<?>, Boolean>();
+
+	private final Class<?> type;
+	private final Map<String, Method> getters;
+	private final Map<String, Method> setters;
+	private final GeneratedModel<?> generated;
+	private final Map<String, Getter> accessors;
+	private final ConcurrentMap<String, Class<?>> pathTypes = new ConcurrentHashMap<String, Class<?>>();
+	private final ConcurrentMap<String, PropertyPath> paths = new ConcurrentHashMap<String, PropertyPath>();
+
+	private ClassModel(final Class<?> type) {
+		final Map<String, Method> getters = new HashMap<String, Method>();
+		final Map<String, Method> setters = new HashMap<String, Method>();
+		for (final Method m : type.getMethods()) {
+			if (isGetter(m)) {
+				getters.put(getterName(m), m);
+			} else if (isSetter(m)) {
+				setters.put(setterName(m), m);
+			}
+		}
+		// check type equality for getter-setter pairs
+		final Set<String> pairs = new HashSet<String>(getters.keySet());
+		pairs.retainAll(setters.keySet());
+		for (final String accessor : pairs) {
+			final Class<?> getterClass = getters.get(accessor).getReturnType();
+			final Class<?> setterClass = setters.get(accessor).getParameterTypes()[0];
+			if (!getterClass.equals(setterClass)) {
+				throw new IllegalArgumentException(String.format("Accessor '%s' type mismatch, getter type is %s while setter type is %s",
+						accessor, getterClass.getName(), setterClass.getName()));
+			}
+		}
+		this.type = type;
+		this.getters = Collections.unmodifiableMap(getters);
+		this.setters = Collections.unmodifiableMap(setters);
+		generated = GeneratedModel.of(type);
+		final Map<String, Getter> accessors = new HashMap<String, Getter>();
+		for (final Map.Entry<String, Method> e : getters.entrySet()) {
+			accessors.put(e.getKey(), new Getter(e.getValue(), e.getKey(), generated));
+		}
+		this.accessors = Collections.unmodifiableMap(accessors);
+	}
+
+	static ClassModel of(final Class<?> type) {
+		if (type == null) {
+			throw new IllegalArgumentException("Class and Object can not both be null");
+		}
+		return MODELS.get(type);
+	}
+
+	static boolean isCached(final Class<?> type) {
+		synchronized (TYPES) {
+			return TYPES.containsKey(type);
+		}
+	}
+
+	static Collection<ClassModel> cached() {
+		final List<Class<?>> types;
+		synchronized (TYPES) {
+			types = new ArrayList<Class<?>>(TYPES.keySet());
+		}
+		final List<ClassModel> models = new ArrayList<ClassModel>(types.size());
+		for (final Class<?> type : types) {
+			models.add(MODELS.get(type));
+		}
+		return Collections.unmodifiableCollection(models);
+	}
+
+	static void clear() {
+		synchronized (TYPES) {
+			for (final Class<?> type : TYPES.keySet()) {
+				MODELS.remove(type);
+			}
+			TYPES.clear();
+		}
+	}
+
+	Class<?> getType() {
+		return type;
+	}
+
+	Map<String, Method> getGetters() {
+		return getters;
+	}
+
+	Map<String, Method> getSetters() {
+		return setters;
+	}
+
+	/**
+	 * @return getters by property name, generated ones when available.
+	 */
+	Map<String, Getter> getAccessors() {
+		return accessors;
+	}
+
+	/**
+	 * @return model generated for the class, null when not
+	 *         {@link FiqlSearchable}.
+	 */
+	GeneratedModel<?> getGenerated() {
+		return generated;
+	}
+
+	/**
+	 * @return whether path has been resolved by {@link #getPath(String)} or
+	 *         {@link #findPath(String)}.
+	 */
+	boolean hasPath(final String path) {
+		return paths.containsKey(path);
+	}
+
+	/**
+	 * @return names of nested paths whose types or getters have been
+	 *         resolved so far.
+	 */
+	Set<String> getResolvedPaths() {
+		final Set<String> resolved = new HashSet<String>(pathTypes.keySet());
+		resolved.addAll(paths.keySet());
+		return Collections.unmodifiableSet(resolved);
+	}
+
+	/**
+	 * Resolves type of a property, or of a nested property when path has
+	 * several dot separated tokens.
+	 *
+	 * @throws IntrospectionException
+	 *             when some token of the path is not an accessor.
+	 */
+	Class<?> getPropertyType(final String path) throws IntrospectionException {
+		Class<?> propertyType = pathTypes.get(path);
+		if (propertyType == null) {
+			final int idx = path.indexOf('.');
+			if (idx == -1) {
+				propertyType = getTopLevelType(path);
+			} else {
+				propertyType = of(getTopLevelType(path.substring(0, idx))).getPropertyType(path.substring(idx + 1));
+			}
+			pathTypes.put(path, propertyType);
+		}
+		return propertyType;
+	}
+
+	/**
+	 * Resolves the getters to invoke one after the other to read a property,
+	 * or a nested property when path has several dot separated tokens.
+	 *
+	 * @throws IntrospectionException
+	 *             when some token of the path is not a getter.
+	 */
+	Method[] getGetterChain(final String path) throws IntrospectionException {
+		final String[] names = path.split("\\.");
+		final Method[] chain = new Method[names.length];
+		ClassModel model = this;
+		for (int i = 0; i < names.length; i++) {
+			chain[i] = model.getters.get(names[i]);
+			if (chain[i] == null) {
+				throw new IntrospectionException(String.format("Getter '%s' of '%s' not found, known getters are: %s", names[i], path,
+						model.getters.keySet()));
+			}
+			if (i < names.length - 1) {
+				model = of(chain[i].getReturnType());
+			}
+		}
+		return chain;
+	}
+
+	/**
+	 * Resolves a property path which may cross multi-valued properties, see
+	 * {@link PropertyPath}.
+	 *
+	 * @throws IntrospectionException
+	 *             when some token of the path is not a getter.
+	 */
+	PropertyPath getPath(final String path) throws IntrospectionException {
+		PropertyPath resolved = paths.get(path);
+		if (resolved == null) {
+			resolved = PropertyPath.resolve(this, path);
+			final PropertyPath previous = paths.putIfAbsent(path, resolved);
+			if (previous != null) {
+				resolved = previous;
+			}
+		}
+		return resolved;
+	}
+
+	/**
+	 * Resolves a property path as {@link #getPath(String)} does, without
+	 * throwing.
+	 *
+	 * @return resolved path, null when some token of the path is not a
+	 *         getter.
+	 */
+	PropertyPath findPath(final String path) {
+		PropertyPath resolved = paths.get(path);
+		if (resolved == null) {
+			resolved = PropertyPath.find(this, path);
+			if (resolved != null) {
+				final PropertyPath previous = paths.putIfAbsent(path, resolved);
+				if (previous != null) {
+					resolved = previous;
+				}
+			}
+		}
+		return resolved;
+	}
+
+	private Class<?> getTopLevelType(final String name) throws IntrospectionException {
+		final Method getter = getters.get(name);
+		if (getter != null) {
+			return getter.getReturnType();
+		}
+		final Method setter = setters.get(name);
+		if (setter != null) {
+			return setter.getParameterTypes()[0];
+		}
+		final String msg = String.format("Accessor '%s' not found, " + "known setters are: %s, known getters are: %s", name,
+				setters.keySet(), getters.keySet());
+		throw new IntrospectionException(msg);
+	}
+
+	private static boolean isGetter(final Method m) {
+		return m.getParameterTypes().length == 0 && (m.getName().startsWith("get") || m.getName().startsWith("is"));
+	}
+
+	private static String getterName(final Method m) {
+		return propertyName(m.getName());
+	}
+
+	private static boolean isSetter(final Method m) {
+		return m.getReturnType().equals(void.class) && m.getParameterTypes().length == 1
+				&& (m.getName().startsWith("set") || m.getName().startsWith("is"));
+	}
+
+	private static String setterName(final Method m) {
+		return propertyName(m.getName());
+	}
+
+	/**
+	 * @return property of a getter or setter name, which starts with
+	 *         <code>get</code>, <code>set</code> or <code>is</code>: the
+	 *         rest of the name, uncapitalized. Generated models (see
+	 *         {@link FiqlSearchableProcessor}) name properties the same way.
+	 */
+	static String propertyName(final String accessor) {
+		final String name = accessor.substring(accessor.startsWith("is") ? 2 : 3);
+		return name.length() == 0 ? name : Character.toLowerCase(name.charAt(0)) + name.substring(1);
+	}
+}
@@ -0,0 +1,92 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rows held as named columns (struct of arrays) rather than as objects, e.g.
+ * <code>int[] year</code> and <code>String[] director.name</code>. Column
+ * names are the selectors used in FIQL expressions. Every column must have
+ * exactly {@link #size()} elements.
+ *
+ * @see ColumnarEvaluator
+ */
+public final class ColumnBatch {
+
+	private final int size;
+	private final Map<String, Object> columns = new HashMap<String, Object>();
+
+	public ColumnBatch(final int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("size is negative");
+		}
+		this.size = size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public ColumnBatch addInts(final String name, final int[] values) {
+		return add(name, values, values == null ? -1 : values.length);
+	}
+
+	public ColumnBatch addLongs(final String name, final long[] values) {
+		return add(name, values, values == null ? -1 : values.length);
+	}
+
+	public ColumnBatch addDoubles(final String name, final double[] values) {
+		return add(name, values, values == null ? -1 : values.length);
+	}
+
+	public ColumnBatch addStrings(final String name, final String[] values) {
+		return add(name, values, values == null ? -1 : values.length);
+	}
+
+	/**
+	 * Adds a column of any other comparable type; its literals are
+	 * converted the same way the parser converts values of that type.
+	 */
+	public <C extends Comparable<? super C>> ColumnBatch addComparables(final String name, final Class<C> type, final C[] values) {
+		if (type == null) {
+			throw new IllegalArgumentException("type is null");
+		}
+		return add(name, new ComparableColumn(type, values), values == null ? -1 : values.length);
+	}
+
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(columns.keySet());
+	}
+
+	Object get(final String name) {
+		final Object column = columns.get(name);
+		if (column == null) {
+			throw new IllegalArgumentException("Column '" + name + "' not found, known columns are: " + columns.keySet());
+		}
+		return column;
+	}
+
+	private ColumnBatch add(final String name, final Object column, final int length) {
+		if (name == null) {
+			throw new IllegalArgumentException("name is null");
+		}
+		if (length != size) {
+			throw new IllegalArgumentException("Column '" + name + "' has " + length + " values, batch size is " + size);
+		}
+		columns.put(name, column);
+		return this;
+	}
+
+	static final class ComparableColumn {
+		final Class<?> type;
+		final Comparable<Object>[] values;
+
+		@SuppressWarnings("unchecked")
+		ComparableColumn(final Class<?> type, final Object[] values) {
+			this.type = type;
+			this.values = (Comparable<Object>[]) values;
+		}
+	}
+}
@@ -0,0 +1,437 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.collections.Predicate;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+
+/**
+ * Evaluates a compiled expression over a {@link ColumnBatch} instead of over
+ * objects. Rows are processed in chunks: every comparison fills a bit mask
+ * of the chunk in a tight loop over its column, and masks are combined word
+ * by word for ANDs and ORs. The result has bit <code>i</code> set when row
+ * <code>i</code> matches.
+ * <p/>
+ * Operators are those of the dialect the expression was compiled with, and
+ * are resolved once per batch. On String and other object columns every
+ * operator evaluates its own compiled predicate, exactly as row by row
+ * evaluation does, and rows with null values never match. On primitive
+ * columns only operators with the semantics of the built-in comparisons (see
+ * {@link FiqlOperators#comparison(String, ConditionType)}) are supported.
+ * <p/>
+ * Example:
+ *
+ * <pre>
+ * ColumnBatch batch = new ColumnBatch(n).addInts(&quot;year&quot;, years).addStrings(&quot;director.name&quot;, directors);
+ * BitSet matches = new ColumnarEvaluator(parser, &quot;year=ge=2000;director.name==Nolan&quot;).evaluate(batch);
+ * </pre>
+ */
+public final class ColumnarEvaluator {
+
+	public static final int DEFAULT_CHUNK_ROWS = 4096;
+
+	private static final int CHUNKS_PER_TASK = 16;
+
+	private final CompactAst ast;
+	private final FiqlDialect dialect;
+	private final int chunkRows;
+	private final int depth;
+
+	/**
+	 * Evaluates an expression compiled by given parser, with its dialect.
+	 *
+	 * @throws FiqlParseException
+	 *             when the expression is not valid.
+	 */
+	public ColumnarEvaluator(final ExtendableFiqlParser<?> parser, final String expression) throws FiqlParseException {
+		this(parser.compile(expression), parser.getDialect(), DEFAULT_CHUNK_ROWS);
+	}
+
+	/**
+	 * Evaluates an expression compiled with the global dialect.
+	 */
+	public ColumnarEvaluator(final CompactAst ast) {
+		this(ast, FiqlDialect.getGlobal(), DEFAULT_CHUNK_ROWS);
+	}
+
+	/**
+	 * @param ast
+	 *            compiled expression, see
+	 *            {@link ExtendableFiqlParser#compile(String)}.
+	 * @param dialect
+	 *            dialect the expression was compiled with, see
+	 *            {@link ExtendableFiqlParser#getDialect()}.
+	 * @param chunkRows
+	 *            rows evaluated at once, a positive multiple of 64.
+	 */
+	public ColumnarEvaluator(final CompactAst ast, final FiqlDialect dialect, final int chunkRows) {
+		if (ast == null) {
+			throw new IllegalArgumentException("ast is null");
+		}
+		if (dialect == null) {
+			throw new IllegalArgumentException("dialect is null");
+		}
+		if (chunkRows <= 0 || chunkRows % Long.SIZE != 0) {
+			throw new IllegalArgumentException("chunkRows must be a positive multiple of 64");
+		}
+		this.ast = ast;
+		this.dialect = dialect;
+		this.chunkRows = chunkRows;
+		this.depth = depth(0);
+	}
+
+	public BitSet evaluate(final ColumnBatch batch) throws FiqlParseException {
+		return BitSet.valueOf(evaluateWords(batch));
+	}
+
+	public BitSet evaluate(final ColumnBatch batch, final ExecutorService executor) throws FiqlParseException,
+			InterruptedException {
+		return BitSet.valueOf(evaluateWords(batch, executor));
+	}
+
+	/**
+	 * @return matches as words of 64 rows, row <code>i</code> being bit
+	 *         <code>i % 64</code> of word <code>i / 64</code>.
+	 * @throws FiqlParseException
+	 *             when a value can not be converted to its column type.
+	 */
+	public long[] evaluateWords(final ColumnBatch batch) throws FiqlParseException {
+		final Node root = bind(batch, 0);
+		final long[] words = new long[words(batch.size())];
+		evaluate(root, batch.size(), words, 0, chunks(batch.size()));
+		return words;
+	}
+
+	/**
+	 * Same as {@link #evaluateWords(ColumnBatch)}, chunks being spread over
+	 * given executor.
+	 */
+	public long[] evaluateWords(final ColumnBatch batch, final ExecutorService executor) throws FiqlParseException,
+			InterruptedException {
+		final Node root = bind(batch, 0);
+		final int size = batch.size();
+		final long[] words = new long[words(size)];
+		final int chunks = chunks(size);
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int first = 0; first < chunks; first += CHUNKS_PER_TASK) {
+			final int from = first;
+			final int to = Math.min(chunks, first + CHUNKS_PER_TASK);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					evaluate(root, size, words, from, to);
+					return null;
+				}
+			});
+		}
+		for (final Future<Void> future : executor.invokeAll(tasks)) {
+			try {
+				future.get();
+			} catch (final ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		return words;
+	}
+
+	private void evaluate(final Node root, final int size, final long[] words, final int fromChunk, final int toChunk) {
+		final long[][] scratch = new long[depth][chunkRows / Long.SIZE];
+		for (int chunk = fromChunk; chunk < toChunk; chunk++) {
+			final int from = chunk * chunkRows;
+			root.eval(from, Math.min(size, from + chunkRows), words, from / Long.SIZE, scratch, 0);
+		}
+	}
+
+	private int chunks(final int size) {
+		return (size + chunkRows - 1) / chunkRows;
+	}
+
+	private static int words(final int size) {
+		return (size + Long.SIZE - 1) / Long.SIZE;
+	}
+
+	private int depth(final int node) {
+		int max = 0;
+		for (int i = 0, child = node + 1; i < ast.arity(node); i++, child = ast.next(child)) {
+			max = Math.max(max, depth(child));
+		}
+		return ast.isComparison(node) ? 0 : max + 1;
+	}
+
+	private Node bind(final ColumnBatch batch, final int node) throws FiqlParseException {
+		if (!ast.isComparison(node)) {
+			final Node[] children = new Node[ast.arity(node)];
+			for (int i = 0, child = node + 1; i < children.length; i++, child = ast.next(child)) {
+				children[i] = bind(batch, child);
+			}
+			return new Composite(ast.kind(node) == CompactAst.AND, children);
+		}
+		final FiqlOperator operator = dialect.operator(ast.operator(node));
+		final Object column = batch.get(ast.name(node));
+		final String value = ast.value(node);
+		if (column instanceof String[]) {
+			return new Matches((String[]) column, compile(operator, value, String.class));
+		} else if (column instanceof ColumnBatch.ComparableColumn) {
+			final ColumnBatch.ComparableColumn comparables = (ColumnBatch.ComparableColumn) column;
+			return new Matches(comparables.values, compile(operator, value, comparables.type));
+		}
+		if (!FiqlOperators.isComparison(operator)) {
+			throw new IllegalArgumentException("Operator '" + ast.operator(node) + "' is not supported on primitive columns");
+		}
+		final ConditionType ct = operator.getConditionType();
+		if (column instanceof int[]) {
+			return IntRange.of((int[]) column, ct, ((Number) ExtendableFiqlParser.convert(value, int.class)).intValue());
+		} else if (column instanceof long[]) {
+			return LongRange.of((long[]) column, ct, ((Number) ExtendableFiqlParser.convert(value, long.class)).longValue());
+		} else {
+			return DoubleRange.of((double[]) column, ct, ((Number) ExtendableFiqlParser.convert(value, double.class)).doubleValue());
+		}
+	}
+
+	private static Predicate compile(final FiqlOperator operator, final String value, final Class<?> type) throws FiqlParseException {
+		return operator.compile(operator.parseValue(value, type), type);
+	}
+
+	// clears bits past the end of a last, partial word
+	private static long valid(final int rows) {
+		return rows == Long.SIZE ? -1L : (1L << rows) - 1;
+	}
+
+	private abstract static class Node {
+		/**
+		 * Sets bits of rows [from, to) into words starting at given one.
+		 */
+		abstract void eval(int from, int to, long[] out, int word, long[][] scratch, int level);
+	}
+
+	private static final class Composite extends Node {
+		private final boolean and;
+		private final Node[] children;
+
+		Composite(final boolean and, final Node[] children) {
+			this.and = and;
+			this.children = children;
+		}
+
+		@Override
+		void eval(final int from, final int to, final long[] out, final int word, final long[][] scratch, final int level) {
+			final int words = words(to - from);
+			children[0].eval(from, to, out, word, scratch, level + 1);
+			final long[] tmp = scratch[level];
+			for (int c = 1; c < children.length; c++) {
+				// ANDs stop once nothing matches, ORs once everything does
+				long decided = and ? 0 : -1L;
+				for (int w = 0; w < words; w++) {
+					if (and) {
+						decided |= out[word + w];
+					} else {
+						decided &= out[word + w] | (w == words - 1 ? ~valid(to - from - w * Long.SIZE) : 0);
+					}
+				}
+				if (and ? decided == 0 : decided == -1L) {
+					return;
+				}
+				children[c].eval(from, to, tmp, 0, scratch, level + 1);
+				if (and) {
+					for (int w = 0; w < words; w++) {
+						out[word + w] &= tmp[w];
+					}
+				} else {
+					for (int w = 0; w < words; w++) {
+						out[word + w] |= tmp[w];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Every numeric comparison is a range check <code>lo &lt;= x &lt;= hi</code>,
+	 * possibly negated (!=), so there is a single branch free loop per type.
+	 */
+	private static final class IntRange extends Node {
+		private final int[] column;
+		private final int lo;
+		private final int hi;
+		private final boolean negate;
+
+		private IntRange(final int[] column, final int lo, final int hi, final boolean negate) {
+			this.column = column;
+			this.lo = lo;
+			this.hi = hi;
+			this.negate = negate;
+		}
+
+		static IntRange of(final int[] column, final ConditionType ct, final int v) {
+			switch (ct) {
+			case EQUALS:
+				return new IntRange(column, v, v, false);
+			case NOT_EQUALS:
+				return new IntRange(column, v, v, true);
+			case GREATER_THAN:
+				return v == Integer.MAX_VALUE ? new IntRange(column, 1, 0, false) : new IntRange(column, v + 1, Integer.MAX_VALUE, false);
+			case GREATER_OR_EQUALS:
+				return new IntRange(column, v, Integer.MAX_VALUE, false);
+			case LESS_THAN:
+				return v == Integer.MIN_VALUE ? new IntRange(column, 1, 0, false) : new IntRange(column, Integer.MIN_VALUE, v - 1, false);
+			case LESS_OR_EQUALS:
+				return new IntRange(column, Integer.MIN_VALUE, v, false);
+			default:
+				throw new IllegalArgumentException("Condition type " + ct.name() + " is not supported on columns");
+			}
+		}
+
+		@Override
+		void eval(final int from, final int to, final long[] out, final int word, final long[][] scratch, final int level) {
+			final int[] column = this.column;
+			final int lo = this.lo;
+			final int hi = this.hi;
+			int w = word;
+			for (int i = from; i < to; i += Long.SIZE) {
+				final int end = Math.min(to, i + Long.SIZE);
+				long bits = 0;
+				for (int r = i; r < end; r++) {
+					final int x = column[r];
+					bits |= (x >= lo & x <= hi ? 1L : 0L) << (r - i);
+				}
+				out[w++] = negate ? ~bits & valid(end - i) : bits;
+			}
+		}
+	}
+
+	private static final class LongRange extends Node {
+		private final long[] column;
+		private final long lo;
+		private final long hi;
+		private final boolean negate;
+
+		private LongRange(final long[] column, final long lo, final long hi, final boolean negate) {
+			this.column = column;
+			this.lo = lo;
+			this.hi = hi;
+			this.negate = negate;
+		}
+
+		static LongRange of(final long[] column, final ConditionType ct, final long v) {
+			switch (ct) {
+			case EQUALS:
+				return new LongRange(column, v, v, false);
+			case NOT_EQUALS:
+				return new LongRange(column, v, v, true);
+			case GREATER_THAN:
+				return v == Long.MAX_VALUE ? new LongRange(column, 1, 0, false) : new LongRange(column, v + 1, Long.MAX_VALUE, false);
+			case GREATER_OR_EQUALS:
+				return new LongRange(column, v, Long.MAX_VALUE, false);
+			case LESS_THAN:
+				return v == Long.MIN_VALUE ? new LongRange(column, 1, 0, false) : new LongRange(column, Long.MIN_VALUE, v - 1, false);
+			case LESS_OR_EQUALS:
+				return new LongRange(column, Long.MIN_VALUE, v, false);
+			default:
+				throw new IllegalArgumentException("Condition type " + ct.name() + " is not supported on columns");
+			}
+		}
+
+		@Override
+		void eval(final int from, final int to, final long[] out, final int word, final long[][] scratch, final int level) {
+			final long[] column = this.column;
+			final long lo = this.lo;
+			final long hi = this.hi;
+			int w = word;
+			for (int i = from; i < to; i += Long.SIZE) {
+				final int end = Math.min(to, i + Long.SIZE);
+				long bits = 0;
+				for (int r = i; r < end; r++) {
+					final long x = column[r];
+					bits |= (x >= lo & x <= hi ? 1L : 0L) << (r - i);
+				}
+				out[w++] = negate ? ~bits & valid(end - i) : bits;
+			}
+		}
+	}
+
+	private static final class DoubleRange extends Node {
+		private final double[] column;
+		private final double lo;
+		private final double hi;
+		private final boolean negate;
+
+		private DoubleRange(final double[] column, final double lo, final double hi, final boolean negate) {
+			this.column = column;
+			this.lo = lo;
+			this.hi = hi;
+			this.negate = negate;
+		}
+
+		static DoubleRange of(final double[] column, final ConditionType ct, final double v) {
+			switch (ct) {
+			case EQUALS:
+				return new DoubleRange(column, v, v, false);
+			case NOT_EQUALS:
+				return new DoubleRange(column, v, v, true);
+			case GREATER_THAN:
+				return new DoubleRange(column, Math.nextUp(v), Double.POSITIVE_INFINITY, false);
+			case GREATER_OR_EQUALS:
+				return new DoubleRange(column, v, Double.POSITIVE_INFINITY, false);
+			case LESS_THAN:
+				return new DoubleRange(column, Double.NEGATIVE_INFINITY, Math.nextDown(v), false);
+			case LESS_OR_EQUALS:
+				return new DoubleRange(column, Double.NEGATIVE_INFINITY, v, false);
+			default:
+				throw new IllegalArgumentException("Condition type " + ct.name() + " is not supported on columns");
+			}
+		}
+
+		@Override
+		void eval(final int from, final int to, final long[] out, final int word, final long[][] scratch, final int level) {
+			final double[] column = this.column;
+			final double lo = this.lo;
+			final double hi = this.hi;
+			int w = word;
+			for (int i = from; i < to; i += Long.SIZE) {
+				final int end = Math.min(to, i + Long.SIZE);
+				long bits = 0;
+				for (int r = i; r < end; r++) {
+					final double x = column[r];
+					bits |= (x >= lo & x <= hi ? 1L : 0L) << (r - i);
+				}
+				out[w++] = negate ? ~bits & valid(end - i) : bits;
+			}
+		}
+	}
+
+	/**
+	 * Object column tested by the predicate its operator compiled, as rows
+	 * are by row by row evaluation.
+	 */
+	private static final class Matches extends Node {
+		private final Object[] column;
+		private final Predicate predicate;
+
+		Matches(final Object[] column, final Predicate predicate) {
+			this.column = column;
+			this.predicate = predicate;
+		}
+
+		@Override
+		void eval(final int from, final int to, final long[] out, final int word, final long[][] scratch, final int level) {
+			final Object[] column = this.column;
+			final Predicate predicate = this.predicate;
+			int w = word;
+			for (int i = from; i < to; i += Long.SIZE) {
+				final int end = Math.min(to, i + Long.SIZE);
+				long bits = 0;
+				for (int r = i; r < end; r++) {
+					final Object x = column[r];
+					bits |= (x != null && predicate.evaluate(x) ? 1L : 0L) << (r - i);
+				}
+				out[w++] = bits;
+			}
+		}
+	}
+}
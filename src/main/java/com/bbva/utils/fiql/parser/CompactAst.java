@@ -0,0 +1,389 @@
+package com.bbva.utils.fiql.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+
+/**
+ * Compact, immutable representation of a parsed FIQL expression.
+ * <p/>
+ * Nodes are stored in pre-order in a single <code>long[]</code>, one fixed
+ * width word per node, and every name, operator and value is a reference into
+ * a pool of literals shared by the whole expression. A composite node (AND,
+ * OR) records its arity and the size of its subtree so that children can be
+ * walked without any pointer; a comparison node records the pool indexes of
+ * its selector, operator and value.
+ * <p/>
+ * The tree keeps the exact shape produced by {@link ExtendableFiqlParser}, so
+ * the {@link org.apache.cxf.jaxrs.ext.search.SearchCondition} built from it
+ * (see {@link ExtendableFiqlParser#toSearchCondition(CompactAst)}) is the same
+ * the parser would return from
+ * {@link ExtendableFiqlParser#parse(String)}. Instances can be written to and
+ * read from a stable binary format using {@link #writeTo(DataOutput)} and
+ * {@link #readFrom(DataInput)}.
+ * <p/>
+ * Binary format, version 1 (all values big-endian as written by
+ * {@link DataOutput}):
+ *
+ * <pre>
+ * int    magic ("FIQL")
+ * short  version
+ * int    literal count, followed by every literal as modified UTF-8
+ * int    node count, followed by every node as a long
+ * </pre>
+ */
+public final class CompactAst {
+
+	public static final int AND = 1;
+	public static final int OR = 2;
+	public static final int COMPARISON = 3;
+
+	static final int MAX_INDEX = (1 << 20) - 1;
+	// each bracket adds at most an OR and an AND level
+	static final int MAX_NESTING = 1024;
+
+	private static final int MAGIC = 0x4649514C;
+	private static final short VERSION = 1;
+
+	private static final int KIND_SHIFT = 60;
+	private static final int SECOND_SHIFT = 20;
+	private static final int THIRD_SHIFT = 40;
+
+	private final long[] nodes;
+	private final String[] literals;
+	private int hash;
+
+	private CompactAst(final long[] nodes, final String[] literals) {
+		this.nodes = nodes;
+		this.literals = literals;
+	}
+
+	/**
+	 * @return number of nodes of the expression tree; root node is always at
+	 *         index 0.
+	 */
+	public int size() {
+		return nodes.length;
+	}
+
+	public int kind(final int node) {
+		return (int) (nodes[node] >>> KIND_SHIFT);
+	}
+
+	public boolean isComparison(final int node) {
+		return kind(node) == COMPARISON;
+	}
+
+	/**
+	 * @return number of direct children of a composite node, 0 for
+	 *         comparisons.
+	 */
+	public int arity(final int node) {
+		return isComparison(node) ? 0 : field(node, 0);
+	}
+
+	/**
+	 * @return index of the first node following the subtree rooted at given
+	 *         node, which is the next sibling when there is one.
+	 */
+	public int next(final int node) {
+		return isComparison(node) ? node + 1 : node + field(node, SECOND_SHIFT);
+	}
+
+	public String name(final int node) {
+		return literals[comparisonField(node, 0)];
+	}
+
+	public String operator(final int node) {
+		return literals[comparisonField(node, SECOND_SHIFT)];
+	}
+
+	public String value(final int node) {
+		return literals[comparisonField(node, THIRD_SHIFT)];
+	}
+
+	/**
+	 * @return number of distinct literals referenced by the tree.
+	 */
+	public int literalCount() {
+		return literals.length;
+	}
+
+	public void writeTo(final DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(literals.length);
+		for (final String literal : literals) {
+			out.writeUTF(literal);
+		}
+		out.writeInt(nodes.length);
+		for (final long node : nodes) {
+			out.writeLong(node);
+		}
+	}
+
+	public byte[] toByteArray() {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + nodes.length * 8 + literals.length * 12);
+		try {
+			writeTo(new DataOutputStream(bytes));
+		} catch (final IOException e) {
+			// in memory stream does not fail
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads a tree written by {@link #writeTo(DataOutput)}. Every reference
+	 * and subtree size is checked so a corrupted or forged input can not
+	 * produce a tree that fails later on.
+	 *
+	 * @throws IOException
+	 *             when input is not a valid serialized tree.
+	 */
+	public static CompactAst readFrom(final DataInput in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a serialized FIQL expression");
+		}
+		final short version = in.readShort();
+		if (version != VERSION) {
+			throw new IOException("Unsupported serialized FIQL expression version " + version);
+		}
+		final int literalCount = in.readInt();
+		if (literalCount < 0 || literalCount > MAX_INDEX + 1) {
+			throw new IOException("Invalid literal count " + literalCount);
+		}
+		final String[] literals = new String[literalCount];
+		for (int i = 0; i < literalCount; i++) {
+			literals[i] = in.readUTF();
+		}
+		final int nodeCount = in.readInt();
+		if (nodeCount <= 0 || nodeCount > MAX_INDEX) {
+			throw new IOException("Invalid node count " + nodeCount);
+		}
+		final long[] nodes = new long[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			nodes[i] = in.readLong();
+		}
+		final CompactAst ast = new CompactAst(nodes, literals);
+		if (ast.check(0, 0) != nodeCount) {
+			throw new IOException("Serialized FIQL expression has trailing nodes");
+		}
+		return ast;
+	}
+
+	public static CompactAst fromByteArray(final byte[] bytes) throws IOException {
+		return readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	private int check(final int node, final int depth) throws IOException {
+		if (depth > MAX_NESTING) {
+			throw new IOException("Serialized FIQL expression is nested too deep");
+		}
+		if (node >= nodes.length) {
+			throw new IOException("Serialized FIQL expression is truncated at node " + node);
+		}
+		final int kind = kind(node);
+		if (kind == COMPARISON) {
+			for (int shift = 0; shift <= THIRD_SHIFT; shift += SECOND_SHIFT) {
+				if (field(node, shift) >= literals.length) {
+					throw new IOException("Node " + node + " references unknown literal " + field(node, shift));
+				}
+			}
+			return node + 1;
+		} else if (kind == AND || kind == OR) {
+			final int arity = field(node, 0);
+			if (arity < 2 || field(node, THIRD_SHIFT) != 0) {
+				throw new IOException("Composite node " + node + " has less than two children");
+			}
+			int child = node + 1;
+			for (int i = 0; i < arity; i++) {
+				child = check(child, depth + 1);
+			}
+			if (child != next(node)) {
+				throw new IOException("Composite node " + node + " has inconsistent subtree size");
+			}
+			return child;
+		} else {
+			throw new IOException("Unknown node kind " + kind + " at node " + node);
+		}
+	}
+
+	private int field(final int node, final int shift) {
+		return (int) (nodes[node] >>> shift) & MAX_INDEX;
+	}
+
+	private int comparisonField(final int node, final int shift) {
+		if (!isComparison(node)) {
+			throw new IllegalArgumentException("Node " + node + " is not a comparison");
+		}
+		return field(node, shift);
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof CompactAst)) {
+			return false;
+		}
+		final CompactAst other = (CompactAst) obj;
+		return Arrays.equals(nodes, other.nodes) && Arrays.equals(literals, other.literals);
+	}
+
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = 31 * Arrays.hashCode(nodes) + Arrays.hashCode(literals);
+			hash = h;
+		}
+		return h;
+	}
+
+	/**
+	 * Renders the tree back to a FIQL expression which, parsed again, gives
+	 * an identical tree.
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		render(0, sb);
+		return sb.toString();
+	}
+
+	private void render(final int node, final StringBuilder sb) {
+		final int kind = kind(node);
+		if (kind == COMPARISON) {
+			sb.append(name(node)).append(operator(node)).append(value(node));
+			return;
+		}
+		final int arity = arity(node);
+		int child = node + 1;
+		for (int i = 0; i < arity; i++) {
+			if (i > 0) {
+				sb.append(kind == AND ? ExtendableFiqlParser.AND : ExtendableFiqlParser.OR);
+			}
+			// ANDs bind stronger than ORs, any other nesting comes from brackets
+			final boolean brackets = !isComparison(child) && !(kind == OR && kind(child) == AND);
+			if (brackets) {
+				sb.append('(');
+			}
+			render(child, sb);
+			if (brackets) {
+				sb.append(')');
+			}
+			child = next(child);
+		}
+	}
+
+	/**
+	 * @return number of comparisons of the tree.
+	 */
+	int comparisonCount() {
+		int count = 0;
+		for (int node = 0; node < nodes.length; node++) {
+			if (isComparison(node)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return bracket nesting of the expression rendered by
+	 *         {@link #toString()}, brackets within values aside.
+	 */
+	int depth() {
+		return depth(0);
+	}
+
+	private int depth(final int node) {
+		final int kind = kind(node);
+		if (kind == COMPARISON) {
+			return 0;
+		}
+		int max = 0;
+		int child = node + 1;
+		for (int i = 0; i < arity(node); i++) {
+			// same brackets as rendered
+			final boolean brackets = !isComparison(child) && !(kind == OR && kind(child) == AND);
+			max = Math.max(max, depth(child) + (brackets ? 1 : 0));
+			child = next(child);
+		}
+		return max;
+	}
+
+	/**
+	 * Collects nodes in pre-order. Composite nodes are reserved before their
+	 * children are emitted and closed afterwards; a composite closed with a
+	 * single child is dropped so that the child takes its place.
+	 */
+	static final class Builder {
+
+		private long[] nodes = new long[8];
+		private int count;
+		private final Map<String, Integer> pool = new HashMap<String, Integer>();
+		private String[] literals = new String[8];
+
+		int reserve() throws FiqlParseException {
+			ensureCapacity();
+			return count++;
+		}
+
+		void close(final int node, final int kind, final int arity) {
+			if (arity == 1) {
+				System.arraycopy(nodes, node + 1, nodes, node, count - node - 1);
+				count--;
+			} else {
+				nodes[node] = (long) kind << KIND_SHIFT | (long) (count - node) << SECOND_SHIFT | arity;
+			}
+		}
+
+		void comparison(final String name, final String operator, final String value) throws FiqlParseException {
+			ensureCapacity();
+			nodes[count++] = (long) COMPARISON << KIND_SHIFT | (long) literal(value) << THIRD_SHIFT
+					| (long) literal(operator) << SECOND_SHIFT | literal(name);
+		}
+
+		CompactAst build() {
+			return new CompactAst(Arrays.copyOf(nodes, count), Arrays.copyOf(literals, pool.size()));
+		}
+
+		private int literal(final String literal) throws FiqlParseException {
+			Integer idx = pool.get(literal);
+			if (idx == null) {
+				idx = pool.size();
+				if (idx > MAX_INDEX) {
+					throw new FiqlParseException("Expression has too many distinct literals");
+				}
+				if (idx == literals.length) {
+					literals = Arrays.copyOf(literals, idx * 2);
+				}
+				literals[idx] = literal;
+				pool.put(literal, idx);
+			}
+			return idx;
+		}
+
+		private void ensureCapacity() throws FiqlParseException {
+			// the subtree size of the root, which is the node count, must fit a field
+			if (count >= MAX_INDEX) {
+				throw new FiqlParseException("Expression has too many nodes");
+			}
+			if (count == nodes.length) {
+				nodes = Arrays.copyOf(nodes, count * 2);
+			}
+		}
+	}
+}
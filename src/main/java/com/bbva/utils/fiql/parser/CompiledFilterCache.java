@@ -0,0 +1,238 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of compiled expressions keyed by search type, dialect, parse
+ * limits and expression text, shared by every {@link ExtendableFiqlParser}.
+ * An expression accepted under some limits is therefore scanned again, and
+ * checked against them, by a parser with stricter ones. When the
+ * cache is full the least recently used entry is evicted, in constant time.
+ * Each entry also counts its hits, so that {@link #mostUsed(int)} gives the
+ * hot entries worth persisting (see {@link WarmStartSnapshot}).
+ * <p/>
+ * Rejected expressions are kept apart, up to the same maximum size and with
+ * the same eviction, so that {@link ExtendableFiqlParser#tryParse(String)}
+ * rejects a repeated invalid expression without scanning it again. Only
+ * grammar, selector and value errors are kept, exceeded limits are not.
+ */
+public final class CompiledFilterCache {
+
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	private static final CompiledFilterCache SHARED = new CompiledFilterCache(DEFAULT_MAX_SIZE);
+
+	// access ordered, guarded by this
+	private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private final Map<Key, FiqlParseResult<?>> rejections = new LinkedHashMap<Key, FiqlParseResult<?>>(16, 0.75f, true);
+	private volatile int maxSize;
+
+	public CompiledFilterCache(final int maxSize) {
+		setMaxSize(maxSize);
+	}
+
+	public static CompiledFilterCache getShared() {
+		return SHARED;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param maxSize
+	 *            maximum number of cached expressions, 0 disables caching.
+	 */
+	public void setMaxSize(final int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize is negative");
+		}
+		this.maxSize = maxSize;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return number of cached rejections.
+	 */
+	public synchronized int rejectedSize() {
+		return rejections.size();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		rejections.clear();
+	}
+
+	/**
+	 * @return cached compiled expression of the global dialect and default
+	 *         limits, or null; a found entry counts one more hit.
+	 */
+	public CompactAst get(final Class<?> type, final String expression) {
+		return get(type, FiqlDialect.getGlobal(), ParseLimits.getDefault(), expression);
+	}
+
+	CompactAst get(final Class<?> type, final FiqlDialect dialect, final ParseLimits limits, final String expression) {
+		final Key key = new Key(type, dialect, limits, expression);
+		final Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+		if (entry == null) {
+			return null;
+		}
+		entry.hits.incrementAndGet();
+		return entry.ast;
+	}
+
+	/**
+	 * Caches an expression compiled with the global dialect and default
+	 * limits.
+	 */
+	public void put(final Class<?> type, final String expression, final CompactAst ast) {
+		put(type, FiqlDialect.getGlobal(), ParseLimits.getDefault(), expression, ast, 0);
+	}
+
+	void put(final Class<?> type, final FiqlDialect dialect, final ParseLimits limits, final String expression, final CompactAst ast) {
+		put(type, dialect, limits, expression, ast, 0);
+	}
+
+	void put(final Class<?> type, final FiqlDialect dialect, final ParseLimits limits, final String expression, final CompactAst ast,
+			final long hits) {
+		final Key key = new Key(type, dialect, limits, expression);
+		synchronized (this) {
+			if (maxSize == 0 || entries.containsKey(key)) {
+				return;
+			}
+			entries.put(key, new Entry(type, dialect, limits, expression, ast, hits));
+			evictEldest(entries);
+		}
+	}
+
+	FiqlParseResult<?> getRejection(final Class<?> type, final FiqlDialect dialect, final ParseLimits limits, final String expression) {
+		final Key key = new Key(type, dialect, limits, expression);
+		synchronized (this) {
+			return rejections.get(key);
+		}
+	}
+
+	void putRejection(final Class<?> type, final FiqlDialect dialect, final ParseLimits limits, final String expression,
+			final FiqlParseResult<?> rejection) {
+		final Key key = new Key(type, dialect, limits, expression);
+		synchronized (this) {
+			if (maxSize == 0) {
+				return;
+			}
+			rejections.put(key, rejection);
+			evictEldest(rejections);
+		}
+	}
+
+	/**
+	 * @return up to <code>n</code> entries, most hit first.
+	 */
+	public List<Entry> mostUsed(final int n) {
+		final List<Entry> list;
+		synchronized (this) {
+			list = new ArrayList<Entry>(entries.values());
+		}
+		Collections.sort(list, new Comparator<Entry>() {
+			public int compare(final Entry o1, final Entry o2) {
+				final long h1 = o1.getHits();
+				final long h2 = o2.getHits();
+				return h1 < h2 ? 1 : h1 == h2 ? 0 : -1;
+			}
+		});
+		return list.size() > n ? list.subList(0, n) : list;
+	}
+
+	// least recently used entries come first, a lowered maximum size may
+	// leave several to evict
+	private void evictEldest(final Map<Key, ?> map) {
+		final Iterator<Key> keys = map.keySet().iterator();
+		while (map.size() > maxSize && keys.hasNext()) {
+			keys.next();
+			keys.remove();
+		}
+	}
+
+	public static final class Entry {
+		private final Class<?> type;
+		private final FiqlDialect dialect;
+		private final ParseLimits limits;
+		private final String expression;
+		private final CompactAst ast;
+		private final AtomicLong hits;
+
+		private Entry(final Class<?> type, final FiqlDialect dialect, final ParseLimits limits, final String expression,
+				final CompactAst ast, final long hits) {
+			this.type = type;
+			this.dialect = dialect;
+			this.limits = limits;
+			this.expression = expression;
+			this.ast = ast;
+			this.hits = new AtomicLong(hits);
+		}
+
+		public Class<?> getType() {
+			return type;
+		}
+
+		public FiqlDialect getDialect() {
+			return dialect;
+		}
+
+		public ParseLimits getLimits() {
+			return limits;
+		}
+
+		public String getExpression() {
+			return expression;
+		}
+
+		public CompactAst getAst() {
+			return ast;
+		}
+
+		public long getHits() {
+			return hits.get();
+		}
+	}
+
+	private static final class Key {
+		private final Class<?> type;
+		private final FiqlDialect dialect;
+		private final ParseLimits limits;
+		private final String expression;
+
+		private Key(final Class<?> type, final FiqlDialect dialect, final ParseLimits limits, final String expression) {
+			this.type = type;
+			this.dialect = dialect;
+			this.limits = limits;
+			this.expression = expression;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Key other = (Key) obj;
+			return type == other.type && dialect == other.dialect && limits.equals(other.limits) && expression.equals(other.expression);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * (31 * type.hashCode() + System.identityHashCode(dialect)) + limits.hashCode()) + expression.hashCode();
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package com.bbva.utils.fiql.parser;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * Canonical instances of built conditions (hash-consing). Comparisons with
+ * the same search type, property, operator and literal, and ANDs or ORs of
+ * the same canonical children, are built once and shared by every tree
+ * built afterwards, so that memory grows with the number of distinct
+ * subexpressions rather than with the number of expressions. Property paths
+ * and literals are interned too.
+ * <p/>
+ * Entries are weakly referenced: a node no tree uses anymore is released
+ * by the garbage collector. Shared conditions must be treated as immutable.
+ *
+ * @see ExtendableFiqlParser#setInterner(ConditionInterner)
+ * @see BatchMatcher
+ */
+public final class ConditionInterner {
+
+	private static final ConditionInterner SHARED = new ConditionInterner();
+
+	private final ConcurrentMap<Object, Ref> nodes = new ConcurrentHashMap<Object, Ref>();
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	private final Map<String, WeakReference<String>> strings = Collections
+			.synchronizedMap(new WeakHashMap<String, WeakReference<String>>());
+
+	public static ConditionInterner getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * @return number of canonical nodes still in use.
+	 */
+	public int size() {
+		expunge();
+		return nodes.size();
+	}
+
+	public void clear() {
+		nodes.clear();
+		strings.clear();
+	}
+
+	/**
+	 * @return canonical instance of given string.
+	 */
+	String intern(final String s) {
+		synchronized (strings) {
+			final WeakReference<String> ref = strings.get(s);
+			final String canonical = ref == null ? null : ref.get();
+			if (canonical != null) {
+				return canonical;
+			}
+			strings.put(s, new WeakReference<String>(s));
+			return s;
+		}
+	}
+
+	/**
+	 * @return canonical node of given key, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	<N> N get(final Object key) {
+		expunge();
+		final Ref ref = nodes.get(key);
+		return ref == null ? null : (N) ref.get();
+	}
+
+	/**
+	 * @return canonical node of given key, which is given node unless some
+	 *         other thread interned an equal one first.
+	 */
+	@SuppressWarnings("unchecked")
+	<N> N intern(final Object key, final N node) {
+		while (true) {
+			final Ref ref = new Ref(key, node, queue);
+			final Ref previous = nodes.putIfAbsent(key, ref);
+			if (previous == null) {
+				return node;
+			}
+			final Object canonical = previous.get();
+			if (canonical != null) {
+				return (N) canonical;
+			}
+			// collected meanwhile, replace the stale entry
+			nodes.remove(key, previous);
+		}
+	}
+
+	private void expunge() {
+		Ref ref;
+		while ((ref = (Ref) queue.poll()) != null) {
+			nodes.remove(ref.key, ref);
+		}
+	}
+
+	static Object comparisonKey(final Class<?> type, final FiqlOperator operator, final String property, final String literal) {
+		return new ComparisonKey(type, operator, property, literal);
+	}
+
+	/**
+	 * @param children
+	 *            canonical children, compared by identity.
+	 */
+	static Object compositeKey(final boolean and, final List<? extends SearchCondition<?>> children) {
+		return new CompositeKey(and, children.toArray());
+	}
+
+	static Object planKey(final SearchCondition<?> tree) {
+		return new PlanKey(tree, false);
+	}
+
+	static Object programKey(final SearchCondition<?> tree) {
+		return new PlanKey(tree, true);
+	}
+
+	private static final class Ref extends WeakReference<Object> {
+		private final Object key;
+
+		Ref(final Object key, final Object node, final ReferenceQueue<Object> queue) {
+			super(node, queue);
+			this.key = key;
+		}
+	}
+
+	private static final class ComparisonKey {
+		private final Class<?> type;
+		private final FiqlOperator operator;
+		private final String property;
+		private final String literal;
+
+		ComparisonKey(final Class<?> type, final FiqlOperator operator, final String property, final String literal) {
+			this.type = type;
+			this.operator = operator;
+			this.property = property;
+			this.literal = literal;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof ComparisonKey)) {
+				return false;
+			}
+			final ComparisonKey other = (ComparisonKey) obj;
+			return type == other.type && operator == other.operator && property.equals(other.property) && literal.equals(other.literal);
+		}
+
+		@Override
+		public int hashCode() {
+			return ((type.hashCode() * 31 + System.identityHashCode(operator)) * 31 + property.hashCode()) * 31 + literal.hashCode();
+		}
+	}
+
+	private static final class CompositeKey {
+		private final boolean and;
+		private final Object[] children;
+
+		CompositeKey(final boolean and, final Object[] children) {
+			this.and = and;
+			this.children = children;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof CompositeKey)) {
+				return false;
+			}
+			final CompositeKey other = (CompositeKey) obj;
+			if (and != other.and || children.length != other.children.length) {
+				return false;
+			}
+			for (int i = 0; i < children.length; i++) {
+				if (children[i] != other.children[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = and ? 1 : 2;
+			for (final Object child : children) {
+				h = h * 31 + System.identityHashCode(child);
+			}
+			return h;
+		}
+	}
+
+	private static final class PlanKey {
+		private final SearchCondition<?> tree;
+		private final boolean program;
+
+		PlanKey(final SearchCondition<?> tree, final boolean program) {
+			this.tree = tree;
+			this.program = program;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			return obj instanceof PlanKey && ((PlanKey) obj).tree == tree && ((PlanKey) obj).program == program;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(tree) * 2 + (program ? 1 : 0);
+		}
+	}
+}
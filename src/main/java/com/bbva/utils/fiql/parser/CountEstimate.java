@@ -0,0 +1,75 @@
+package com.bbva.utils.fiql.parser;
+
+/**
+ * Estimated number of matching objects of a collection, with the interval
+ * the actual number lies in with the confidence of the estimator (see
+ * {@link CardinalityEstimator}).
+ */
+public final class CountEstimate {
+
+	private final int count;
+	private final int lower;
+	private final int upper;
+	private final int population;
+	private final int sampleSize;
+
+	CountEstimate(final int count, final int lower, final int upper, final int population, final int sampleSize) {
+		this.count = count;
+		this.lower = lower;
+		this.upper = upper;
+		this.population = population;
+		this.sampleSize = sampleSize;
+	}
+
+	/**
+	 * @return most likely number of matching objects.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public int getLower() {
+		return lower;
+	}
+
+	public int getUpper() {
+		return upper;
+	}
+
+	/**
+	 * @return number of objects of the collection.
+	 */
+	public int getPopulation() {
+		return population;
+	}
+
+	/**
+	 * @return number of objects evaluated, 0 when the estimate comes from a
+	 *         histogram only.
+	 */
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	/**
+	 * @return whether the count is known for sure.
+	 */
+	public boolean isExact() {
+		return lower == upper;
+	}
+
+	/**
+	 * @return estimated fraction of matching objects.
+	 */
+	public double getSelectivity() {
+		return population == 0 ? 0 : (double) count / population;
+	}
+
+	@Override
+	public String toString() {
+		if (isExact()) {
+			return count + " of " + population;
+		}
+		return "~" + count + " [" + lower + ", " + upper + "] of " + population + ", " + sampleSize + " sampled";
+	}
+}
@@ -0,0 +1,235 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.collections.Predicate;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * Evaluates a built condition tree reading every property path, and every
+ * prefix of it, at most once per object. Each distinct prefix (e.g.
+ * "director" and "director.awards" for "director.awards.year") gets a slot
+ * whose value is fetched from its parent slot the first time a comparison
+ * needs it, so <code>(director.name==A,director.name==B)</code> calls
+ * <code>getDirector()</code> and <code>getName()</code> once. Slots are kept
+ * in an array reused by the thread, and evaluation allocates nothing.
+ * <p/>
+ * Structure (statements, children, SQL) is the one of the wrapped tree.
+ *
+ * @param <T>
+ *            type of search condition.
+ */
+final class EvaluationPlan<T> implements SearchCondition<T> {
+
+	// shared with programs, nested evaluations get fresh arrays
+	static final ThreadLocal<Slots> SLOTS = new ThreadLocal<Slots>() {
+		@Override
+		protected Slots initialValue() {
+			return new Slots();
+		}
+	};
+
+	private final SearchCondition<T> tree;
+	private final Node root;
+	private final Getter[] getters;
+	private final int[] parents;
+
+	private EvaluationPlan(final SearchCondition<T> tree, final Node root, final Getter[] getters, final int[] parents) {
+		this.tree = tree;
+		this.root = root;
+		this.getters = getters;
+		this.parents = parents;
+	}
+
+	/**
+	 * @return a plan over given tree when some getter would otherwise be
+	 *         called several times per object, the tree itself otherwise.
+	 */
+	static <T> SearchCondition<T> of(final SearchCondition<T> tree) {
+		final PathSlots slots = new PathSlots();
+		final int[] calls = new int[1];
+		final Node root = compile(tree, slots, calls);
+		if (calls[0] == slots.size()) {
+			return tree;
+		}
+		return new EvaluationPlan<T>(tree, root, slots.getGetters(), slots.getParents());
+	}
+
+	private static Node compile(final SearchCondition<?> sc, final PathSlots slots, final int[] calls) {
+		// paths crossing collections are walked per element by the leaf
+		if (sc instanceof PropertyCondition && !((PropertyCondition<?>) sc).getPath().isQuantified()) {
+			final PropertyCondition<?> leaf = (PropertyCondition<?>) sc;
+			final int[] chain = slots.add(leaf.getPath());
+			calls[0] += chain.length;
+			return new Leaf(chain[chain.length - 1], leaf.getPredicate());
+		}
+		final List<? extends SearchCondition<?>> children = sc.getSearchConditions();
+		final ConditionType ct = sc.getConditionType();
+		if (children != null && (ct == ConditionType.AND || ct == ConditionType.OR)) {
+			final Node[] nodes = new Node[children.size()];
+			for (int i = 0; i < nodes.length; i++) {
+				nodes[i] = compile(children.get(i), slots, calls);
+			}
+			return new Composite(ct == ConditionType.AND, nodes);
+		}
+		return new Opaque(sc);
+	}
+
+	public boolean isMet(final T pojo) {
+		final Slots slots = SLOTS.get();
+		final Object[] values = slots.acquire(getters.length);
+		try {
+			return evaluate(pojo, values);
+		} finally {
+			slots.release(values, getters.length);
+		}
+	}
+
+	public List<T> findAll(final Collection<T> pojos) {
+		final List<T> result = new ArrayList<T>();
+		final Slots slots = SLOTS.get();
+		final Object[] values = slots.acquire(getters.length);
+		try {
+			for (final T pojo : pojos) {
+				if (evaluate(pojo, values)) {
+					result.add(pojo);
+				}
+			}
+		} finally {
+			slots.release(values, getters.length);
+		}
+		return result;
+	}
+
+	private boolean evaluate(final T pojo, final Object[] values) {
+		Arrays.fill(values, 0, getters.length, PathSlots.UNSET);
+		return root.eval(this, pojo, values);
+	}
+
+	Object fetch(final Object pojo, final Object[] values, final int slot) {
+		return PathSlots.fetch(getters, parents, pojo, values, slot);
+	}
+
+	/**
+	 * @return number of distinct getter paths fetched per object.
+	 */
+	int getSlotCount() {
+		return getters.length;
+	}
+
+	SearchCondition<T> getTree() {
+		return tree;
+	}
+
+	public T getCondition() {
+		return tree.getCondition();
+	}
+
+	public PrimitiveStatement getStatement() {
+		return tree.getStatement();
+	}
+
+	public List<SearchCondition<T>> getSearchConditions() {
+		return tree.getSearchConditions();
+	}
+
+	public ConditionType getConditionType() {
+		return tree.getConditionType();
+	}
+
+	public String toSQL(final String table, final String... columns) {
+		return tree.toSQL(table, columns);
+	}
+
+	@Override
+	public String toString() {
+		return tree.toString();
+	}
+
+	private abstract static class Node {
+		abstract boolean eval(EvaluationPlan<?> plan, Object pojo, Object[] values);
+	}
+
+	private static final class Leaf extends Node {
+		private final int slot;
+		private final Predicate predicate;
+
+		Leaf(final int slot, final Predicate predicate) {
+			this.slot = slot;
+			this.predicate = predicate;
+		}
+
+		@Override
+		boolean eval(final EvaluationPlan<?> plan, final Object pojo, final Object[] values) {
+			final Object value = plan.fetch(pojo, values, slot);
+			return value != null && predicate.evaluate(value);
+		}
+	}
+
+	private static final class Composite extends Node {
+		private final boolean and;
+		private final Node[] children;
+
+		Composite(final boolean and, final Node[] children) {
+			this.and = and;
+			this.children = children;
+		}
+
+		@Override
+		boolean eval(final EvaluationPlan<?> plan, final Object pojo, final Object[] values) {
+			for (final Node child : children) {
+				if (child.eval(plan, pojo, values) != and) {
+					return !and;
+				}
+			}
+			return and;
+		}
+	}
+
+	private static final class Opaque extends Node {
+		private final SearchCondition<Object> condition;
+
+		@SuppressWarnings("unchecked")
+		Opaque(final SearchCondition<?> condition) {
+			this.condition = (SearchCondition<Object>) condition;
+		}
+
+		@Override
+		boolean eval(final EvaluationPlan<?> plan, final Object pojo, final Object[] values) {
+			return condition.isMet(pojo);
+		}
+	}
+
+	/**
+	 * Slot array of a thread, grown to the widest plan it evaluated. A
+	 * nested evaluation on the same thread gets a fresh array.
+	 */
+	static final class Slots {
+		private Object[] values = new Object[16];
+		private boolean inUse;
+
+		Object[] acquire(final int size) {
+			if (inUse) {
+				return new Object[size];
+			}
+			if (values.length < size) {
+				values = new Object[size];
+			}
+			inUse = true;
+			return values;
+		}
+
+		void release(final Object[] released, final int size) {
+			if (released == values) {
+				// drop references to the last evaluated object graph
+				Arrays.fill(values, 0, size, null);
+				inUse = false;
+			}
+		}
+	}
+}
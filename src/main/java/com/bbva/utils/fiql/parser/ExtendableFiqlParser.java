@@ -6,21 +6,15 @@ package com.bbva.utils.fiql.parser;
 
 import java.math.BigDecimal;
 import java.text.DateFormat;
-import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.DatatypeFactory;
-
-import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.collections.Predicate;
+import org.apache.commons.lang3.ClassUtils;
 import org.apache.cxf.jaxrs.ext.search.AndSearchCondition;
 import org.apache.cxf.jaxrs.ext.search.ConditionType;
 import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
@@ -28,6 +22,8 @@ import org.apache.cxf.jaxrs.ext.search.OrSearchCondition;
 import org.apache.cxf.jaxrs.ext.search.SearchCondition;
 import org.apache.cxf.jaxrs.utils.InjectionUtils;
 
+import com.bbva.utils.fiql.parser.FiqlLimitExceededException.Limit;
+
 /**
  * Parses <a
  * href="http://tools.ietf.org/html/draft-nottingham-atompub-fiql-00">FIQL</a>
@@ -55,19 +51,13 @@ public class ExtendableFiqlParser<T> {
 
 	private static final String FORMAT_DATETIME = "yyyy-MM-dd HH:mm:ss:SSSSSS";
 
-	private static Map<String, ConditionType> operatorsMap;
-
-	static {
-		operatorsMap = new HashMap<String, ConditionType>();
-		operatorsMap.put(GT, ConditionType.GREATER_THAN);
-		operatorsMap.put(GE, ConditionType.GREATER_OR_EQUALS);
-		operatorsMap.put(LT, ConditionType.LESS_THAN);
-		operatorsMap.put(LE, ConditionType.LESS_OR_EQUALS);
-		operatorsMap.put(EQ, ConditionType.EQUALS);
-		operatorsMap.put(NEQ, ConditionType.NOT_EQUALS);
-	}
-
+	private final Class<T> tclass;
 	private final Beanspector<T> beanspector;
+	private final CompiledFilterCache cache;
+	private volatile ParseLimits limits = ParseLimits.getDefault();
+	private volatile FiqlDialect dialect;
+	private volatile ConditionInterner interner = ConditionInterner.getShared();
+	private volatile FiqlEngine engine = FiqlEngine.COMPILED;
 
 	/**
 	 * Creates FIQL parser.
@@ -78,7 +68,24 @@ public class ExtendableFiqlParser<T> {
 	 *            complementary setters to these used in FIQL expressions.
 	 */
 	public ExtendableFiqlParser(final Class<T> tclass) {
+		this(tclass, CompiledFilterCache.getShared());
+	}
+
+	/**
+	 * Creates FIQL parser keeping compiled expressions in given cache.
+	 *
+	 * @param tclass
+	 *            - class of T, see {@link #ExtendableFiqlParser(Class)}.
+	 * @param cache
+	 *            - cache of compiled expressions.
+	 */
+	public ExtendableFiqlParser(final Class<T> tclass, final CompiledFilterCache cache) {
+		if (cache == null) {
+			throw new IllegalArgumentException("cache is null");
+		}
 		beanspector = new Beanspector<T>(tclass);
+		this.tclass = tclass;
+		this.cache = cache;
 	}
 
 	/**
@@ -108,136 +115,475 @@ public class ExtendableFiqlParser<T> {
 	 *             when expression does not follow FIQL grammar
 	 */
 	public SearchCondition<T> parse(final String fiqlExpression) throws FiqlParseException {
-		final ASTNode<T> ast = parseAndsOrsBrackets(fiqlExpression);
-		return ast.build();
-	}
-
-	private ASTNode<T> parseAndsOrsBrackets(final String expr) throws FiqlParseException {
-		final List<String> subexpressions = new ArrayList<String>();
-		final List<String> operators = new ArrayList<String>();
-		int level = 0;
-		int lastIdx = 0;
-		int idx;
-		for (idx = 0; idx < expr.length(); idx++) {
-			final char c = expr.charAt(idx);
-			if (c == '(') {
-				level++;
-			} else if (c == ')') {
-				level--;
-				if (level < 0) {
-					throw new FiqlParseException(String.format("Unexpected closing bracket at position %d", idx));
-				}
+		final FiqlDialect dialect = getDialect();
+		final ParseLimits limits = this.limits;
+		CompactAst ast = cached(dialect, limits, fiqlExpression);
+		if (ast != null) {
+			return build(dialect, ast);
+		}
+		ast = scan(fiqlExpression, limits, dialect);
+		final SearchCondition<T> sc = build(dialect, ast);
+		cache.put(tclass, dialect, limits, fiqlExpression, ast);
+		return sc;
+	}
+
+	/**
+	 * Parses expression like {@link #parse(String)} does, reporting an
+	 * invalid expression in the returned result rather than throwing. Grammar
+	 * errors, exceeded limits and unknown selectors are detected without
+	 * building any exception; grammar, selector and value rejections are
+	 * cached along with compiled expressions, so a repeated invalid
+	 * expression is rejected by a single lookup.
+	 *
+	 * @param fiqlExpression
+	 *            expression of filter.
+	 * @return valid result holding the search condition, or the reason and
+	 *         position of the rejection.
+	 */
+	public FiqlParseResult<T> tryParse(final String fiqlExpression) {
+		return check(fiqlExpression, true);
+	}
+
+	/**
+	 * Checks expression as {@link #tryParse(String)} does, without building
+	 * its search condition nor filling the template bean.
+	 *
+	 * @param fiqlExpression
+	 *            expression of filter.
+	 * @return valid result without condition, or the reason and position of
+	 *         the rejection.
+	 */
+	public FiqlParseResult<T> validate(final String fiqlExpression) {
+		return check(fiqlExpression, false);
+	}
+
+	/**
+	 * Parses expression into its compact form without building the search
+	 * condition tree. Selectors and values are checked against type T the same
+	 * way {@link #parse(String)} does, so a compiled expression is known to be
+	 * buildable by any parser of the same type.
+	 *
+	 * @param fiqlExpression
+	 *            expression of filter.
+	 * @return compact tree of the expression, which can be serialized and
+	 *         shared between parsers of type T.
+	 * @throws FiqlParseException
+	 *             when expression does not follow FIQL grammar
+	 */
+	public CompactAst compile(final String fiqlExpression) throws FiqlParseException {
+		final FiqlDialect dialect = getDialect();
+		final ParseLimits limits = this.limits;
+		CompactAst ast = cached(dialect, limits, fiqlExpression);
+		if (ast != null) {
+			return ast;
+		}
+		ast = scan(fiqlExpression, limits, dialect);
+		for (int node = 0; node < ast.size(); node++) {
+			if (ast.isComparison(node)) {
+				comparison(dialect, null, ast.name(node), ast.operator(node), ast.value(node), false);
+			}
+		}
+		cache.put(tclass, dialect, limits, fiqlExpression, ast);
+		return ast;
+	}
+
+	/**
+	 * Parses expression and renders the condition tree built for it.
+	 *
+	 * @see FiqlExplain#explain(SearchCondition)
+	 * @throws FiqlParseException
+	 *             when expression does not follow FIQL grammar
+	 */
+	public String explain(final String fiqlExpression) throws FiqlParseException {
+		return FiqlExplain.explain(parse(fiqlExpression));
+	}
+
+	/**
+	 * Wraps a compiled expression in a search condition whose tree is built by
+	 * this parser the first time it is used.
+	 *
+	 * @param ast
+	 *            compiled expression, see {@link #compile(String)}.
+	 * @return search condition equivalent to parsing the expression again.
+	 */
+	public SearchCondition<T> toSearchCondition(final CompactAst ast) {
+		return new LazySearchCondition<T>(this, ast);
+	}
+
+	public Class<T> getSearchType() {
+		return tclass;
+	}
+
+	public ParseLimits getLimits() {
+		return limits;
+	}
+
+	/**
+	 * @param limits
+	 *            - bounds of the work accepted for a single expression,
+	 *            {@link ParseLimits#getDefault()} unless set.
+	 */
+	public void setLimits(final ParseLimits limits) {
+		if (limits == null) {
+			throw new IllegalArgumentException("limits is null");
+		}
+		this.limits = limits;
+	}
+
+	/**
+	 * @return operators understood by this parser, the global dialect unless
+	 *         set.
+	 */
+	public FiqlDialect getDialect() {
+		final FiqlDialect d = dialect;
+		return d != null ? d : FiqlDialect.getGlobal();
+	}
+
+	/**
+	 * @param dialect
+	 *            - operators understood by this parser, null to follow the
+	 *            global dialect (see {@link FiqlDialect#register(FiqlOperator...)}).
+	 */
+	public void setDialect(final FiqlDialect dialect) {
+		this.dialect = dialect;
+	}
+
+	public ConditionInterner getInterner() {
+		return interner;
+	}
+
+	/**
+	 * @param interner
+	 *            - canonical conditions shared by built trees,
+	 *            {@link ConditionInterner#getShared()} unless set; null builds
+	 *            every tree from scratch.
+	 */
+	public void setInterner(final ConditionInterner interner) {
+		this.interner = interner;
+	}
+
+	public FiqlEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * @param engine
+	 *            - way conditions built from now on are evaluated,
+	 *            {@link FiqlEngine#COMPILED} unless set.
+	 */
+	public void setEngine(final FiqlEngine engine) {
+		if (engine == null) {
+			throw new IllegalArgumentException("engine is null");
+		}
+		this.engine = engine;
+	}
+
+	private CompactAst cached(final FiqlDialect dialect, final ParseLimits limits, final String expr) throws FiqlLimitExceededException {
+		if (expr == null) {
+			return null;
+		}
+		if (expr.length() > limits.getMaxLength()) {
+			throw new FiqlLimitExceededException(Limit.LENGTH, limits.getMaxLength(), limits.getMaxLength());
+		}
+		return cache.get(tclass, dialect, limits, expr);
+	}
+
+	/**
+	 * Scans expression into its compact form, neither selectors nor values
+	 * being checked against any type.
+	 */
+	static CompactAst scan(final String expr, final ParseLimits limits, final FiqlDialect dialect) throws FiqlParseException {
+		if (expr == null || expr.length() == 0) {
+			throw new FiqlParseException("Empty expression");
+		}
+		final Scanner scanner = new Scanner(expr, limits, dialect);
+		final CompactAst ast = scanner.scan();
+		if (ast == null) {
+			throw scanner.getRejection().toException();
+		}
+		return ast;
+	}
+
+	/**
+	 * Checks expression the way {@link #tryParse(String)} does, building its
+	 * search condition only when asked to.
+	 */
+	private FiqlParseResult<T> check(final String expr, final boolean build) {
+		if (expr == null || expr.length() == 0) {
+			return FiqlParseResult.rejected(FiqlParseResult.Error.EMPTY_EXPRESSION, "", 0, 0);
+		}
+		final ParseLimits limits = this.limits;
+		if (expr.length() > limits.getMaxLength()) {
+			return FiqlParseResult.limitExceeded(expr, Limit.LENGTH, limits.getMaxLength(), limits.getMaxLength());
+		}
+		final FiqlDialect dialect = getDialect();
+		CompactAst ast = cache.get(tclass, dialect, limits, expr);
+		if (ast == null) {
+			final FiqlParseResult<?> rejected = cache.getRejection(tclass, dialect, limits, expr);
+			if (rejected != null) {
+				return rejected.cast();
 			}
-			final String cs = Character.toString(c);
-			final boolean isOperator = AND.equals(cs) || OR.equals(cs);
-			if (level == 0 && isOperator) {
-				final String s1 = expr.substring(lastIdx, idx);
-				final String s2 = expr.substring(idx, idx + 1);
-				subexpressions.add(s1);
-				operators.add(s2);
-				lastIdx = idx + 1;
+			final Scanner scanner = new Scanner(expr, limits, dialect);
+			ast = scanner.scan();
+			FiqlParseResult<T> rejection = ast == null ? scanner.getRejection().<T> cast() : resolve(expr, ast, scanner.getSelectors());
+			if (rejection == null) {
+				rejection = convert(dialect, expr, ast, scanner.getSelectors(), false);
 			}
-			final boolean isEnd = idx == expr.length() - 1;
-			if (isEnd) {
-				final String s1 = expr.substring(lastIdx, idx + 1);
-				subexpressions.add(s1);
-				operators.add(null);
-				lastIdx = idx + 1;
+			if (rejection != null) {
+				// exceeded limits depend on the limits and, for time, on the
+				// load of the moment
+				if (rejection.getError() != FiqlParseResult.Error.LIMIT_EXCEEDED) {
+					cache.putRejection(tclass, dialect, limits, expr, rejection);
+				}
+				return rejection;
 			}
+			cache.put(tclass, dialect, limits, expr, ast);
 		}
-		if (level != 0) {
-			throw new FiqlParseException(String.format("Unmatched opening and closing brackets in expression: %s", expr));
+		if (!build) {
+			return FiqlParseResult.valid();
 		}
-		if (operators.get(operators.size() - 1) != null) {
-			final String op = operators.get(operators.size() - 1);
-			final String ex = subexpressions.get(subexpressions.size() - 1);
-			throw new FiqlParseException("Dangling operator at the end of expression: ..." + ex + op);
+		try {
+			return FiqlParseResult.valid(build(dialect, ast));
+		} catch (final FiqlParseException e) {
+			return rejectBuild(dialect, limits, expr, ast, e);
+		} catch (final RuntimeException e) {
+			return rejectBuild(dialect, limits, expr, ast, e);
 		}
-		// looking for adjacent ANDs then group them into ORs
-		// Note: in case not ANDs is found (e.g only ORs) every single
-		// subexpression is
-		// treated as "single item group of ANDs"
-		int from = 0;
-		int to = 0;
-		final SubExpression ors = new SubExpression(OR);
-		while (to < operators.size()) {
-			while (to < operators.size() && AND.equals(operators.get(to))) {
-				to++;
-			}
-			final SubExpression ands = new SubExpression(AND);
-			for (; from <= to; from++) {
-				final String subex = subexpressions.get(from);
-				ASTNode<T> node;
-				if (subex.startsWith("(")) {
-					node = parseAndsOrsBrackets(subex.substring(1, subex.length() - 1));
-				} else {
-					node = parseComparison(subex);
+	}
+
+	/**
+	 * @return rejection of the first selector of the expression which is not
+	 *         a property path of type T, null when all of them are.
+	 */
+	private FiqlParseResult<T> resolve(final String expr, final CompactAst ast, final int[] selectors) {
+		// comparisons are in the order of the expression
+		int comparison = 0;
+		for (int node = 0; node < ast.size(); node++) {
+			if (ast.isComparison(node)) {
+				final String name = ast.name(node);
+				final int position = selectors[comparison++];
+				if (beanspector.findPath(name) == null) {
+					return FiqlParseResult.rejected(FiqlParseResult.Error.UNKNOWN_SELECTOR, expr, position, position + name.length());
 				}
-				ands.add(node);
 			}
-			to = from;
-			if (ands.getSubnodes().size() == 1) {
-				ors.add(ands.getSubnodes().get(0));
-			} else {
-				ors.add(ands);
+		}
+		return null;
+	}
+
+	/**
+	 * Converts the values of every comparison, so that a valid expression is
+	 * known to be buildable.
+	 *
+	 * @param selectors
+	 *            positions of the comparisons, see
+	 *            {@link Scanner#getSelectors()}.
+	 * @return rejection of the first value which does not convert, null when
+	 *         all of them do.
+	 */
+	private FiqlParseResult<T> convert(final FiqlDialect dialect, final String expr, final CompactAst ast, final int[] selectors,
+			final boolean fillTemplate) {
+		int comparison = 0;
+		for (int node = 0; node < ast.size(); node++) {
+			if (ast.isComparison(node)) {
+				final String operator = ast.operator(node);
+				final int position = selectors[comparison++] + ast.name(node).length() + operator.length();
+				try {
+					comparison(dialect, null, ast.name(node), operator, ast.value(node), fillTemplate);
+				} catch (final FiqlParseException e) {
+					return FiqlParseResult.invalidValue(expr, position, e.getMessage());
+				} catch (final RuntimeException e) {
+					// e.g. from the value parser of a custom operator
+					return FiqlParseResult.invalidValue(expr, position, String.valueOf(e.getMessage()));
+				}
 			}
 		}
-		if (ors.getSubnodes().size() == 1) {
-			return ors.getSubnodes().get(0);
-		} else {
-			return ors;
+		return null;
+	}
+
+	/**
+	 * @return rejection of an expression which does not build, at the value
+	 *         of the comparison failing, at 0 when it fails as a whole.
+	 */
+	private FiqlParseResult<T> rejectBuild(final FiqlDialect dialect, final ParseLimits limits, final String expr,
+			final CompactAst ast, final Exception e) {
+		// the tree may come from the cache, scanning again locates its
+		// comparisons
+		final Scanner scanner = new Scanner(expr, limits, dialect);
+		final FiqlParseResult<T> located = scanner.scan() == null ? null
+				: convert(dialect, expr, ast, scanner.getSelectors(), true);
+		return located != null ? located : FiqlParseResult.<T> invalidValue(expr, 0, String.valueOf(e.getMessage()));
+	}
+
+	private static boolean isSeparator(final char c) {
+		return c == AND.charAt(0) || c == OR.charAt(0);
+	}
+
+	SearchCondition<T> build(final CompactAst ast) throws FiqlParseException {
+		return build(getDialect(), ast);
+	}
+
+	SearchCondition<T> build(final FiqlDialect dialect, final CompactAst ast) throws FiqlParseException {
+		final ConditionInterner interner = this.interner;
+		final boolean interpreted = engine == FiqlEngine.INTERPRETED;
+		final SearchCondition<T> tree = build(dialect, interner, ast, 0);
+		if (interner == null) {
+			return interpreted ? FiqlProgram.of(tree) : EvaluationPlan.of(tree);
+		}
+		final Object key = interpreted ? ConditionInterner.programKey(tree) : ConditionInterner.planKey(tree);
+		SearchCondition<T> plan = interner.get(key);
+		if (plan == null) {
+			plan = interpreted ? FiqlProgram.of(tree) : EvaluationPlan.of(tree);
+			if (plan != tree) {
+				plan = interner.intern(key, plan);
+			}
 		}
+		return plan;
 	}
 
-	private Comparison parseComparison(final String expr) throws FiqlParseException {
-		final String comparators = StringUtils.join(operatorsMap.keySet(), "|");
-		final String s1 = "[\\p{ASCII}]+(" + comparators + ")";
-		final Pattern p = Pattern.compile(s1);
-		final Matcher m = p.matcher(expr);
-		if (m.find()) {
-			final String name = expr.substring(0, m.start(1));
-			final String operator = m.group(1);
-			final String value = expr.substring(m.end(1));
-			if ("".equals(value)) {
-				throw new FiqlParseException("Not a comparison expression: " + expr);
+	private SearchCondition<T> build(final FiqlDialect dialect, final ConditionInterner interner, final CompactAst ast, final int node)
+			throws FiqlParseException {
+		if (ast.isComparison(node)) {
+			return comparison(dialect, interner, ast.name(node), ast.operator(node), ast.value(node), true);
+		}
+		final int arity = ast.arity(node);
+		final List<SearchCondition<T>> scNodes = new ArrayList<SearchCondition<T>>(arity);
+		for (int i = 0, child = node + 1; i < arity; i++, child = ast.next(child)) {
+			scNodes.add(build(dialect, interner, ast, child));
+		}
+		final boolean and = ast.kind(node) == CompactAst.AND;
+		Object key = null;
+		if (interner != null) {
+			key = ConditionInterner.compositeKey(and, scNodes);
+			final SearchCondition<T> canonical = interner.get(key);
+			if (canonical != null) {
+				return canonical;
 			}
-			final Object castedValue = parseDatatype(name, value);
-			return new Comparison(name, operator, castedValue);
-		} else {
-			throw new FiqlParseException("Not a comparison expression: " + expr);
 		}
+		final SearchCondition<T> sc = and ? new AndSearchCondition<T>(scNodes) : new OrSearchCondition<T>(scNodes);
+		return interner == null ? sc : interner.intern(key, sc);
 	}
 
-	private Object parseDatatype(final String setter, final String value) throws FiqlParseException {
-		Object castedValue;
-		Class<?> valueType;
+	/**
+	 * Compiles a single comparison. Its value is also set into the shared
+	 * template bean (see {@link #getBean()}) when it converts to the type of
+	 * the property, which custom operators like sets or ranges may not.
+	 * Canonical comparisons get a template of their own, since the one of
+	 * the parser changes with every expression.
+	 */
+	private PropertyCondition<T> comparison(final FiqlDialect dialect, final ConditionInterner interner, final String name,
+			final String token, final String literal, final boolean fillTemplate) throws FiqlParseException {
+		final FiqlOperator operator = dialect.operator(token);
+		Object key = null;
+		if (interner != null) {
+			key = ConditionInterner.comparisonKey(tclass, operator, name, literal);
+			final PropertyCondition<T> canonical = interner.get(key);
+			if (canonical != null) {
+				if (fillTemplate) {
+					createTemplate(name, canonical.getTemplateValue());
+				}
+				return canonical;
+			}
+		}
+		final PropertyPath path;
 		try {
-			valueType = beanspector.getAccessorType(setter);
+			path = beanspector.getPath(name);
 		} catch (final Exception e) {
 			throw new FiqlParseException(e);
 		}
-		if (Date.class.isAssignableFrom(valueType)) {
-			DateFormat df;
+		final Class<?> valueType = path.getType();
+		final Object operand = operand(operator, path, literal);
+		final Predicate predicate = operator.compile(operand, valueType);
+		if (!fillTemplate) {
+			return new PropertyCondition<T>(path, operator, operand, predicate, null, null);
+		}
+		// templates hold single values, elements of collections are left out
+		Object value = path.isQuantified() ? null : operand;
+		if (value instanceof RelativeDate) {
+			value = ((RelativeDate) value).resolve();
+		}
+		if (value != null && !ClassUtils.isAssignable(value.getClass(), valueType, true)) {
 			try {
-				df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-				// zone in XML is "+01:00" in Java is "+0100"; stripping
-				// semicolon
-				final int idx = value.lastIndexOf(':');
-				if (idx != -1) {
-					final String v = value.substring(0, idx) + value.substring(idx + 1);
-					castedValue = df.parse(v);
-				} else {
-					castedValue = df.parse(value);
+				value = convert(literal, valueType);
+			} catch (final FiqlParseException e) {
+				value = null;
+			}
+		}
+		final T template = createTemplate(name, value);
+		if (interner == null) {
+			return new PropertyCondition<T>(path, operator, operand, predicate, template, value);
+		}
+		final T own;
+		try {
+			final Beanspector<T> bs = new Beanspector<T>(tclass).instantiate();
+			if (value != null) {
+				bs.setValue(name, value);
+			}
+			own = bs.getBean();
+		} catch (final Throwable e) {
+			throw new FiqlParseException(e);
+		}
+		key = ConditionInterner.comparisonKey(tclass, operator, interner.intern(name), interner.intern(literal));
+		return interner.intern(key, new PropertyCondition<T>(path, operator, operand, predicate, own, value));
+	}
+
+	/**
+	 * @return literal converted by the generated model of the property owner
+	 *         for built-in comparisons, by the operator otherwise.
+	 */
+	private static Object operand(final FiqlOperator operator, final PropertyPath path, final String literal)
+			throws FiqlParseException {
+		if (FiqlOperators.isComparison(operator)) {
+			final Object operand;
+			try {
+				operand = path.convert(literal);
+			} catch (final IllegalArgumentException e) {
+				throw new FiqlParseException("Cannot convert String value \"" + literal + "\" to a value of class "
+						+ path.getType().getName(), e);
+			}
+			if (operand != GeneratedModel.UNCONVERTED) {
+				return operand;
+			}
+		}
+		return operator.parseValue(literal, path.getType());
+	}
+
+	private T createTemplate(final String setter, final Object val) throws FiqlParseException {
+		try {
+			beanspector.instantiate();
+			if (val != null) {
+				beanspector.setValue(setter, val);
+			}
+			return beanspector.getBean();
+		} catch (final Throwable e) {
+			throw new FiqlParseException(e);
+		}
+	}
+
+	/**
+	 * Converts a FIQL literal to given type: dates (or durations, as
+	 * {@link RelativeDate}s resolved when evaluating), big decimals, or any
+	 * type {@link InjectionUtils} can convert from a String.
+	 */
+	static Object convert(final String value, final Class<?> valueType) throws FiqlParseException {
+		Object castedValue;
+		if (Date.class.isAssignableFrom(valueType)) {
+			final DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+			// zone in XML is "+01:00" in Java is "+0100"; stripping
+			// semicolon
+			final int idx = value.lastIndexOf(':');
+			final String v = idx != -1 ? value.substring(0, idx) + value.substring(idx + 1) : value;
+			// parsing at a position reports failure by returning null
+			castedValue = df.parse(v, new ParsePosition(0));
+			if (castedValue == null) {
+				// is that duration? they all have a designator
+				if (value.indexOf('P') == -1) {
+					throw new FiqlParseException("Can parse " + value + " neither as date nor duration");
 				}
-			} catch (final ParseException e) {
-				// is that duration?
 				try {
-					final Date now = new Date();
-					DatatypeFactory.newInstance().newDuration(value).addTo(now);
-					castedValue = now;
-				} catch (final DatatypeConfigurationException e1) {
-					throw new FiqlParseException(e1);
-				} catch (final IllegalArgumentException e1) {
+					castedValue = RelativeDate.parse(value);
+				} catch (final IllegalStateException e) {
+					throw new FiqlParseException(e);
+				} catch (final IllegalArgumentException e) {
 					throw new FiqlParseException("Can parse " + value + " neither as date nor duration", e);
 				}
 			}
@@ -260,7 +606,11 @@ public class ExtendableFiqlParser<T> {
 		// castedValue = dateTime;
 		// }
 		else if (BigDecimal.class.isAssignableFrom(valueType)) {
-			castedValue = new BigDecimal(value);
+			try {
+				castedValue = new BigDecimal(value);
+			} catch (final NumberFormatException e) {
+				throw new FiqlParseException("Cannot convert String value \"" + value + "\" to a value of class " + valueType.getName(), e);
+			}
 		} else {
 			try {
 				castedValue = InjectionUtils.convertStringToPrimitive(value, valueType);
@@ -271,132 +621,263 @@ public class ExtendableFiqlParser<T> {
 		return castedValue;
 	}
 
+	/**
+	 * Adds an operator to the global dialect. Operators of a comparison
+	 * condition type behave as the built-in ones; expressions using
+	 * {@link ConditionType#CUSTOM} ones are rejected with a
+	 * {@link FiqlParseException}, as they can not be evaluated, use
+	 * {@link FiqlDialect#register(FiqlOperator...)} with a
+	 * {@link FiqlOperator} instead.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             when operator is already defined.
+	 */
 	public static void addOperator(final String operator, final ConditionType conditionType) {
-		if (operatorsMap.get(operator) == null) {
-			operatorsMap.put(operator, conditionType);
-		} else {
-			throw new UnsupportedOperationException("The operator '" + operator + "' is already defined and cannot be overwritten");
-		}
+		FiqlDialect.register(FiqlOperators.legacy(operator, conditionType));
 	}
 
 	public Object getBean() {
 		return beanspector.getBean();
 	}
 
-	// node of abstract syntax tree
-	private interface ASTNode<T> {
-		SearchCondition<T> build() throws FiqlParseException;
-	}
+	/**
+	 * Single pass over an expression. Every character is inspected once going
+	 * forwards and, within comparisons, once more going backwards against the
+	 * few operators starting with it, so scanning is linear in the length of
+	 * the expression.
+	 * Length and nesting are checked before anything else and without
+	 * allocating; comparisons, set sizes, steps and time as scanning goes.
+	 * Errors are recorded as a {@link FiqlParseResult} rather than thrown, so
+	 * that rejecting an expression builds no exception.
+	 */
+	private static final class Scanner {
+
+		private static final int CLOCK_STEPS = 1024;
+		private static final int FAILED = -1;
+
+		private final String expr;
+		private final ParseLimits limits;
+		private final FiqlDialect dialect;
+		private final CompactAst.Builder builder = new CompactAst.Builder();
+		private final long deadline;
+		private long steps;
+		private long nextClock = CLOCK_STEPS;
+		private int terms;
+		private int[] selectors = new int[8];
+		private FiqlParseResult<?> rejection;
+
+		Scanner(final String expr, final ParseLimits limits, final FiqlDialect dialect) {
+			this.expr = expr;
+			this.limits = limits;
+			this.dialect = dialect;
+			deadline = limits.getMaxNanos() == 0 ? 0 : System.nanoTime() + limits.getMaxNanos();
+		}
+
+		/**
+		 * @return compact tree of the expression, null when rejected (see
+		 *         {@link #getRejection()}).
+		 */
+		CompactAst scan() {
+			if (!checkShape()) {
+				return null;
+			}
+			final int end;
+			try {
+				end = ors(0);
+			} catch (final FiqlParseException e) {
+				// beyond what the compact tree format can hold
+				rejection = FiqlParseResult.tooLarge(expr, e.getMessage());
+				return null;
+			}
+			if (end == FAILED) {
+				return null;
+			}
+			if (end < expr.length()) {
+				// only an unmatched closing bracket stops the top level scan
+				reject(FiqlParseResult.Error.UNEXPECTED_CLOSING_BRACKET, end, end + 1);
+				return null;
+			}
+			return builder.build();
+		}
 
-	private class SubExpression implements ASTNode<T> {
-		private final String operator;
-		private final List<ASTNode<T>> subnodes = new ArrayList<ASTNode<T>>();
+		FiqlParseResult<?> getRejection() {
+			return rejection;
+		}
 
-		public SubExpression(final String operator) {
-			this.operator = operator;
+		/**
+		 * @return position of the selector of each comparison scanned, in
+		 *         the order of the expression, which is the one of the
+		 *         comparisons of the compact tree.
+		 */
+		int[] getSelectors() {
+			return Arrays.copyOf(selectors, terms);
 		}
 
-		public void add(final ASTNode<T> node) {
-			subnodes.add(node);
+		private int reject(final FiqlParseResult.Error error, final int position, final int end) {
+			rejection = FiqlParseResult.rejected(error, expr, position, end);
+			return FAILED;
 		}
 
-		public List<ASTNode<T>> getSubnodes() {
-			return Collections.unmodifiableList(subnodes);
+		private boolean exceeded(final Limit limit, final long max, final int position) {
+			rejection = FiqlParseResult.limitExceeded(expr, limit, max, position);
+			return false;
 		}
 
-		@Override
-		public String toString() {
-			String s = operator.equals(AND) ? "AND" : "OR";
-			s += ":[";
-			for (int i = 0; i < subnodes.size(); i++) {
-				s += subnodes.get(i);
-				if (i < subnodes.size() - 1) {
-					s += ", ";
+		private boolean checkShape() {
+			if (expr.length() > limits.getMaxLength()) {
+				return exceeded(Limit.LENGTH, limits.getMaxLength(), limits.getMaxLength());
+			}
+			int level = 0;
+			for (int i = 0; i < expr.length(); i++) {
+				final char c = expr.charAt(i);
+				if (c == '(' && ++level > limits.getMaxDepth()) {
+					return exceeded(Limit.DEPTH, limits.getMaxDepth(), i);
+				} else if (c == ')') {
+					level--;
 				}
 			}
-			s += "]";
-			return s;
+			return step(expr.length(), expr.length());
 		}
 
-		@Override
-		public SearchCondition<T> build() throws FiqlParseException {
-			boolean hasSubtree = false;
-			for (final ASTNode<T> node : subnodes) {
-				if (node instanceof ExtendableFiqlParser.SubExpression) {
-					hasSubtree = true;
-					break;
+		private boolean step(final int idx, final int n) {
+			steps += n;
+			if (steps > limits.getMaxSteps()) {
+				return exceeded(Limit.STEPS, limits.getMaxSteps(), idx);
+			}
+			if (deadline != 0 && steps >= nextClock) {
+				nextClock = steps + CLOCK_STEPS;
+				if (System.nanoTime() - deadline > 0) {
+					return exceeded(Limit.TIME, limits.getMaxNanos(), idx);
 				}
 			}
-			if (!hasSubtree && AND.equals(operator)) {
-				try {
-					final Map<String, ConditionType> map = new HashMap<String, ConditionType>();
-					beanspector.instantiate();
-					for (final ASTNode<T> node : subnodes) {
-						final ExtendableFiqlParser<T>.Comparison comp = (Comparison) node;
-						map.put(comp.getName(), operatorsMap.get(comp.getOperator()));
-						beanspector.setValue(comp.getName(), comp.getValue());
-					}
-					return new ExtendedSearchCondition<T>(map, beanspector.getBean());
-				} catch (final Throwable e) {
-					throw new RuntimeException(e);
+			return true;
+		}
+
+		// looking for adjacent ANDs then group them into ORs
+		// Note: in case not ANDs is found (e.g only ORs) every single
+		// subexpression is treated as "single item group of ANDs", which is
+		// dropped when closed
+		private int ors(int idx) throws FiqlParseException {
+			final int ors = builder.reserve();
+			int orArity = 0;
+			boolean more = true;
+			while (more) {
+				final int ands = builder.reserve();
+				int andArity = 0;
+				idx = term(idx);
+				andArity++;
+				while (idx != FAILED && idx < expr.length() && expr.charAt(idx) == AND.charAt(0)) {
+					idx = term(idx + 1);
+					andArity++;
 				}
-			} else {
-				final List<SearchCondition<T>> scNodes = new ArrayList<SearchCondition<T>>();
-				for (final ASTNode<T> node : subnodes) {
-					scNodes.add(node.build());
+				if (idx == FAILED) {
+					return FAILED;
 				}
-				if (OR.equals(operator)) {
-					return new OrSearchCondition<T>(scNodes);
-				} else {
-					return new AndSearchCondition<T>(scNodes);
+				builder.close(ands, CompactAst.AND, andArity);
+				orArity++;
+				more = idx < expr.length() && expr.charAt(idx) == OR.charAt(0);
+				if (more) {
+					idx++;
 				}
 			}
-		}
-	}
-
-	private class Comparison implements ASTNode<T> {
-		private final String name;
-		private final String operator;
-		private final Object value;
-
-		public Comparison(final String name, final String operator, final Object value) {
-			this.name = name;
-			this.operator = operator;
-			this.value = value;
-		}
-
-		public String getName() {
-			return name;
+			builder.close(ors, CompactAst.OR, orArity);
+			return idx;
 		}
 
-		public String getOperator() {
-			return operator;
-		}
-
-		public Object getValue() {
-			return value;
-		}
-
-		@Override
-		public String toString() {
-			return name + " " + operator + " " + value + " (" + value.getClass().getSimpleName() + ")";
+		private int term(final int start) throws FiqlParseException {
+			if (start == expr.length()) {
+				return reject(FiqlParseResult.Error.DANGLING_OPERATOR, start, start);
+			}
+			if (expr.charAt(start) != '(') {
+				return comparison(start);
+			}
+			final int end = ors(start + 1);
+			if (end == FAILED) {
+				return FAILED;
+			}
+			if (end == expr.length()) {
+				return reject(FiqlParseResult.Error.UNMATCHED_BRACKETS, start, end);
+			}
+			final int idx = end + 1;
+			if (idx < expr.length() && !isSeparator(expr.charAt(idx)) && expr.charAt(idx) != ')') {
+				return reject(FiqlParseResult.Error.UNEXPECTED_CHARACTER, idx, idx + 1);
+			}
+			return idx;
 		}
 
-		@Override
-		public SearchCondition<T> build() throws FiqlParseException {
-			final T cond = createTemplate(name, value);
-			final ConditionType ct = operatorsMap.get(operator);
-			return new ExtendedSearchCondition<T>(ct, cond);
+		private int comparison(final int start) throws FiqlParseException {
+			if (++terms > limits.getMaxTerms()) {
+				exceeded(Limit.TERMS, limits.getMaxTerms(), start);
+				return FAILED;
+			}
+			int level = 0;
+			int end = start;
+			for (; end < expr.length(); end++) {
+				if (!step(end, 1)) {
+					return FAILED;
+				}
+				final char c = expr.charAt(end);
+				if (c == '(') {
+					level++;
+				} else if (c == ')') {
+					if (level == 0) {
+						break;
+					}
+					level--;
+				} else if (level == 0 && isSeparator(c)) {
+					break;
+				}
+			}
+			if (level != 0) {
+				return reject(FiqlParseResult.Error.UNMATCHED_BRACKETS, start, end);
+			}
+			// rightmost operator wins, the selector can not be empty
+			String operator = null;
+			int opIdx = end - 1;
+			while (opIdx > start) {
+				if (!step(opIdx, 1)) {
+					return FAILED;
+				}
+				operator = dialect.operatorAt(expr, opIdx, end);
+				if (operator != null) {
+					break;
+				}
+				opIdx--;
+			}
+			if (operator == null || opIdx + operator.length() == end) {
+				return reject(FiqlParseResult.Error.NOT_A_COMPARISON, start, end);
+			}
+			if (!checkSetSize(opIdx + operator.length(), end)) {
+				return FAILED;
+			}
+			builder.comparison(expr.substring(start, opIdx), operator, expr.substring(opIdx + operator.length(), end));
+			if (terms > selectors.length) {
+				selectors = Arrays.copyOf(selectors, selectors.length * 2);
+			}
+			selectors[terms - 1] = start;
+			return end;
 		}
 
-		private T createTemplate(final String setter, final Object val) throws FiqlParseException {
-			try {
-				beanspector.instantiate().setValue(setter, val);
-				return beanspector.getBean();
-			} catch (final Throwable e) {
-				throw new FiqlParseException(e);
+		private boolean checkSetSize(final int start, final int end) {
+			if (expr.charAt(start) != '(' || expr.charAt(end - 1) != ')') {
+				return true;
 			}
+			int level = 0;
+			int size = 1;
+			for (int i = start; i < end; i++) {
+				if (!step(i, 1)) {
+					return false;
+				}
+				final char c = expr.charAt(i);
+				if (c == '(') {
+					level++;
+				} else if (c == ')') {
+					level--;
+				} else if (c == OR.charAt(0) && level == 1 && ++size > limits.getMaxSetSize()) {
+					return exceeded(Limit.SET_SIZE, limits.getMaxSetSize(), i);
+				}
+			}
+			return true;
 		}
-
 	}
 }
@@ -25,6 +25,7 @@ package com.bbva.utils.fiql.parser;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -316,6 +317,44 @@ public class ExtendedSearchCondition<T> implements SearchCondition<T> {
 		return result;
 	}
 
+	/**
+	 * @return whether some object matches, stopping at the first one.
+	 */
+	public boolean exists(final Collection<T> pojos) {
+		return Searches.exists(this, pojos);
+	}
+
+	/**
+	 * @return first matching object, or null when none matches.
+	 */
+	public T findFirst(final Collection<T> pojos) {
+		return Searches.findFirst(this, pojos);
+	}
+
+	/**
+	 * @return number of matching objects, without collecting them.
+	 */
+	public int count(final Collection<T> pojos) {
+		return Searches.count(this, pojos);
+	}
+
+	/**
+	 * @return at most <code>limit</code> matching objects, scanning stops
+	 *         once they are found.
+	 */
+	public List<T> findLimited(final Collection<T> pojos, final int limit) {
+		return Searches.findLimited(this, pojos, limit);
+	}
+
+	/**
+	 * Returns a page of the matching objects in given order, keeping only
+	 * <code>offset + limit</code> candidates while scanning; see
+	 * {@link Searches#findTopK(SearchCondition, Collection, Comparator, int, int)}.
+	 */
+	public List<T> findTopK(final Collection<T> pojos, final Comparator<? super T> comparator, final int offset, final int limit) {
+		return Searches.findTopK(this, pojos, comparator, offset, limit);
+	}
+
 	public String toSQL(final String table, final String... columns) {
 		if (isPrimitive(condition)) {
 			return null;
@@ -0,0 +1,62 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Current time, as {@link RelativeDate}s are resolved against it. Time is
+ * coarse: it only changes every tick of the clock resolution, so that a
+ * relative date is computed once per tick rather than once per evaluated
+ * object. The global clock is the system clock ticking every second.
+ */
+public abstract class FiqlClock {
+
+	/**
+	 * Resolution of the default global clock, in milliseconds.
+	 */
+	public static final long DEFAULT_RESOLUTION = 1000;
+
+	private static final AtomicReference<FiqlClock> GLOBAL = new AtomicReference<FiqlClock>(system(DEFAULT_RESOLUTION));
+
+	/**
+	 * @return current time in milliseconds since the epoch, a multiple of
+	 *         the resolution.
+	 */
+	public abstract long millis();
+
+	/**
+	 * @param resolution
+	 *            milliseconds per tick, e.g. 1 to follow the system clock.
+	 */
+	public static FiqlClock system(final long resolution) {
+		if (resolution < 1) {
+			throw new IllegalArgumentException("resolution must be positive");
+		}
+		return new FiqlClock() {
+			@Override
+			public long millis() {
+				final long now = System.currentTimeMillis();
+				return now - now % resolution;
+			}
+
+			@Override
+			public String toString() {
+				return "system clock ticking every " + resolution + " ms";
+			}
+		};
+	}
+
+	public static FiqlClock getGlobal() {
+		return GLOBAL.get();
+	}
+
+	/**
+	 * Replaces the clock every relative date is resolved against, e.g. with
+	 * a finer one or a fixed one in tests.
+	 */
+	public static void setGlobal(final FiqlClock clock) {
+		if (clock == null) {
+			throw new IllegalArgumentException("clock is null");
+		}
+		GLOBAL.set(clock);
+	}
+}
@@ -0,0 +1,22 @@
+package com.bbva.utils.fiql.parser;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * SQL column of a property of a {@link FiqlSearchable} class, given on its
+ * getter, which conditions render in place of the property name in
+ * {@link org.apache.cxf.jaxrs.ext.search.SearchCondition#toSQL(String, String...)};
+ * the property name is used when not given (see
+ * {@link GeneratedModel#getColumns()}).
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface FiqlColumn {
+
+	String value();
+}
@@ -0,0 +1,150 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+
+/**
+ * Immutable set of {@link FiqlOperator}s understood by a parser. Adding
+ * operators gives a new dialect and never changes an existing one, so a
+ * parse always sees a single consistent set of operators whatever is
+ * registered meanwhile.
+ * <p/>
+ * Parsers use the global dialect unless given their own (see
+ * {@link ExtendableFiqlParser#setDialect(FiqlDialect)}). The global dialect
+ * is replaced copy-on-write by {@link #register(FiqlOperator...)}, which is
+ * safe to call while other threads parse.
+ * <p/>
+ * Example:
+ *
+ * <pre>
+ * FiqlDialect dialect = FiqlDialect.getDefault().with(FiqlOperators.regex(&quot;=regex=&quot;), FiqlOperators.between(&quot;=between=&quot;));
+ * parser.setDialect(dialect);
+ * </pre>
+ */
+public final class FiqlDialect {
+
+	private static final FiqlDialect DEFAULT = new FiqlDialect(new HashMap<String, FiqlOperator>()).with(
+			FiqlOperators.comparison(ExtendableFiqlParser.GT, ConditionType.GREATER_THAN),
+			FiqlOperators.comparison(ExtendableFiqlParser.GE, ConditionType.GREATER_OR_EQUALS),
+			FiqlOperators.comparison(ExtendableFiqlParser.LT, ConditionType.LESS_THAN),
+			FiqlOperators.comparison(ExtendableFiqlParser.LE, ConditionType.LESS_OR_EQUALS),
+			FiqlOperators.comparison(ExtendableFiqlParser.EQ, ConditionType.EQUALS),
+			FiqlOperators.comparison(ExtendableFiqlParser.NEQ, ConditionType.NOT_EQUALS));
+
+	private static final AtomicReference<FiqlDialect> GLOBAL = new AtomicReference<FiqlDialect>(DEFAULT);
+
+	private final Map<String, FiqlOperator> operators;
+	// longest first, so the first match at a position is the longest one
+	private final String[] tokens;
+
+	private FiqlDialect(final Map<String, FiqlOperator> operators) {
+		this.operators = Collections.unmodifiableMap(operators);
+		tokens = operators.keySet().toArray(new String[operators.size()]);
+		Arrays.sort(tokens, new Comparator<String>() {
+			public int compare(final String o1, final String o2) {
+				return o2.length() - o1.length();
+			}
+		});
+	}
+
+	/**
+	 * @return dialect with the six FIQL comparison operators only.
+	 */
+	public static FiqlDialect getDefault() {
+		return DEFAULT;
+	}
+
+	public static FiqlDialect getGlobal() {
+		return GLOBAL.get();
+	}
+
+	/**
+	 * Adds operators to the global dialect. Expressions cached for the
+	 * previous one are left in place, since caches are keyed by dialect;
+	 * they are no longer hit and age out as any other unused entry.
+	 * <p/>
+	 * Every client of every parser using the global dialect can use what is
+	 * registered here, so operators should bound the work of evaluating
+	 * client supplied operands; patterns of
+	 * {@link FiqlOperators#regex(String, int, int)}, for one, are limited
+	 * for that reason.
+	 *
+	 * @return new global dialect.
+	 * @throws UnsupportedOperationException
+	 *             when some operator is already defined.
+	 */
+	public static FiqlDialect register(final FiqlOperator... operators) {
+		while (true) {
+			final FiqlDialect current = GLOBAL.get();
+			final FiqlDialect next = current.with(operators);
+			if (GLOBAL.compareAndSet(current, next)) {
+				return next;
+			}
+		}
+	}
+
+	/**
+	 * @return new dialect with operators of this one plus given ones.
+	 * @throws UnsupportedOperationException
+	 *             when some operator is already defined.
+	 */
+	public FiqlDialect with(final FiqlOperator... operators) {
+		final Map<String, FiqlOperator> map = new HashMap<String, FiqlOperator>(this.operators);
+		for (final FiqlOperator operator : operators) {
+			if (operator == null) {
+				throw new IllegalArgumentException("operator is null");
+			}
+			if (map.put(operator.getToken(), operator) != null) {
+				throw new UnsupportedOperationException("The operator '" + operator.getToken()
+						+ "' is already defined and cannot be overwritten");
+			}
+		}
+		return new FiqlDialect(map);
+	}
+
+	/**
+	 * @return operator of given token, or null when not defined.
+	 */
+	public FiqlOperator getOperator(final String token) {
+		return operators.get(token);
+	}
+
+	public Collection<FiqlOperator> getOperators() {
+		return operators.values();
+	}
+
+	FiqlOperator operator(final String token) throws FiqlParseException {
+		final FiqlOperator operator = operators.get(token);
+		if (operator == null) {
+			throw new FiqlParseException("Unknown operator '" + token + "'");
+		}
+		return operator;
+	}
+
+	/**
+	 * @return longest operator starting at given index and ending before
+	 *         given end, or null.
+	 */
+	String operatorAt(final String expr, final int idx, final int end) {
+		final char c = expr.charAt(idx);
+		for (final String op : tokens) {
+			if (op.charAt(0) == c && idx + op.length() <= end && expr.startsWith(op, idx)) {
+				return op;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(tokens);
+	}
+}
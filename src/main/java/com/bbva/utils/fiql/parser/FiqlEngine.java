@@ -0,0 +1,22 @@
+package com.bbva.utils.fiql.parser;
+
+/**
+ * Way built conditions are evaluated, see
+ * {@link ExtendableFiqlParser#setEngine(FiqlEngine)}. Both engines give the
+ * same results and neither defines classes at runtime.
+ */
+public enum FiqlEngine {
+
+	/**
+	 * Tree of comparisons, each with its compiled predicate, wrapped in an
+	 * {@link EvaluationPlan} when some property path is shared.
+	 */
+	COMPILED,
+
+	/**
+	 * Tree lowered into a flat instruction array run by a
+	 * {@link FiqlProgram} loop, with integer, long and string comparisons
+	 * done inline rather than through predicates.
+	 */
+	INTERPRETED
+}
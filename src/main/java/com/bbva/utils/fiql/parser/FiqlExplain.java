@@ -0,0 +1,317 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * EXPLAIN and ANALYZE for built conditions. {@link #explain(SearchCondition)}
+ * renders the tree a parser built, one node per line: composites, and for
+ * each comparison its resolved property type, operator, converted operand
+ * and the way it is evaluated, e.g.
+ *
+ * <pre>
+ * PLAN shared paths, 3 slots
+ *   AND
+ *     director.name==Chris* [String, == EQUALS, operand String, compiled predicate]
+ *     year=ge=2000 [int, =ge= GREATER_OR_EQUALS, operand Integer, compiled predicate]
+ * </pre>
+ *
+ * {@link #analyze(SearchCondition, Collection)} evaluates a sample through an
+ * instrumented copy of the tree and reports, per node, invocations, passes
+ * and nanoseconds spent (children included). Conditions themselves are never
+ * instrumented, so tracing costs nothing when not used. Note that analyzed
+ * plans and programs evaluate their wrapped tree, so their times are
+ * approximate.
+ */
+public final class FiqlExplain {
+
+	private static final String INDENT = "  ";
+
+	private FiqlExplain() {
+	}
+
+	public static String explain(final SearchCondition<?> condition) {
+		if (condition == null) {
+			throw new IllegalArgumentException("condition is null");
+		}
+		final StringBuilder sb = new StringBuilder();
+		probe(condition, 0).render(sb, false);
+		return sb.toString();
+	}
+
+	/**
+	 * Evaluates every object of given sample, as
+	 * {@link SearchCondition#findAll(Collection)} would do, recording the
+	 * work done by each node.
+	 */
+	public static <T> Analysis<T> analyze(final SearchCondition<T> condition, final Collection<T> sample) {
+		if (condition == null) {
+			throw new IllegalArgumentException("condition is null");
+		}
+		if (sample == null) {
+			throw new IllegalArgumentException("sample is null");
+		}
+		final Probe root = probe(condition, 0);
+		final List<T> matches = new ArrayList<T>();
+		final long start = System.nanoTime();
+		for (final T pojo : sample) {
+			if (root.eval(pojo)) {
+				matches.add(pojo);
+			}
+		}
+		final long nanos = System.nanoTime() - start;
+		final List<NodeStats> nodes = new ArrayList<NodeStats>();
+		root.collect(nodes);
+		return new Analysis<T>(matches, sample.size(), nanos, nodes, root);
+	}
+
+	private static Probe probe(final SearchCondition<?> sc, final int depth) {
+		if (sc instanceof EvaluationPlan) {
+			final EvaluationPlan<?> plan = (EvaluationPlan<?>) sc;
+			return new Probe(sc, depth, "PLAN shared paths, " + plan.getSlotCount() + " slots", Probe.DELEGATE,
+					probe(plan.getTree(), depth + 1));
+		}
+		if (sc instanceof FiqlProgram) {
+			final FiqlProgram<?> program = (FiqlProgram<?>) sc;
+			return new Probe(sc, depth, "PROGRAM " + program.getInstructionCount() + " instructions, " + program.getRegisterCount()
+					+ " registers", Probe.DELEGATE, probe(program.getTree(), depth + 1));
+		}
+		if (sc instanceof LazySearchCondition) {
+			final LazySearchCondition<?> lazy = (LazySearchCondition<?>) sc;
+			final String label = lazy.isBuilt() ? "LAZY built" : "LAZY built for explain";
+			return new Probe(sc, depth, label, Probe.DELEGATE, probe(lazy.delegate(), depth + 1));
+		}
+		if (sc instanceof PropertyCondition) {
+			return new Probe(sc, depth, describe((PropertyCondition<?>) sc), Probe.LEAF);
+		}
+		final List<? extends SearchCondition<?>> children = sc.getSearchConditions();
+		final ConditionType ct = sc.getConditionType();
+		if (children != null && (ct == ConditionType.AND || ct == ConditionType.OR)) {
+			final Probe[] probes = new Probe[children.size()];
+			for (int i = 0; i < probes.length; i++) {
+				probes[i] = probe(children.get(i), depth + 1);
+			}
+			return new Probe(sc, depth, ct.name(), ct == ConditionType.AND ? Probe.AND : Probe.OR, probes);
+		}
+		return new Probe(sc, depth, sc + " [" + sc.getClass().getSimpleName() + ", isMet]", Probe.LEAF);
+	}
+
+	private static String describe(final PropertyCondition<?> leaf) {
+		final PropertyPath path = leaf.getPath();
+		final FiqlOperator operator = leaf.getOperator();
+		final Object operand = leaf.getOperand();
+		final StringBuilder sb = new StringBuilder(leaf.toString());
+		sb.append(" [").append(path.getType().getSimpleName());
+		sb.append(", ").append(operator.getToken()).append(' ').append(operator.getConditionType());
+		sb.append(", operand ").append(operandType(operand));
+		if (path.isQuantified()) {
+			sb.append(", compiled predicate per element");
+		} else {
+			sb.append(", compiled predicate");
+		}
+		return sb.append(']').toString();
+	}
+
+	private static String operandType(final Object operand) {
+		if (operand instanceof Set) {
+			final Set<?> set = (Set<?>) operand;
+			return "set of " + (set.isEmpty() ? "nothing" : set.iterator().next().getClass().getSimpleName());
+		}
+		if (operand instanceof Object[]) {
+			final Object[] range = (Object[]) operand;
+			return "range of " + (range.length == 0 || range[0] == null ? "nothing" : range[0].getClass().getSimpleName());
+		}
+		return operand.getClass().getSimpleName();
+	}
+
+	/**
+	 * Result of {@link FiqlExplain#analyze(SearchCondition, Collection)};
+	 * {@link #toString()} renders the tree with the statistics of each node.
+	 */
+	public static final class Analysis<T> {
+		private final List<T> matches;
+		private final int rows;
+		private final long nanos;
+		private final List<NodeStats> nodes;
+		private final Probe root;
+
+		Analysis(final List<T> matches, final int rows, final long nanos, final List<NodeStats> nodes, final Probe root) {
+			this.matches = Collections.unmodifiableList(matches);
+			this.rows = rows;
+			this.nanos = nanos;
+			this.nodes = Collections.unmodifiableList(nodes);
+			this.root = root;
+		}
+
+		/**
+		 * @return matching objects of the sample, in order.
+		 */
+		public List<T> getMatches() {
+			return matches;
+		}
+
+		public int getRows() {
+			return rows;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * @return statistics of each node, depth first.
+		 */
+		public List<NodeStats> getNodes() {
+			return nodes;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder();
+			sb.append("ANALYZE ").append(rows).append(" rows, ").append(matches.size()).append(" matches, ")
+					.append(nanos / 1000).append(" us\n");
+			root.render(sb, true);
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Statistics of one node of an analyzed condition.
+	 */
+	public static final class NodeStats {
+		private final Probe probe;
+
+		NodeStats(final Probe probe) {
+			this.probe = probe;
+		}
+
+		public int getDepth() {
+			return probe.depth;
+		}
+
+		public String getDescription() {
+			return probe.label;
+		}
+
+		/**
+		 * @return analyzed condition this node stands for.
+		 */
+		public SearchCondition<?> getCondition() {
+			return probe.condition;
+		}
+
+		public long getInvocations() {
+			return probe.invocations;
+		}
+
+		public long getPasses() {
+			return probe.passes;
+		}
+
+		/**
+		 * @return ratio of invocations which evaluated to true, 0 when never
+		 *         invoked.
+		 */
+		public double getPassRate() {
+			return probe.invocations == 0 ? 0 : (double) probe.passes / probe.invocations;
+		}
+
+		public long getNanos() {
+			return probe.nanos;
+		}
+
+		@Override
+		public String toString() {
+			return probe.label;
+		}
+	}
+
+	/**
+	 * Instrumented copy of a node, evaluating its children with the same
+	 * short-circuits as the original tree.
+	 */
+	private static final class Probe {
+		static final int LEAF = 0;
+		static final int AND = 1;
+		static final int OR = 2;
+		static final int DELEGATE = 3;
+
+		private final SearchCondition<Object> condition;
+		private final int depth;
+		private final String label;
+		private final int kind;
+		private final Probe[] children;
+		private long invocations;
+		private long passes;
+		private long nanos;
+
+		@SuppressWarnings("unchecked")
+		Probe(final SearchCondition<?> condition, final int depth, final String label, final int kind, final Probe... children) {
+			this.condition = (SearchCondition<Object>) condition;
+			this.depth = depth;
+			this.label = label;
+			this.kind = kind;
+			this.children = children;
+		}
+
+		boolean eval(final Object pojo) {
+			final long start = System.nanoTime();
+			boolean result;
+			switch (kind) {
+			case AND:
+			case OR:
+				final boolean and = kind == AND;
+				result = and;
+				for (final Probe child : children) {
+					if (child.eval(pojo) != and) {
+						result = !and;
+						break;
+					}
+				}
+				break;
+			case DELEGATE:
+				result = children[0].eval(pojo);
+				break;
+			default:
+				result = condition.isMet(pojo);
+			}
+			nanos += System.nanoTime() - start;
+			invocations++;
+			if (result) {
+				passes++;
+			}
+			return result;
+		}
+
+		void collect(final List<NodeStats> nodes) {
+			nodes.add(new NodeStats(this));
+			for (final Probe child : children) {
+				child.collect(nodes);
+			}
+		}
+
+		void render(final StringBuilder sb, final boolean stats) {
+			for (int i = 0; i < depth; i++) {
+				sb.append(INDENT);
+			}
+			sb.append(label);
+			if (stats) {
+				sb.append(" (calls=").append(invocations).append(", passed=").append(passes);
+				if (invocations > 0) {
+					sb.append(String.format(" %.1f%%", 100.0 * passes / invocations));
+				}
+				sb.append(", ").append(nanos / 1000).append(" us)");
+			}
+			sb.append('\n');
+			for (final Probe child : children) {
+				child.render(sb, stats);
+			}
+		}
+	}
+}
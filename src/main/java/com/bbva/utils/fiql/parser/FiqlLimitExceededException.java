@@ -0,0 +1,44 @@
+package com.bbva.utils.fiql.parser;
+
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+
+/**
+ * Thrown when an expression exceeds one of the configured
+ * {@link ParseLimits}.
+ */
+public class FiqlLimitExceededException extends FiqlParseException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Limit that has been exceeded.
+	 */
+	public enum Limit {
+		LENGTH, DEPTH, TERMS, SET_SIZE, STEPS, TIME
+	}
+
+	private final Limit limit;
+	private final int position;
+
+	public FiqlLimitExceededException(final Limit limit, final long max, final int position) {
+		super(message(limit, max, position));
+		this.limit = limit;
+		this.position = position;
+	}
+
+	static String message(final Limit limit, final long max, final int position) {
+		return String.format("Expression exceeds %s limit of %d at position %d", limit.name().toLowerCase().replace('_', ' '), max,
+				position);
+	}
+
+	public Limit getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return position in the expression where the limit was reached.
+	 */
+	public int getPosition() {
+		return position;
+	}
+}
@@ -0,0 +1,94 @@
+package com.bbva.utils.fiql.parser;
+
+import org.apache.commons.collections.Predicate;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+
+/**
+ * Comparison operator of a {@link FiqlDialect}, e.g. <code>=regex=</code>.
+ * An operator turns the literal on the right of a comparison into an operand
+ * and compiles that operand into a {@link Predicate} which is then evaluated
+ * against property values, without any further parsing or lookup.
+ * <p/>
+ * Example of an operator matching numbers close to a given one:
+ *
+ * <pre>
+ * FiqlOperator near = new FiqlOperator(&quot;=near=&quot;, ConditionType.CUSTOM) {
+ * 	public Predicate compile(final Object operand, final Class&lt;?&gt; propertyType) {
+ * 		final double center = ((Number) operand).doubleValue();
+ * 		return new Predicate() {
+ * 			public boolean evaluate(final Object value) {
+ * 				return Math.abs(((Number) value).doubleValue() - center) &lt;= 1;
+ * 			}
+ * 		};
+ * 	}
+ * };
+ * </pre>
+ *
+ * Operators must be immutable and compiled predicates safe for concurrent
+ * use.
+ *
+ * @see FiqlOperators
+ */
+public abstract class FiqlOperator {
+
+	private final String token;
+	private final ConditionType conditionType;
+
+	/**
+	 * @param token
+	 *            text of the operator in expressions, which can not contain
+	 *            separators nor brackets.
+	 * @param conditionType
+	 *            condition type reported by statements using the operator,
+	 *            usually {@link ConditionType#CUSTOM}.
+	 */
+	protected FiqlOperator(final String token, final ConditionType conditionType) {
+		if (token == null || token.length() == 0) {
+			throw new IllegalArgumentException("token is empty");
+		}
+		for (int i = 0; i < token.length(); i++) {
+			final char c = token.charAt(i);
+			if (c == ExtendableFiqlParser.AND.charAt(0) || c == ExtendableFiqlParser.OR.charAt(0) || c == '(' || c == ')') {
+				throw new IllegalArgumentException("Operator '" + token + "' can not contain separators nor brackets");
+			}
+		}
+		if (conditionType == null || conditionType == ConditionType.AND || conditionType == ConditionType.OR) {
+			throw new IllegalArgumentException("Operator '" + token + "' needs a comparison condition type");
+		}
+		this.token = token;
+		this.conditionType = conditionType;
+	}
+
+	public final String getToken() {
+		return token;
+	}
+
+	public final ConditionType getConditionType() {
+		return conditionType;
+	}
+
+	/**
+	 * Converts the literal of a comparison into the operand given to
+	 * {@link #compile(Object, Class)}. Converts it to the type of the
+	 * property unless overridden.
+	 *
+	 * @throws FiqlParseException
+	 *             when literal is not valid for this operator.
+	 */
+	public Object parseValue(final String literal, final Class<?> propertyType) throws FiqlParseException {
+		return ExtendableFiqlParser.convert(literal, propertyType);
+	}
+
+	/**
+	 * @return predicate evaluated against non null property values.
+	 * @throws FiqlParseException
+	 *             when operator can not be applied to given type.
+	 */
+	public abstract Predicate compile(Object operand, Class<?> propertyType) throws FiqlParseException;
+
+	@Override
+	public String toString() {
+		return token;
+	}
+}
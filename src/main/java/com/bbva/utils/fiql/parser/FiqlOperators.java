@@ -0,0 +1,455 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.collections.Predicate;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+
+/**
+ * Ready made {@link FiqlOperator}s.
+ * <p/>
+ * Set literals, as used by {@link #in(String)}, {@link #out(String)} and
+ * {@link #between(String)}, are comma separated values between brackets,
+ * e.g. <code>genres.name=in=(sci-fi,action)</code>.
+ */
+public final class FiqlOperators {
+
+	public static final int DEFAULT_REGEX_LENGTH = 256;
+	public static final int DEFAULT_REGEX_STEPS = 100000;
+
+	private FiqlOperators() {
+	}
+
+	/**
+	 * Operator with the semantics of the built-in ones (see
+	 * {@link ExtendedSearchCondition#isMet(Object)}): equality on Strings
+	 * accepts a leading and/or trailing asterisk as wild card, other types
+	 * use {@link Object#equals(Object)}, and inequalities {@link Comparable}.
+	 *
+	 * @param conditionType
+	 *            one of the six comparison types.
+	 */
+	public static FiqlOperator comparison(final String token, final ConditionType conditionType) {
+		return new Comparison(token, conditionType);
+	}
+
+	/**
+	 * Same as {@link #regex(String, int, int)} with at most
+	 * {@link #DEFAULT_REGEX_LENGTH} characters per pattern and
+	 * {@link #DEFAULT_REGEX_STEPS} steps per value.
+	 */
+	public static FiqlOperator regex(final String token) {
+		return regex(token, DEFAULT_REGEX_LENGTH, DEFAULT_REGEX_STEPS);
+	}
+
+	/**
+	 * Matches String values of the property against a
+	 * {@link Pattern regular expression}, e.g. <code>name=regex=K.*l+</code>.
+	 * <p/>
+	 * No dialect has this operator unless added to it. Patterns come from
+	 * the client and {@link Pattern} backtracks, so a pattern such as
+	 * <code>(a+)+b</code> can take exponential time on a single value. To
+	 * keep the work of an expression bounded, as {@link ParseLimits} do for
+	 * parsing, longer patterns are rejected on parsing and a value whose
+	 * match reads more characters than allowed does not match.
+	 *
+	 * @param maxLength
+	 *            maximum length of a pattern.
+	 * @param maxSteps
+	 *            maximum number of characters read, backtracking included,
+	 *            matching one value.
+	 */
+	public static FiqlOperator regex(final String token, final int maxLength, final int maxSteps) {
+		if (maxLength <= 0 || maxSteps <= 0) {
+			throw new IllegalArgumentException("Regular expression limits must be positive");
+		}
+		return new FiqlOperator(token, ConditionType.CUSTOM) {
+			@Override
+			public Object parseValue(final String literal, final Class<?> propertyType) throws FiqlParseException {
+				if (literal.length() > maxLength) {
+					throw new FiqlParseException("Regular expression is longer than " + maxLength + " characters");
+				}
+				try {
+					return Pattern.compile(literal);
+				} catch (final PatternSyntaxException e) {
+					throw new FiqlParseException("Invalid regular expression '" + literal + "'", e);
+				}
+			}
+
+			@Override
+			public Predicate compile(final Object operand, final Class<?> propertyType) {
+				final Pattern pattern = (Pattern) operand;
+				return new Predicate() {
+					public boolean evaluate(final Object value) {
+						try {
+							return pattern.matcher(new BoundedText(value.toString(), maxSteps)).matches();
+						} catch (final BoundedText.Exhausted e) {
+							return false;
+						}
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Matches values within an inclusive range, e.g.
+	 * <code>year=between=(2000,2010)</code>.
+	 */
+	public static FiqlOperator between(final String token) {
+		return new Between(token);
+	}
+
+	/**
+	 * Matches values equal to any of a set, e.g.
+	 * <code>genres.name=in=(sci-fi,action)</code>.
+	 */
+	public static FiqlOperator in(final String token) {
+		return new Membership(token, true);
+	}
+
+	/**
+	 * Matches values equal to none of a set, e.g.
+	 * <code>genres.name=out=(romance,horror)</code>.
+	 */
+	public static FiqlOperator out(final String token) {
+		return new Membership(token, false);
+	}
+
+	/**
+	 * Operator registered through
+	 * {@link ExtendableFiqlParser#addOperator(String, ConditionType)}: same
+	 * as {@link #comparison(String, ConditionType)} for comparison types,
+	 * while {@link ConditionType#CUSTOM} ones are recognized but rejected
+	 * when a condition is built, rather than failing once evaluated.
+	 */
+	static FiqlOperator legacy(final String token, final ConditionType conditionType) {
+		if (conditionType != ConditionType.CUSTOM) {
+			return comparison(token, conditionType);
+		}
+		return new FiqlOperator(token, conditionType) {
+			@Override
+			public Predicate compile(final Object operand, final Class<?> propertyType) throws FiqlParseException {
+				throw new FiqlParseException("Operator " + getToken() + " has no evaluation semantics, register it as a FiqlOperator");
+			}
+		};
+	}
+
+	/**
+	 * @return whether operator has the semantics of a built-in comparison,
+	 *         given by its condition type.
+	 */
+	static boolean isComparison(final FiqlOperator operator) {
+		return operator instanceof Comparison;
+	}
+
+	/**
+	 * @return whether operator matches values equal to any of its operand
+	 *         set, as {@link #in(String)} does.
+	 */
+	static boolean isIn(final FiqlOperator operator) {
+		return operator instanceof Membership && ((Membership) operator).in;
+	}
+
+	/**
+	 * @return whether operator matches values equal to none of its operand
+	 *         set, as {@link #out(String)} does.
+	 */
+	static boolean isOut(final FiqlOperator operator) {
+		return operator instanceof Membership && !((Membership) operator).in;
+	}
+
+	/**
+	 * @return whether operator matches values within the inclusive range of
+	 *         its operand, as {@link #between(String)} does.
+	 */
+	static boolean isBetween(final FiqlOperator operator) {
+		return operator instanceof Between;
+	}
+
+	/**
+	 * @return whether operand is a String with a wild card, which equality
+	 *         matches by prefix, suffix or substring.
+	 */
+	static boolean isWildcard(final Object operand) {
+		if (!(operand instanceof String)) {
+			return false;
+		}
+		final String s = (String) operand;
+		return s.length() > 0 && s.charAt(0) == '*' || s.length() > 1 && s.charAt(s.length() - 1) == '*';
+	}
+
+	/**
+	 * @return values of a set literal, or the literal itself when it is not
+	 *         between brackets.
+	 */
+	static List<String> items(final String literal) throws FiqlParseException {
+		if (literal.length() < 2 || literal.charAt(0) != '(' || literal.charAt(literal.length() - 1) != ')') {
+			return Collections.singletonList(literal);
+		}
+		final List<String> items = new ArrayList<String>();
+		int start = 1;
+		for (int i = 1; i < literal.length(); i++) {
+			final char c = literal.charAt(i);
+			if (c == ExtendableFiqlParser.OR.charAt(0) || i == literal.length() - 1) {
+				if (i == start) {
+					throw new FiqlParseException("Empty value in set " + literal);
+				}
+				items.add(literal.substring(start, i));
+				start = i + 1;
+			}
+		}
+		return items;
+	}
+
+	private static final class Comparison extends FiqlOperator {
+
+		Comparison(final String token, final ConditionType conditionType) {
+			super(token, conditionType);
+			if (conditionType == ConditionType.CUSTOM) {
+				throw new IllegalArgumentException("Operator '" + token + "' needs a comparison condition type");
+			}
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Predicate compile(final Object operand, final Class<?> propertyType) {
+			final ConditionType ct = getConditionType();
+			if (operand instanceof RelativeDate) {
+				final RelativeDate relative = (RelativeDate) operand;
+				return new Predicate() {
+					public boolean evaluate(final Object value) {
+						return test(ct, value, relative.bound());
+					}
+				};
+			}
+			if (ct == ConditionType.EQUALS || ct == ConditionType.NOT_EQUALS) {
+				final boolean negate = ct == ConditionType.NOT_EQUALS;
+				if (operand instanceof String) {
+					return new TextEquals((String) operand, negate);
+				}
+				return new Predicate() {
+					public boolean evaluate(final Object value) {
+						return value.equals(operand) != negate;
+					}
+				};
+			}
+			if (!(operand instanceof Comparable)) {
+				// as built-in conditions, not comparable values are not compared
+				return new Predicate() {
+					public boolean evaluate(final Object value) {
+						return true;
+					}
+				};
+			}
+			final Comparable<Object> bound = (Comparable<Object>) operand;
+			return new Predicate() {
+				public boolean evaluate(final Object value) {
+					return test(ct, value, bound);
+				}
+			};
+		}
+
+		@SuppressWarnings("unchecked")
+		private static boolean test(final ConditionType ct, final Object value, final Object bound) {
+			if (ct == ConditionType.EQUALS || ct == ConditionType.NOT_EQUALS) {
+				return value.equals(bound) != (ct == ConditionType.NOT_EQUALS);
+			}
+			if (!(value instanceof Comparable)) {
+				return true;
+			}
+			final int cmp = ((Comparable<Object>) value).compareTo(bound);
+			switch (ct) {
+			case GREATER_THAN:
+				return cmp > 0;
+			case GREATER_OR_EQUALS:
+				return cmp >= 0;
+			case LESS_THAN:
+				return cmp < 0;
+			default:
+				return cmp <= 0;
+			}
+		}
+	}
+
+	private static final class Between extends FiqlOperator {
+
+		Between(final String token) {
+			super(token, ConditionType.CUSTOM);
+		}
+
+		@Override
+		public Object parseValue(final String literal, final Class<?> propertyType) throws FiqlParseException {
+			final List<String> items = items(literal);
+			if (items.size() != 2) {
+				throw new FiqlParseException("Operator " + getToken() + " needs two values: " + literal);
+			}
+			return new Object[] { ExtendableFiqlParser.convert(items.get(0), propertyType),
+					ExtendableFiqlParser.convert(items.get(1), propertyType) };
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public Predicate compile(final Object operand, final Class<?> propertyType) throws FiqlParseException {
+			final Object[] range = (Object[]) operand;
+			if (range[0] instanceof RelativeDate || range[1] instanceof RelativeDate) {
+				return new Predicate() {
+					public boolean evaluate(final Object value) {
+						final Comparable<Object> lower = (Comparable<Object>) RelativeDate.current(range[0]);
+						final Comparable<Object> upper = (Comparable<Object>) RelativeDate.current(range[1]);
+						return lower.compareTo(value) <= 0 && upper.compareTo(value) >= 0;
+					}
+				};
+			}
+			if (!(range[0] instanceof Comparable)) {
+				throw new FiqlParseException("Operator " + getToken() + " needs comparable values, not " + propertyType.getName());
+			}
+			final Comparable<Object> lower = (Comparable<Object>) range[0];
+			final Comparable<Object> upper = (Comparable<Object>) range[1];
+			return new Predicate() {
+				public boolean evaluate(final Object value) {
+					return lower.compareTo(value) <= 0 && upper.compareTo(value) >= 0;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Text counting the characters read by a matcher, which gives up once it
+	 * has read too many.
+	 */
+	private static final class BoundedText implements CharSequence {
+		private final String text;
+		private int steps;
+
+		BoundedText(final String text, final int steps) {
+			this.text = text;
+			this.steps = steps;
+		}
+
+		public char charAt(final int index) {
+			if (--steps < 0) {
+				throw Exhausted.INSTANCE;
+			}
+			return text.charAt(index);
+		}
+
+		public int length() {
+			return text.length();
+		}
+
+		public CharSequence subSequence(final int start, final int end) {
+			return text.substring(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+
+		private static final class Exhausted extends RuntimeException {
+			private static final long serialVersionUID = 1L;
+			static final Exhausted INSTANCE = new Exhausted();
+
+			private Exhausted() {
+				super(null, null, false, false);
+			}
+		}
+	}
+
+	/**
+	 * Equality with leading and/or trailing asterisk as wild card, decided
+	 * once on compilation; non String values are compared with equals.
+	 */
+	private static final class TextEquals implements Predicate {
+		private static final int EXACT = 0;
+		private static final int STARTS = 1;
+		private static final int ENDS = 2;
+		private static final int CONTAINS = 3;
+
+		private final String operand;
+		private final String text;
+		private final int match;
+		private final boolean negate;
+
+		TextEquals(final String operand, final boolean negate) {
+			final boolean starts = operand.length() > 0 && operand.charAt(0) == '*';
+			final boolean ends = operand.length() > 1 && operand.charAt(operand.length() - 1) == '*';
+			this.operand = operand;
+			this.text = operand.substring(starts ? 1 : 0, ends ? operand.length() - 1 : operand.length());
+			this.match = starts && ends ? CONTAINS : starts ? ENDS : ends ? STARTS : EXACT;
+			this.negate = negate;
+		}
+
+		public boolean evaluate(final Object value) {
+			if (!(value instanceof String)) {
+				return value.equals(operand) != negate;
+			}
+			final String s = (String) value;
+			final boolean matches;
+			switch (match) {
+			case STARTS:
+				matches = s.startsWith(text);
+				break;
+			case ENDS:
+				matches = s.endsWith(text);
+				break;
+			case CONTAINS:
+				matches = s.contains(text);
+				break;
+			default:
+				matches = s.equals(text);
+			}
+			return matches != negate;
+		}
+	}
+
+	private static final class Membership extends FiqlOperator {
+		private final boolean in;
+
+		Membership(final String token, final boolean in) {
+			super(token, ConditionType.CUSTOM);
+			this.in = in;
+		}
+
+		@Override
+		public Object parseValue(final String literal, final Class<?> propertyType) throws FiqlParseException {
+			final Set<Object> values = new HashSet<Object>();
+			for (final String item : items(literal)) {
+				values.add(ExtendableFiqlParser.convert(item, propertyType));
+			}
+			return Collections.unmodifiableSet(values);
+		}
+
+		@Override
+		public Predicate compile(final Object operand, final Class<?> propertyType) {
+			final Set<?> values = (Set<?>) operand;
+			for (final Object v : values) {
+				if (v instanceof RelativeDate) {
+					return new Predicate() {
+						public boolean evaluate(final Object value) {
+							for (final Object candidate : values) {
+								if (RelativeDate.current(candidate).equals(value)) {
+									return in;
+								}
+							}
+							return !in;
+						}
+					};
+				}
+			}
+			return new Predicate() {
+				public boolean evaluate(final Object value) {
+					return values.contains(value) == in;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.bbva.utils.fiql.parser;
+
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+import com.bbva.utils.fiql.parser.FiqlLimitExceededException.Limit;
+
+/**
+ * Outcome of {@link ExtendableFiqlParser#tryParse(String)} or
+ * {@link ExtendableFiqlParser#validate(String)}: either a valid expression,
+ * with its search condition when parsed, or the reason and position of the
+ * rejection. Rejections are reported without throwing, and their message is
+ * only formatted when asked for, so invalid input costs about as much as
+ * valid input; {@link #toException()} gives the exception
+ * {@link ExtendableFiqlParser#parse(String)} would throw.
+ * <p/>
+ * Results are immutable; rejections other than exceeded limits are cached
+ * by the {@link CompiledFilterCache} of the parser, so repeated invalid
+ * input is rejected without scanning it again.
+ *
+ * @param <T>
+ *            type of search condition.
+ */
+public final class FiqlParseResult<T> {
+
+	/**
+	 * Reason of a rejection.
+	 */
+	public enum Error {
+		EMPTY_EXPRESSION, UNEXPECTED_CLOSING_BRACKET, UNMATCHED_BRACKETS, UNEXPECTED_CHARACTER, DANGLING_OPERATOR,
+		NOT_A_COMPARISON, LIMIT_EXCEEDED, TOO_LARGE, UNKNOWN_SELECTOR, INVALID_VALUE
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static final FiqlParseResult VALID = new FiqlParseResult<Object>(null, null, null, 0, 0, null, 0, null);
+
+	private final SearchCondition<T> condition;
+	private final Error error;
+	private final String expression;
+	private final int position;
+	private final int end;
+	private final Limit limit;
+	private final long max;
+	private final String detail;
+
+	private FiqlParseResult(final SearchCondition<T> condition, final Error error, final String expression, final int position,
+			final int end, final Limit limit, final long max, final String detail) {
+		this.condition = condition;
+		this.error = error;
+		this.expression = expression;
+		this.position = position;
+		this.end = end;
+		this.limit = limit;
+		this.max = max;
+		this.detail = detail;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> FiqlParseResult<T> valid() {
+		return VALID;
+	}
+
+	static <T> FiqlParseResult<T> valid(final SearchCondition<T> condition) {
+		return new FiqlParseResult<T>(condition, null, null, 0, 0, null, 0, null);
+	}
+
+	/**
+	 * @param end
+	 *            end of the offending part of the expression, for
+	 *            {@link Error#NOT_A_COMPARISON} and
+	 *            {@link Error#UNKNOWN_SELECTOR}.
+	 */
+	static <T> FiqlParseResult<T> rejected(final Error error, final String expression, final int position, final int end) {
+		return new FiqlParseResult<T>(null, error, expression, position, end, null, 0, null);
+	}
+
+	static <T> FiqlParseResult<T> limitExceeded(final String expression, final Limit limit, final long max, final int position) {
+		return new FiqlParseResult<T>(null, Error.LIMIT_EXCEEDED, expression, position, position, limit, max, null);
+	}
+
+	static <T> FiqlParseResult<T> invalidValue(final String expression, final int position, final String detail) {
+		return new FiqlParseResult<T>(null, Error.INVALID_VALUE, expression, position, position, null, 0, detail);
+	}
+
+	/**
+	 * @return rejection of an expression the compact tree format can not
+	 *         hold, see {@link CompactAst}.
+	 */
+	static <T> FiqlParseResult<T> tooLarge(final String expression, final String detail) {
+		return new FiqlParseResult<T>(null, Error.TOO_LARGE, expression, 0, 0, null, 0, detail);
+	}
+
+	/**
+	 * @return same rejection as a result of another search type.
+	 */
+	@SuppressWarnings("unchecked")
+	<S> FiqlParseResult<S> cast() {
+		if (condition != null) {
+			throw new IllegalStateException("Valid result has a condition");
+		}
+		return (FiqlParseResult<S>) this;
+	}
+
+	public boolean isValid() {
+		return error == null;
+	}
+
+	/**
+	 * @return condition built for a valid expression, null when rejected or
+	 *         only validated.
+	 */
+	public SearchCondition<T> getCondition() {
+		return condition;
+	}
+
+	/**
+	 * @return reason of the rejection, null when valid.
+	 */
+	public Error getError() {
+		return error;
+	}
+
+	/**
+	 * @return position in the expression where it was rejected, -1 when
+	 *         valid.
+	 */
+	public int getPosition() {
+		return error == null ? -1 : position;
+	}
+
+	/**
+	 * @return limit exceeded by the expression, null unless rejected with
+	 *         {@link Error#LIMIT_EXCEEDED}.
+	 */
+	public Limit getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return description of the rejection, null when valid.
+	 */
+	public String getMessage() {
+		if (error == null) {
+			return null;
+		}
+		switch (error) {
+		case EMPTY_EXPRESSION:
+			return "Empty expression";
+		case UNEXPECTED_CLOSING_BRACKET:
+			return String.format("Unexpected closing bracket at position %d", position);
+		case UNMATCHED_BRACKETS:
+			return String.format("Unmatched opening and closing brackets in expression: %s", expression);
+		case UNEXPECTED_CHARACTER:
+			return String.format("Unexpected character '%s' at position %d", expression.charAt(position), position);
+		case DANGLING_OPERATOR:
+			return "Dangling operator at the end of expression: ..." + expression.substring(Math.max(0, position - 10));
+		case NOT_A_COMPARISON:
+			return "Not a comparison expression: " + expression.substring(position, end);
+		case LIMIT_EXCEEDED:
+			return FiqlLimitExceededException.message(limit, max, position);
+		case UNKNOWN_SELECTOR:
+			return String.format("Unknown selector '%s' at position %d", expression.substring(position, end), position);
+		default:
+			return detail;
+		}
+	}
+
+	/**
+	 * @return exception describing the rejection,
+	 *         {@link FiqlLimitExceededException} when a limit is exceeded.
+	 * @throws IllegalStateException
+	 *             when the expression is valid.
+	 */
+	public FiqlParseException toException() {
+		if (error == null) {
+			throw new IllegalStateException("Expression is valid");
+		}
+		return error == Error.LIMIT_EXCEEDED ? new FiqlLimitExceededException(limit, max, position) : new FiqlParseException(
+				getMessage());
+	}
+
+	@Override
+	public String toString() {
+		return error == null ? "valid" : error + ": " + getMessage();
+	}
+}
@@ -0,0 +1,417 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.collections.Predicate;
+import org.apache.commons.lang3.ClassUtils;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * Built condition tree lowered into a flat instruction array run by a single
+ * interpreter loop, for deployments where neither runtime class definition
+ * nor reflective evaluation of templates is an option. Each instruction is
+ * an opcode and three operands:
+ *
+ * <pre>
+ * LOAD r            fetch register r from its parent register, or the object, unless fetched
+ * TEST r p          acc = r != null &amp;&amp; predicate p holds for r
+ * CMP_INT r op k    acc = r != null &amp;&amp; (int) r op k
+ * CMP_LONG r op k   acc = r != null &amp;&amp; (long) r op longs[k]
+ * CMP_STR r m k     acc = r != null &amp;&amp; r equals, starts with, ends with or contains strings[k]
+ * EVAL c            acc = condition c is met
+ * JUMP_IF_FALSE t   continue at t unless acc
+ * JUMP_IF_TRUE t    continue at t if acc
+ * </pre>
+ *
+ * Registers hold the values of property path prefixes, laid out by
+ * {@link PathSlots} as the slots of an {@link EvaluationPlan}, and a load is
+ * left out where an earlier instruction always runs it. Comparisons of
+ * built-in operators on int, long and String properties are done inline;
+ * any other comparison tests its compiled predicate, and paths crossing
+ * collections, as any other condition, are evaluated as they are. Registers
+ * are kept in an array reused by the thread, and evaluation allocates
+ * nothing.
+ * <p/>
+ * Structure (statements, children, SQL) is the one of the wrapped tree.
+ *
+ * @param <T>
+ *            type of search condition.
+ */
+final class FiqlProgram<T> implements SearchCondition<T> {
+
+	static final int LOAD = 0;
+	static final int TEST = 1;
+	static final int CMP_INT = 2;
+	static final int CMP_LONG = 3;
+	static final int CMP_STR = 4;
+	static final int EVAL = 5;
+	static final int JUMP_IF_FALSE = 6;
+	static final int JUMP_IF_TRUE = 7;
+
+	private static final String[] OPCODES = { "LOAD", "TEST", "CMP_INT", "CMP_LONG", "CMP_STR", "EVAL", "JUMP_IF_FALSE",
+			"JUMP_IF_TRUE" };
+	private static final int WIDTH = 4;
+
+	private static final int EQ = 0;
+	private static final int NE = 1;
+	private static final int GT = 2;
+	private static final int GE = 3;
+	private static final int LT = 4;
+	private static final int LE = 5;
+	private static final String[] COMPARISONS = { "EQ", "NE", "GT", "GE", "LT", "LE" };
+
+	private static final int EXACT = 0;
+	private static final int STARTS = 1;
+	private static final int ENDS = 2;
+	private static final int CONTAINS = 3;
+	private static final int NEGATE = 4;
+	private static final String[] MATCHES = { "EXACT", "STARTS", "ENDS", "CONTAINS" };
+
+	private final SearchCondition<T> tree;
+	private final int[] code;
+	private final Getter[] getters;
+	private final int[] parents;
+	private final String[] registers;
+	private final Predicate[] predicates;
+	private final long[] longs;
+	private final String[] strings;
+	private final SearchCondition<Object>[] conditions;
+
+	private FiqlProgram(final SearchCondition<T> tree, final Assembler assembler) {
+		this.tree = tree;
+		code = new int[assembler.code.size()];
+		for (int i = 0; i < code.length; i++) {
+			code[i] = assembler.code.get(i);
+		}
+		getters = assembler.registers.getGetters();
+		parents = assembler.registers.getParents();
+		registers = assembler.registers.getPaths();
+		predicates = assembler.predicates.toArray(new Predicate[assembler.predicates.size()]);
+		longs = new long[assembler.longs.size()];
+		for (int i = 0; i < longs.length; i++) {
+			longs[i] = assembler.longs.get(i);
+		}
+		strings = assembler.strings.toArray(new String[assembler.strings.size()]);
+		@SuppressWarnings("unchecked")
+		final SearchCondition<Object>[] evaluated = (SearchCondition<Object>[]) assembler.conditions
+				.toArray(new SearchCondition<?>[assembler.conditions.size()]);
+		conditions = evaluated;
+	}
+
+	static <T> FiqlProgram<T> of(final SearchCondition<T> tree) {
+		final Assembler assembler = new Assembler();
+		assembler.lower(tree, new BitSet());
+		return new FiqlProgram<T>(tree, assembler);
+	}
+
+	public boolean isMet(final T pojo) {
+		final EvaluationPlan.Slots slots = EvaluationPlan.SLOTS.get();
+		final Object[] values = slots.acquire(getters.length);
+		try {
+			return run(pojo, values);
+		} finally {
+			slots.release(values, getters.length);
+		}
+	}
+
+	public List<T> findAll(final Collection<T> pojos) {
+		final List<T> result = new ArrayList<T>();
+		final EvaluationPlan.Slots slots = EvaluationPlan.SLOTS.get();
+		final Object[] values = slots.acquire(getters.length);
+		try {
+			for (final T pojo : pojos) {
+				if (run(pojo, values)) {
+					result.add(pojo);
+				}
+			}
+		} finally {
+			slots.release(values, getters.length);
+		}
+		return result;
+	}
+
+	private boolean run(final Object pojo, final Object[] values) {
+		Arrays.fill(values, 0, getters.length, PathSlots.UNSET);
+		final int[] code = this.code;
+		boolean acc = false;
+		int pc = 0;
+		while (pc < code.length) {
+			final int a = code[pc + 1];
+			switch (code[pc]) {
+			case LOAD:
+				if (values[a] == PathSlots.UNSET) {
+					final Object owner = parents[a] < 0 ? pojo : values[parents[a]];
+					// as leaves do, a failing getter reads as null
+					values[a] = owner == null ? null : getters[a].get(owner);
+				}
+				break;
+			case TEST:
+				acc = values[a] != null && predicates[code[pc + 2]].evaluate(values[a]);
+				break;
+			case CMP_INT:
+				acc = values[a] instanceof Integer && compare(code[pc + 2], ((Integer) values[a]).intValue(), code[pc + 3]);
+				break;
+			case CMP_LONG:
+				acc = values[a] instanceof Long && compare(code[pc + 2], ((Long) values[a]).longValue(), longs[code[pc + 3]]);
+				break;
+			case CMP_STR:
+				acc = values[a] instanceof String && match(code[pc + 2], (String) values[a], strings[code[pc + 3]]);
+				break;
+			case EVAL:
+				acc = conditions[a].isMet(pojo);
+				break;
+			case JUMP_IF_FALSE:
+				if (!acc) {
+					pc = a;
+					continue;
+				}
+				break;
+			default:
+				if (acc) {
+					pc = a;
+					continue;
+				}
+			}
+			pc += WIDTH;
+		}
+		return acc;
+	}
+
+	private static boolean compare(final int comparison, final long value, final long bound) {
+		switch (comparison) {
+		case EQ:
+			return value == bound;
+		case NE:
+			return value != bound;
+		case GT:
+			return value > bound;
+		case GE:
+			return value >= bound;
+		case LT:
+			return value < bound;
+		default:
+			return value <= bound;
+		}
+	}
+
+	private static boolean match(final int match, final String value, final String text) {
+		final boolean matches;
+		switch (match & ~NEGATE) {
+		case STARTS:
+			matches = value.startsWith(text);
+			break;
+		case ENDS:
+			matches = value.endsWith(text);
+			break;
+		case CONTAINS:
+			matches = value.contains(text);
+			break;
+		default:
+			matches = value.equals(text);
+		}
+		return matches != ((match & NEGATE) != 0);
+	}
+
+	/**
+	 * @return number of instructions of the program.
+	 */
+	int getInstructionCount() {
+		return code.length / WIDTH;
+	}
+
+	/**
+	 * @return number of property path prefixes loaded into registers.
+	 */
+	int getRegisterCount() {
+		return getters.length;
+	}
+
+	SearchCondition<T> getTree() {
+		return tree;
+	}
+
+	/**
+	 * @return one line per instruction, jump targets being instruction
+	 *         numbers.
+	 */
+	String disassemble() {
+		final StringBuilder sb = new StringBuilder();
+		for (int pc = 0; pc < code.length; pc += WIDTH) {
+			final int a = code[pc + 1];
+			sb.append(pc / WIDTH).append(": ").append(OPCODES[code[pc]]).append(' ');
+			switch (code[pc]) {
+			case LOAD:
+				sb.append('r').append(a).append(' ').append(registers[a]);
+				break;
+			case TEST:
+				sb.append('r').append(a).append(" #").append(code[pc + 2]);
+				break;
+			case CMP_INT:
+				sb.append('r').append(a).append(' ').append(COMPARISONS[code[pc + 2]]).append(' ').append(code[pc + 3]);
+				break;
+			case CMP_LONG:
+				sb.append('r').append(a).append(' ').append(COMPARISONS[code[pc + 2]]).append(' ').append(longs[code[pc + 3]]);
+				break;
+			case CMP_STR:
+				sb.append('r').append(a).append(' ').append((code[pc + 2] & NEGATE) != 0 ? "NOT_" : "")
+						.append(MATCHES[code[pc + 2] & ~NEGATE]).append(" '").append(strings[code[pc + 3]]).append('\'');
+				break;
+			case EVAL:
+				sb.append('#').append(a).append(' ').append(conditions[a]);
+				break;
+			default:
+				sb.append(a / WIDTH);
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	public T getCondition() {
+		return tree.getCondition();
+	}
+
+	public PrimitiveStatement getStatement() {
+		return tree.getStatement();
+	}
+
+	public List<SearchCondition<T>> getSearchConditions() {
+		return tree.getSearchConditions();
+	}
+
+	public ConditionType getConditionType() {
+		return tree.getConditionType();
+	}
+
+	public String toSQL(final String table, final String... columns) {
+		return tree.toSQL(table, columns);
+	}
+
+	@Override
+	public String toString() {
+		return tree.toString();
+	}
+
+	/**
+	 * Instructions and constant pools of a program being lowered.
+	 */
+	private static final class Assembler {
+		private final List<Integer> code = new ArrayList<Integer>();
+		private final PathSlots registers = new PathSlots();
+		private final List<Predicate> predicates = new ArrayList<Predicate>();
+		private final List<Long> longs = new ArrayList<Long>();
+		private final List<String> strings = new ArrayList<String>();
+		private final List<SearchCondition<?>> conditions = new ArrayList<SearchCondition<?>>();
+
+		/**
+		 * @param loaded
+		 *            registers loaded whatever the path taken to this point,
+		 *            updated with the ones this node always loads.
+		 */
+		void lower(final SearchCondition<?> sc, final BitSet loaded) {
+			// paths crossing collections are walked per element by the leaf
+			if (sc instanceof PropertyCondition && !((PropertyCondition<?>) sc).getPath().isQuantified()) {
+				leaf((PropertyCondition<?>) sc, loaded);
+				return;
+			}
+			final List<? extends SearchCondition<?>> children = sc.getSearchConditions();
+			final ConditionType ct = sc.getConditionType();
+			if (children != null && !children.isEmpty() && (ct == ConditionType.AND || ct == ConditionType.OR)) {
+				final List<Integer> exits = new ArrayList<Integer>();
+				for (int i = 0; i < children.size(); i++) {
+					// only the first child is evaluated on every path
+					lower(children.get(i), i == 0 ? loaded : (BitSet) loaded.clone());
+					if (i < children.size() - 1) {
+						exits.add(code.size());
+						emit(ct == ConditionType.AND ? JUMP_IF_FALSE : JUMP_IF_TRUE, 0, 0, 0);
+					}
+				}
+				for (final int exit : exits) {
+					code.set(exit + 1, code.size());
+				}
+				return;
+			}
+			emit(EVAL, add(conditions, sc), 0, 0);
+		}
+
+		private void leaf(final PropertyCondition<?> leaf, final BitSet loaded) {
+			final int register = load(leaf.getPath(), loaded);
+			final FiqlOperator operator = leaf.getOperator();
+			final Object operand = leaf.getOperand();
+			final Class<?> type = ClassUtils.primitiveToWrapper(leaf.getPath().getType());
+			if (FiqlOperators.isComparison(operator)) {
+				final ConditionType ct = operator.getConditionType();
+				final int comparison = comparison(ct);
+				if (type == Integer.class && operand instanceof Integer) {
+					emit(CMP_INT, register, comparison, (Integer) operand);
+					return;
+				}
+				if (type == Long.class && operand instanceof Long) {
+					emit(CMP_LONG, register, comparison, add(longs, (Long) operand));
+					return;
+				}
+				if (type == String.class && operand instanceof String && (comparison == EQ || comparison == NE)) {
+					final String s = (String) operand;
+					final boolean starts = s.length() > 0 && s.charAt(0) == '*';
+					final boolean ends = s.length() > 1 && s.charAt(s.length() - 1) == '*';
+					final int match = starts && ends ? CONTAINS : starts ? ENDS : ends ? STARTS : EXACT;
+					final String text = s.substring(starts ? 1 : 0, ends ? s.length() - 1 : s.length());
+					emit(CMP_STR, register, comparison == NE ? match | NEGATE : match, add(strings, text));
+					return;
+				}
+			}
+			emit(TEST, register, add(predicates, leaf.getPredicate()), 0);
+		}
+
+		/**
+		 * Emits the loads of the prefixes of given path not loaded yet.
+		 *
+		 * @return register of the whole path.
+		 */
+		private int load(final PropertyPath path, final BitSet loaded) {
+			final int[] chain = registers.add(path);
+			for (final int register : chain) {
+				if (!loaded.get(register)) {
+					emit(LOAD, register, 0, 0);
+					loaded.set(register);
+				}
+			}
+			return chain[chain.length - 1];
+		}
+
+		private static int comparison(final ConditionType ct) {
+			switch (ct) {
+			case EQUALS:
+				return EQ;
+			case NOT_EQUALS:
+				return NE;
+			case GREATER_THAN:
+				return GT;
+			case GREATER_OR_EQUALS:
+				return GE;
+			case LESS_THAN:
+				return LT;
+			default:
+				return LE;
+			}
+		}
+
+		private void emit(final int opcode, final int a, final int b, final int c) {
+			code.add(opcode);
+			code.add(a);
+			code.add(b);
+			code.add(c);
+		}
+
+		private static <E> int add(final List<E> pool, final E constant) {
+			pool.add(constant);
+			return pool.size() - 1;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.bbva.utils.fiql.parser;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class whose property model is generated at compile time by
+ * {@link FiqlSearchableProcessor}: a {@link GeneratedModel} named after the
+ * class with a {@value GeneratedModel#SUFFIX} suffix, in the same package,
+ * reading, writing and converting its properties without reflection.
+ * Parsers, plans and templates use it whenever present and introspect the
+ * class otherwise, so nested types benefit from being marked as well.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface FiqlSearchable {
+}
@@ -0,0 +1,273 @@
+package com.bbva.utils.fiql.parser;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates the {@link GeneratedModel} of each {@link FiqlSearchable} class.
+ * Properties are found as {@link ClassModel} finds them: public getters
+ * (<code>getX()</code>, <code>isX()</code>) and setters
+ * (<code>setX(x)</code>), inherited ones included. Literal converters are
+ * generated for String, primitive, wrapper and BigDecimal properties; other
+ * types are converted as usual.
+ * <p/>
+ * Registered as a service, so javac runs it on any source path having this
+ * library on its class path.
+ */
+public class FiqlSearchableProcessor extends AbstractProcessor {
+
+	private static final String MODEL = GeneratedModel.class.getName();
+
+	private static final Set<String> VALUE_OF = new LinkedHashSet<String>();
+	static {
+		for (final Class<?> wrapper : new Class<?>[] { Integer.class, Long.class, Short.class, Byte.class, Double.class,
+				Float.class }) {
+			VALUE_OF.add(wrapper.getName());
+		}
+	}
+
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		return Collections.singleton(FiqlSearchable.class.getName());
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+		for (final Element element : roundEnv.getElementsAnnotatedWith(FiqlSearchable.class)) {
+			if (element.getKind() != ElementKind.CLASS) {
+				error(element, "@FiqlSearchable applies to classes only");
+			} else if (element.getModifiers().contains(Modifier.PRIVATE)) {
+				error(element, "@FiqlSearchable class must not be private");
+			} else {
+				try {
+					generate((TypeElement) element);
+				} catch (final IOException e) {
+					error(element, "Can not generate property model: " + e.getMessage());
+				}
+			}
+		}
+		return true;
+	}
+
+	private void error(final Element element, final String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+
+	private void generate(final TypeElement type) throws IOException {
+		final Map<String, ExecutableElement> getters = new LinkedHashMap<String, ExecutableElement>();
+		final Map<String, ExecutableElement> setters = new LinkedHashMap<String, ExecutableElement>();
+		final Set<String> ambiguous = new LinkedHashSet<String>();
+		for (final ExecutableElement m : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+			if (!m.getModifiers().contains(Modifier.PUBLIC) || m.getModifiers().contains(Modifier.STATIC)) {
+				continue;
+			}
+			final String name = m.getSimpleName().toString();
+			if (m.getParameters().isEmpty() && (name.startsWith("get") || name.startsWith("is"))
+					&& m.getReturnType().getKind() != TypeKind.VOID && !name.equals("getClass")) {
+				put(getters, ambiguous, ClassModel.propertyName(name), m);
+			} else if (m.getParameters().size() == 1 && m.getReturnType().getKind() == TypeKind.VOID
+					&& (name.startsWith("set") || name.startsWith("is"))) {
+				put(setters, ambiguous, ClassModel.propertyName(name), m);
+			}
+		}
+		final Map<String, TypeMirror> properties = new LinkedHashMap<String, TypeMirror>();
+		for (final Map.Entry<String, ExecutableElement> e : getters.entrySet()) {
+			properties.put(e.getKey(), erasure(e.getValue().getReturnType()));
+		}
+		for (final Map.Entry<String, ExecutableElement> e : setters.entrySet()) {
+			final TypeMirror setterType = erasure(e.getValue().getParameters().get(0).asType());
+			final TypeMirror getterType = properties.get(e.getKey());
+			if (getterType == null) {
+				properties.put(e.getKey(), setterType);
+			} else if (!processingEnv.getTypeUtils().isSameType(getterType, setterType)) {
+				ambiguous.add(e.getKey());
+			}
+		}
+		// left to reflection, which reports them as it always did
+		properties.keySet().removeAll(ambiguous);
+
+		final String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+		final String qualified = type.getQualifiedName().toString();
+		final String simple = (pkg.length() == 0 ? qualified : qualified.substring(pkg.length() + 1)).replace('.', '_')
+				+ GeneratedModel.SUFFIX;
+		final Writer w = processingEnv.getFiler().createSourceFile(pkg.length() == 0 ? simple : pkg + "." + simple, type)
+				.openWriter();
+		try {
+			if (pkg.length() > 0) {
+				w.write("package " + pkg + ";\n\n");
+			}
+			w.write("/**\n * Property model of {@link " + qualified + "}, generated from its accessors.\n */\n");
+			w.write("@SuppressWarnings({ \"unchecked\", \"rawtypes\" })\n");
+			w.write("public final class " + simple + " extends " + MODEL + "<" + qualified + "> {\n\n");
+			w.write("\tpublic static final java.util.Map<String, String> COLUMNS;\n\n");
+			w.write("\tstatic {\n");
+			w.write("\t\tfinal java.util.Map<String, String> columns = new java.util.LinkedHashMap<String, String>();\n");
+			for (final String property : properties.keySet()) {
+				final ExecutableElement getter = getters.get(property);
+				if (getter != null) {
+					final FiqlColumn column = getter.getAnnotation(FiqlColumn.class);
+					w.write("\t\tcolumns.put(" + quote(property) + ", " + quote(column != null ? column.value() : property) + ");\n");
+				}
+			}
+			w.write("\t\tCOLUMNS = java.util.Collections.unmodifiableMap(columns);\n");
+			w.write("\t}\n\n");
+
+			w.write("\tpublic " + simple + "() {\n");
+			w.write("\t\tsuper(" + qualified + ".class, new String[] {");
+			String sep = " ";
+			for (final String property : properties.keySet()) {
+				w.write(sep + quote(property));
+				sep = ", ";
+			}
+			w.write(" }, new Class<?>[] {");
+			sep = " ";
+			for (final TypeMirror propertyType : properties.values()) {
+				w.write(sep + propertyType + ".class");
+				sep = ", ";
+			}
+			w.write(" });\n");
+			w.write("\t}\n\n");
+
+			w.write("\t@Override\n");
+			w.write("\tpublic Object get(final " + qualified + " bean, final int property) {\n");
+			w.write("\t\tswitch (property) {\n");
+			int idx = 0;
+			for (final String property : properties.keySet()) {
+				final ExecutableElement getter = getters.get(property);
+				if (getter != null) {
+					w.write("\t\tcase " + idx + ":\n");
+					w.write("\t\t\treturn bean." + getter.getSimpleName() + "();\n");
+				}
+				idx++;
+			}
+			w.write("\t\tdefault:\n");
+			w.write("\t\t\tthrow new UnsupportedOperationException(\"No getter for \" + getPropertyNames().get(property));\n");
+			w.write("\t\t}\n");
+			w.write("\t}\n\n");
+
+			w.write("\t@Override\n");
+			w.write("\tpublic boolean set(final " + qualified + " bean, final int property, final Object value) {\n");
+			w.write("\t\tswitch (property) {\n");
+			idx = 0;
+			for (final Map.Entry<String, TypeMirror> e : properties.entrySet()) {
+				final ExecutableElement setter = setters.get(e.getKey());
+				if (setter != null) {
+					w.write("\t\tcase " + idx + ":\n");
+					w.write("\t\t\tbean." + setter.getSimpleName() + "((" + boxed(e.getValue()) + ") value);\n");
+					w.write("\t\t\treturn true;\n");
+				}
+				idx++;
+			}
+			w.write("\t\tdefault:\n");
+			w.write("\t\t\treturn false;\n");
+			w.write("\t\t}\n");
+			w.write("\t}\n\n");
+
+			w.write("\t@Override\n");
+			w.write("\tpublic Object convert(final int property, final String literal) {\n");
+			w.write("\t\tswitch (property) {\n");
+			idx = 0;
+			for (final TypeMirror propertyType : properties.values()) {
+				final String converter = converter(boxed(propertyType));
+				if (converter != null) {
+					w.write("\t\tcase " + idx + ":\n");
+					w.write("\t\t\treturn " + converter + ";\n");
+				}
+				idx++;
+			}
+			w.write("\t\tdefault:\n");
+			w.write("\t\t\treturn UNCONVERTED;\n");
+			w.write("\t\t}\n");
+			w.write("\t}\n\n");
+
+			w.write("\t@Override\n");
+			w.write("\tpublic " + qualified + " newInstance() {\n");
+			w.write("\t\treturn " + (isInstantiable(type) ? "new " + qualified + "()" : "null") + ";\n");
+			w.write("\t}\n\n");
+
+			w.write("\t@Override\n");
+			w.write("\tpublic java.util.Map<String, String> getColumns() {\n");
+			w.write("\t\treturn COLUMNS;\n");
+			w.write("\t}\n");
+			w.write("}\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	private static void put(final Map<String, ExecutableElement> accessors, final Set<String> ambiguous, final String name,
+			final ExecutableElement m) {
+		if (name.length() == 0) {
+			return;
+		}
+		if (accessors.put(name, m) != null) {
+			ambiguous.add(name);
+		}
+	}
+
+	private TypeMirror erasure(final TypeMirror type) {
+		return processingEnv.getTypeUtils().erasure(type);
+	}
+
+	private String boxed(final TypeMirror type) {
+		if (type.getKind().isPrimitive()) {
+			return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+		}
+		return type.toString();
+	}
+
+	private static String converter(final String boxed) {
+		if (boxed.equals(String.class.getName())) {
+			return "literal";
+		}
+		if (VALUE_OF.contains(boxed)) {
+			return boxed + ".valueOf(literal)";
+		}
+		if (boxed.equals(BigDecimal.class.getName())) {
+			return "new java.math.BigDecimal(literal)";
+		}
+		return null;
+	}
+
+	private static boolean isInstantiable(final TypeElement type) {
+		if (type.getModifiers().contains(Modifier.ABSTRACT)
+				|| (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC))) {
+			return false;
+		}
+		for (final ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+			if (c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String quote(final String s) {
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
@@ -0,0 +1,332 @@
+package com.bbva.utils.fiql.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.commons.beanutils.PropertyUtils;
+
+/**
+ * Introspects search types and compiles expressions ahead of time, so the
+ * first requests find class models, resolved property paths and compiled
+ * expressions already cached.
+ * <p/>
+ * Example:
+ *
+ * <pre>
+ * new FiqlWarmup().addPackage(&quot;com.acme.dto&quot;).addFilters(Movie.class, &quot;year=ge=2000&quot;, &quot;director.name==Nolan&quot;)
+ * 		.run(startupExecutor);
+ * </pre>
+ */
+public final class FiqlWarmup {
+
+	/**
+	 * Nested properties deeper than this are not resolved ahead of time.
+	 */
+	public static final int MAX_DEPTH = 4;
+
+	private final Set<Class<?>> classes = new LinkedHashSet<Class<?>>();
+	private final Map<Class<?>, List<String>> filters = new LinkedHashMap<Class<?>, List<String>>();
+	private ClassLoader classLoader;
+
+	public FiqlWarmup() {
+		classLoader = Thread.currentThread().getContextClassLoader();
+		if (classLoader == null) {
+			classLoader = FiqlWarmup.class.getClassLoader();
+		}
+	}
+
+	public FiqlWarmup setClassLoader(final ClassLoader classLoader) {
+		if (classLoader == null) {
+			throw new IllegalArgumentException("classLoader is null");
+		}
+		this.classLoader = classLoader;
+		return this;
+	}
+
+	public FiqlWarmup addClasses(final Class<?>... types) {
+		for (final Class<?> type : types) {
+			if (type == null) {
+				throw new IllegalArgumentException("class is null");
+			}
+			classes.add(type);
+		}
+		return this;
+	}
+
+	/**
+	 * Adds every concrete, public top level class found in given package
+	 * (not in its subpackages), either in a directory or in a jar.
+	 *
+	 * @throws IOException
+	 *             when the class path can not be read.
+	 */
+	public FiqlWarmup addPackage(final String packageName) throws IOException {
+		if (packageName == null) {
+			throw new IllegalArgumentException("packageName is null");
+		}
+		final String path = packageName.replace('.', '/');
+		final Enumeration<URL> urls = classLoader.getResources(path);
+		while (urls.hasMoreElements()) {
+			final URL url = urls.nextElement();
+			final List<String> names = new ArrayList<String>();
+			if ("file".equals(url.getProtocol())) {
+				final File[] files = toFile(url).listFiles();
+				if (files != null) {
+					for (final File file : files) {
+						names.add(file.getName());
+					}
+				}
+			} else if ("jar".equals(url.getProtocol())) {
+				final JarFile jar = ((JarURLConnection) url.openConnection()).getJarFile();
+				final Enumeration<JarEntry> entries = jar.entries();
+				while (entries.hasMoreElements()) {
+					final String entry = entries.nextElement().getName();
+					if (entry.startsWith(path + "/") && entry.indexOf('/', path.length() + 1) == -1) {
+						names.add(entry.substring(path.length() + 1));
+					}
+				}
+			}
+			for (final String name : names) {
+				if (name.endsWith(".class") && name.indexOf('$') == -1) {
+					addScanned(packageName + "." + name.substring(0, name.length() - ".class".length()));
+				}
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Adds canonical expressions of given search type to be compiled.
+	 */
+	public FiqlWarmup addFilters(final Class<?> type, final String... expressions) {
+		if (type == null) {
+			throw new IllegalArgumentException("type is null");
+		}
+		classes.add(type);
+		List<String> list = filters.get(type);
+		if (list == null) {
+			list = new ArrayList<String>();
+			filters.put(type, list);
+		}
+		Collections.addAll(list, expressions);
+		return this;
+	}
+
+	/**
+	 * Runs the warmup in the calling thread.
+	 */
+	public Result run() {
+		final Result result = new Result();
+		for (final Callable<Void> task : tasks(result)) {
+			try {
+				task.call();
+			} catch (final Exception e) {
+				// tasks report their own failures
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Runs every class and every expression as a separate task on given
+	 * executor and waits for all of them.
+	 *
+	 * @throws InterruptedException
+	 *             when interrupted while waiting.
+	 */
+	public Result run(final ExecutorService executor) throws InterruptedException {
+		if (executor == null) {
+			throw new IllegalArgumentException("executor is null");
+		}
+		final Result result = new Result();
+		final List<Future<Void>> futures = executor.invokeAll(tasks(result));
+		for (final Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (final ExecutionException e) {
+				// tasks report their own failures
+			}
+		}
+		return result;
+	}
+
+	private List<Callable<Void>> tasks(final Result result) {
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final Class<?> type : classes) {
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					try {
+						result.paths.addAndGet(introspect(type, ClassModel.of(type), "", 1, new HashSet<Class<?>>()));
+						result.classes.incrementAndGet();
+					} catch (final RuntimeException e) {
+						result.fail(type.getName(), e);
+					}
+					return null;
+				}
+			});
+		}
+		for (final Map.Entry<Class<?>, List<String>> e : filters.entrySet()) {
+			for (final String expression : e.getValue()) {
+				tasks.add(compileTask(e.getKey(), expression, result));
+			}
+		}
+		return tasks;
+	}
+
+	private static <T> Callable<Void> compileTask(final Class<T> type, final String expression, final Result result) {
+		return new Callable<Void>() {
+			public Void call() {
+				try {
+					final ExtendableFiqlParser<T> parser = new ExtendableFiqlParser<T>(type);
+					// building once leaves converters and setters loaded too
+					parser.build(parser.compile(expression));
+					result.filters.incrementAndGet();
+				} catch (final Exception e) {
+					result.fail(expression, e);
+				}
+				return null;
+			}
+		};
+	}
+
+	// resolves every property path of the root model down to MAX_DEPTH
+	private static int introspect(final Class<?> type, final ClassModel root, final String prefix, final int depth,
+			final Set<Class<?>> visiting) {
+		if (!visiting.add(type)) {
+			return 0;
+		}
+		PropertyUtils.getPropertyDescriptors(type);
+		int paths = 0;
+		final ClassModel model = ClassModel.of(type);
+		final Set<String> names = new HashSet<String>(model.getGetters().keySet());
+		names.addAll(model.getSetters().keySet());
+		names.remove("class");
+		for (final String name : names) {
+			final String path = prefix + name;
+			// parsing reads through property paths, templates are filled
+			// through property types; setter only properties have no path
+			final PropertyPath resolved = root.findPath(path);
+			Class<?> propertyType;
+			try {
+				propertyType = root.getPropertyType(path);
+			} catch (final Exception e) {
+				if (resolved == null) {
+					continue;
+				}
+				propertyType = resolved.getType();
+			}
+			paths++;
+			if (depth < MAX_DEPTH && isBean(propertyType)) {
+				paths += introspect(propertyType, root, path + ".", depth + 1, visiting);
+			}
+		}
+		visiting.remove(type);
+		return paths;
+	}
+
+	private static boolean isBean(final Class<?> type) {
+		return !type.isPrimitive() && !type.isArray() && !type.isEnum() && !type.isInterface() && type.getName().indexOf("java.") != 0
+				&& type.getName().indexOf("javax.") != 0;
+	}
+
+	private void addScanned(final String className) {
+		try {
+			final Class<?> type = Class.forName(className, false, classLoader);
+			final int modifiers = type.getModifiers();
+			if (Modifier.isPublic(modifiers) && !Modifier.isAbstract(modifiers) && !type.isInterface() && !type.isEnum()
+					&& !GeneratedModel.class.isAssignableFrom(type) && hasDefaultConstructor(type)) {
+				classes.add(type);
+			}
+		} catch (final ClassNotFoundException e) {
+			// listed but not loadable, nothing to warm
+		} catch (final LinkageError e) {
+			// listed but not loadable, nothing to warm
+		}
+	}
+
+	private static boolean hasDefaultConstructor(final Class<?> type) {
+		try {
+			type.getConstructor();
+			return true;
+		} catch (final NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	// URL paths are percent-encoded, which form decoding would misread
+	// (e.g. turning '+' into a space)
+	private static File toFile(final URL url) throws IOException {
+		try {
+			return new File(url.toURI());
+		} catch (final URISyntaxException e) {
+			throw new IOException("Invalid class path URL " + url, e);
+		} catch (final IllegalArgumentException e) {
+			throw new IOException("Invalid class path URL " + url, e);
+		}
+	}
+
+	/**
+	 * Outcome of a warmup run.
+	 */
+	public static final class Result {
+		private final AtomicInteger classes = new AtomicInteger();
+		private final AtomicInteger paths = new AtomicInteger();
+		private final AtomicInteger filters = new AtomicInteger();
+		private final Map<String, Exception> failures = Collections.synchronizedMap(new LinkedHashMap<String, Exception>());
+
+		private void fail(final String what, final Exception e) {
+			failures.put(what, e);
+		}
+
+		/**
+		 * @return number of introspected classes.
+		 */
+		public int getClasses() {
+			return classes.get();
+		}
+
+		/**
+		 * @return number of property paths resolved.
+		 */
+		public int getPaths() {
+			return paths.get();
+		}
+
+		/**
+		 * @return number of expressions compiled.
+		 */
+		public int getFilters() {
+			return filters.get();
+		}
+
+		/**
+		 * @return classes or expressions that could not be warmed, with the
+		 *         reason.
+		 */
+		public Map<String, Exception> getFailures() {
+			synchronized (failures) {
+				return Collections.unmodifiableMap(new LinkedHashMap<String, Exception>(failures));
+			}
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Property model of a {@link FiqlSearchable} class, generated at compile
+ * time by {@link FiqlSearchableProcessor}: typed getters and setters,
+ * literal converters and SQL columns of each property, addressed by index.
+ * Generated code is plain method calls, so reading a property costs what
+ * calling its getter does, and nothing has to be introspected or defined at
+ * runtime.
+ * <p/>
+ * Not meant to be implemented by hand; {@link #of(Class)} finds the model
+ * generated for a class, if any.
+ *
+ * @param <T>
+ *            type of modelled class.
+ */
+public abstract class GeneratedModel<T> {
+
+	/**
+	 * Suffix of generated models, whose name is the one of the modelled
+	 * class, enclosing classes included and separated by underscores.
+	 */
+	public static final String SUFFIX = "_FiqlModel";
+
+	/**
+	 * Returned by {@link #convert(int, String)} for properties whose type has
+	 * no generated converter.
+	 */
+	public static final Object UNCONVERTED = new Object();
+
+	private static final Object NONE = new Object();
+	// attached to their class, so that they never keep its loader alive
+	private static final ClassValue<Object> MODELS = new ClassValue<Object>() {
+		@Override
+		protected Object computeValue(final Class<?> type) {
+			return load(type);
+		}
+	};
+
+	private final Class<T> type;
+	private final List<String> names;
+	private final Class<?>[] types;
+	private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+	/**
+	 * @param names
+	 *            names of the properties, in index order.
+	 * @param types
+	 *            types of the properties, in index order.
+	 */
+	protected GeneratedModel(final Class<T> type, final String[] names, final Class<?>[] types) {
+		if (names.length != types.length) {
+			throw new IllegalArgumentException("Got " + names.length + " names for " + types.length + " types");
+		}
+		this.type = type;
+		this.names = Collections.unmodifiableList(Arrays.asList(names.clone()));
+		this.types = types.clone();
+		for (int i = 0; i < names.length; i++) {
+			indexes.put(names[i], i);
+		}
+	}
+
+	/**
+	 * @return model generated for given class, null when it is not
+	 *         {@link FiqlSearchable} or its model can not be loaded.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> GeneratedModel<T> of(final Class<T> type) {
+		if (type == null) {
+			throw new IllegalArgumentException("type is null");
+		}
+		final Object model = MODELS.get(type);
+		return model == NONE ? null : (GeneratedModel<T>) model;
+	}
+
+	private static Object load(final Class<?> type) {
+		if (!type.isAnnotationPresent(FiqlSearchable.class)) {
+			return NONE;
+		}
+		final String name = type.getName();
+		final int idx = name.lastIndexOf('.');
+		final String generated = name.substring(0, idx + 1) + name.substring(idx + 1).replace('$', '_') + SUFFIX;
+		try {
+			final Object model = Class.forName(generated, true, type.getClassLoader()).getDeclaredConstructor().newInstance();
+			return model instanceof GeneratedModel && ((GeneratedModel<?>) model).type == type ? model : NONE;
+		} catch (final ReflectiveOperationException e) {
+			// not processed, e.g. compiled without annotation processing
+			return NONE;
+		} catch (final LinkageError e) {
+			return NONE;
+		}
+	}
+
+	public Class<T> getType() {
+		return type;
+	}
+
+	/**
+	 * @return names of the properties, in index order.
+	 */
+	public List<String> getPropertyNames() {
+		return names;
+	}
+
+	/**
+	 * @return index of given property, -1 when there is no such property.
+	 */
+	public int indexOf(final String property) {
+		final Integer idx = indexes.get(property);
+		return idx == null ? -1 : idx;
+	}
+
+	public Class<?> getPropertyType(final int property) {
+		return types[property];
+	}
+
+	/**
+	 * @return value of a property, as its getter returns it.
+	 * @throws UnsupportedOperationException
+	 *             when the property has no getter.
+	 */
+	public abstract Object get(T bean, int property);
+
+	/**
+	 * @return whether the property has a setter, which was called.
+	 */
+	public abstract boolean set(T bean, int property, Object value);
+
+	/**
+	 * @return literal converted to the type of a property,
+	 *         {@link #UNCONVERTED} when its type has no generated converter.
+	 * @throws IllegalArgumentException
+	 *             when the literal is not a value of the type.
+	 */
+	public abstract Object convert(int property, String literal);
+
+	/**
+	 * @return new instance of the modelled class, null when it has no
+	 *         accessible no-arg constructor.
+	 */
+	public abstract T newInstance();
+
+	/**
+	 * @return SQL column of each property with a getter, see
+	 *         {@link FiqlColumn}.
+	 */
+	public abstract Map<String, String> getColumns();
+
+	/**
+	 * Reads a property, or a nested property when path has several dot
+	 * separated tokens.
+	 *
+	 * @return value of the property, null when some value along the path is
+	 *         null.
+	 * @throws IllegalArgumentException
+	 *             when some property along the path is not modelled.
+	 */
+	@SuppressWarnings("unchecked")
+	public Object get(final T bean, final String path) {
+		final int dot = path.indexOf('.');
+		final int property = indexOf(dot < 0 ? path : path.substring(0, dot));
+		if (property < 0) {
+			throw new IllegalArgumentException("Property '" + path + "' of " + type.getName() + " is not modelled");
+		}
+		final Object value = get(bean, property);
+		if (dot < 0 || value == null) {
+			return value;
+		}
+		final GeneratedModel<Object> nested = (GeneratedModel<Object>) of(types[property]);
+		if (nested == null) {
+			throw new IllegalArgumentException("Type " + types[property].getName() + " of '" + path + "' is not modelled");
+		}
+		return nested.get(value, path.substring(dot + 1));
+	}
+
+	/**
+	 * Sets a property, or a nested property when path has several dot
+	 * separated tokens, instantiating null intermediate values.
+	 *
+	 * @return whether every property along the path is modelled and the
+	 *         value could be set; nothing is set when the first token is not
+	 *         a modelled property.
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean set(final T bean, final String path, final Object value) {
+		final int dot = path.indexOf('.');
+		final int property = indexOf(dot < 0 ? path : path.substring(0, dot));
+		if (property < 0) {
+			return false;
+		}
+		if (dot < 0) {
+			return set(bean, property, value);
+		}
+		final GeneratedModel<Object> nested = (GeneratedModel<Object>) of(types[property]);
+		if (nested == null) {
+			return false;
+		}
+		Object owner = get(bean, property);
+		if (owner == null) {
+			owner = nested.newInstance();
+			if (owner == null || !set(bean, property, owner)) {
+				return false;
+			}
+		}
+		return nested.set(owner, path.substring(dot + 1), value);
+	}
+
+	@Override
+	public String toString() {
+		return type.getName() + names;
+	}
+}
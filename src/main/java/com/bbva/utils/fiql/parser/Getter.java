@@ -0,0 +1,73 @@
+package com.bbva.utils.fiql.parser;
+
+import java.lang.reflect.Method;
+
+/**
+ * Reads one property of its owner through the {@link GeneratedModel} of the
+ * owner class when there is one, invoking the getter reflectively
+ * otherwise.
+ */
+final class Getter {
+
+	private final Method method;
+	private final GeneratedModel<Object> model;
+	private final int property;
+	private final String column;
+
+	@SuppressWarnings("unchecked")
+	Getter(final Method method, final String name, final GeneratedModel<?> model) {
+		this.method = method;
+		final int idx = model == null ? -1 : model.indexOf(name);
+		this.model = idx < 0 ? null : (GeneratedModel<Object>) model;
+		this.property = idx;
+		final String mapped = idx < 0 ? null : model.getColumns().get(name);
+		this.column = mapped == null ? name : mapped;
+	}
+
+	Method getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return SQL column of the property, see {@link FiqlColumn}; its name
+	 *         when the owner has no generated model.
+	 */
+	String getColumn() {
+		return column;
+	}
+
+	/**
+	 * @return whether property is read by generated code.
+	 */
+	boolean isGenerated() {
+		return model != null;
+	}
+
+	/**
+	 * @return value of the property, null when the getter fails.
+	 */
+	Object get(final Object owner) {
+		if (model == null) {
+			return PropertyPath.invoke(method, owner);
+		}
+		try {
+			return model.get(owner, property);
+		} catch (final RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return literal converted by generated code,
+	 *         {@link GeneratedModel#UNCONVERTED} when there is no generated
+	 *         converter for the property.
+	 */
+	Object convert(final String literal) {
+		return model == null ? GeneratedModel.UNCONVERTED : model.convert(property, literal);
+	}
+
+	@Override
+	public String toString() {
+		return method.toString();
+	}
+}
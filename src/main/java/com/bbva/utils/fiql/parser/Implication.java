@@ -0,0 +1,281 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.collections.Predicate;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * Conservative implication check between built conditions: when
+ * {@link #implies(SearchCondition, SearchCondition)} holds, every object
+ * matching the first condition matches the second one, so the first can
+ * be evaluated over the matches of the second only (see
+ * {@link ResultCache}). A false answer means implication could not be
+ * proved, not that it does not hold.
+ * <p/>
+ * ANDs and ORs are decomposed, and comparisons of the same property path
+ * are compared by their terms: equalities and sets against any predicate
+ * of the broader comparison, ranges (<code>=gt=</code>, <code>=ge=</code>,
+ * <code>=lt=</code>, <code>=le=</code>, between) against ranges and
+ * exclusions, and exclusions against exclusions. Comparing per element
+ * value is sound for quantified paths too, as both comparisons quantify
+ * the same path. Relative dates are compared as resolved at the current
+ * clock tick.
+ */
+final class Implication {
+
+	private Implication() {
+	}
+
+	/**
+	 * @return whether every object matching <code>narrow</code> is proved to
+	 *         match <code>broad</code>.
+	 */
+	static boolean implies(final SearchCondition<?> narrow, final SearchCondition<?> broad) {
+		final SearchCondition<?> n = unwrap(narrow);
+		final SearchCondition<?> b = unwrap(broad);
+		if (n == b) {
+			return true;
+		}
+		final List<? extends SearchCondition<?>> broadChildren = children(b);
+		if (broadChildren != null && b.getConditionType() == ConditionType.AND) {
+			for (final SearchCondition<?> child : broadChildren) {
+				if (!implies(n, child)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		final List<? extends SearchCondition<?>> narrowChildren = children(n);
+		if (narrowChildren != null && n.getConditionType() == ConditionType.OR) {
+			for (final SearchCondition<?> child : narrowChildren) {
+				if (!implies(child, b)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (narrowChildren != null) {
+			for (final SearchCondition<?> child : narrowChildren) {
+				if (implies(child, b)) {
+					return true;
+				}
+			}
+		}
+		if (broadChildren != null) {
+			for (final SearchCondition<?> child : broadChildren) {
+				if (implies(n, child)) {
+					return true;
+				}
+			}
+		}
+		if (n instanceof PropertyCondition && b instanceof PropertyCondition) {
+			return implies((PropertyCondition<?>) n, (PropertyCondition<?>) b);
+		}
+		return narrowChildren == null && broadChildren == null && ResultCache.normalize(n).equals(ResultCache.normalize(b));
+	}
+
+	private static SearchCondition<?> unwrap(final SearchCondition<?> sc) {
+		if (sc instanceof EvaluationPlan) {
+			return unwrap(((EvaluationPlan<?>) sc).getTree());
+		}
+		if (sc instanceof FiqlProgram) {
+			return unwrap(((FiqlProgram<?>) sc).getTree());
+		}
+		if (sc instanceof LazySearchCondition) {
+			return unwrap(((LazySearchCondition<?>) sc).delegate());
+		}
+		return sc;
+	}
+
+	/**
+	 * @return operands of an AND or OR, null for other conditions.
+	 */
+	private static List<? extends SearchCondition<?>> children(final SearchCondition<?> sc) {
+		final ConditionType ct = sc.getConditionType();
+		return ct == ConditionType.AND || ct == ConditionType.OR ? sc.getSearchConditions() : null;
+	}
+
+	private static boolean implies(final PropertyCondition<?> narrow, final PropertyCondition<?> broad) {
+		if (!narrow.getProperty().equals(broad.getProperty())) {
+			return false;
+		}
+		if (ResultCache.normalize(narrow).equals(ResultCache.normalize(broad))) {
+			return true;
+		}
+		final FiqlOperator operator = narrow.getOperator();
+		final Object operand = RelativeDate.current(narrow.getOperand());
+		final ConditionType ct = operator.getConditionType();
+		if (FiqlOperators.isComparison(operator) && ct == ConditionType.EQUALS && !FiqlOperators.isWildcard(operand)) {
+			// matching values equal the operand
+			return holds(broad.getPredicate(), operand);
+		}
+		if (FiqlOperators.isIn(operator)) {
+			for (final Object value : (Set<?>) operand) {
+				if (!holds(broad.getPredicate(), RelativeDate.current(value))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		final Range range = Range.of(narrow);
+		if (range != null) {
+			final Range other = Range.of(broad);
+			if (other != null) {
+				return range.within(other);
+			}
+			for (final Object excluded : excluded(broad)) {
+				if (range.mayContain(excluded)) {
+					return false;
+				}
+			}
+			return excluded(broad).length > 0;
+		}
+		final Object[] excluded = excluded(narrow);
+		for (final Object value : excluded(broad)) {
+			if (!contains(excluded, value)) {
+				return false;
+			}
+		}
+		return excluded.length > 0 && excluded(broad).length > 0;
+	}
+
+	private static boolean holds(final Predicate predicate, final Object value) {
+		try {
+			return predicate.evaluate(value);
+		} catch (final RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return values a <code>!=</code> or <code>=out=</code> comparison
+	 *         excludes, none for other comparisons.
+	 */
+	private static Object[] excluded(final PropertyCondition<?> leaf) {
+		final FiqlOperator operator = leaf.getOperator();
+		if (FiqlOperators.isComparison(operator) && operator.getConditionType() == ConditionType.NOT_EQUALS
+				&& !FiqlOperators.isWildcard(leaf.getOperand())) {
+			return new Object[] { RelativeDate.current(leaf.getOperand()) };
+		}
+		if (FiqlOperators.isOut(operator)) {
+			final Object[] values = ((Set<?>) leaf.getOperand()).toArray();
+			for (int i = 0; i < values.length; i++) {
+				values[i] = RelativeDate.current(values[i]);
+			}
+			return values;
+		}
+		return new Object[0];
+	}
+
+	private static boolean contains(final Object[] values, final Object value) {
+		for (final Object v : values) {
+			if (v.equals(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Interval of a range comparison, either bound being optional.
+	 */
+	private static final class Range {
+		private final Comparable<Object> lower;
+		private final boolean lowerStrict;
+		private final Comparable<Object> upper;
+		private final boolean upperStrict;
+
+		Range(final Object lower, final boolean lowerStrict, final Object upper, final boolean upperStrict) {
+			this.lower = comparable(lower);
+			this.lowerStrict = lowerStrict;
+			this.upper = comparable(upper);
+			this.upperStrict = upperStrict;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static Comparable<Object> comparable(final Object bound) {
+			return (Comparable<Object>) bound;
+		}
+
+		/**
+		 * @return range of given comparison, null when it is not a range of
+		 *         comparable values.
+		 */
+		static Range of(final PropertyCondition<?> leaf) {
+			final FiqlOperator operator = leaf.getOperator();
+			final Object operand = RelativeDate.current(leaf.getOperand());
+			if (FiqlOperators.isBetween(operator)) {
+				final Object[] bounds = (Object[]) operand;
+				return new Range(RelativeDate.current(bounds[0]), false, RelativeDate.current(bounds[1]), false);
+			}
+			if (!FiqlOperators.isComparison(operator) || !(operand instanceof Comparable)) {
+				return null;
+			}
+			switch (operator.getConditionType()) {
+			case GREATER_THAN:
+				return new Range(operand, true, null, false);
+			case GREATER_OR_EQUALS:
+				return new Range(operand, false, null, false);
+			case LESS_THAN:
+				return new Range(null, false, operand, true);
+			case LESS_OR_EQUALS:
+				return new Range(null, false, operand, false);
+			default:
+				return null;
+			}
+		}
+
+		/**
+		 * @return whether this range is proved to be within given one.
+		 */
+		boolean within(final Range other) {
+			if (other.lower != null) {
+				if (lower == null || lower.getClass() != other.lower.getClass()) {
+					return false;
+				}
+				final int cmp = lower.compareTo(other.lower);
+				if (cmp < 0 || cmp == 0 && other.lowerStrict && !lowerStrict) {
+					return false;
+				}
+			}
+			if (other.upper != null) {
+				if (upper == null || upper.getClass() != other.upper.getClass()) {
+					return false;
+				}
+				final int cmp = upper.compareTo(other.upper);
+				if (cmp > 0 || cmp == 0 && other.upperStrict && !upperStrict) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return whether given value may be within this range.
+		 */
+		boolean mayContain(final Object value) {
+			if (lower != null) {
+				if (lower.getClass() != value.getClass()) {
+					return true;
+				}
+				final int cmp = lower.compareTo(value);
+				if (cmp > 0 || cmp == 0 && lowerStrict) {
+					return false;
+				}
+			}
+			if (upper != null) {
+				if (upper.getClass() != value.getClass()) {
+					return true;
+				}
+				final int cmp = upper.compareTo(value);
+				if (cmp < 0 || cmp == 0 && upperStrict) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,559 @@
+package com.bbva.utils.fiql.parser;
+
+import java.beans.IntrospectionException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * Evaluates FIQL expressions over objects whose related entities are held in
+ * separate collections and referenced by key, rather than nested in the
+ * objects themselves. Each {@link #join joined} prefix maps selectors like
+ * <code>director.awards.year</code> to the <code>awards.year</code> property
+ * of the related objects, so that
+ *
+ * <pre>
+ * new JoinEvaluator&lt;Movie&gt;(parser, movies).join(&quot;director&quot;, &quot;directorId&quot;, Director.class, directors, &quot;id&quot;)
+ * 		.findAll(&quot;year=ge=2000;director.awards.year=ge=2013&quot;);
+ * </pre>
+ *
+ * finds the movies that the denormalized <code>Movie</code> graph would.
+ * <p/>
+ * The terms of each prefix are pushed down to its collection: a subtree over
+ * a single prefix is parsed once into a condition on the related type and
+ * evaluated once per related object, and the terms of a prefix directly
+ * combined with others are grouped into one such subtree. Related objects
+ * meeting it are then joined on their keys with the root objects still
+ * candidates, building a hash table on the smaller side and probing it with
+ * the larger one. A group of terms holds for a root object when it holds for
+ * one related object of equal key, so terms of the same prefix combined with
+ * AND must hold for the same related object; multi-valued keys and nested
+ * joins are not supported. Null keys never match.
+ * <p/>
+ * Matches are kept as one bit per root object, and chunks of
+ * {@link #CHUNK_SIZE} objects, which own whole words of bits, are evaluated
+ * in parallel when an {@link #setExecutor(ExecutorService) executor} is set.
+ * Like {@link PropertyIndex}, collections must not change while evaluated,
+ * and joins are declared before any evaluation.
+ *
+ * @param <T>
+ *            type of the root objects.
+ */
+public final class JoinEvaluator<T> {
+
+	// multiple of 64, so that chunks never share a word of bits
+	static final int CHUNK_SIZE = 4096;
+
+	private static final int MAX_PLANS = 256;
+	// source of a subtree over several sources
+	private static final int MIXED = -2;
+
+	private final ExtendableFiqlParser<T> parser;
+	private final List<T> pojos;
+	private final List<Relation<?>> relations = new ArrayList<Relation<?>>();
+	private final Map<String, Part> plans = new ConcurrentHashMap<String, Part>();
+	private volatile ExecutorService executor;
+
+	public JoinEvaluator(final ExtendableFiqlParser<T> parser, final Collection<T> pojos) {
+		if (parser == null) {
+			throw new IllegalArgumentException("parser is null");
+		}
+		if (pojos == null) {
+			throw new IllegalArgumentException("pojos is null");
+		}
+		this.parser = parser;
+		this.pojos = Searches.asRandomAccess(pojos);
+	}
+
+	/**
+	 * Maps selectors starting with <code>prefix + "."</code> to related
+	 * objects, those of key equal to the key of a root object being related
+	 * to it. When prefixes overlap, the longest one applies.
+	 *
+	 * @param prefix
+	 *            selector prefix, e.g. <code>director</code>.
+	 * @param key
+	 *            single-valued path of the root objects holding the key of
+	 *            their related object, e.g. <code>directorId</code>.
+	 * @param relatedKey
+	 *            single-valued path of the related objects holding their key,
+	 *            e.g. <code>id</code>. Keys are compared with
+	 *            {@link Object#equals(Object)}, so both must be of the same
+	 *            type.
+	 * @throws IllegalArgumentException
+	 *             when the prefix is already joined or some key is not a
+	 *             single-valued property.
+	 */
+	public <R> JoinEvaluator<T> join(final String prefix, final String key, final Class<R> type, final Collection<R> related,
+			final String relatedKey) {
+		if (prefix == null || prefix.length() == 0) {
+			throw new IllegalArgumentException("prefix is empty");
+		}
+		if (type == null) {
+			throw new IllegalArgumentException("type is null");
+		}
+		if (related == null) {
+			throw new IllegalArgumentException("related is null");
+		}
+		for (final Relation<?> relation : relations) {
+			if (relation.prefix.equals(prefix)) {
+				throw new IllegalArgumentException("Prefix '" + prefix + "' is already joined");
+			}
+		}
+		final ExtendableFiqlParser<R> relatedParser = new ExtendableFiqlParser<R>(type);
+		relatedParser.setDialect(parser.getDialect());
+		relatedParser.setLimits(parser.getLimits());
+		relations.add(new Relation<R>(prefix, keyPath(parser.getSearchType(), key), relatedParser, Searches.asRandomAccess(related),
+				keyPath(type, relatedKey)));
+		plans.clear();
+		return this;
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @param executor
+	 *            executor evaluating chunks in parallel, null to evaluate them
+	 *            in the calling thread.
+	 */
+	public void setExecutor(final ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return bit set of the indexes of matching root objects.
+	 * @throws FiqlParseException
+	 *             when the expression, or the part of it pushed down to some
+	 *             joined collection, is not valid.
+	 * @throws InterruptedException
+	 *             when interrupted while waiting for chunks.
+	 */
+	public BitSet match(final String expression) throws FiqlParseException, InterruptedException {
+		return BitSet.valueOf(evaluate(expression));
+	}
+
+	public int count(final String expression) throws FiqlParseException, InterruptedException {
+		return cardinality(evaluate(expression));
+	}
+
+	/**
+	 * @return matching root objects, in collection order.
+	 */
+	public List<T> findAll(final String expression) throws FiqlParseException, InterruptedException {
+		final long[] words = evaluate(expression);
+		final List<T> found = new ArrayList<T>();
+		for (int w = 0; w < words.length; w++) {
+			for (long word = words[w]; word != 0; word &= word - 1) {
+				found.add(pojos.get((w << 6) + Long.numberOfTrailingZeros(word)));
+			}
+		}
+		return found;
+	}
+
+	private static PropertyPath keyPath(final Class<?> type, final String key) {
+		final PropertyPath path;
+		try {
+			path = ClassModel.of(type).getPath(key);
+		} catch (final IntrospectionException e) {
+			throw new IllegalArgumentException("Invalid key path '" + key + "': " + e.getMessage(), e);
+		}
+		if (path.isQuantified()) {
+			throw new IllegalArgumentException("Key path '" + key + "' is multi-valued");
+		}
+		return path;
+	}
+
+	private long[] evaluate(final String expression) throws FiqlParseException, InterruptedException {
+		Part plan = plans.get(expression);
+		if (plan == null) {
+			plan = plan(ExtendableFiqlParser.scan(expression, parser.getLimits(), parser.getDialect()), 0);
+			if (plans.size() >= MAX_PLANS) {
+				final Iterator<String> it = plans.keySet().iterator();
+				it.next();
+				it.remove();
+			}
+			plans.put(expression, plan);
+		}
+		return plan.evaluate(this, null);
+	}
+
+	/**
+	 * @return index of the relation the selector belongs to, -1 for the root.
+	 */
+	private int sourceOf(final String selector) {
+		int source = -1;
+		for (int i = 0; i < relations.size(); i++) {
+			final String prefix = relations.get(i).prefix;
+			if (selector.length() > prefix.length() && selector.charAt(prefix.length()) == '.' && selector.startsWith(prefix)
+					&& (source < 0 || prefix.length() > relations.get(source).prefix.length())) {
+				source = i;
+			}
+		}
+		return source;
+	}
+
+	/**
+	 * @return source of every comparison of the subtree, or MIXED.
+	 */
+	private int sourceOf(final CompactAst ast, final int node) {
+		if (ast.isComparison(node)) {
+			return sourceOf(ast.name(node));
+		}
+		int source = MIXED;
+		int child = node + 1;
+		for (int i = 0; i < ast.arity(node); i++) {
+			final int s = sourceOf(ast, child);
+			if (s == MIXED || i > 0 && s != source) {
+				return MIXED;
+			}
+			source = s;
+			child = ast.next(child);
+		}
+		return source;
+	}
+
+	private Part plan(final CompactAst ast, final int node) throws FiqlParseException {
+		final int source = sourceOf(ast, node);
+		if (source != MIXED) {
+			final List<Integer> nodes = new ArrayList<Integer>(1);
+			nodes.add(node);
+			return term(ast, source, CompactAst.AND, nodes);
+		}
+		// children of a single source are grouped, so that each source is
+		// evaluated once per junction
+		final Map<Integer, List<Integer>> groups = new HashMap<Integer, List<Integer>>();
+		final List<Integer> order = new ArrayList<Integer>();
+		final List<Part> mixed = new ArrayList<Part>();
+		int child = node + 1;
+		for (int i = 0; i < ast.arity(node); i++) {
+			final int s = sourceOf(ast, child);
+			if (s == MIXED) {
+				mixed.add(plan(ast, child));
+			} else {
+				List<Integer> group = groups.get(s);
+				if (group == null) {
+					group = new ArrayList<Integer>();
+					groups.put(s, group);
+					order.add(s);
+				}
+				group.add(child);
+			}
+			child = ast.next(child);
+		}
+		final List<Part> parts = new ArrayList<Part>(order.size() + mixed.size());
+		for (final Integer s : order) {
+			parts.add(term(ast, s, ast.kind(node), groups.get(s)));
+		}
+		parts.addAll(mixed);
+		return new Junction(ast.kind(node) == CompactAst.AND, parts);
+	}
+
+	private Part term(final CompactAst ast, final int source, final int kind, final List<Integer> nodes) throws FiqlParseException {
+		final int strip = source < 0 ? 0 : relations.get(source).prefix.length() + 1;
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < nodes.size(); i++) {
+			if (i > 0) {
+				sb.append(kind == CompactAst.AND ? ExtendableFiqlParser.AND : ExtendableFiqlParser.OR);
+			}
+			final boolean brackets = nodes.size() > 1 && !ast.isComparison(nodes.get(i));
+			if (brackets) {
+				sb.append('(');
+			}
+			render(ast, nodes.get(i), strip, sb);
+			if (brackets) {
+				sb.append(')');
+			}
+		}
+		final String fiql = sb.toString();
+		return source < 0 ? new Term(null, parser.parse(fiql)) : relations.get(source).term(fiql);
+	}
+
+	private static void render(final CompactAst ast, final int node, final int strip, final StringBuilder sb) {
+		if (ast.isComparison(node)) {
+			final String name = ast.name(node);
+			sb.append(name, strip, name.length()).append(ast.operator(node)).append(ast.value(node));
+			return;
+		}
+		final int kind = ast.kind(node);
+		int child = node + 1;
+		for (int i = 0; i < ast.arity(node); i++) {
+			if (i > 0) {
+				sb.append(kind == CompactAst.AND ? ExtendableFiqlParser.AND : ExtendableFiqlParser.OR);
+			}
+			final boolean brackets = !ast.isComparison(child);
+			if (brackets) {
+				sb.append('(');
+			}
+			render(ast, child, strip, sb);
+			if (brackets) {
+				sb.append(')');
+			}
+			child = ast.next(child);
+		}
+	}
+
+	/**
+	 * Evaluates chunks of the given rows, in parallel when an executor is
+	 * set.
+	 */
+	private void forEachChunk(final int size, final ChunkTask task) throws InterruptedException {
+		final ExecutorService current = executor;
+		if (current == null || size <= CHUNK_SIZE) {
+			for (int from = 0; from < size; from += CHUNK_SIZE) {
+				task.run(from, Math.min(size, from + CHUNK_SIZE));
+			}
+			return;
+		}
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int from = 0; from < size; from += CHUNK_SIZE) {
+			final int start = from;
+			final int end = Math.min(size, from + CHUNK_SIZE);
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					task.run(start, end);
+					return null;
+				}
+			});
+		}
+		for (final Future<Void> future : current.invokeAll(tasks)) {
+			try {
+				future.get();
+			} catch (final ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * @return bits of the rows meeting the condition among candidates, every
+	 *         row when candidates are null.
+	 */
+	private <E> long[] match(final SearchCondition<E> condition, final List<E> rows, final long[] candidates)
+			throws InterruptedException {
+		final long[] words = new long[(rows.size() + 63) >>> 6];
+		forEachChunk(rows.size(), new ChunkTask() {
+			public void run(final int from, final int to) {
+				for (int w = from >>> 6, end = (to + 63) >>> 6; w < end; w++) {
+					long word = 0;
+					for (long bits = candidates == null ? all(w, rows.size()) : candidates[w]; bits != 0; bits &= bits - 1) {
+						final int bit = Long.numberOfTrailingZeros(bits);
+						if (condition.isMet(rows.get((w << 6) + bit))) {
+							word |= 1L << bit;
+						}
+					}
+					words[w] = word;
+				}
+			}
+		});
+		return words;
+	}
+
+	private static long all(final int word, final int size) {
+		final int remaining = size - (word << 6);
+		return remaining >= 64 ? -1L : (1L << remaining) - 1;
+	}
+
+	private static int cardinality(final long[] words) {
+		int count = 0;
+		for (final long word : words) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	/**
+	 * Evaluates one chunk of rows, writing only the words of bits it owns.
+	 */
+	private interface ChunkTask {
+		void run(int from, int to);
+	}
+
+	private abstract static class Part {
+		/**
+		 * @return bits of the matching root rows among candidates, every row
+		 *         when candidates are null.
+		 */
+		abstract long[] evaluate(JoinEvaluator<?> evaluator, long[] candidates) throws InterruptedException;
+	}
+
+	/**
+	 * Condition over the root objects, or over a joined collection.
+	 */
+	private static final class Term extends Part {
+
+		private final Relation<?> relation;
+		private final SearchCondition<?> condition;
+
+		Term(final Relation<?> relation, final SearchCondition<?> condition) {
+			this.relation = relation;
+			this.condition = condition;
+		}
+
+		@Override
+		long[] evaluate(final JoinEvaluator<?> evaluator, final long[] candidates) throws InterruptedException {
+			if (relation != null) {
+				return relation.semiJoin(evaluator, condition, candidates);
+			}
+			return matchRoot(evaluator, candidates);
+		}
+
+		@SuppressWarnings("unchecked")
+		private <E> long[] matchRoot(final JoinEvaluator<E> evaluator, final long[] candidates) throws InterruptedException {
+			return evaluator.match((SearchCondition<E>) condition, evaluator.pojos, candidates);
+		}
+	}
+
+	private static final class Junction extends Part {
+
+		private final boolean and;
+		private final List<Part> parts;
+
+		Junction(final boolean and, final List<Part> parts) {
+			this.and = and;
+			this.parts = parts;
+		}
+
+		@Override
+		long[] evaluate(final JoinEvaluator<?> evaluator, final long[] candidates) throws InterruptedException {
+			if (and) {
+				// each part only looks at rows met by every previous one
+				long[] matched = candidates;
+				for (int i = 0; i < parts.size() && (matched == null || cardinality(matched) > 0); i++) {
+					matched = parts.get(i).evaluate(evaluator, matched);
+				}
+				return matched;
+			}
+			// each part only looks at rows no previous one met
+			final int size = evaluator.pojos.size();
+			final long[] matched = new long[(size + 63) >>> 6];
+			final long[] remaining = new long[matched.length];
+			for (int i = 0; i < parts.size(); i++) {
+				int left = 0;
+				for (int w = 0; w < remaining.length; w++) {
+					remaining[w] = (candidates == null ? all(w, size) : candidates[w]) & ~matched[w];
+					left += Long.bitCount(remaining[w]);
+				}
+				if (left == 0) {
+					break;
+				}
+				final long[] bits = parts.get(i).evaluate(evaluator, remaining);
+				for (int w = 0; w < matched.length; w++) {
+					matched[w] |= bits[w];
+				}
+			}
+			return matched;
+		}
+	}
+
+	/**
+	 * Collection joined under a prefix.
+	 *
+	 * @param <R>
+	 *            type of the related objects.
+	 */
+	private static final class Relation<R> {
+
+		private final String prefix;
+		private final PropertyPath key;
+		private final ExtendableFiqlParser<R> parser;
+		private final List<R> related;
+		private final PropertyPath relatedKey;
+
+		Relation(final String prefix, final PropertyPath key, final ExtendableFiqlParser<R> parser, final List<R> related,
+				final PropertyPath relatedKey) {
+			this.prefix = prefix;
+			this.key = key;
+			this.parser = parser;
+			this.related = related;
+			this.relatedKey = relatedKey;
+		}
+
+		Term term(final String fiql) throws FiqlParseException {
+			return new Term(this, parser.parse(fiql));
+		}
+
+		@SuppressWarnings("unchecked")
+		<T> long[] semiJoin(final JoinEvaluator<T> evaluator, final SearchCondition<?> condition, final long[] candidates)
+				throws InterruptedException {
+			final List<T> pojos = evaluator.pojos;
+			final long[] matched = evaluator.match((SearchCondition<R>) condition, related, null);
+			final int m = cardinality(matched);
+			final long[] words = new long[(pojos.size() + 63) >>> 6];
+			if (m == 0) {
+				return words;
+			}
+			final int c = candidates == null ? pojos.size() : cardinality(candidates);
+			if (m <= c) {
+				// build on matched related keys, probe with candidate rows
+				final Set<Object> keys = new HashSet<Object>(m * 4 / 3 + 1);
+				for (int w = 0; w < matched.length; w++) {
+					for (long bits = matched[w]; bits != 0; bits &= bits - 1) {
+						final Object k = relatedKey.get(related.get((w << 6) + Long.numberOfTrailingZeros(bits)));
+						if (k != null) {
+							keys.add(k);
+						}
+					}
+				}
+				evaluator.forEachChunk(pojos.size(), new ChunkTask() {
+					public void run(final int from, final int to) {
+						for (int w = from >>> 6, end = (to + 63) >>> 6; w < end; w++) {
+							long word = 0;
+							for (long bits = candidates == null ? all(w, pojos.size()) : candidates[w]; bits != 0; bits &= bits - 1) {
+								final int bit = Long.numberOfTrailingZeros(bits);
+								final Object k = key.get(pojos.get((w << 6) + bit));
+								if (k != null && keys.contains(k)) {
+									word |= 1L << bit;
+								}
+							}
+							words[w] = word;
+						}
+					}
+				});
+				return words;
+			}
+			// build on candidate rows, chained by key, probe with matched
+			// related keys
+			final Map<Object, Integer> heads = new HashMap<Object, Integer>(c * 4 / 3 + 1);
+			final int[] rows = new int[c];
+			final int[] next = new int[c];
+			int count = 0;
+			for (int w = 0; w < words.length; w++) {
+				for (long bits = candidates == null ? all(w, pojos.size()) : candidates[w]; bits != 0; bits &= bits - 1) {
+					final int row = (w << 6) + Long.numberOfTrailingZeros(bits);
+					final Object k = key.get(pojos.get(row));
+					if (k != null) {
+						final Integer head = heads.put(k, count);
+						rows[count] = row;
+						next[count++] = head == null ? -1 : head;
+					}
+				}
+			}
+			for (int w = 0; w < matched.length; w++) {
+				for (long bits = matched[w]; bits != 0; bits &= bits - 1) {
+					final Object k = relatedKey.get(related.get((w << 6) + Long.numberOfTrailingZeros(bits)));
+					final Integer head = k == null ? null : heads.remove(k);
+					for (int i = head == null ? -1 : head; i >= 0; i = next[i]) {
+						words[rows[i] >>> 6] |= 1L << rows[i];
+					}
+				}
+			}
+			return words;
+		}
+	}
+}
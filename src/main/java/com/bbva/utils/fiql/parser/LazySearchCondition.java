@@ -0,0 +1,97 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * Search condition backed by a {@link CompactAst}; the actual
+ * {@link SearchCondition} tree is only built by the owning parser the first
+ * time it is needed.
+ *
+ * @param <T>
+ *            type of search condition.
+ */
+class LazySearchCondition<T> implements SearchCondition<T> {
+
+	private final ExtendableFiqlParser<T> parser;
+	private final CompactAst ast;
+	private volatile SearchCondition<T> delegate;
+
+	LazySearchCondition(final ExtendableFiqlParser<T> parser, final CompactAst ast) {
+		if (parser == null) {
+			throw new IllegalArgumentException("parser is null");
+		}
+		if (ast == null) {
+			throw new IllegalArgumentException("ast is null");
+		}
+		this.parser = parser;
+		this.ast = ast;
+	}
+
+	public CompactAst getAst() {
+		return ast;
+	}
+
+	/**
+	 * @return whether the condition tree has already been built.
+	 */
+	public boolean isBuilt() {
+		return delegate != null;
+	}
+
+	SearchCondition<T> delegate() {
+		SearchCondition<T> sc = delegate;
+		if (sc == null) {
+			synchronized (this) {
+				sc = delegate;
+				if (sc == null) {
+					try {
+						sc = parser.build(ast);
+					} catch (final FiqlParseException e) {
+						throw new IllegalStateException("Compiled expression '" + ast + "' can not be built", e);
+					}
+					delegate = sc;
+				}
+			}
+		}
+		return sc;
+	}
+
+	public boolean isMet(final T pojo) {
+		return delegate().isMet(pojo);
+	}
+
+	public List<T> findAll(final Collection<T> pojos) {
+		return delegate().findAll(pojos);
+	}
+
+	public T getCondition() {
+		return delegate().getCondition();
+	}
+
+	public PrimitiveStatement getStatement() {
+		return delegate().getStatement();
+	}
+
+	public List<SearchCondition<T>> getSearchConditions() {
+		return delegate().getSearchConditions();
+	}
+
+	public ConditionType getConditionType() {
+		return delegate().getConditionType();
+	}
+
+	public String toSQL(final String table, final String... columns) {
+		return delegate().toSQL(table, columns);
+	}
+
+	@Override
+	public String toString() {
+		return ast.toString();
+	}
+}
@@ -0,0 +1,173 @@
+package com.bbva.utils.fiql.parser;
+
+/**
+ * Bounds the work {@link ExtendableFiqlParser} accepts to do for a single
+ * expression, so that hostile input coming from query strings fails fast with
+ * a {@link FiqlLimitExceededException} instead of burning CPU.
+ * <p/>
+ * Length and bracket nesting are checked by a first pass over the expression
+ * which allocates nothing; comparisons, set sizes, scanning steps and
+ * elapsed time are checked while scanning, before any value is converted or
+ * any condition object is built. Instances are immutable, use the
+ * <code>with*</code> methods to derive different limits:
+ *
+ * <pre>
+ * parser.setLimits(ParseLimits.getDefault().withMaxLength(512).withMaxNanos(TimeUnit.MILLISECONDS.toNanos(1)));
+ * </pre>
+ *
+ * Equal limits are interchangeable: expressions compiled under them are
+ * cached together in a {@link CompiledFilterCache}, apart from those compiled
+ * under any other limits.
+ */
+public final class ParseLimits {
+
+	/**
+	 * Bracket nesting the compact tree format can hold, see
+	 * {@link CompactAst}.
+	 */
+	public static final int MAX_NESTING = (CompactAst.MAX_NESTING - 2) / 2;
+
+	private static final ParseLimits DEFAULT = new ParseLimits(4096, 32, 256, 256, 1000000, 0);
+	private static final ParseLimits UNLIMITED = new ParseLimits(Integer.MAX_VALUE, MAX_NESTING, CompactAst.MAX_INDEX,
+			Integer.MAX_VALUE, Long.MAX_VALUE, 0);
+
+	private final int maxLength;
+	private final int maxDepth;
+	private final int maxTerms;
+	private final int maxSetSize;
+	private final long maxSteps;
+	private final long maxNanos;
+
+	private ParseLimits(final int maxLength, final int maxDepth, final int maxTerms, final int maxSetSize, final long maxSteps,
+			final long maxNanos) {
+		if (maxLength < 1 || maxTerms < 1 || maxSetSize < 1 || maxSteps < 1) {
+			throw new IllegalArgumentException("limits must be positive");
+		}
+		if (maxDepth < 0 || maxDepth > MAX_NESTING) {
+			throw new IllegalArgumentException("maxDepth must be between 0 and " + MAX_NESTING);
+		}
+		if (maxNanos < 0) {
+			throw new IllegalArgumentException("maxNanos is negative");
+		}
+		this.maxLength = maxLength;
+		this.maxDepth = maxDepth;
+		this.maxTerms = maxTerms;
+		this.maxSetSize = maxSetSize;
+		this.maxSteps = maxSteps;
+		this.maxNanos = maxNanos;
+	}
+
+	/**
+	 * @return 4096 characters, 32 nested brackets, 256 comparisons, 256 set
+	 *         elements, one million scanning steps and no time budget.
+	 */
+	public static ParseLimits getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return limits only bounded by what the compact tree format can hold.
+	 */
+	public static ParseLimits unlimited() {
+		return UNLIMITED;
+	}
+
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public int getMaxTerms() {
+		return maxTerms;
+	}
+
+	public int getMaxSetSize() {
+		return maxSetSize;
+	}
+
+	public long getMaxSteps() {
+		return maxSteps;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	/**
+	 * @param maxLength
+	 *            maximum number of characters of an expression.
+	 */
+	public ParseLimits withMaxLength(final int maxLength) {
+		return new ParseLimits(maxLength, maxDepth, maxTerms, maxSetSize, maxSteps, maxNanos);
+	}
+
+	/**
+	 * @param maxDepth
+	 *            maximum nesting of brackets, both grouping and set ones.
+	 */
+	public ParseLimits withMaxDepth(final int maxDepth) {
+		return new ParseLimits(maxLength, maxDepth, maxTerms, maxSetSize, maxSteps, maxNanos);
+	}
+
+	/**
+	 * @param maxTerms
+	 *            maximum number of comparisons of an expression.
+	 */
+	public ParseLimits withMaxTerms(final int maxTerms) {
+		return new ParseLimits(maxLength, maxDepth, maxTerms, maxSetSize, maxSteps, maxNanos);
+	}
+
+	/**
+	 * @param maxSetSize
+	 *            maximum number of elements of a set value such as
+	 *            <code>(a,b,c)</code>.
+	 */
+	public ParseLimits withMaxSetSize(final int maxSetSize) {
+		return new ParseLimits(maxLength, maxDepth, maxTerms, maxSetSize, maxSteps, maxNanos);
+	}
+
+	/**
+	 * @param maxSteps
+	 *            maximum number of character inspections while scanning.
+	 */
+	public ParseLimits withMaxSteps(final long maxSteps) {
+		return new ParseLimits(maxLength, maxDepth, maxTerms, maxSetSize, maxSteps, maxNanos);
+	}
+
+	/**
+	 * @param maxNanos
+	 *            maximum scanning time, 0 for none.
+	 */
+	public ParseLimits withMaxNanos(final long maxNanos) {
+		return new ParseLimits(maxLength, maxDepth, maxTerms, maxSetSize, maxSteps, maxNanos);
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ParseLimits)) {
+			return false;
+		}
+		final ParseLimits other = (ParseLimits) obj;
+		return maxLength == other.maxLength && maxDepth == other.maxDepth && maxTerms == other.maxTerms
+				&& maxSetSize == other.maxSetSize && maxSteps == other.maxSteps && maxNanos == other.maxNanos;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 31 * (31 * (31 * maxLength + maxDepth) + maxTerms) + maxSetSize;
+		hash = 31 * hash + (int) (maxSteps ^ maxSteps >>> 32);
+		return 31 * hash + (int) (maxNanos ^ maxNanos >>> 32);
+	}
+
+	@Override
+	public String toString() {
+		return "ParseLimits[maxLength=" + maxLength + ", maxDepth=" + maxDepth + ", maxTerms=" + maxTerms + ", maxSetSize="
+				+ maxSetSize + ", maxSteps=" + maxSteps + ", maxNanos=" + maxNanos + "]";
+	}
+}
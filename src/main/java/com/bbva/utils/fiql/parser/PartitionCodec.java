@@ -0,0 +1,59 @@
+package com.bbva.utils.fiql.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Writes and reads the objects a {@link PartitionWorker} streams back to a
+ * {@link ScatterGather} coordinator. Writing the few properties the caller
+ * needs is much cheaper than the {@link #serializable() Java serialization}
+ * fallback. Codecs are shared by every connection and must be stateless.
+ *
+ * @param <T>
+ *            type of the objects.
+ */
+public abstract class PartitionCodec<T> {
+
+	@SuppressWarnings("rawtypes")
+	private static final PartitionCodec SERIALIZABLE = new PartitionCodec<Serializable>() {
+		@Override
+		public void write(final Serializable pojo, final DataOutput out) throws IOException {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(pojo);
+			oos.close();
+			out.writeInt(bytes.size());
+			out.write(bytes.toByteArray());
+		}
+
+		@Override
+		public Serializable read(final DataInput in) throws IOException {
+			final byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			try {
+				return (Serializable) ois.readObject();
+			} catch (final ClassNotFoundException e) {
+				throw new IOException("Unknown class of streamed object: " + e.getMessage(), e);
+			}
+		}
+	};
+
+	public abstract void write(T pojo, DataOutput out) throws IOException;
+
+	public abstract T read(DataInput in) throws IOException;
+
+	/**
+	 * @return codec writing each object with Java serialization.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends Serializable> PartitionCodec<T> serializable() {
+		return SERIALIZABLE;
+	}
+}
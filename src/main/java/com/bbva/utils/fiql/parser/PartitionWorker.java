@@ -0,0 +1,317 @@
+package com.bbva.utils.fiql.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * Serves the filters of a {@link ScatterGather} coordinator over a local
+ * partition of a dataset. Each connection is served by a thread of its own,
+ * one request after the other, and matches are streamed back in chunks of
+ * {@link #CHUNK_SIZE} objects as they are found; connections idle for longer
+ * than the idle timeout are closed, and replaced by the coordinator when
+ * needed. Compiled filters are built
+ * by the parser of the worker, so built conditions are shared with local
+ * queries through its {@link ConditionInterner}, and are held to its
+ * {@link ParseLimits} for nesting and comparisons. Filters failing to build
+ * or evaluate are reported to the coordinator. Like {@link PropertyIndex},
+ * the partition must not change while served.
+ *
+ * @param <T>
+ *            type of the partitioned objects.
+ */
+public final class PartitionWorker<T> implements Closeable {
+
+	public static final int CHUNK_SIZE = 256;
+	public static final int DEFAULT_IDLE_TIMEOUT = 60000;
+
+	private static final int MAX_MESSAGE = 1024;
+
+	private final ExtendableFiqlParser<T> parser;
+	private final Collection<T> partition;
+	private final PartitionCodec<T> codec;
+	private final ServerSocket server;
+	private final InetSocketAddress address;
+	private final Set<Socket> connections = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+	private final AtomicLong requests = new AtomicLong();
+	private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	/**
+	 * Starts a worker listening on an ephemeral port of the loopback
+	 * interface, e.g. for tests.
+	 */
+	public PartitionWorker(final ExtendableFiqlParser<T> parser, final Collection<T> partition, final PartitionCodec<T> codec)
+			throws IOException {
+		this(parser, partition, codec, new InetSocketAddress(InetAddress.getByName(null), 0));
+	}
+
+	/**
+	 * Starts a worker listening on given address.
+	 *
+	 * @throws IOException
+	 *             when the address can not be bound.
+	 */
+	public PartitionWorker(final ExtendableFiqlParser<T> parser, final Collection<T> partition, final PartitionCodec<T> codec,
+			final InetSocketAddress address) throws IOException {
+		if (parser == null) {
+			throw new IllegalArgumentException("parser is null");
+		}
+		if (partition == null) {
+			throw new IllegalArgumentException("partition is null");
+		}
+		if (codec == null) {
+			throw new IllegalArgumentException("codec is null");
+		}
+		this.parser = parser;
+		this.partition = partition;
+		this.codec = codec;
+		server = new ServerSocket();
+		try {
+			// a restarted worker binds again while old connections linger
+			server.setReuseAddress(true);
+			server.bind(address);
+		} catch (final IOException e) {
+			server.close();
+			throw e;
+		}
+		this.address = (InetSocketAddress) server.getLocalSocketAddress();
+		final Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "fiql-partition-" + this.address.getPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return address the worker listens on, with the actual port.
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	public int getPartitionSize() {
+		return partition.size();
+	}
+
+	/**
+	 * @return number of requests served so far.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @param idleTimeout
+	 *            milliseconds a connection waits for its next request before
+	 *            being closed, 0 to wait forever.
+	 */
+	public void setIdleTimeout(final int idleTimeout) {
+		if (idleTimeout < 0) {
+			throw new IllegalArgumentException("idleTimeout is negative");
+		}
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Stops listening and closes open connections.
+	 */
+	public void close() throws IOException {
+		server.close();
+		for (final Socket socket : connections) {
+			socket.close();
+		}
+	}
+
+	private void accept() {
+		int count = 0;
+		while (!server.isClosed()) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (final IOException e) {
+				// closed
+				return;
+			}
+			connections.add(socket);
+			final Thread thread = new Thread(new Runnable() {
+				public void run() {
+					serve(socket);
+				}
+			}, "fiql-partition-" + address.getPort() + "-" + ++count);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void serve(final Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while (true) {
+				socket.setSoTimeout(idleTimeout);
+				final int magic;
+				try {
+					magic = in.readInt();
+				} catch (final EOFException e) {
+					// coordinator closed the connection
+					return;
+				}
+				if (magic != ScatterGather.MAGIC) {
+					return;
+				}
+				final byte operation = in.readByte();
+				final CompactAst ast;
+				try {
+					ast = CompactAst.readFrom(in);
+				} catch (final IOException e) {
+					// the rest of the request can not be told apart
+					fail(e, false, out);
+					out.flush();
+					return;
+				}
+				String sortSpec = null;
+				int k = 0;
+				if (operation == ScatterGather.TOP_K) {
+					sortSpec = in.readUTF();
+					k = in.readInt();
+				}
+				respond(operation, ast, sortSpec, k, out);
+				// counted before the coordinator can see the response
+				requests.incrementAndGet();
+				out.flush();
+			}
+		} catch (final IOException e) {
+			// connection lost or idle, the coordinator fails or retries
+		} finally {
+			connections.remove(socket);
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				// nothing left to release
+			}
+		}
+	}
+
+	private void respond(final byte operation, final CompactAst ast, final String sortSpec, final int k, final DataOutputStream out)
+			throws IOException {
+		boolean streaming = false;
+		try {
+			if (operation < ScatterGather.FIND_ALL || operation > ScatterGather.TOP_K) {
+				throw new IllegalArgumentException("Unknown operation " + operation);
+			}
+			checkLimits(ast);
+			final LazySearchCondition<T> lazy = new LazySearchCondition<T>(parser, ast);
+			// built now so that failures are reported rather than streamed
+			final SearchCondition<T> condition = lazy.delegate();
+			final SortSpec<T> sort = sortSpec == null ? null : SortSpec.parse(parser.getSearchType(), sortSpec);
+			if (operation == ScatterGather.COUNT) {
+				final int count = Searches.count(condition, partition);
+				out.writeByte(ScatterGather.OK);
+				out.writeInt(count);
+				return;
+			}
+			final List<T> top = operation == ScatterGather.TOP_K ? Searches.findTopK(condition, partition, sort, 0, k) : null;
+			out.writeByte(ScatterGather.OK);
+			streaming = true;
+			if (top != null) {
+				for (int from = 0; from < top.size(); from += CHUNK_SIZE) {
+					write(top.subList(from, Math.min(top.size(), from + CHUNK_SIZE)), out);
+				}
+			} else {
+				final List<T> chunk = new ArrayList<T>(CHUNK_SIZE);
+				for (final T pojo : partition) {
+					if (condition.isMet(pojo)) {
+						chunk.add(pojo);
+						if (chunk.size() == CHUNK_SIZE) {
+							write(chunk, out);
+							chunk.clear();
+						}
+					}
+				}
+				write(chunk, out);
+			}
+			out.writeInt(0);
+		} catch (final RuntimeException e) {
+			fail(e, streaming, out);
+		} catch (final Error e) {
+			// e.g. a stack overflow of a custom operator, the worker serves on
+			fail(e, streaming, out);
+		}
+	}
+
+	/**
+	 * Holds a tree compiled elsewhere to the limits of the parser of the
+	 * worker, brackets within values aside.
+	 */
+	private void checkLimits(final CompactAst ast) {
+		final ParseLimits limits = parser.getLimits();
+		if (ast.comparisonCount() > limits.getMaxTerms()) {
+			throw new IllegalArgumentException("Expression exceeds terms limit of " + limits.getMaxTerms());
+		}
+		if (ast.depth() > limits.getMaxDepth()) {
+			throw new IllegalArgumentException("Expression exceeds depth limit of " + limits.getMaxDepth());
+		}
+	}
+
+	/**
+	 * Reports a failure as the status of the response or, once objects are
+	 * streamed, in place of the next chunk.
+	 */
+	private static void fail(final Throwable e, final boolean streaming, final DataOutputStream out) throws IOException {
+		final String message = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+		if (streaming) {
+			out.writeInt(-1);
+		} else {
+			out.writeByte(ScatterGather.FAILED);
+		}
+		out.writeUTF(message.length() > MAX_MESSAGE ? message.substring(0, MAX_MESSAGE) : message);
+	}
+
+	/**
+	 * @throws IOException
+	 *             also when the codec fails, since the object it was writing
+	 *             is left truncated.
+	 */
+	private void write(final List<T> chunk, final DataOutputStream out) throws IOException {
+		if (chunk.isEmpty()) {
+			return;
+		}
+		out.writeInt(chunk.size());
+		try {
+			for (final T pojo : chunk) {
+				codec.write(pojo, out);
+			}
+		} catch (final RuntimeException e) {
+			throw new IOException("Partition object can not be written", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PartitionWorker[" + getAddress() + ", " + partition.size() + " objects]";
+	}
+}
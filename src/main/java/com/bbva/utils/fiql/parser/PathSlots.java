@@ -0,0 +1,89 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Slots of the property path prefixes read by an evaluation. Each distinct
+ * prefix of the paths added (e.g. "director" and "director.awards" for
+ * "director.awards.year") gets one slot, read by its getter from the value of
+ * its parent slot, or from the evaluated object for a first token. Plans,
+ * batch matchers and programs lay out their slots here, and fill an array of
+ * values, initially {@link #UNSET}, at most once per slot and object.
+ */
+final class PathSlots {
+
+	static final Object UNSET = new Object();
+
+	private final Map<String, Integer> slots = new LinkedHashMap<String, Integer>();
+	private final List<Getter> getters = new ArrayList<Getter>();
+	private final List<Integer> parents = new ArrayList<Integer>();
+
+	/**
+	 * @return slots of the prefixes of given path, shortest first; prefixes
+	 *         without one get a new slot.
+	 */
+	int[] add(final PropertyPath path) {
+		final String[] names = path.getNames();
+		final Getter[] chain = path.getAccessors();
+		final int[] added = new int[chain.length];
+		int slot = -1;
+		final StringBuilder prefix = new StringBuilder();
+		for (int i = 0; i < chain.length; i++) {
+			prefix.append(i == 0 ? "" : ".").append(names[i]);
+			Integer idx = slots.get(prefix.toString());
+			if (idx == null) {
+				idx = getters.size();
+				slots.put(prefix.toString(), idx);
+				getters.add(chain[i]);
+				parents.add(slot);
+			}
+			slot = idx;
+			added[i] = slot;
+		}
+		return added;
+	}
+
+	int size() {
+		return getters.size();
+	}
+
+	/**
+	 * @return prefix of each slot.
+	 */
+	String[] getPaths() {
+		return slots.keySet().toArray(new String[slots.size()]);
+	}
+
+	Getter[] getGetters() {
+		return getters.toArray(new Getter[getters.size()]);
+	}
+
+	/**
+	 * @return parent slot of each slot, -1 for first tokens.
+	 */
+	int[] getParents() {
+		final int[] array = new int[parents.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = parents.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * @return value of a slot, fetched along with its parents when still
+	 *         {@link #UNSET}.
+	 */
+	static Object fetch(final Getter[] getters, final int[] parents, final Object pojo, final Object[] values, final int slot) {
+		Object value = values[slot];
+		if (value == UNSET) {
+			final Object owner = parents[slot] < 0 ? pojo : fetch(getters, parents, pojo, values, parents[slot]);
+			// as leaves do, a failing getter reads as null
+			value = owner == null ? null : getters[slot].get(owner);
+			values[slot] = value;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,119 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.collections.Predicate;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.apache.cxf.jaxrs.ext.search.SearchUtils;
+
+/**
+ * Compiled comparison of a single, possibly nested, property. Getters of the
+ * path are resolved once and the operand is compiled into a predicate by the
+ * operator, so evaluation is a chain of getter calls plus one predicate
+ * call, per element when the path crosses multi-valued properties (see
+ * {@link PropertyPath}). A null value anywhere along the path, or a getter
+ * failing, means no match.
+ *
+ * @param <T>
+ *            type of search condition.
+ */
+final class PropertyCondition<T> implements SearchCondition<T> {
+
+	private final PropertyPath path;
+	private final FiqlOperator operator;
+	private final Object operand;
+	private final Predicate predicate;
+	private final T condition;
+	private final Object templateValue;
+
+	PropertyCondition(final PropertyPath path, final FiqlOperator operator, final Object operand, final Predicate predicate,
+			final T condition, final Object templateValue) {
+		this.path = path;
+		this.operator = operator;
+		this.operand = operand;
+		this.predicate = predicate;
+		this.condition = condition;
+		this.templateValue = templateValue;
+	}
+
+	public boolean isMet(final T pojo) {
+		return path.test(pojo, predicate);
+	}
+
+	/**
+	 * @return value set into templates for this comparison, null when the
+	 *         literal does not convert to the property type.
+	 */
+	Object getTemplateValue() {
+		return templateValue;
+	}
+
+	PropertyPath getPath() {
+		return path;
+	}
+
+	Predicate getPredicate() {
+		return predicate;
+	}
+
+	String getProperty() {
+		return path.getPath();
+	}
+
+	FiqlOperator getOperator() {
+		return operator;
+	}
+
+	Object getOperand() {
+		return operand;
+	}
+
+	public List<T> findAll(final Collection<T> pojos) {
+		final List<T> result = new ArrayList<T>();
+		for (final T pojo : pojos) {
+			if (isMet(pojo)) {
+				result.add(pojo);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return template object holding the values of the expression.
+	 */
+	public T getCondition() {
+		return condition;
+	}
+
+	public PrimitiveStatement getStatement() {
+		return new PrimitiveStatement(path.getPath(), operand, operator.getConditionType());
+	}
+
+	public List<SearchCondition<T>> getSearchConditions() {
+		return null;
+	}
+
+	public ConditionType getConditionType() {
+		return operator.getConditionType();
+	}
+
+	public String toSQL(final String table, final String... columns) {
+		final StringBuilder sb = new StringBuilder();
+		if (table != null) {
+			SearchUtils.startSqlQuery(sb, table, columns);
+		}
+		final String value = RelativeDate.current(operand).toString().replaceAll("\\*", "%");
+		sb.append(path.getColumn()).append(" ").append(SearchUtils.conditionTypeToSqlOperator(operator.getConditionType(), value))
+				.append(" '").append(value).append("'");
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return path.getPath() + operator.getToken() + operand;
+	}
+}
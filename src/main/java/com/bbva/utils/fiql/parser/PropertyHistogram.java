@@ -0,0 +1,266 @@
+package com.bbva.utils.fiql.parser;
+
+import java.beans.IntrospectionException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+
+/**
+ * Distribution of the values of a single-valued property path over a
+ * collection, for {@link CardinalityEstimator}. Up to
+ * {@link #MAX_EXACT_DISTINCT} distinct values are counted exactly;
+ * beyond, an equi-depth histogram keeps the values at regular positions of
+ * the sorted values, which bound the number of values below any given one.
+ * Like {@link PropertyIndex}, the histogram is a snapshot.
+ */
+public final class PropertyHistogram {
+
+	public static final int DEFAULT_BUCKETS = 64;
+	public static final int MAX_EXACT_DISTINCT = 1024;
+
+	private final String path;
+	private final int rows;
+	private final int values;
+	private final int distinct;
+	// sorted marks, at least atLeast[j] values are <= marks[j] and at most
+	// atMost[j] values are < marks[j]
+	private final Comparable<Object>[] marks;
+	private final int[] atLeast;
+	private final int[] atMost;
+
+	private PropertyHistogram(final String path, final int rows, final int values, final int distinct,
+			final Comparable<Object>[] marks, final int[] atLeast, final int[] atMost) {
+		this.path = path;
+		this.rows = rows;
+		this.values = values;
+		this.distinct = distinct;
+		this.marks = marks;
+		this.atLeast = atLeast;
+		this.atMost = atMost;
+	}
+
+	public static <T> PropertyHistogram build(final Class<T> type, final String path, final Collection<? extends T> pojos) {
+		return build(type, path, pojos, DEFAULT_BUCKETS);
+	}
+
+	/**
+	 * @param buckets
+	 *            number of buckets of the equi-depth histogram, used when
+	 *            there are too many distinct values to count them.
+	 * @throws IllegalArgumentException
+	 *             when path is not a readable, single-valued and comparable
+	 *             property of given type.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> PropertyHistogram build(final Class<T> type, final String path, final Collection<? extends T> pojos,
+			final int buckets) {
+		if (type == null) {
+			throw new IllegalArgumentException("type is null");
+		}
+		if (buckets < 1) {
+			throw new IllegalArgumentException("buckets must be positive");
+		}
+		final PropertyPath resolved;
+		try {
+			resolved = ClassModel.of(type).getPath(path);
+		} catch (final IntrospectionException e) {
+			throw new IllegalArgumentException("Invalid histogram path '" + path + "': " + e.getMessage(), e);
+		}
+		if (resolved.isQuantified()) {
+			throw new IllegalArgumentException("Histogram path '" + path + "' is multi-valued");
+		}
+		if (!resolved.getType().isPrimitive() && !Comparable.class.isAssignableFrom(resolved.getType())) {
+			throw new IllegalArgumentException("Histogram path '" + path + "' is not comparable");
+		}
+		final List<Comparable<Object>> sorted = new ArrayList<Comparable<Object>>(pojos.size());
+		final List<Object> collected = new ArrayList<Object>(1);
+		for (final T pojo : pojos) {
+			collected.clear();
+			resolved.collect(pojo, collected);
+			if (!collected.isEmpty() && collected.get(0) != null) {
+				sorted.add((Comparable<Object>) collected.get(0));
+			}
+		}
+		Collections.sort(sorted);
+		final int n = sorted.size();
+		final List<Comparable<Object>> keys = new ArrayList<Comparable<Object>>();
+		final List<Integer> ends = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++) {
+			if (i == 0 || sorted.get(i).compareTo(sorted.get(i - 1)) != 0) {
+				keys.add(sorted.get(i));
+				ends.add(i);
+			}
+		}
+		final int distinct = keys.size();
+		final Comparable<Object>[] marks;
+		final int[] atLeast;
+		final int[] atMost;
+		if (distinct <= MAX_EXACT_DISTINCT) {
+			marks = keys.toArray(newMarks(distinct));
+			atLeast = new int[distinct];
+			atMost = new int[distinct];
+			for (int j = 0; j < distinct; j++) {
+				atMost[j] = ends.get(j);
+				atLeast[j] = j + 1 < distinct ? ends.get(j + 1) : n;
+			}
+		} else {
+			final int count = Math.min(buckets, n - 1) + 1;
+			marks = newMarks(count);
+			atLeast = new int[count];
+			atMost = new int[count];
+			for (int j = 0; j < count; j++) {
+				final int position = (int) ((long) j * (n - 1) / (count - 1));
+				marks[j] = sorted.get(position);
+				atLeast[j] = position + 1;
+				atMost[j] = position;
+			}
+		}
+		return new PropertyHistogram(resolved.getPath(), pojos.size(), n, distinct, marks, atLeast, atMost);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Comparable<Object>[] newMarks(final int length) {
+		return (Comparable<Object>[]) new Comparable<?>[length];
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return number of objects of the collection.
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return number of objects having a value, i.e. no null along the path.
+	 */
+	public int getValueCount() {
+		return values;
+	}
+
+	public int getDistinctCount() {
+		return distinct;
+	}
+
+	/**
+	 * @return whether values are counted exactly.
+	 */
+	public boolean isExact() {
+		return distinct <= MAX_EXACT_DISTINCT;
+	}
+
+	/**
+	 * @return <code>{lower, upper, estimate}</code> number of objects matching
+	 *         given comparison of this path, null when its operator or
+	 *         operand is not one a histogram knows.
+	 */
+	int[] estimate(final PropertyCondition<?> leaf) {
+		if (!leaf.getProperty().equals(path)) {
+			return null;
+		}
+		if (values == 0) {
+			// null values match nothing
+			return new int[] { 0, 0, 0 };
+		}
+		final FiqlOperator operator = leaf.getOperator();
+		final Object operand = RelativeDate.current(leaf.getOperand());
+		if (FiqlOperators.isBetween(operator)) {
+			final Object[] range = (Object[]) operand;
+			final Object lower = RelativeDate.current(range[0]);
+			final Object upper = RelativeDate.current(range[1]);
+			if (!comparable(lower) || !comparable(upper)) {
+				return null;
+			}
+			return difference(rank(upper, true), rank(lower, false));
+		}
+		if (FiqlOperators.isIn(operator) || FiqlOperators.isOut(operator)) {
+			final int[] sum = { 0, 0, 0 };
+			for (final Object v : (Set<?>) operand) {
+				final Object value = RelativeDate.current(v);
+				if (comparable(value)) {
+					final int[] eq = equal(value);
+					sum[0] += eq[0];
+					sum[1] += eq[1];
+					sum[2] += eq[2];
+				}
+			}
+			sum[1] = Math.min(sum[1], values);
+			sum[2] = Math.min(sum[2], values);
+			return FiqlOperators.isIn(operator) ? sum : complement(sum);
+		}
+		if (!FiqlOperators.isComparison(operator) || !comparable(operand) || FiqlOperators.isWildcard(operand)) {
+			return null;
+		}
+		final ConditionType ct = operator.getConditionType();
+		switch (ct) {
+		case EQUALS:
+			return equal(operand);
+		case NOT_EQUALS:
+			return complement(equal(operand));
+		case GREATER_THAN:
+			return complement(rank(operand, true));
+		case GREATER_OR_EQUALS:
+			return complement(rank(operand, false));
+		case LESS_THAN:
+			return rank(operand, false);
+		default:
+			return rank(operand, true);
+		}
+	}
+
+	private boolean comparable(final Object value) {
+		return value != null && value.getClass() == marks[0].getClass();
+	}
+
+	private int[] equal(final Object value) {
+		final int[] eq = difference(rank(value, true), rank(value, false));
+		eq[2] = Math.max(eq[0], Math.min(eq[1], values / distinct));
+		return eq;
+	}
+
+	/**
+	 * @return bounds of the number of values below given one, or below or
+	 *         equal to it when inclusive.
+	 */
+	private int[] rank(final Object value, final boolean inclusive) {
+		int lo = 0;
+		int hi = marks.length - 1;
+		// last mark below, or below or equal
+		int last = -1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final int cmp = marks[mid].compareTo(value);
+			if (cmp < 0 || inclusive && cmp == 0) {
+				last = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		final int lower = last < 0 ? 0 : atLeast[last];
+		final int upper = last + 1 < marks.length ? atMost[last + 1] : values;
+		return new int[] { lower, upper, (lower + upper) / 2 };
+	}
+
+	private static int[] difference(final int[] a, final int[] b) {
+		final int lower = Math.max(0, a[0] - b[1]);
+		final int upper = Math.max(lower, a[1] - b[0]);
+		return new int[] { lower, upper, Math.max(lower, Math.min(upper, a[2] - b[2])) };
+	}
+
+	private int[] complement(final int[] a) {
+		return new int[] { values - a[1], values - a[0], values - a[2] };
+	}
+
+	@Override
+	public String toString() {
+		return "PropertyHistogram[" + path + ", " + values + " of " + rows + " values, " + distinct + " distinct]";
+	}
+}
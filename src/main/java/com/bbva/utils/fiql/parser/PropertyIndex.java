@@ -0,0 +1,107 @@
+package com.bbva.utils.fiql.parser;
+
+import java.beans.IntrospectionException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hash index of the values of a property path over a list of objects,
+ * mapping each value to the positions of the objects holding it. A path
+ * crossing multi-valued properties indexes every element, so an object whose
+ * <code>genres</code> are sci-fi and action is found under both names, as
+ * <code>genres.name==sci-fi</code> and <code>genres.name==action</code>
+ * would match it. The index is a snapshot: changes to the objects after
+ * creation are not seen.
+ *
+ * @param <T>
+ *            type of indexed objects.
+ */
+public final class PropertyIndex<T> {
+
+	private final PropertyPath path;
+	private final Map<Object, BitSet> rows;
+	private final int size;
+
+	private PropertyIndex(final PropertyPath path, final Map<Object, BitSet> rows, final int size) {
+		this.path = path;
+		this.rows = rows;
+		this.size = size;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             when path is not a readable property of given type.
+	 */
+	public static <T> PropertyIndex<T> build(final Class<T> type, final String path, final List<? extends T> pojos) {
+		if (type == null) {
+			throw new IllegalArgumentException("type is null");
+		}
+		final PropertyPath resolved;
+		try {
+			resolved = ClassModel.of(type).getPath(path);
+		} catch (final IntrospectionException e) {
+			throw new IllegalArgumentException("Invalid index path '" + path + "': " + e.getMessage(), e);
+		}
+		final Map<Object, BitSet> rows = new HashMap<Object, BitSet>();
+		final List<Object> values = new ArrayList<Object>();
+		final int size = pojos.size();
+		for (int i = 0; i < size; i++) {
+			values.clear();
+			resolved.collect(pojos.get(i), values);
+			for (int j = 0; j < values.size(); j++) {
+				BitSet bits = rows.get(values.get(j));
+				if (bits == null) {
+					bits = new BitSet(size);
+					rows.put(values.get(j), bits);
+				}
+				bits.set(i);
+			}
+		}
+		return new PropertyIndex<T>(resolved, rows, size);
+	}
+
+	/**
+	 * @return positions of the objects holding given value, as a new set.
+	 */
+	public BitSet lookup(final Object value) {
+		final BitSet bits = rows.get(value);
+		return bits == null ? new BitSet(size) : (BitSet) bits.clone();
+	}
+
+	/**
+	 * @return positions of the objects holding any of given values, as a new
+	 *         set.
+	 */
+	public BitSet lookupAny(final Collection<?> values) {
+		final BitSet result = new BitSet(size);
+		for (final Object value : values) {
+			final BitSet bits = rows.get(value);
+			if (bits != null) {
+				result.or(bits);
+			}
+		}
+		return result;
+	}
+
+	public String getPath() {
+		return path.getPath();
+	}
+
+	/**
+	 * @return number of distinct values indexed.
+	 */
+	public int getKeyCount() {
+		return rows.size();
+	}
+
+	/**
+	 * @return number of indexed objects.
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,373 @@
+package com.bbva.utils.fiql.parser;
+
+import java.beans.IntrospectionException;
+import java.lang.reflect.Array;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.apache.commons.collections.Predicate;
+
+/**
+ * Resolved getters of a, possibly nested, property path, which may cross
+ * multi-valued properties (arrays, collections or any other
+ * {@link Iterable}). Each multi-valued step is quantified: with
+ * <code>[any]</code> (the default when no quantifier is given) a path
+ * matches when some element matches, with <code>[all]</code> when every
+ * element does, e.g. <code>genres.name==sci-fi</code> or
+ * <code>genres[all].name=out=(horror,romance)</code>. Quantifiers of nested
+ * collections compose, and an empty collection matches <code>[all]</code>
+ * but not <code>[any]</code>.
+ * <p/>
+ * Elements are visited in place, without copying the collection, and the
+ * walk stops on the first element deciding the result. Elements of
+ * primitive arrays are boxed one at a time.
+ */
+final class PropertyPath {
+
+	static final byte ONE = 0;
+	static final byte ANY = 1;
+	static final byte ALL = 2;
+
+	// getters take no arguments, a shared array saves one per call
+	static final Object[] NO_ARGS = new Object[0];
+
+	private static final String ANY_SUFFIX = "[any]";
+	private static final String ALL_SUFFIX = "[all]";
+
+	private final String path;
+	private final String[] names;
+	private final Method[] getters;
+	private final Getter[] accessors;
+	private final byte[] quantifiers;
+	private final Class<?> type;
+	private final boolean quantified;
+	private final boolean universal;
+
+	private PropertyPath(final String path, final String[] names, final Getter[] accessors, final byte[] quantifiers,
+			final Class<?> type) {
+		this.path = path;
+		this.names = names;
+		this.accessors = accessors;
+		this.getters = new Method[accessors.length];
+		for (int i = 0; i < accessors.length; i++) {
+			getters[i] = accessors[i].getMethod();
+		}
+		this.quantifiers = quantifiers;
+		this.type = type;
+		boolean quantified = false;
+		boolean universal = false;
+		for (final byte q : quantifiers) {
+			quantified |= q != ONE;
+			universal |= q == ALL;
+		}
+		this.quantified = quantified;
+		this.universal = universal;
+	}
+
+	/**
+	 * @throws IntrospectionException
+	 *             when some token of the path is not a getter, or is
+	 *             quantified without being multi-valued.
+	 */
+	static PropertyPath resolve(final ClassModel root, final String path) throws IntrospectionException {
+		return resolve(root, path, true);
+	}
+
+	/**
+	 * @return resolved path, null when some token of the path is not a
+	 *         getter, or is quantified without being multi-valued.
+	 */
+	static PropertyPath find(final ClassModel root, final String path) {
+		try {
+			return resolve(root, path, false);
+		} catch (final IntrospectionException e) {
+			// not thrown when not strict
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static PropertyPath resolve(final ClassModel root, final String path, final boolean strict)
+			throws IntrospectionException {
+		final String[] tokens = path.split("\\.");
+		final String[] names = new String[tokens.length];
+		final Getter[] accessors = new Getter[tokens.length];
+		final byte[] quantifiers = new byte[tokens.length];
+		ClassModel model = root;
+		Class<?> type = null;
+		for (int i = 0; i < tokens.length; i++) {
+			byte quantifier = ONE;
+			String name = tokens[i];
+			if (name.endsWith(ANY_SUFFIX)) {
+				quantifier = ANY;
+				name = name.substring(0, name.length() - ANY_SUFFIX.length());
+			} else if (name.endsWith(ALL_SUFFIX)) {
+				quantifier = ALL;
+				name = name.substring(0, name.length() - ALL_SUFFIX.length());
+			}
+			accessors[i] = model.getAccessors().get(name);
+			if (accessors[i] == null) {
+				if (!strict) {
+					return null;
+				}
+				throw new IntrospectionException(String.format("Getter '%s' of '%s' not found, known getters are: %s", name, path,
+						model.getGetters().keySet()));
+			}
+			final Method getter = accessors[i].getMethod();
+			type = getter.getReturnType();
+			final Class<?> elementType = elementType(getter.getGenericReturnType());
+			if (elementType != null) {
+				type = elementType;
+				quantifier = quantifier == ONE ? ANY : quantifier;
+			} else if (quantifier != ONE) {
+				if (!strict) {
+					return null;
+				}
+				throw new IntrospectionException(String.format("Property '%s' of '%s' is not multi-valued and can not be quantified",
+						name, path));
+			}
+			names[i] = name;
+			quantifiers[i] = quantifier;
+			if (i < tokens.length - 1) {
+				model = ClassModel.of(type);
+			}
+		}
+		return new PropertyPath(path, names, accessors, quantifiers, type);
+	}
+
+	/**
+	 * @return type of the elements of arrays and iterables, null for any
+	 *         other type.
+	 */
+	private static Class<?> elementType(final Type type) {
+		if (type instanceof Class) {
+			final Class<?> c = (Class<?>) type;
+			if (c.isArray()) {
+				return c.getComponentType();
+			}
+			return Iterable.class.isAssignableFrom(c) ? Object.class : null;
+		}
+		if (type instanceof GenericArrayType) {
+			return raw(((GenericArrayType) type).getGenericComponentType());
+		}
+		if (type instanceof ParameterizedType) {
+			final ParameterizedType pt = (ParameterizedType) type;
+			if (!Iterable.class.isAssignableFrom(raw(pt))) {
+				return null;
+			}
+			return pt.getActualTypeArguments().length == 1 ? raw(pt.getActualTypeArguments()[0]) : Object.class;
+		}
+		return null;
+	}
+
+	private static Class<?> raw(final Type type) {
+		if (type instanceof Class) {
+			return (Class<?>) type;
+		}
+		if (type instanceof ParameterizedType) {
+			return raw(((ParameterizedType) type).getRawType());
+		}
+		if (type instanceof WildcardType) {
+			return raw(((WildcardType) type).getUpperBounds()[0]);
+		}
+		if (type instanceof GenericArrayType) {
+			return Array.newInstance(raw(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+		}
+		// type variables
+		return Object.class;
+	}
+
+	String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return SQL columns of the properties of the path, dot separated.
+	 */
+	String getColumn() {
+		if (accessors.length == 1) {
+			return accessors[0].getColumn();
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < accessors.length; i++) {
+			if (i > 0) {
+				sb.append('.');
+			}
+			sb.append(accessors[i].getColumn());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return property names of the path, without quantifiers.
+	 */
+	String[] getNames() {
+		return names;
+	}
+
+	Method[] getGetters() {
+		return getters;
+	}
+
+	/**
+	 * @return getters of the path, which read through generated models when
+	 *         available.
+	 */
+	Getter[] getAccessors() {
+		return accessors;
+	}
+
+	/**
+	 * @return type of the property, or of its elements when multi-valued.
+	 */
+	Class<?> getType() {
+		return type;
+	}
+
+	/**
+	 * @return whether path crosses some multi-valued property.
+	 */
+	boolean isQuantified() {
+		return quantified;
+	}
+
+	/**
+	 * @return whether some multi-valued step is quantified with
+	 *         <code>[all]</code>, so that the path may match without any
+	 *         value at all.
+	 */
+	boolean isUniversal() {
+		return universal;
+	}
+
+	/**
+	 * @return value of a path crossing no multi-valued property, null when
+	 *         some value along it is null or some getter fails.
+	 */
+	Object get(final Object pojo) {
+		Object value = pojo;
+		for (int i = 0; i < getters.length && value != null; i++) {
+			value = accessors[i].get(value);
+		}
+		return value;
+	}
+
+	/**
+	 * @return whether given predicate holds for the non null value(s) of the
+	 *         path, as quantified.
+	 */
+	boolean test(final Object pojo, final Predicate predicate) {
+		return test(pojo, 0, predicate);
+	}
+
+	private boolean test(final Object owner, final int depth, final Predicate predicate) {
+		Object value = owner;
+		for (int i = depth; i < getters.length; i++) {
+			if (value == null) {
+				return false;
+			}
+			value = accessors[i].get(value);
+			if (quantifiers[i] != ONE && value != null) {
+				return quantify(value, i + 1, quantifiers[i] == ALL, predicate);
+			}
+		}
+		return value != null && predicate.evaluate(value);
+	}
+
+	private boolean quantify(final Object values, final int depth, final boolean all, final Predicate predicate) {
+		if (values instanceof List && values instanceof RandomAccess) {
+			final List<?> list = (List<?>) values;
+			for (int i = 0, n = list.size(); i < n; i++) {
+				if (test(list.get(i), depth, predicate) != all) {
+					return !all;
+				}
+			}
+		} else if (values instanceof Iterable) {
+			for (final Object element : (Iterable<?>) values) {
+				if (test(element, depth, predicate) != all) {
+					return !all;
+				}
+			}
+		} else if (values instanceof Object[]) {
+			for (final Object element : (Object[]) values) {
+				if (test(element, depth, predicate) != all) {
+					return !all;
+				}
+			}
+		} else {
+			for (int i = 0, n = Array.getLength(values); i < n; i++) {
+				if (test(Array.get(values, i), depth, predicate) != all) {
+					return !all;
+				}
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * Adds every non null value of the path to given collection, one per
+	 * element of multi-valued properties, whatever the quantifiers.
+	 */
+	void collect(final Object pojo, final Collection<Object> values) {
+		collect(pojo, 0, values);
+	}
+
+	private void collect(final Object owner, final int depth, final Collection<Object> values) {
+		Object value = owner;
+		for (int i = depth; i < getters.length; i++) {
+			if (value == null) {
+				return;
+			}
+			value = accessors[i].get(value);
+			if (quantifiers[i] != ONE && value != null) {
+				if (value instanceof Iterable) {
+					final Iterator<?> it = ((Iterable<?>) value).iterator();
+					while (it.hasNext()) {
+						collect(it.next(), i + 1, values);
+					}
+				} else {
+					for (int j = 0, n = Array.getLength(value); j < n; j++) {
+						collect(Array.get(value, j), i + 1, values);
+					}
+				}
+				return;
+			}
+		}
+		if (value != null) {
+			values.add(value);
+		}
+	}
+
+	/**
+	 * @return literal converted to the type of the property by generated
+	 *         code, {@link GeneratedModel#UNCONVERTED} when there is no
+	 *         generated converter for it.
+	 * @throws IllegalArgumentException
+	 *             when the literal is not a value of the type.
+	 */
+	Object convert(final String literal) {
+		return accessors[accessors.length - 1].convert(literal);
+	}
+
+	/**
+	 * @return value returned by given getter, null when it fails.
+	 */
+	static Object invoke(final Method getter, final Object owner) {
+		try {
+			return getter.invoke(owner, NO_ARGS);
+		} catch (final Exception e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+}
@@ -0,0 +1,112 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.Date;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.Duration;
+
+/**
+ * Date literal relative to the time of evaluation, written as an XML
+ * duration, e.g. <code>distributionDate=ge=-P7D</code> for the last seven
+ * days. Comparisons resolve it against the {@link FiqlClock#getGlobal()
+ * global clock} each time they are evaluated, so conditions holding
+ * relative dates never go stale and can be compiled, interned and cached
+ * like any other. The resolved date is kept for the current clock tick.
+ */
+public final class RelativeDate {
+
+	private final String literal;
+	private final Duration duration;
+	private volatile Resolved resolved;
+
+	private RelativeDate(final String literal, final Duration duration) {
+		this.literal = literal;
+		this.duration = duration;
+	}
+
+	/**
+	 * @param literal
+	 *            XML duration, e.g. <code>-P1DT12H</code>.
+	 * @throws IllegalArgumentException
+	 *             when literal is not a duration.
+	 */
+	public static RelativeDate parse(final String literal) {
+		if (literal == null) {
+			throw new IllegalArgumentException("literal is null");
+		}
+		try {
+			return new RelativeDate(literal, DatatypeFactory.newInstance().newDuration(literal));
+		} catch (final DatatypeConfigurationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return given operand resolved at the current tick when it is a
+	 *         relative date, given operand otherwise.
+	 */
+	static Object current(final Object operand) {
+		return operand instanceof RelativeDate ? ((RelativeDate) operand).bound() : operand;
+	}
+
+	public Duration getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return date at the current tick of the global clock.
+	 */
+	public Date resolve() {
+		return new Date(bound().getTime());
+	}
+
+	/**
+	 * @return date at given time.
+	 */
+	public Date resolve(final long millis) {
+		final Date date = new Date(millis);
+		duration.addTo(date);
+		return date;
+	}
+
+	/**
+	 * @return date at the current tick, shared by every caller of the tick
+	 *         and therefore not to be modified.
+	 */
+	Date bound() {
+		final long now = FiqlClock.getGlobal().millis();
+		final Resolved r = resolved;
+		if (r != null && r.now == now) {
+			return r.date;
+		}
+		final Date date = resolve(now);
+		resolved = new Resolved(now, date);
+		return date;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		return obj instanceof RelativeDate && ((RelativeDate) obj).literal.equals(literal);
+	}
+
+	@Override
+	public int hashCode() {
+		return literal.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return literal;
+	}
+
+	private static final class Resolved {
+		private final long now;
+		private final Date date;
+
+		Resolved(final long now, final Date date) {
+			this.now = now;
+			this.date = date;
+		}
+	}
+}
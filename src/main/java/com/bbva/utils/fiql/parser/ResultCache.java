@@ -0,0 +1,536 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * Cache of search results over one versioned dataset, keyed by normalized
+ * condition and version stamp of the dataset. Conditions are normalized
+ * structurally: comparisons by property, operator and operand, ANDs and ORs
+ * by the set of their flattened operands, so <code>a;b</code>,
+ * <code>b;a</code> and <code>a;(b;a)</code> share their results. Plans,
+ * programs and lazy conditions are keyed by the tree they evaluate; other
+ * conditions by their own <code>equals</code>. {@link RelativeDate}s are
+ * keyed by the date they resolve to, so their results are only reused within
+ * a tick of the clock.
+ * <p/>
+ * The caller stamps the dataset with a version that changes whenever its
+ * content does; entries of older versions are never hit again and are evicted
+ * in time, or explicitly with {@link #invalidateOlderThan(long)}. Concurrent
+ * requests of a missing key are loaded once, the other callers waiting for
+ * that load. A missing condition implying a cached one of the same version,
+ * e.g. <code>year=ge=2005;genres.name==sci-fi</code> after
+ * <code>year=ge=2000</code>, is loaded by scanning the smallest such cached
+ * result rather than the whole dataset (see {@link Implication}). When the
+ * cache holds more than its maximum number of entries or its maximum weight,
+ * i.e. matching elements plus one per entry, the least recently used entries
+ * are evicted.
+ *
+ * @param <T>
+ *            type of dataset elements.
+ */
+public final class ResultCache<T> {
+
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	private final ConcurrentMap<Key, Node> entries = new ConcurrentHashMap<Key, Node>();
+	private final AtomicLong clock = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong subsumed = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final int maxSize;
+	private final long maxWeight;
+	private long weight;
+
+	public ResultCache() {
+		this(DEFAULT_MAX_SIZE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxSize
+	 *            maximum number of cached results, 0 disables caching.
+	 * @param maxWeight
+	 *            maximum number of cached matching elements, plus one per
+	 *            result.
+	 */
+	public ResultCache(final int maxSize, final long maxWeight) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize is negative");
+		}
+		if (maxWeight < 0) {
+			throw new IllegalArgumentException("maxWeight is negative");
+		}
+		this.maxSize = maxSize;
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * @return matching elements of given version of the dataset, as an
+	 *         unmodifiable list in dataset order.
+	 */
+	public List<T> findAll(final SearchCondition<T> condition, final List<T> pojos, final long version) {
+		return result(condition, pojos, version).matches;
+	}
+
+	/**
+	 * @return indexes of the matching elements of given version of the
+	 *         dataset, as a new bit set.
+	 */
+	public BitSet match(final SearchCondition<T> condition, final List<T> pojos, final long version) {
+		return (BitSet) result(condition, pojos, version).bits.clone();
+	}
+
+	private Result<T> result(final SearchCondition<T> condition, final List<T> pojos, final long version) {
+		if (condition == null) {
+			throw new IllegalArgumentException("condition is null");
+		}
+		if (pojos == null) {
+			throw new IllegalArgumentException("pojos is null");
+		}
+		final Key key = new Key(normalize(condition), version);
+		Node node = entries.get(key);
+		if (node != null && node.task.isDone()) {
+			hits.incrementAndGet();
+			node.lastAccess = clock.incrementAndGet();
+			return await(node);
+		}
+		misses.incrementAndGet();
+		if (maxSize == 0) {
+			loads.incrementAndGet();
+			return load(condition, pojos, null);
+		}
+		if (node == null) {
+			final Node created = new Node(key, condition, new FutureTask<Result<T>>(new Callable<Result<T>>() {
+				public Result<T> call() {
+					loads.incrementAndGet();
+					return load(condition, pojos, broader(condition, version));
+				}
+			}));
+			node = entries.putIfAbsent(key, created);
+			if (node == null) {
+				created.task.run();
+				loaded(created);
+				return await(created);
+			}
+		}
+		node.lastAccess = clock.incrementAndGet();
+		return await(node);
+	}
+
+	/**
+	 * @param broader
+	 *            cached result of a condition implied by given one, null to
+	 *            scan the whole dataset.
+	 */
+	private Result<T> load(final SearchCondition<T> condition, final List<T> pojos, final Result<T> broader) {
+		final BitSet bits;
+		if (broader == null) {
+			bits = Searches.match(condition, pojos);
+		} else {
+			subsumed.incrementAndGet();
+			bits = new BitSet(pojos.size());
+			for (int i = broader.bits.nextSetBit(0); i >= 0; i = broader.bits.nextSetBit(i + 1)) {
+				if (condition.isMet(pojos.get(i))) {
+					bits.set(i);
+				}
+			}
+		}
+		final List<T> matches = new ArrayList<T>(bits.cardinality());
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			matches.add(pojos.get(i));
+		}
+		return new Result<T>(bits, Collections.unmodifiableList(matches));
+	}
+
+	/**
+	 * @return smallest loaded result of given version whose condition is
+	 *         implied by given one, or null.
+	 */
+	private Result<T> broader(final SearchCondition<T> condition, final long version) {
+		Result<T> best = null;
+		for (final Node node : entries.values()) {
+			if (node.key.version != version || !node.task.isDone()) {
+				continue;
+			}
+			if (isRelative(node.key.condition) && !node.key.condition.equals(normalize(node.condition))) {
+				// resolved at a past clock tick
+				continue;
+			}
+			final Result<T> result;
+			try {
+				result = node.task.get();
+			} catch (final Exception e) {
+				continue;
+			}
+			if ((best == null || result.matches.size() < best.matches.size()) && Implication.implies(condition, node.condition)) {
+				best = result;
+			}
+		}
+		return best;
+	}
+
+	private Result<T> await(final Node node) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return node.task.get();
+				} catch (final InterruptedException e) {
+					interrupted = true;
+				} catch (final ExecutionException e) {
+					final Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new IllegalStateException(cause);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private synchronized void loaded(final Node node) {
+		if (entries.get(node.key) != node) {
+			// invalidated while loading
+			return;
+		}
+		try {
+			node.weight = node.task.get().matches.size() + 1;
+		} catch (final Exception e) {
+			// failed loads are retried by the next caller
+			entries.remove(node.key, node);
+			return;
+		}
+		weight += node.weight;
+		while (entries.size() > maxSize || weight > maxWeight) {
+			Node victim = null;
+			for (final Node candidate : entries.values()) {
+				if (candidate.weight > 0 && (victim == null || candidate.lastAccess < victim.lastAccess)) {
+					victim = candidate;
+				}
+			}
+			if (victim == null) {
+				break;
+			}
+			remove(victim);
+			evictions.incrementAndGet();
+		}
+	}
+
+	private synchronized boolean remove(final Node node) {
+		if (!entries.remove(node.key, node)) {
+			return false;
+		}
+		weight -= node.weight;
+		return true;
+	}
+
+	/**
+	 * Removes the results of given condition, of every version.
+	 *
+	 * @return number of removed results.
+	 */
+	public int invalidate(final SearchCondition<T> condition) {
+		if (condition == null) {
+			throw new IllegalArgumentException("condition is null");
+		}
+		final Object normalized = normalize(condition);
+		int removed = 0;
+		for (final Node node : entries.values()) {
+			if (node.key.condition.equals(normalized) && remove(node)) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes the results of versions of the dataset older than given one.
+	 *
+	 * @return number of removed results.
+	 */
+	public int invalidateOlderThan(final long version) {
+		int removed = 0;
+		for (final Node node : entries.values()) {
+			if (node.key.version < version && remove(node)) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	public void invalidateAll() {
+		for (final Node node : entries.values()) {
+			remove(node);
+		}
+	}
+
+	/**
+	 * @return number of cached results, loading ones included.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return weight of the loaded results.
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/**
+	 * @return number of requests served from a loaded result.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of requests that loaded a result or waited for its load.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of times a condition was evaluated over the dataset.
+	 */
+	public long getLoadCount() {
+		return loads.get();
+	}
+
+	/**
+	 * @return number of loads that scanned a cached broader result instead
+	 *         of the whole dataset.
+	 */
+	public long getSubsumedLoadCount() {
+		return subsumed.get();
+	}
+
+	/**
+	 * @return number of results evicted to honour size or weight limits.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return fraction of requests served from a loaded result, 1 when there
+	 *         was no request.
+	 */
+	public double getHitRate() {
+		final long h = hits.get();
+		final long total = h + misses.get();
+		return total == 0 ? 1 : (double) h / total;
+	}
+
+	@Override
+	public String toString() {
+		return "ResultCache[size=" + size() + ", weight=" + getWeight() + ", hits=" + hits + ", misses=" + misses + ", loads="
+				+ loads + ", subsumed=" + subsumed + ", evictions=" + evictions + "]";
+	}
+
+	/**
+	 * @return structural key of given condition, equal for conditions
+	 *         differing only by the order and repetition of AND and OR
+	 *         operands.
+	 */
+	static Object normalize(final SearchCondition<?> condition) {
+		if (condition instanceof EvaluationPlan) {
+			return normalize(((EvaluationPlan<?>) condition).getTree());
+		}
+		if (condition instanceof FiqlProgram) {
+			return normalize(((FiqlProgram<?>) condition).getTree());
+		}
+		if (condition instanceof LazySearchCondition) {
+			return normalize(((LazySearchCondition<?>) condition).delegate());
+		}
+		if (condition instanceof PropertyCondition) {
+			final PropertyCondition<?> leaf = (PropertyCondition<?>) condition;
+			return Arrays.asList(new Object[] { leaf.getPath().getType(), leaf.getProperty(), leaf.getOperator(),
+					new Operand(leaf.getOperand()) });
+		}
+		final List<? extends SearchCondition<?>> children = condition.getSearchConditions();
+		final ConditionType ct = condition.getConditionType();
+		if (children != null && (ct == ConditionType.AND || ct == ConditionType.OR)) {
+			final Set<Object> operands = new HashSet<Object>();
+			flatten(ct, children, operands);
+			return operands.size() == 1 ? operands.iterator().next() : new Composite(ct, operands);
+		}
+		return condition;
+	}
+
+	/**
+	 * @return whether given normalized condition holds relative dates.
+	 */
+	private static boolean isRelative(final Object normalized) {
+		if (normalized instanceof Composite) {
+			for (final Object operand : ((Composite) normalized).operands) {
+				if (isRelative(operand)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return normalized instanceof List && ((Operand) ((List<?>) normalized).get(3)).relative;
+	}
+
+	private static void flatten(final ConditionType ct, final List<? extends SearchCondition<?>> children, final Set<Object> operands) {
+		for (final SearchCondition<?> child : children) {
+			final Object normalized = normalize(child);
+			if (normalized instanceof Composite && ((Composite) normalized).type == ct) {
+				operands.addAll(((Composite) normalized).operands);
+			} else {
+				operands.add(normalized);
+			}
+		}
+	}
+
+	private static final class Result<T> {
+		private final BitSet bits;
+		private final List<T> matches;
+
+		Result(final BitSet bits, final List<T> matches) {
+			this.bits = bits;
+			this.matches = matches;
+		}
+	}
+
+	private final class Node {
+		private final Key key;
+		private final SearchCondition<T> condition;
+		private final FutureTask<Result<T>> task;
+		private volatile long lastAccess = clock.incrementAndGet();
+		/** 0 until loaded. */
+		private long weight;
+
+		Node(final Key key, final SearchCondition<T> condition, final FutureTask<Result<T>> task) {
+			this.key = key;
+			this.condition = condition;
+			this.task = task;
+		}
+	}
+
+	private static final class Key {
+		private final Object condition;
+		private final long version;
+
+		Key(final Object condition, final long version) {
+			this.condition = condition;
+			this.version = version;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Key other = (Key) obj;
+			return version == other.version && condition.equals(other.condition);
+		}
+
+		@Override
+		public int hashCode() {
+			return condition.hashCode() * 31 + (int) (version ^ (version >>> 32));
+		}
+	}
+
+	private static final class Composite {
+		private final ConditionType type;
+		private final Set<Object> operands;
+
+		Composite(final ConditionType type, final Set<Object> operands) {
+			this.type = type;
+			this.operands = operands;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Composite)) {
+				return false;
+			}
+			final Composite other = (Composite) obj;
+			return type == other.type && operands.equals(other.operands);
+		}
+
+		@Override
+		public int hashCode() {
+			return type.hashCode() * 31 + operands.hashCode();
+		}
+	}
+
+	/**
+	 * Operand compared by content, ranges being arrays, and relative dates
+	 * the dates they resolve to at the current clock tick.
+	 */
+	private static final class Operand {
+		private final Object value;
+		private final boolean relative;
+
+		Operand(final Object operand) {
+			if (operand instanceof Object[]) {
+				final Object[] values = ((Object[]) operand).clone();
+				boolean found = false;
+				for (int i = 0; i < values.length; i++) {
+					found |= values[i] instanceof RelativeDate;
+					values[i] = RelativeDate.current(values[i]);
+				}
+				this.value = values;
+				this.relative = found;
+			} else if (operand instanceof Set) {
+				final Set<Object> values = new HashSet<Object>();
+				boolean found = false;
+				for (final Object v : (Set<?>) operand) {
+					found |= v instanceof RelativeDate;
+					values.add(RelativeDate.current(v));
+				}
+				this.value = found ? values : operand;
+				this.relative = found;
+			} else {
+				this.value = RelativeDate.current(operand);
+				this.relative = operand instanceof RelativeDate;
+			}
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			return obj instanceof Operand && Arrays.deepEquals(new Object[] { value }, new Object[] { ((Operand) obj).value });
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.deepHashCode(new Object[] { value });
+		}
+	}
+}
@@ -0,0 +1,448 @@
+package com.bbva.utils.fiql.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+
+/**
+ * Evaluates a filter over a dataset split across {@link PartitionWorker}s,
+ * usually one per JVM: the filter is compiled once by the coordinator, sent
+ * to every worker as a {@link CompactAst}, evaluated by each worker over its
+ * partition, and the streamed results are merged. Results are the same as
+ * evaluating the filter over the concatenation of the partitions, in the
+ * order the workers are given.
+ * <p/>
+ * Workers are queried in parallel on the given executor. Each worker keeps
+ * a pool of open connections, reused by later queries; a pooled connection
+ * found broken before any response is replaced once, while failures reported
+ * by a worker, or responses which do not follow the format, fail the query.
+ * Workers and coordinator must share the dialect of the filters they
+ * exchange.
+ * <p/>
+ * Wire format, version 1 (all values big-endian as written by
+ * {@link java.io.DataOutput}). Request:
+ *
+ * <pre>
+ * int    magic ("FQSG")
+ * byte   operation: 1 find all, 2 count, 3 top k
+ *        compiled filter, see {@link CompactAst#writeTo(java.io.DataOutput)}
+ * UTF    sort spec, top k only
+ * int    k, top k only
+ * </pre>
+ *
+ * Response:
+ *
+ * <pre>
+ * byte   status: 0 ok, 1 failed followed by an UTF message
+ * int    count, for count
+ *        chunks of an int n followed by n objects written by the
+ *        {@link PartitionCodec}, ended by n = 0, or by n = -1 followed by
+ *        an UTF message when evaluation fails midway, otherwise
+ * </pre>
+ *
+ * @param <T>
+ *            type of the partitioned objects.
+ */
+public final class ScatterGather<T> {
+
+	public static final int DEFAULT_TIMEOUT = 30000;
+
+	static final int MAGIC = 0x46515347;
+	static final byte FIND_ALL = 1;
+	static final byte COUNT = 2;
+	static final byte TOP_K = 3;
+	static final byte OK = 0;
+	static final byte FAILED = 1;
+
+	private final ExtendableFiqlParser<T> parser;
+	private final PartitionCodec<T> codec;
+	private final List<Partition> partitions;
+	private final ExecutorService executor;
+	private volatile int timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * @param parser
+	 *            parser compiling the filters, which checks them against
+	 *            type T before sending them.
+	 * @param workers
+	 *            addresses of the workers, in partition order.
+	 * @param executor
+	 *            executor querying the workers, one task per worker.
+	 */
+	public ScatterGather(final ExtendableFiqlParser<T> parser, final PartitionCodec<T> codec, final List<InetSocketAddress> workers,
+			final ExecutorService executor) {
+		if (parser == null) {
+			throw new IllegalArgumentException("parser is null");
+		}
+		if (codec == null) {
+			throw new IllegalArgumentException("codec is null");
+		}
+		if (workers == null || workers.isEmpty()) {
+			throw new IllegalArgumentException("workers is empty");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException("executor is null");
+		}
+		final List<Partition> partitions = new ArrayList<Partition>(workers.size());
+		for (final InetSocketAddress address : workers) {
+			if (address == null) {
+				throw new IllegalArgumentException("worker address is null");
+			}
+			partitions.add(new Partition(address));
+		}
+		this.parser = parser;
+		this.codec = codec;
+		this.partitions = Collections.unmodifiableList(partitions);
+		this.executor = executor;
+	}
+
+	public int getPartitionCount() {
+		return partitions.size();
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @param timeout
+	 *            milliseconds to connect to a worker and to wait for each of
+	 *            its reads, 0 to wait forever.
+	 */
+	public void setTimeout(final int timeout) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout is negative");
+		}
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @throws FiqlParseException
+	 *             when expression does not follow FIQL grammar.
+	 * @throws IOException
+	 *             when some worker can not be reached or fails to evaluate.
+	 * @throws InterruptedException
+	 *             when interrupted while waiting for the workers.
+	 */
+	public List<T> findAll(final String expression) throws FiqlParseException, IOException, InterruptedException {
+		return findAll(parser.compile(expression));
+	}
+
+	/**
+	 * @return objects of every partition matching compiled filter, in
+	 *         partition order.
+	 */
+	public List<T> findAll(final CompactAst ast) throws IOException, InterruptedException {
+		final List<Reply> replies = scatter(request(FIND_ALL, ast, null, 0));
+		int size = 0;
+		for (final Reply reply : replies) {
+			size += reply.objects.size();
+		}
+		final List<T> all = new ArrayList<T>(size);
+		for (final Reply reply : replies) {
+			all.addAll(reply.objects);
+		}
+		return all;
+	}
+
+	public long count(final String expression) throws FiqlParseException, IOException, InterruptedException {
+		return count(parser.compile(expression));
+	}
+
+	/**
+	 * @return number of objects of every partition matching compiled filter.
+	 */
+	public long count(final CompactAst ast) throws IOException, InterruptedException {
+		long count = 0;
+		for (final Reply reply : scatter(request(COUNT, ast, null, 0))) {
+			count += reply.count;
+		}
+		return count;
+	}
+
+	public List<T> findTopK(final String expression, final String sortSpec, final int offset, final int limit)
+			throws FiqlParseException, IOException, InterruptedException {
+		return findTopK(parser.compile(expression), sortSpec, offset, limit);
+	}
+
+	/**
+	 * Same page as {@link Searches#findTopK(org.apache.cxf.jaxrs.ext.search.SearchCondition, java.util.Collection, Class, String, int, int)}
+	 * over the concatenation of the partitions: each worker sends its first
+	 * <code>offset + limit</code> matches in sort order, which are merged.
+	 */
+	public List<T> findTopK(final CompactAst ast, final String sortSpec, final int offset, final int limit) throws IOException,
+			InterruptedException {
+		final SortSpec<T> sort = SortSpec.parse(parser.getSearchType(), sortSpec);
+		if (offset < 0 || limit < 0) {
+			throw new IllegalArgumentException("offset and limit can not be negative");
+		}
+		final int k = limit == 0 ? 0 : (int) Math.min(Integer.MAX_VALUE - 1, (long) offset + limit);
+		if (k == 0) {
+			return new ArrayList<T>(0);
+		}
+		final List<List<T>> parts = new ArrayList<List<T>>(partitions.size());
+		for (final Reply reply : scatter(request(TOP_K, ast, sortSpec, k))) {
+			parts.add(reply.objects);
+		}
+		// k-way merge, ties keep partition order
+		final PriorityQueue<int[]> heads = new PriorityQueue<int[]>(parts.size(), new Comparator<int[]>() {
+			public int compare(final int[] h1, final int[] h2) {
+				final int cmp = sort.compare(parts.get(h1[0]).get(h1[1]), parts.get(h2[0]).get(h2[1]));
+				return cmp != 0 ? cmp : h1[0] - h2[0];
+			}
+		});
+		for (int p = 0; p < parts.size(); p++) {
+			if (!parts.get(p).isEmpty()) {
+				heads.add(new int[] { p, 0 });
+			}
+		}
+		final List<T> page = new ArrayList<T>(Math.min(limit, 1024));
+		for (int rank = 0; rank < k && !heads.isEmpty(); rank++) {
+			final int[] head = heads.poll();
+			if (rank >= offset) {
+				page.add(parts.get(head[0]).get(head[1]));
+			}
+			if (++head[1] < parts.get(head[0]).size()) {
+				heads.add(head);
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Closes the pooled connections; queries still running close theirs
+	 * when done.
+	 */
+	public void close() {
+		for (final Partition partition : partitions) {
+			partition.close();
+		}
+	}
+
+	private static Request request(final byte operation, final CompactAst ast, final String sortSpec, final int k) {
+		if (ast == null) {
+			throw new IllegalArgumentException("ast is null");
+		}
+		return new Request(operation, ast, sortSpec, k);
+	}
+
+	/**
+	 * @return replies of every partition, in partition order.
+	 */
+	private List<Reply> scatter(final Request request) throws IOException, InterruptedException {
+		final List<Callable<Reply>> tasks = new ArrayList<Callable<Reply>>(partitions.size());
+		for (final Partition partition : partitions) {
+			tasks.add(new Callable<Reply>() {
+				public Reply call() throws IOException {
+					return partition.query(request);
+				}
+			});
+		}
+		final List<Reply> results = new ArrayList<Reply>(partitions.size());
+		for (final Future<Reply> future : executor.invokeAll(tasks)) {
+			try {
+				results.add(future.get());
+			} catch (final ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		return results;
+	}
+
+	private static final class Request {
+		private final byte operation;
+		private final CompactAst ast;
+		private final String sortSpec;
+		private final int k;
+
+		Request(final byte operation, final CompactAst ast, final String sortSpec, final int k) {
+			this.operation = operation;
+			this.ast = ast;
+			this.sortSpec = sortSpec;
+			this.k = k;
+		}
+	}
+
+	/**
+	 * Response of a worker: matching objects, or their number for a count.
+	 */
+	private final class Reply {
+		private final List<T> objects;
+		private final int count;
+
+		Reply(final List<T> objects, final int count) {
+			this.objects = objects;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * Worker of a partition and its idle connections.
+	 */
+	private final class Partition {
+		private final InetSocketAddress address;
+		private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+
+		Partition(final InetSocketAddress address) {
+			this.address = address;
+		}
+
+		Reply query(final Request request) throws IOException {
+			final Connection pooled = idle.poll();
+			if (pooled != null) {
+				try {
+					return query(pooled, request);
+				} catch (final StaleConnection e) {
+					// worker may have dropped an idle connection, try a
+					// fresh one
+				}
+			}
+			try {
+				return query(new Connection(address, timeout), request);
+			} catch (final StaleConnection e) {
+				throw e.failure;
+			}
+		}
+
+		private Reply query(final Connection connection, final Request request) throws IOException {
+			final Reply reply;
+			try {
+				reply = exchange(connection, request);
+			} catch (final RemoteFailure e) {
+				idle.offer(connection);
+				throw e;
+			} catch (final IOException e) {
+				connection.close();
+				throw e;
+			} catch (final RuntimeException e) {
+				connection.close();
+				throw e;
+			}
+			idle.offer(connection);
+			return reply;
+		}
+
+		private Reply exchange(final Connection connection, final Request request) throws IOException {
+			final DataInputStream in = connection.in;
+			final byte status;
+			try {
+				final DataOutputStream out = connection.out;
+				out.writeInt(MAGIC);
+				out.writeByte(request.operation);
+				request.ast.writeTo(out);
+				if (request.operation == TOP_K) {
+					out.writeUTF(request.sortSpec);
+					out.writeInt(request.k);
+				}
+				out.flush();
+				status = in.readByte();
+			} catch (final SocketTimeoutException e) {
+				// a busy worker, not a dropped connection
+				throw e;
+			} catch (final IOException e) {
+				throw new StaleConnection(e);
+			}
+			if (status == FAILED) {
+				throw new RemoteFailure("Partition " + address + " failed: " + in.readUTF());
+			}
+			if (status != OK) {
+				throw new IOException("Partition " + address + " sent unknown status " + status);
+			}
+			if (request.operation == COUNT) {
+				return new Reply(null, in.readInt());
+			}
+			final List<T> results = new ArrayList<T>();
+			for (int n = in.readInt(); n != 0; n = in.readInt()) {
+				if (n < 0) {
+					throw new RemoteFailure("Partition " + address + " failed: " + in.readUTF());
+				}
+				for (int i = 0; i < n; i++) {
+					results.add(codec.read(in));
+				}
+			}
+			return new Reply(results, results.size());
+		}
+
+		void close() {
+			for (Connection connection = idle.poll(); connection != null; connection = idle.poll()) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Failure of a connection before any response, as when the worker
+	 * closed it while idle.
+	 */
+	private static final class StaleConnection extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final IOException failure;
+
+		StaleConnection(final IOException failure) {
+			super(failure);
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * Failure reported by a worker, whose connection is still usable.
+	 */
+	private static final class RemoteFailure extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		RemoteFailure(final String message) {
+			super(message);
+		}
+	}
+
+	private static final class Connection {
+		private final Socket socket;
+		private final DataOutputStream out;
+		private final DataInputStream in;
+
+		Connection(final InetSocketAddress address, final int timeout) throws IOException {
+			socket = new Socket();
+			try {
+				socket.connect(address, timeout);
+				socket.setSoTimeout(timeout);
+				socket.setTcpNoDelay(true);
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			} catch (final IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				// nothing left to release
+			}
+		}
+	}
+}
@@ -0,0 +1,354 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * Evaluation of search conditions over collections beyond
+ * {@link SearchCondition#findAll(Collection)}.
+ */
+public final class Searches {
+
+	static final int CHUNK_SIZE = 8192;
+
+	private Searches() {
+	}
+
+	/**
+	 * @return whether some object matches, stopping at the first one.
+	 */
+	public static <T> boolean exists(final SearchCondition<T> condition, final Collection<T> pojos) {
+		return findFirstIndex(condition, pojos) != -1;
+	}
+
+	/**
+	 * @return first matching object in iteration order, or null when none
+	 *         matches.
+	 */
+	public static <T> T findFirst(final SearchCondition<T> condition, final Collection<T> pojos) {
+		check(condition, pojos);
+		for (final T pojo : pojos) {
+			if (condition.isMet(pojo)) {
+				return pojo;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of matching objects.
+	 */
+	public static <T> int count(final SearchCondition<T> condition, final Collection<T> pojos) {
+		return count(condition, pojos, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Counts matching objects up to given maximum, e.g. to tell whether there
+	 * are at least <code>max</code> matches without walking the rest.
+	 *
+	 * @return number of matching objects, never more than <code>max</code>.
+	 */
+	public static <T> int count(final SearchCondition<T> condition, final Collection<T> pojos, final int max) {
+		check(condition, pojos);
+		checkLimit(max);
+		int count = 0;
+		if (max > 0) {
+			for (final T pojo : pojos) {
+				if (condition.isMet(pojo) && ++count == max) {
+					break;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return at most <code>limit</code> matching objects, the first ones in
+	 *         iteration order.
+	 */
+	public static <T> List<T> findLimited(final SearchCondition<T> condition, final Collection<T> pojos, final int limit) {
+		check(condition, pojos);
+		checkLimit(limit);
+		final List<T> result = new ArrayList<T>(Math.min(limit, 16));
+		if (limit > 0) {
+			for (final T pojo : pojos) {
+				if (condition.isMet(pojo)) {
+					result.add(pojo);
+					if (result.size() == limit) {
+						break;
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return index of the first matching object, or -1 when none matches.
+	 */
+	public static <T> int findFirstIndex(final SearchCondition<T> condition, final Collection<T> pojos) {
+		check(condition, pojos);
+		int index = 0;
+		for (final T pojo : pojos) {
+			if (condition.isMet(pojo)) {
+				return index;
+			}
+			index++;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return indexes of at most <code>limit</code> matching elements of
+	 *         given random access list, in ascending order.
+	 */
+	public static <T> int[] findIndexes(final SearchCondition<T> condition, final List<T> pojos, final int limit) {
+		checkRandomAccess(condition, pojos);
+		checkLimit(limit);
+		int[] indexes = new int[Math.min(limit, 16)];
+		int count = 0;
+		for (int i = 0, size = pojos.size(); i < size && count < limit; i++) {
+			if (condition.isMet(pojos.get(i))) {
+				if (count == indexes.length) {
+					indexes = Arrays.copyOf(indexes, (int) Math.min(limit, 2L * count));
+				}
+				indexes[count++] = i;
+			}
+		}
+		return count == indexes.length ? indexes : Arrays.copyOf(indexes, count);
+	}
+
+	/**
+	 * @return bit set of the indexes of matching elements of given random
+	 *         access list.
+	 */
+	public static <T> BitSet match(final SearchCondition<T> condition, final List<T> pojos) {
+		checkRandomAccess(condition, pojos);
+		final BitSet bits = new BitSet(pojos.size());
+		for (int i = 0, size = pojos.size(); i < size; i++) {
+			if (condition.isMet(pojos.get(i))) {
+				bits.set(i);
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * @return number of matching objects estimated from a sample of
+	 *         {@link CardinalityEstimator#DEFAULT_SAMPLE_SIZE} objects, with
+	 *         its 95% confidence interval.
+	 * @see CardinalityEstimator
+	 */
+	public static <T> CountEstimate estimateCount(final SearchCondition<T> condition, final Collection<T> pojos) {
+		return estimateCount(condition, pojos, CardinalityEstimator.DEFAULT_SAMPLE_SIZE);
+	}
+
+	/**
+	 * @return number of matching objects estimated from a sample of given
+	 *         size, with its 95% confidence interval.
+	 */
+	public static <T> CountEstimate estimateCount(final SearchCondition<T> condition, final Collection<T> pojos,
+			final int sampleSize) {
+		check(condition, pojos);
+		return CardinalityEstimator.sample(pojos, sampleSize).estimate(condition);
+	}
+
+	/**
+	 * Returns a page of the matching objects sorted by given comparator,
+	 * i.e. the same elements as sorting all matches and taking
+	 * <code>limit</code> of them from <code>offset</code>, but keeping only
+	 * <code>offset + limit</code> candidates while scanning. Ties keep the
+	 * iteration order of the collection.
+	 *
+	 * @param comparator
+	 *            sort order, e.g. a {@link SortSpec}.
+	 */
+	public static <T> List<T> findTopK(final SearchCondition<T> condition, final Collection<T> pojos,
+			final Comparator<? super T> comparator, final int offset, final int limit) {
+		final int k = checkPage(condition, pojos, comparator, offset, limit);
+		final TopK<T> topK = new TopK<T>(comparator, k);
+		if (k > 0) {
+			long index = 0;
+			for (final T pojo : pojos) {
+				if (condition.isMet(pojo)) {
+					topK.offer(pojo, index);
+				}
+				index++;
+			}
+		}
+		return topK.page(offset, limit);
+	}
+
+	/**
+	 * Same as {@link #findTopK(SearchCondition, Collection, Comparator, int, int)}
+	 * for given sort spec.
+	 */
+	public static <T> List<T> findTopK(final SearchCondition<T> condition, final Collection<T> pojos, final Class<T> type,
+			final String sortSpec, final int offset, final int limit) {
+		return findTopK(condition, pojos, SortSpec.parse(type, sortSpec), offset, limit);
+	}
+
+	/**
+	 * Same as {@link #findTopK(SearchCondition, Collection, Comparator, int, int)},
+	 * chunks of the collection being scanned on given executor, each one into
+	 * its own bounded heap, and heaps being merged afterwards. Condition and
+	 * comparator must be safe for concurrent use, which built-in conditions
+	 * and {@link SortSpec} are. Collections other than random access lists are
+	 * copied to an array first.
+	 *
+	 * @throws InterruptedException
+	 *             when interrupted while waiting for chunks.
+	 */
+	public static <T> List<T> findTopK(final SearchCondition<T> condition, final Collection<T> pojos,
+			final Comparator<? super T> comparator, final int offset, final int limit, final ExecutorService executor)
+			throws InterruptedException {
+		final int k = checkPage(condition, pojos, comparator, offset, limit);
+		if (executor == null) {
+			throw new IllegalArgumentException("executor is null");
+		}
+		final List<T> list = asRandomAccess(pojos);
+		final List<Callable<TopK<T>>> tasks = new ArrayList<Callable<TopK<T>>>();
+		for (int from = 0; k > 0 && from < list.size(); from += CHUNK_SIZE) {
+			final int start = from;
+			final int end = Math.min(list.size(), from + CHUNK_SIZE);
+			tasks.add(new Callable<TopK<T>>() {
+				public TopK<T> call() {
+					final TopK<T> topK = new TopK<T>(comparator, k);
+					for (int i = start; i < end; i++) {
+						final T pojo = list.get(i);
+						if (condition.isMet(pojo)) {
+							topK.offer(pojo, i);
+						}
+					}
+					return topK;
+				}
+			});
+		}
+		final TopK<T> merged = new TopK<T>(comparator, k);
+		for (final Future<TopK<T>> future : executor.invokeAll(tasks)) {
+			try {
+				merged.merge(future.get());
+			} catch (final ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		return merged.page(offset, limit);
+	}
+
+	static <T> List<T> asRandomAccess(final Collection<T> pojos) {
+		if (pojos instanceof List && pojos instanceof RandomAccess) {
+			return (List<T>) pojos;
+		}
+		@SuppressWarnings("unchecked")
+		final List<T> list = (List<T>) Arrays.asList(pojos.toArray());
+		return list;
+	}
+
+	private static void check(final SearchCondition<?> condition, final Collection<?> pojos) {
+		if (condition == null) {
+			throw new IllegalArgumentException("condition is null");
+		}
+		if (pojos == null) {
+			throw new IllegalArgumentException("pojos is null");
+		}
+	}
+
+	private static void checkRandomAccess(final SearchCondition<?> condition, final List<?> pojos) {
+		check(condition, pojos);
+		if (!(pojos instanceof RandomAccess)) {
+			throw new IllegalArgumentException("pojos is not a random access list");
+		}
+	}
+
+	private static void checkLimit(final int limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("limit can not be negative");
+		}
+	}
+
+	private static int checkPage(final SearchCondition<?> condition, final Collection<?> pojos, final Comparator<?> comparator,
+			final int offset, final int limit) {
+		check(condition, pojos);
+		if (comparator == null) {
+			throw new IllegalArgumentException("comparator is null");
+		}
+		if (offset < 0 || limit < 0) {
+			throw new IllegalArgumentException("offset and limit can not be negative");
+		}
+		return limit == 0 ? 0 : (int) Math.min(Integer.MAX_VALUE - 1, (long) offset + limit);
+	}
+
+	/**
+	 * Bounded max-heap keeping the k smallest offered elements; its root is
+	 * the worst candidate, replaced whenever a better one comes.
+	 */
+	private static final class TopK<T> {
+
+		private final Comparator<Candidate<T>> order;
+		private final PriorityQueue<Candidate<T>> heap;
+		private final int k;
+
+		TopK(final Comparator<? super T> comparator, final int k) {
+			this.k = k;
+			this.order = new Comparator<Candidate<T>>() {
+				public int compare(final Candidate<T> c1, final Candidate<T> c2) {
+					final int cmp = comparator.compare(c1.pojo, c2.pojo);
+					return cmp != 0 ? cmp : c1.index < c2.index ? -1 : c1.index == c2.index ? 0 : 1;
+				}
+			};
+			this.heap = new PriorityQueue<Candidate<T>>(Math.max(1, Math.min(k, 1024)), Collections.reverseOrder(order));
+		}
+
+		void offer(final T pojo, final long index) {
+			offer(new Candidate<T>(pojo, index));
+		}
+
+		private void offer(final Candidate<T> candidate) {
+			if (heap.size() < k) {
+				heap.add(candidate);
+			} else if (order.compare(candidate, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(candidate);
+			}
+		}
+
+		void merge(final TopK<T> other) {
+			for (final Candidate<T> candidate : other.heap) {
+				offer(candidate);
+			}
+		}
+
+		List<T> page(final int offset, final int limit) {
+			final List<Candidate<T>> sorted = new ArrayList<Candidate<T>>(heap);
+			Collections.sort(sorted, order);
+			final List<T> page = new ArrayList<T>(Math.max(0, Math.min(limit, sorted.size() - offset)));
+			for (int i = offset; i < sorted.size() && page.size() < limit; i++) {
+				page.add(sorted.get(i).pojo);
+			}
+			return page;
+		}
+	}
+
+	private static final class Candidate<T> {
+		final T pojo;
+		final long index;
+
+		Candidate(final T pojo, final long index) {
+			this.pojo = pojo;
+			this.index = index;
+		}
+	}
+}
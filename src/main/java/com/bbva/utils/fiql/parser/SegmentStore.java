@@ -0,0 +1,343 @@
+package com.bbva.utils.fiql.parser;
+
+import java.beans.IntrospectionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * Append-mostly store of objects kept in fixed size chunks, each with a
+ * summary of the values of some property paths: minimum and maximum for
+ * comparable properties (zone map) and a bloom filter for equality. A
+ * condition is first checked against the summaries and chunks it can not
+ * match are skipped without any {@link SearchCondition#isMet(Object)} call,
+ * so <code>year=ge=2013</code> over objects appended by year only evaluates
+ * the last chunks.
+ * <p/>
+ * Summaries only rule out comparisons of the built-in operators and of
+ * {@link FiqlOperators#in(String)} on summarized paths; any other condition,
+ * and paths quantified with <code>[all]</code>, keep every chunk as a
+ * candidate, so results are always the ones of evaluating every object.
+ * Summaries are a snapshot of appended objects: an object changed afterwards
+ * may be missed. Stores are not thread-safe.
+ *
+ * @param <T>
+ *            type of stored objects.
+ */
+public final class SegmentStore<T> {
+
+	private static final int BLOOM_BITS_PER_VALUE = 8;
+	private static final int BLOOM_HASHES = 3;
+
+	private final int chunkSize;
+	private final PropertyPath[] paths;
+	private final boolean[] comparable;
+	private final Map<List<Object>, Integer> summarized = new HashMap<List<Object>, Integer>();
+	private final List<Chunk> chunks = new ArrayList<Chunk>();
+	private int size;
+
+	/**
+	 * @param paths
+	 *            property paths to summarize, which may cross collections.
+	 * @throws IllegalArgumentException
+	 *             when chunk size is not positive or some path is not a
+	 *             readable property of given type.
+	 */
+	public SegmentStore(final Class<T> type, final int chunkSize, final String... paths) {
+		if (type == null) {
+			throw new IllegalArgumentException("type is null");
+		}
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+		this.paths = new PropertyPath[paths.length];
+		this.comparable = new boolean[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			try {
+				this.paths[i] = ClassModel.of(type).getPath(paths[i]);
+			} catch (final IntrospectionException e) {
+				throw new IllegalArgumentException("Invalid summarized path '" + paths[i] + "': " + e.getMessage(), e);
+			}
+			final Class<?> valueType = this.paths[i].getType();
+			comparable[i] = valueType.isPrimitive() || Comparable.class.isAssignableFrom(valueType);
+			summarized.put(key(this.paths[i]), i);
+		}
+	}
+
+	private static List<Object> key(final PropertyPath path) {
+		// same getters, whatever the any quantifiers written
+		return Arrays.asList((Object[]) path.getGetters());
+	}
+
+	public void add(final T pojo) {
+		Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+		if (chunk == null || chunk.size == chunkSize) {
+			chunk = new Chunk(chunkSize, paths.length);
+			chunks.add(chunk);
+		}
+		chunk.add(pojo, paths, comparable);
+		size++;
+	}
+
+	public void addAll(final Collection<? extends T> pojos) {
+		for (final T pojo : pojos) {
+			add(pojo);
+		}
+	}
+
+	/**
+	 * @return objects meeting given condition, in order of addition.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> findAll(final SearchCondition<T> condition) {
+		final List<T> result = new ArrayList<T>();
+		final BitSet candidates = candidateChunks(condition);
+		for (int c = candidates.nextSetBit(0); c >= 0; c = candidates.nextSetBit(c + 1)) {
+			final Chunk chunk = chunks.get(c);
+			for (int i = 0; i < chunk.size; i++) {
+				if (condition.isMet((T) chunk.items[i])) {
+					result.add((T) chunk.items[i]);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return number of objects meeting given condition.
+	 */
+	@SuppressWarnings("unchecked")
+	public int count(final SearchCondition<T> condition) {
+		int count = 0;
+		final BitSet candidates = candidateChunks(condition);
+		for (int c = candidates.nextSetBit(0); c >= 0; c = candidates.nextSetBit(c + 1)) {
+			final Chunk chunk = chunks.get(c);
+			for (int i = 0; i < chunk.size; i++) {
+				if (condition.isMet((T) chunk.items[i])) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return indexes of the chunks whose summaries do not rule out given
+	 *         condition.
+	 */
+	public BitSet candidateChunks(final SearchCondition<T> condition) {
+		if (condition == null) {
+			throw new IllegalArgumentException("condition is null");
+		}
+		final BitSet candidates = new BitSet(chunks.size());
+		for (int c = 0; c < chunks.size(); c++) {
+			if (mayMatch(condition, chunks.get(c))) {
+				candidates.set(c);
+			}
+		}
+		return candidates;
+	}
+
+	private boolean mayMatch(final SearchCondition<?> sc, final Chunk chunk) {
+		if (sc instanceof EvaluationPlan) {
+			return mayMatch(((EvaluationPlan<?>) sc).getTree(), chunk);
+		}
+		if (sc instanceof FiqlProgram) {
+			return mayMatch(((FiqlProgram<?>) sc).getTree(), chunk);
+		}
+		if (sc instanceof LazySearchCondition) {
+			return mayMatch(((LazySearchCondition<?>) sc).delegate(), chunk);
+		}
+		if (sc instanceof PropertyCondition) {
+			return mayMatch((PropertyCondition<?>) sc, chunk);
+		}
+		final List<? extends SearchCondition<?>> children = sc.getSearchConditions();
+		final ConditionType ct = sc.getConditionType();
+		if (children != null && ct == ConditionType.AND) {
+			for (final SearchCondition<?> child : children) {
+				if (!mayMatch(child, chunk)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (children != null && ct == ConditionType.OR) {
+			for (final SearchCondition<?> child : children) {
+				if (mayMatch(child, chunk)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean mayMatch(final PropertyCondition<?> leaf, final Chunk chunk) {
+		final Integer idx = summarized.get(key(leaf.getPath()));
+		if (idx == null || leaf.getPath().isUniversal()) {
+			return true;
+		}
+		final Summary summary = chunk.summaries[idx];
+		final FiqlOperator operator = leaf.getOperator();
+		final Object operand = RelativeDate.current(leaf.getOperand());
+		if (FiqlOperators.isIn(operator)) {
+			if (summary.values == 0) {
+				return false;
+			}
+			for (final Object value : (Set<Object>) operand) {
+				if (summary.mayContain(RelativeDate.current(value))) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (!FiqlOperators.isComparison(operator)) {
+			return true;
+		}
+		// null values never match a comparison
+		if (summary.values == 0) {
+			return false;
+		}
+		final ConditionType ct = operator.getConditionType();
+		if (ct == ConditionType.EQUALS) {
+			return FiqlOperators.isWildcard(operand) || summary.mayContain(operand);
+		}
+		if (summary.min == null || !(operand instanceof Comparable)) {
+			return true;
+		}
+		final Comparable<Object> bound = (Comparable<Object>) operand;
+		try {
+			switch (ct) {
+			case NOT_EQUALS:
+				return FiqlOperators.isWildcard(operand) || !operand.equals(summary.min) || !operand.equals(summary.max);
+			case GREATER_THAN:
+				return bound.compareTo(summary.max) < 0;
+			case GREATER_OR_EQUALS:
+				return bound.compareTo(summary.max) <= 0;
+			case LESS_THAN:
+				return bound.compareTo(summary.min) > 0;
+			default:
+				return bound.compareTo(summary.min) >= 0;
+			}
+		} catch (final ClassCastException e) {
+			return true;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getChunkCount() {
+		return chunks.size();
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void clear() {
+		chunks.clear();
+		size = 0;
+	}
+
+	private static final class Chunk {
+		private final Object[] items;
+		private final Summary[] summaries;
+		private final List<Object> values = new ArrayList<Object>();
+		private int size;
+
+		Chunk(final int chunkSize, final int paths) {
+			items = new Object[chunkSize];
+			summaries = new Summary[paths];
+			for (int i = 0; i < paths; i++) {
+				summaries[i] = new Summary(chunkSize);
+			}
+		}
+
+		void add(final Object pojo, final PropertyPath[] paths, final boolean[] comparable) {
+			items[size++] = pojo;
+			for (int i = 0; i < paths.length; i++) {
+				values.clear();
+				paths[i].collect(pojo, values);
+				for (int j = 0; j < values.size(); j++) {
+					summaries[i].add(values.get(j), comparable[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Minimum, maximum and bloom filter of the non null values of a path in
+	 * a chunk.
+	 */
+	private static final class Summary {
+		private final long[] bloom;
+		private final int mask;
+		private Object min;
+		private Object max;
+		private boolean ordered = true;
+		private int values;
+
+		Summary(final int chunkSize) {
+			int bits = 64;
+			while (bits < chunkSize * BLOOM_BITS_PER_VALUE) {
+				bits <<= 1;
+			}
+			bloom = new long[bits >>> 6];
+			mask = bits - 1;
+		}
+
+		@SuppressWarnings("unchecked")
+		void add(final Object value, final boolean comparable) {
+			values++;
+			int h = mix(value.hashCode());
+			final int step = mix(h) | 1;
+			for (int i = 0; i < BLOOM_HASHES; i++, h += step) {
+				bloom[(h & mask) >>> 6] |= 1L << (h & 63);
+			}
+			if (!comparable || !ordered) {
+				return;
+			}
+			try {
+				if (min == null || ((Comparable<Object>) value).compareTo(min) < 0) {
+					min = value;
+				}
+				if (max == null || ((Comparable<Object>) value).compareTo(max) > 0) {
+					max = value;
+				}
+			} catch (final ClassCastException e) {
+				// values not comparable with each other, no zone map
+				ordered = false;
+				min = null;
+				max = null;
+			}
+		}
+
+		boolean mayContain(final Object value) {
+			int h = mix(value.hashCode());
+			final int step = mix(h) | 1;
+			for (int i = 0; i < BLOOM_HASHES; i++, h += step) {
+				if ((bloom[(h & mask) >>> 6] & 1L << (h & 63)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static int mix(int h) {
+			h *= 0x9E3779B9;
+			return h ^ h >>> 16;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.bbva.utils.fiql.parser;
+
+import java.beans.IntrospectionException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Comparator ordering objects by a list of property paths, e.g.
+ * <code>"-year,director.name"</code> sorts by descending year and then by
+ * ascending director name. A path prefixed with '-' is descending, with '+'
+ * or nothing ascending. Paths are resolved once, on creation, through the
+ * same class model used by the parser; every property must be
+ * {@link Comparable} or primitive.
+ * <p/>
+ * Null values, including the ones found when some intermediate property of a
+ * nested path is null, are ordered last whatever the direction.
+ *
+ * @param <T>
+ *            type of sorted objects.
+ */
+public final class SortSpec<T> implements Comparator<T> {
+
+	private final String spec;
+	private final Method[][] chains;
+	private final boolean[] descending;
+
+	private SortSpec(final String spec, final Method[][] chains, final boolean[] descending) {
+		this.spec = spec;
+		this.chains = chains;
+		this.descending = descending;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             when spec is empty or some path is not a readable,
+	 *             comparable property of given type.
+	 */
+	public static <T> SortSpec<T> parse(final Class<T> type, final String spec) {
+		if (type == null) {
+			throw new IllegalArgumentException("type is null");
+		}
+		if (spec == null || spec.trim().length() == 0) {
+			throw new IllegalArgumentException("Empty sort spec");
+		}
+		final ClassModel model = ClassModel.of(type);
+		final List<Method[]> chains = new ArrayList<Method[]>();
+		final String[] paths = spec.split(",");
+		final boolean[] descending = new boolean[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			String path = paths[i].trim();
+			if (path.startsWith("-") || path.startsWith("+")) {
+				descending[i] = path.charAt(0) == '-';
+				path = path.substring(1);
+			}
+			final Method[] chain;
+			try {
+				chain = model.getGetterChain(path);
+			} catch (final IntrospectionException e) {
+				throw new IllegalArgumentException("Invalid sort spec '" + spec + "': " + e.getMessage(), e);
+			}
+			final Class<?> last = chain[chain.length - 1].getReturnType();
+			if (!last.isPrimitive() && !Comparable.class.isAssignableFrom(last)) {
+				throw new IllegalArgumentException("Invalid sort spec '" + spec + "': property '" + path + "' is not comparable");
+			}
+			chains.add(chain);
+		}
+		return new SortSpec<T>(spec, chains.toArray(new Method[chains.size()][]), descending);
+	}
+
+	@SuppressWarnings("unchecked")
+	public int compare(final T o1, final T o2) {
+		for (int i = 0; i < chains.length; i++) {
+			final Comparable<Object> v1 = (Comparable<Object>) value(chains[i], o1);
+			final Comparable<Object> v2 = (Comparable<Object>) value(chains[i], o2);
+			final int cmp;
+			if (v1 == null || v2 == null) {
+				cmp = v1 == v2 ? 0 : v1 == null ? 1 : -1;
+			} else {
+				cmp = descending[i] ? v2.compareTo(v1) : v1.compareTo(v2);
+			}
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return 0;
+	}
+
+	private static Object value(final Method[] chain, final Object pojo) {
+		Object value = pojo;
+		for (int i = 0; i < chain.length && value != null; i++) {
+			try {
+				value = chain[i].invoke(value, PropertyPath.NO_ARGS);
+			} catch (final IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			} catch (final InvocationTargetException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return spec;
+	}
+}
@@ -0,0 +1,459 @@
+package com.bbva.utils.fiql.parser;
+
+import java.beans.IntrospectionException;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persists introspected class models and the most used compiled expressions
+ * to a local file, so a new process can load them at startup instead of
+ * paying introspection and parsing on its first requests. Only expressions
+ * compiled with the dialect of the snapshot under default limits are saved,
+ * and they are restored only when that dialect still has the same operators.
+ * <p/>
+ * On {@link #load()} every recorded class is introspected again and compared
+ * with its recorded getters and setters; classes whose shape changed are
+ * rejected together with their expressions. Expressions of accepted classes
+ * are built once, which checks them and loads whatever their conversions
+ * need, then go straight into the {@link CompiledFilterCache} keeping their
+ * hit counts.
+ * <p/>
+ * Example:
+ *
+ * <pre>
+ * WarmStartSnapshot snapshot = new WarmStartSnapshot(new File(&quot;/var/cache/app/fiql.snapshot&quot;));
+ * snapshot.load();
+ * snapshot.saveOnShutdown();
+ * </pre>
+ */
+public final class WarmStartSnapshot {
+
+	public static final int DEFAULT_FILTER_COUNT = 256;
+
+	private static final Logger LOGGER = Logger.getLogger(WarmStartSnapshot.class.getName());
+
+	private static final int MAGIC = 0x46515753;
+	private static final short VERSION = 2;
+
+	private final File file;
+	private final CompiledFilterCache cache;
+	private final int filterCount;
+	private final FiqlDialect dialect;
+	private volatile Exception lastSaveFailure;
+
+	/**
+	 * Snapshot of the shared cache, for parsers using the current global
+	 * dialect.
+	 */
+	public WarmStartSnapshot(final File file) {
+		this(file, CompiledFilterCache.getShared(), DEFAULT_FILTER_COUNT);
+	}
+
+	/**
+	 * Snapshot for parsers using the current global dialect.
+	 */
+	public WarmStartSnapshot(final File file, final CompiledFilterCache cache, final int filterCount) {
+		this(file, cache, filterCount, FiqlDialect.getGlobal());
+	}
+
+	/**
+	 * @param file
+	 *            snapshot file.
+	 * @param cache
+	 *            cache whose expressions are saved and loaded.
+	 * @param filterCount
+	 *            maximum number of expressions saved, most used first.
+	 * @param dialect
+	 *            dialect of the parsers warmed, see
+	 *            {@link ExtendableFiqlParser#getDialect()}.
+	 */
+	public WarmStartSnapshot(final File file, final CompiledFilterCache cache, final int filterCount, final FiqlDialect dialect) {
+		if (file == null) {
+			throw new IllegalArgumentException("file is null");
+		}
+		if (cache == null) {
+			throw new IllegalArgumentException("cache is null");
+		}
+		if (filterCount < 0) {
+			throw new IllegalArgumentException("filterCount is negative");
+		}
+		if (dialect == null) {
+			throw new IllegalArgumentException("dialect is null");
+		}
+		this.file = file;
+		this.cache = cache;
+		this.filterCount = filterCount;
+		this.dialect = dialect;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public FiqlDialect getDialect() {
+		return dialect;
+	}
+
+	/**
+	 * @return why the last save run by {@link #saveOnShutdown()} or
+	 *         {@link #scheduleSave(ScheduledExecutorService, long, TimeUnit)}
+	 *         failed, null when it succeeded or none has run yet.
+	 */
+	public Exception getLastSaveFailure() {
+		return lastSaveFailure;
+	}
+
+	/**
+	 * Writes the snapshot; the file is replaced atomically so a concurrent or
+	 * interrupted save never leaves a truncated snapshot behind.
+	 */
+	public synchronized void save() throws IOException {
+		final File parent = file.getAbsoluteFile().getParentFile();
+		final File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				write(out);
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (tmp.exists() && !tmp.delete()) {
+				tmp.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Saves the snapshot when the virtual machine shuts down.
+	 *
+	 * @return registered shutdown hook.
+	 */
+	public Thread saveOnShutdown() {
+		final Thread hook = new Thread(saveTask(), "fiql-snapshot-save");
+		Runtime.getRuntime().addShutdownHook(hook);
+		return hook;
+	}
+
+	/**
+	 * Saves the snapshot periodically on given executor. A failed save is
+	 * logged and retried on next period.
+	 */
+	public ScheduledFuture<?> scheduleSave(final ScheduledExecutorService executor, final long period, final TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(saveTask(), period, period, unit);
+	}
+
+	/**
+	 * Reads the snapshot through a memory mapped buffer.
+	 *
+	 * @return what has been restored, an empty result when there is no
+	 *         snapshot file yet.
+	 * @throws IOException
+	 *             when the file exists but is not a valid snapshot.
+	 */
+	public LoadResult load() throws IOException {
+		if (!file.isFile()) {
+			return new LoadResult();
+		}
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return read(new DataInputStream(new ByteBufferInputStream(buffer)));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private Runnable saveTask() {
+		return new Runnable() {
+			public void run() {
+				try {
+					save();
+					lastSaveFailure = null;
+				} catch (final IOException e) {
+					fail(e);
+				} catch (final RuntimeException e) {
+					// thrown out of a scheduled task, it would cancel every later save
+					fail(e);
+				}
+			}
+		};
+	}
+
+	private void fail(final Exception e) {
+		lastSaveFailure = e;
+		LOGGER.log(Level.WARNING, "Can not save FIQL warm start snapshot " + file, e);
+	}
+
+	private void write(final DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		final List<ClassModel> models = new ArrayList<ClassModel>(ClassModel.cached());
+		out.writeInt(models.size());
+		for (final ClassModel model : models) {
+			out.writeUTF(model.getType().getName());
+			writeAccessors(out, model.getGetters(), true);
+			writeAccessors(out, model.getSetters(), false);
+			final Set<String> paths = model.getResolvedPaths();
+			out.writeInt(paths.size());
+			for (final String path : paths) {
+				out.writeUTF(path);
+			}
+		}
+		// expressions of other dialects may not parse the same on next start,
+		// nor be accepted by other limits
+		final Set<String> tokens = tokens(dialect);
+		out.writeInt(tokens.size());
+		for (final String token : tokens) {
+			out.writeUTF(token);
+		}
+		final List<CompiledFilterCache.Entry> entries = new ArrayList<CompiledFilterCache.Entry>();
+		for (final CompiledFilterCache.Entry entry : cache.mostUsed(filterCount)) {
+			if (entry.getDialect() == dialect && entry.getLimits().equals(ParseLimits.getDefault())) {
+				entries.add(entry);
+			}
+		}
+		out.writeInt(entries.size());
+		for (final CompiledFilterCache.Entry entry : entries) {
+			out.writeUTF(entry.getType().getName());
+			out.writeUTF(entry.getExpression());
+			out.writeLong(entry.getHits());
+			entry.getAst().writeTo(out);
+		}
+	}
+
+	private LoadResult read(final DataInput in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a FIQL warm start snapshot: " + file);
+		}
+		final short version = in.readShort();
+		if (version != VERSION) {
+			throw new IOException("Unsupported FIQL warm start snapshot version " + version);
+		}
+		final LoadResult result = new LoadResult();
+		final Map<String, Class<?>> accepted = new HashMap<String, Class<?>>();
+		final int classCount = in.readInt();
+		for (int i = 0; i < classCount; i++) {
+			final String className = in.readUTF();
+			final Map<String, String> getters = readAccessors(in);
+			final Map<String, String> setters = readAccessors(in);
+			final List<String> paths = new ArrayList<String>();
+			for (int j = in.readInt(); j > 0; j--) {
+				paths.add(in.readUTF());
+			}
+			final Class<?> type = load(className);
+			if (type == null) {
+				result.rejected.add(className);
+				continue;
+			}
+			final ClassModel model;
+			try {
+				model = ClassModel.of(type);
+			} catch (final IllegalArgumentException e) {
+				result.rejected.add(className);
+				continue;
+			}
+			if (!getters.equals(typeNames(model.getGetters(), true)) || !setters.equals(typeNames(model.getSetters(), false))) {
+				result.rejected.add(className);
+				continue;
+			}
+			for (final String path : paths) {
+				// paths crossing collections or setter only properties
+				// resolve one way only; a path resolving no way crosses a
+				// nested class which changed, whose own record is rejected
+				if (!resolve(model, path)) {
+					result.unresolvedPaths.add(className + "#" + path);
+				}
+			}
+			accepted.put(className, type);
+			result.classes++;
+		}
+		final Set<String> tokens = new TreeSet<String>();
+		for (int i = in.readInt(); i > 0; i--) {
+			tokens.add(in.readUTF());
+		}
+		// saved for a dialect whose operators changed, e.g. by another
+		// registration order, expressions may no longer parse the same
+		final boolean sameDialect = tokens.equals(tokens(dialect));
+		final int filters = in.readInt();
+		for (int i = 0; i < filters; i++) {
+			final String className = in.readUTF();
+			final String expression = in.readUTF();
+			final long hits = in.readLong();
+			final CompactAst ast = CompactAst.readFrom(in);
+			final Class<?> type = accepted.get(className);
+			final ParseLimits limits = ParseLimits.getDefault();
+			if (sameDialect && type != null && cache.get(type, dialect, limits, expression) == null
+					&& isBuildable(type, dialect, ast)) {
+				cache.put(type, dialect, limits, expression, ast, hits);
+				result.filters++;
+			}
+		}
+		return result;
+	}
+
+	private static Set<String> tokens(final FiqlDialect dialect) {
+		final Set<String> tokens = new TreeSet<String>();
+		for (final FiqlOperator operator : dialect.getOperators()) {
+			tokens.add(operator.getToken());
+		}
+		return tokens;
+	}
+
+	private static boolean resolve(final ClassModel model, final String path) {
+		boolean resolved = model.findPath(path) != null;
+		try {
+			model.getPropertyType(path);
+			resolved = true;
+		} catch (final IntrospectionException e) {
+			// not a getter path
+		} catch (final IllegalArgumentException e) {
+			// not a getter path
+		}
+		return resolved;
+	}
+
+	// building once checks the expression against current classes and
+	// leaves converters and setters loaded before the first request
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static boolean isBuildable(final Class<?> type, final FiqlDialect dialect, final CompactAst ast) {
+		try {
+			new ExtendableFiqlParser(type, new CompiledFilterCache(0)).build(dialect, ast);
+			return true;
+		} catch (final Exception e) {
+			return false;
+		}
+	}
+
+	private static void writeAccessors(final DataOutput out, final Map<String, Method> accessors, final boolean getters)
+			throws IOException {
+		final Map<String, String> names = typeNames(accessors, getters);
+		out.writeInt(names.size());
+		for (final Map.Entry<String, String> e : names.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeUTF(e.getValue());
+		}
+	}
+
+	private static Map<String, String> readAccessors(final DataInput in) throws IOException {
+		final Map<String, String> names = new TreeMap<String, String>();
+		for (int i = in.readInt(); i > 0; i--) {
+			names.put(in.readUTF(), in.readUTF());
+		}
+		return names;
+	}
+
+	private static Map<String, String> typeNames(final Map<String, Method> accessors, final boolean getters) {
+		final Map<String, String> names = new TreeMap<String, String>();
+		for (final Map.Entry<String, Method> e : accessors.entrySet()) {
+			final Class<?> type = getters ? e.getValue().getReturnType() : e.getValue().getParameterTypes()[0];
+			names.put(e.getKey(), type.getName());
+		}
+		return names;
+	}
+
+	private static Class<?> load(final String className) {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if (loader == null) {
+			loader = WarmStartSnapshot.class.getClassLoader();
+		}
+		try {
+			return Class.forName(className, false, loader);
+		} catch (final ClassNotFoundException e) {
+			return null;
+		} catch (final LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Outcome of {@link WarmStartSnapshot#load()}.
+	 */
+	public static final class LoadResult {
+		private int classes;
+		private int filters;
+		private final List<String> rejected = new ArrayList<String>();
+		private final List<String> unresolvedPaths = new ArrayList<String>();
+
+		/**
+		 * @return number of class models restored.
+		 */
+		public int getClasses() {
+			return classes;
+		}
+
+		/**
+		 * @return number of compiled expressions put into the cache.
+		 */
+		public int getFilters() {
+			return filters;
+		}
+
+		/**
+		 * @return names of recorded classes which are missing or whose shape
+		 *         changed since the snapshot was saved.
+		 */
+		public List<String> getRejectedClasses() {
+			return Collections.unmodifiableList(rejected);
+		}
+
+		/**
+		 * @return recorded paths, as <code>class#path</code>, which no
+		 *         longer resolve against accepted classes.
+		 */
+		public List<String> getUnresolvedPaths() {
+			return Collections.unmodifiableList(unresolvedPaths);
+		}
+	}
+
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		private ByteBufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			final int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+	}
+}
@@ -0,0 +1,407 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+/**
+ * {@link Flow.Processor} passing on the elements meeting a search condition,
+ * e.g.
+ *
+ * <pre>
+ * publisher.subscribe(new FilterProcessor&lt;Movie&gt;(parser.parse(&quot;year=ge=2000&quot;)));
+ * </pre>
+ *
+ * Elements are requested from upstream and evaluated in micro-batches: a
+ * batch is requested only while the subscriber has outstanding demand, and
+ * is evaluated once full or when upstream completes. With an executor, up to
+ * <code>maxPendingBatches</code> batches are evaluated concurrently while
+ * matches are still delivered in upstream order, so at most that many
+ * batches are buffered whatever the pace of the subscriber.
+ * <p/>
+ * A condition failing on some element cancels upstream and signals the
+ * failure after the matches of the preceding batches. A processor serves a
+ * single subscriber. Compiled with Java 9 or later only.
+ *
+ * @param <T>
+ *            type of filtered elements.
+ */
+public final class FilterProcessor<T> implements Flow.Processor<T, T> {
+
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	private static volatile ExecutorService parallel;
+
+	private final SearchCondition<T> condition;
+	private final int batchSize;
+	private final Executor executor;
+	private final int maxPendingBatches;
+
+	private final ConcurrentLinkedQueue<Batch> pending = new ConcurrentLinkedQueue<Batch>();
+	private final AtomicInteger wip = new AtomicInteger();
+	private final AtomicLong demand = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong emitted = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile Flow.Subscription upstream;
+	private volatile Flow.Subscriber<? super T> downstream;
+	private volatile boolean upstreamDone;
+	private volatile Throwable error;
+	private volatile boolean cancelled;
+	private volatile int outstanding;
+	private boolean terminated;
+	// only touched by upstream signals, which are serialized
+	private Object[] batch;
+	private int batchCount;
+
+	/**
+	 * Filters in batches of {@link #DEFAULT_BATCH_SIZE} on the thread
+	 * signalling upstream.
+	 */
+	public FilterProcessor(final SearchCondition<T> condition) {
+		this(condition, DEFAULT_BATCH_SIZE, null, 1);
+	}
+
+	/**
+	 * @param executor
+	 *            executor evaluating batches, null to evaluate them on the
+	 *            thread signalling upstream; see {@link #parallelExecutor()}.
+	 * @param maxPendingBatches
+	 *            maximum number of batches requested and not yet delivered.
+	 */
+	public FilterProcessor(final SearchCondition<T> condition, final int batchSize, final Executor executor,
+			final int maxPendingBatches) {
+		if (condition == null) {
+			throw new IllegalArgumentException("condition is null");
+		}
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+		}
+		if (maxPendingBatches <= 0) {
+			throw new IllegalArgumentException("Maximum pending batches must be positive: " + maxPendingBatches);
+		}
+		this.condition = condition;
+		this.batchSize = batchSize;
+		this.executor = executor;
+		this.maxPendingBatches = maxPendingBatches;
+	}
+
+	/**
+	 * @return shared executor running each task on a virtual thread when the
+	 *         runtime supports them, the common fork join pool otherwise.
+	 */
+	public static Executor parallelExecutor() {
+		ExecutorService executor = parallel;
+		if (executor == null) {
+			synchronized (FilterProcessor.class) {
+				executor = parallel;
+				if (executor == null) {
+					try {
+						executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+					} catch (final Exception e) {
+						executor = ForkJoinPool.commonPool();
+					}
+					parallel = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	public void subscribe(final Flow.Subscriber<? super T> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("subscriber is null");
+		}
+		synchronized (this) {
+			if (downstream != null) {
+				subscriber.onSubscribe(new Flow.Subscription() {
+					public void request(final long n) {
+					}
+
+					public void cancel() {
+					}
+				});
+				subscriber.onError(new IllegalStateException("FilterProcessor serves a single subscriber"));
+				return;
+			}
+			downstream = subscriber;
+		}
+		subscriber.onSubscribe(new Flow.Subscription() {
+			public void request(final long n) {
+				if (n <= 0) {
+					error = new IllegalArgumentException("Non positive request: " + n);
+					cancelUpstream();
+					upstreamDone = true;
+				} else {
+					long current;
+					long next;
+					do {
+						current = demand.get();
+						next = current + n < 0 ? Long.MAX_VALUE : current + n;
+					} while (!demand.compareAndSet(current, next));
+				}
+				drain();
+			}
+
+			public void cancel() {
+				cancelled = true;
+				cancelUpstream();
+				drain();
+			}
+		});
+		drain();
+	}
+
+	public void onSubscribe(final Flow.Subscription subscription) {
+		synchronized (this) {
+			if (upstream != null || cancelled) {
+				subscription.cancel();
+				return;
+			}
+			upstream = subscription;
+		}
+		drain();
+	}
+
+	public void onNext(final T item) {
+		if (item == null) {
+			throw new NullPointerException("item is null");
+		}
+		received.incrementAndGet();
+		if (batch == null) {
+			batch = new Object[batchSize];
+		}
+		batch[batchCount++] = item;
+		outstanding--;
+		if (batchCount == batchSize || outstanding == 0) {
+			submit();
+		}
+	}
+
+	public void onError(final Throwable throwable) {
+		if (throwable == null) {
+			throw new NullPointerException("throwable is null");
+		}
+		if (batchCount > 0) {
+			submit();
+		}
+		error = throwable;
+		upstreamDone = true;
+		drain();
+	}
+
+	public void onComplete() {
+		if (batchCount > 0) {
+			submit();
+		}
+		upstreamDone = true;
+		drain();
+	}
+
+	private void submit() {
+		final Batch b = new Batch(batch, batchCount);
+		batch = null;
+		batchCount = 0;
+		pending.offer(b);
+		if (executor == null) {
+			b.run();
+			return;
+		}
+		try {
+			executor.execute(b);
+		} catch (final RuntimeException e) {
+			b.fail(e);
+		}
+	}
+
+	private void cancelUpstream() {
+		final Flow.Subscription s = upstream;
+		if (s != null) {
+			s.cancel();
+		}
+	}
+
+	/**
+	 * Delivers evaluated batches in order, as demand allows, then requests
+	 * another batch when there is room for it. Runs on a single thread at a
+	 * time.
+	 */
+	private void drain() {
+		if (wip.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			final Flow.Subscriber<? super T> subscriber = downstream;
+			if (subscriber != null && !cancelled && !terminated) {
+				emit(subscriber);
+				final Flow.Subscription s = upstream;
+				if (s != null && !cancelled && !terminated && !upstreamDone && outstanding == 0 && demand.get() > 0
+						&& pending.size() < maxPendingBatches) {
+					outstanding = batchSize;
+					s.request(batchSize);
+				}
+			}
+			if (cancelled || terminated) {
+				// including batches still being evaluated, or submitted afterwards
+				Batch b;
+				while ((b = pending.poll()) != null) {
+					b.discard();
+				}
+			}
+			missed = wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private void emit(final Flow.Subscriber<? super T> subscriber) {
+		Batch head;
+		while ((head = pending.peek()) != null && head.done) {
+			if (head.failure != null) {
+				terminated = true;
+				cancelUpstream();
+				subscriber.onError(head.failure);
+				return;
+			}
+			while (head.cursor < head.matches.size() && demand.get() > 0) {
+				final T item = head.matches.get(head.cursor++);
+				demand.decrementAndGet();
+				emitted.incrementAndGet();
+				subscriber.onNext(item);
+				if (cancelled) {
+					return;
+				}
+			}
+			if (head.cursor < head.matches.size()) {
+				return;
+			}
+			pending.poll();
+		}
+		if (upstreamDone && pending.isEmpty()) {
+			terminated = true;
+			if (error != null) {
+				subscriber.onError(error);
+			} else {
+				subscriber.onComplete();
+			}
+		}
+	}
+
+	/**
+	 * @return number of elements received from upstream.
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * @return number of matching elements delivered to the subscriber.
+	 */
+	public long getEmitted() {
+		return emitted.get();
+	}
+
+	/**
+	 * @return number of elements not meeting the condition, or discarded by
+	 *         cancellation or failure.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of elements received and neither delivered nor
+	 *         dropped yet.
+	 */
+	public long getInFlight() {
+		return received.get() - emitted.get() - dropped.get();
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Elements of a batch and, once evaluated, its matches. Each element is
+	 * counted once: as dropped when evaluated not to match, as emitted when
+	 * delivered, and as dropped when its batch is discarded before. Counting
+	 * on evaluation and on discard are exclusive, whichever comes first.
+	 */
+	private final class Batch implements Runnable {
+		private final Object[] items;
+		private final int size;
+		private List<T> matches;
+		private int cursor;
+		private Throwable failure;
+		private volatile boolean done;
+		// guarded by this
+		private boolean evaluated;
+		private boolean discarded;
+
+		Batch(final Object[] items, final int size) {
+			this.items = items;
+			this.size = size;
+		}
+
+		@SuppressWarnings("unchecked")
+		public void run() {
+			if (cancelled) {
+				complete(null, null);
+				return;
+			}
+			final List<T> result = new ArrayList<T>(size);
+			try {
+				for (int i = 0; i < size; i++) {
+					final T item = (T) items[i];
+					if (condition.isMet(item)) {
+						result.add(item);
+					}
+				}
+			} catch (final Throwable e) {
+				complete(null, e);
+				return;
+			}
+			complete(result, null);
+		}
+
+		void fail(final Throwable e) {
+			complete(null, e);
+		}
+
+		/**
+		 * @param result
+		 *            matches, null when not evaluated.
+		 */
+		private void complete(final List<T> result, final Throwable e) {
+			synchronized (this) {
+				if (result != null && !discarded) {
+					evaluated = true;
+					dropped.addAndGet(size - result.size());
+				}
+				matches = result != null ? result : new ArrayList<T>(0);
+				failure = e;
+				done = true;
+			}
+			drain();
+		}
+
+		/**
+		 * Drops the elements not delivered yet.
+		 */
+		void discard() {
+			synchronized (this) {
+				discarded = true;
+				dropped.addAndGet(evaluated ? matches.size() - cursor : size);
+			}
+		}
+	}
+}
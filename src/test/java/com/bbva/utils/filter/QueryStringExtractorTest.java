@@ -0,0 +1,71 @@
+package com.bbva.utils.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.net.URLEncoder;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.bbva.utils.filter.model.Movie;
+
+public class QueryStringExtractorTest {
+
+	private final QueryStringExtractor extractor = new QueryStringExtractor();
+
+	@Test
+	public void testParameterIsFoundAmongOthers() throws Exception {
+		assertEquals("year=ge=2000", extractor.extract("filter=year=ge=2000"));
+		assertEquals("year=ge=2000", extractor.extract("page=2&filter=year=ge=2000&size=20"));
+		assertEquals("year=ge=2000", extractor.extract("subfilter=x&filters=y&filter=year=ge=2000"));
+		assertEquals("", extractor.extract("page=2&filter&size=20"));
+		assertEquals("", extractor.extract("filter="));
+		assertNull(extractor.extract("page=2&size=20"));
+		assertNull(extractor.extract(null));
+		assertEquals("2", new QueryStringExtractor("page").extract("filter=year=ge=2000&page=2"));
+	}
+
+	@Test
+	public void testValueIsDecoded() throws Exception {
+		final String filter = "name==\"Amélie\";director.name==Jean-Pierre Jeunet,year=in=(2001,2002);budget=ge=€10";
+		final String encoded = URLEncoder.encode(filter, "UTF-8");
+		assertEquals(filter, extractor.extract("page=1&filter=" + encoded + "&size=20"));
+		// buffer is reused by longer and shorter values
+		final String longer = StringUtils.repeat(filter, 40);
+		assertEquals(longer, extractor.extract("filter=" + URLEncoder.encode(longer, "UTF-8")));
+		assertEquals("a b", extractor.extract("filter=a+b"));
+		assertEquals("🎬", extractor.extract("filter=%F0%9F%8E%AC"));
+	}
+
+	@Test
+	public void testMalformedValuesAreRejected() throws Exception {
+		for (final String query : new String[] { "filter=a%2", "filter=a%zz", "filter=%C3", "filter=%C3%28", "filter=%C0%AF",
+				"filter=%ED%A0%80", "filter=%FF" }) {
+			try {
+				extractor.extract(query);
+				fail(query);
+			} catch (final IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testToDtoExtWithFilterParameter() throws Exception {
+		final HttpServletRequest request = mock(HttpServletRequest.class);
+		Mockito.when(request.getQueryString()).thenReturn(
+				"page=3&filter=" + URLEncoder.encode("name==\"Kill Bill\";year=gt=2003", "UTF-8") + "&size=20");
+		final Movie movie = (Movie) RestQueryStringUtil.toDtoExt(request, Movie.class, extractor);
+		assertEquals("\"Kill Bill\"", movie.getName());
+		assertEquals(2003, movie.getYear());
+
+		Mockito.when(request.getQueryString()).thenReturn("page=3");
+		assertNull(RestQueryStringUtil.toDtoExt(request, Movie.class, extractor));
+	}
+}
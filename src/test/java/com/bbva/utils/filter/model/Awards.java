@@ -1,8 +1,11 @@
 package com.bbva.utils.filter.model;
 
+import com.bbva.utils.fiql.parser.FiqlSearchable;
+
 /**
  * Created by Alejandro on 20/11/2014.
  */
+@FiqlSearchable
 public class Awards {
     private String name;
     private int year;
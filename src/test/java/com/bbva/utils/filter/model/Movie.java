@@ -2,9 +2,13 @@ package com.bbva.utils.filter.model;
 
 import java.math.BigDecimal;
 
+import com.bbva.utils.fiql.parser.FiqlColumn;
+import com.bbva.utils.fiql.parser.FiqlSearchable;
+
 /**
  * Created by Alejandro on 19/11/2014.
  */
+@FiqlSearchable
 public class Movie {
 	private Director director;
 	private Actor actor;
@@ -54,6 +58,7 @@ public class Movie {
 		this.year = year;
 	}
 
+	@FiqlColumn("distribution_date")
 	public String getDistributionDate() {
 		return distributionDate;
 	}
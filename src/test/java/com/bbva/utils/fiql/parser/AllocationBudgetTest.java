@@ -0,0 +1,163 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.RestQueryStringUtil;
+import com.bbva.utils.filter.model.Director;
+import com.bbva.utils.filter.model.Movie;
+
+/**
+ * Bytes allocated per call by the hot paths, measured on the calling thread
+ * once warmed up, against explicit budgets. Skipped when the JVM can not
+ * measure thread allocations.
+ */
+public class AllocationBudgetTest {
+
+	private static final int WARMUP = 20000;
+	private static final int ROUNDS = 10000;
+	private static final int MEASUREMENTS = 5;
+
+	private static final String EXPRESSION = "director.name==Chris*;year=ge=2000";
+
+	private com.sun.management.ThreadMXBean threads;
+	private ExtendableFiqlParser<Movie> parser;
+	private List<Movie> movies;
+
+	@Before
+	public void setUp() throws Exception {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		parser = new ExtendableFiqlParser<Movie>(Movie.class);
+		movies = new ArrayList<Movie>();
+		for (int i = 0; i < 100; i++) {
+			final Movie movie = new Movie();
+			movie.setYear(1990 + i % 30);
+			movie.setBudget(new BigDecimal(i));
+			movie.setDirector(new Director());
+			movie.getDirector().setName(i % 3 == 0 ? "Christopher" : "Quentin");
+			movies.add(movie);
+		}
+	}
+
+	@Test
+	public void testIsMetOfStringComparison() throws Exception {
+		final SearchCondition<Movie> condition = parser.parse("director.name==Chris*");
+		assertBudget("isMet of a string comparison", 0, new Runnable() {
+			public void run() {
+				condition.isMet(movies.get(0));
+			}
+		});
+	}
+
+	@Test
+	public void testIsMetOfNumberComparison() throws Exception {
+		final SearchCondition<Movie> condition = parser.parse("year=ge=2000");
+		// the int returned through reflection is boxed
+		assertBudget("isMet of a number comparison", 16, new Runnable() {
+			public void run() {
+				condition.isMet(movies.get(20));
+			}
+		});
+	}
+
+	@Test
+	public void testIsMetOfPlan() throws Exception {
+		final SearchCondition<Movie> condition = parser.parse("director.name==Chris*,director.name==Quen*;budget=gt=10");
+		assertBudget("isMet of an evaluation plan", 0, new Runnable() {
+			public void run() {
+				condition.isMet(movies.get(0));
+			}
+		});
+	}
+
+	@Test
+	public void testFindAll() throws Exception {
+		final SearchCondition<Movie> condition = parser.parse(EXPRESSION);
+		// result list plus a boxed year per movie directed by Christopher
+		assertBudget("findAll of 100 movies", 1024, new Runnable() {
+			public void run() {
+				condition.findAll(movies);
+			}
+		});
+	}
+
+	@Test
+	public void testParse() throws Exception {
+		// cached expression: interned tree lookups and the template bean
+		assertBudget("parse", 2048, new Runnable() {
+			public void run() {
+				try {
+					parser.parse(EXPRESSION);
+				} catch (final Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+	}
+
+	@Test
+	public void testToDtoExt() throws Exception {
+		assertBudget("toDtoExt", 2560, new Runnable() {
+			public void run() {
+				try {
+					RestQueryStringUtil.toDtoExt(EXPRESSION, Movie.class);
+				} catch (final Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+	}
+
+	@Test
+	public void testExtendedSearchCondition() throws Exception {
+		final Movie template = new Movie();
+		template.setYear(2000);
+		final Map<String, ConditionType> operators = Collections.singletonMap("year", ConditionType.GREATER_OR_EQUALS);
+		final SearchCondition<Movie> condition = new ExtendedSearchCondition<Movie>(operators, template);
+		assertBudget("isMet of ExtendedSearchCondition", 64, new Runnable() {
+			public void run() {
+				condition.isMet(movies.get(20));
+			}
+		});
+	}
+
+	private void assertBudget(final String name, final int budget, final Runnable op) {
+		final double bytes = perCall(op);
+		// below one byte per call on average is no allocation at all
+		assertTrue(name + " allocates " + bytes + " bytes per call, budget is " + budget, bytes < budget + 1);
+	}
+
+	private double perCall(final Runnable op) {
+		for (int i = 0; i < WARMUP; i++) {
+			op.run();
+		}
+		final long id = Thread.currentThread().getId();
+		// code still being compiled may allocate what escape analysis later
+		// removes, so the lowest measurement is the steady one
+		long lowest = Long.MAX_VALUE;
+		for (int m = 0; m < MEASUREMENTS; m++) {
+			final long before = threads.getThreadAllocatedBytes(id);
+			for (int i = 0; i < ROUNDS; i++) {
+				op.run();
+			}
+			lowest = Math.min(lowest, threads.getThreadAllocatedBytes(id) - before);
+		}
+		return (double) lowest / ROUNDS;
+	}
+}
@@ -0,0 +1,135 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Director;
+import com.bbva.utils.filter.model.Movie;
+
+public class CardinalityEstimatorTest {
+
+	private static final FiqlDialect DIALECT = FiqlDialect.getDefault().with(FiqlOperators.in("=in="), FiqlOperators.out("=out="),
+			FiqlOperators.between("=between="));
+
+	private static final String[] DIRECTORS = { "Nolan", "Tarantino", "Scott", "Bigelow", null };
+
+	private ExtendableFiqlParser<Movie> parser;
+	private List<Movie> movies;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new ExtendableFiqlParser<Movie>(Movie.class);
+		parser.setDialect(DIALECT);
+		final Random random = new Random(5);
+		movies = new ArrayList<Movie>();
+		for (int i = 0; i < 50000; i++) {
+			final Movie movie = new Movie();
+			movie.setName("Movie " + random.nextInt(20000));
+			movie.setYear(1950 + random.nextInt(70));
+			final String name = DIRECTORS[random.nextInt(DIRECTORS.length)];
+			if (name != null) {
+				movie.setDirector(new Director());
+				movie.getDirector().setName(name);
+			}
+			movies.add(movie);
+		}
+	}
+
+	private void assertCovers(final CountEstimate estimate, final SearchCondition<Movie> condition) {
+		final int actual = condition.findAll(movies).size();
+		assertTrue(estimate + " for " + actual, estimate.getLower() <= actual && actual <= estimate.getUpper());
+		assertTrue(estimate.toString(), estimate.getLower() <= estimate.getCount() && estimate.getCount() <= estimate.getUpper());
+	}
+
+	@Test
+	public void testSampledIntervalsCoverActualCounts() throws Exception {
+		final String[] conditions = { "year=ge=2000", "director.name==Nolan;year=lt=1960", "name==Movie 1*",
+				"director.name==Scott,director.name==Bigelow", "year==1000" };
+		final CardinalityEstimator<Movie> estimator = CardinalityEstimator.sample(movies, 2048, new Random(7));
+		assertEquals(2048, estimator.getSampleSize());
+		for (final String fiql : conditions) {
+			final SearchCondition<Movie> condition = parser.parse(fiql);
+			final CountEstimate estimate = estimator.estimate(condition);
+			assertCovers(estimate, condition);
+			assertFalse(estimate.isExact());
+			assertEquals(2048, estimate.getSampleSize());
+		}
+		assertEquals(0, estimator.estimate(parser.parse("year==1000")).getLower());
+
+		final CountEstimate reservoir = CardinalityEstimator.sample(new LinkedList<Movie>(movies), 2048, new Random(7)).estimate(
+				parser.parse("year=ge=2000"));
+		assertCovers(reservoir, parser.parse("year=ge=2000"));
+
+		final SearchCondition<Movie> small = parser.parse("year=ge=2000");
+		final CountEstimate exact = Searches.estimateCount(small, movies.subList(0, 500));
+		assertTrue(exact.isExact());
+		assertEquals(small.findAll(movies.subList(0, 500)).size(), exact.getCount());
+	}
+
+	@Test
+	public void testHistogramsAnswerAndBoundComparisons() throws Exception {
+		final PropertyHistogram years = PropertyHistogram.build(Movie.class, "year", movies);
+		final PropertyHistogram names = PropertyHistogram.build(Movie.class, "name", movies);
+		final PropertyHistogram directors = PropertyHistogram.build(Movie.class, "director.name", movies);
+		assertTrue(years.isExact());
+		assertFalse(names.isExact());
+		assertEquals(4, directors.getDistinctCount());
+		assertTrue(directors.getValueCount() < directors.getRows());
+
+		final CardinalityEstimator<Movie> estimator = CardinalityEstimator.sample(movies, 256, new Random(7)).withHistograms(years,
+				names, directors);
+		for (final String fiql : new String[] { "year=ge=2000", "year=between=(1960,1969)", "year=in=(1950,1999)",
+				"director.name!=Nolan", "director.name=out=(Nolan,Scott)" }) {
+			final CountEstimate estimate = estimator.estimate(parser.parse(fiql));
+			assertTrue(fiql, estimate.isExact());
+			assertEquals(fiql, parser.parse(fiql).findAll(movies).size(), estimate.getCount());
+		}
+		for (final String fiql : new String[] { "name=lt=Movie 5", "name=ge=Movie 19", "name==Movie 123",
+				"name=between=(Movie 2,Movie 3)" }) {
+			final CountEstimate estimate = estimator.estimate(parser.parse(fiql));
+			assertEquals(fiql, 0, estimate.getSampleSize());
+			assertCovers(estimate, parser.parse(fiql));
+			final int bucket = movies.size() / PropertyHistogram.DEFAULT_BUCKETS;
+			assertTrue(fiql + " " + estimate, estimate.getUpper() - estimate.getLower() <= 2 * bucket + 10);
+		}
+
+		// an AND is bounded by its narrowest comparison
+		final SearchCondition<Movie> rare = parser.parse("year==1950;director.name=in=(Nolan,Scott)");
+		final CountEstimate bounded = estimator.estimate(rare);
+		assertCovers(bounded, rare);
+		assertTrue(bounded.toString(), bounded.getUpper() <= years.getRows() / 70 * 2);
+	}
+
+	@Test
+	public void testInvalidArguments() throws Exception {
+		try {
+			PropertyHistogram.build(Movie.class, "director", movies);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// not comparable
+		}
+		try {
+			CardinalityEstimator.sample(movies).withHistograms(PropertyHistogram.build(Movie.class, "year", movies.subList(0, 10)));
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// built over another collection
+		}
+		try {
+			CardinalityEstimator.sample(movies, 0);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
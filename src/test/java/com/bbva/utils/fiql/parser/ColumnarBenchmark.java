@@ -0,0 +1,63 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+import com.bbva.utils.filter.model.Movie;
+
+/**
+ * Compares {@link ColumnarEvaluator} with evaluating the same expression
+ * object by object through {@link SearchCondition#findAll(java.util.List)}.
+ * <p/>
+ * Run with test classpath, e.g.
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.bbva.utils.fiql.parser.ColumnarBenchmark</code>
+ */
+public class ColumnarBenchmark {
+
+	private static final String EXPRESSION = "year=ge=2000;name==K*";
+	private static final int ROWS = 1000000;
+	private static final int ROUNDS = 20;
+
+	public static void main(final String[] args) throws Exception {
+		final Random random = new Random(1);
+		final int[] years = new int[ROWS];
+		final String[] names = new String[ROWS];
+		final List<Movie> movies = new ArrayList<Movie>(ROWS);
+		for (int i = 0; i < ROWS; i++) {
+			years[i] = 1950 + random.nextInt(70);
+			names[i] = (char) ('A' + random.nextInt(26)) + "ill Bill " + i;
+			final Movie movie = new Movie();
+			movie.setYear(years[i]);
+			movie.setName(names[i]);
+			movies.add(movie);
+		}
+		final ExtendableFiqlParser<Movie> parser = new ExtendableFiqlParser<Movie>(Movie.class);
+		final SearchCondition<Movie> condition = parser.parse(EXPRESSION);
+		final ColumnBatch batch = new ColumnBatch(ROWS).addInts("year", years).addStrings("name", names);
+		final ColumnarEvaluator evaluator = new ColumnarEvaluator(parser.compile(EXPRESSION));
+		final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			for (int round = 0; round < ROUNDS; round++) {
+				long t0 = System.nanoTime();
+				final int objects = condition.findAll(movies).size();
+				final long objectNanos = System.nanoTime() - t0;
+				t0 = System.nanoTime();
+				final int columns = evaluator.evaluate(batch).cardinality();
+				final long columnNanos = System.nanoTime() - t0;
+				t0 = System.nanoTime();
+				final int parallel = evaluator.evaluate(batch, executor).cardinality();
+				final long parallelNanos = System.nanoTime() - t0;
+				System.out.println(String.format("objects %,d us (%d)  columns %,d us (%d)  parallel %,d us (%d)",
+						objectNanos / 1000, objects, columnNanos / 1000, columns, parallelNanos / 1000, parallel));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Movie;
+
+public class ColumnarEvaluatorTest {
+
+	private static final String[] DIRECTORS = { "Christopher Nolan", "Quentin Tarantino", "Ridley Scott", null };
+
+	private ExtendableFiqlParser<Movie> parser;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new ExtendableFiqlParser<Movie>(Movie.class);
+	}
+
+	@Test
+	public void testSmallBatch() throws Exception {
+		final ColumnBatch batch = new ColumnBatch(4).addInts("year", new int[] { 1999, 2003, 2010, 2014 })
+				.addStrings("director.name", DIRECTORS)
+				.addComparables("budget", BigDecimal.class, new BigDecimal[] { null, new BigDecimal("10.5"), BigDecimal.ONE, BigDecimal.TEN });
+		assertEquals(bits(1, 2, 3), evaluate(batch, "year=ge=2000", 64));
+		assertEquals(bits(0, 3), evaluate(batch, "year!=2003;year!=2010", 64));
+		assertEquals(bits(0, 1), evaluate(batch, "director.name==*Tarantino,director.name==Christ*", 64));
+		// null values never match, not even !=
+		assertEquals(bits(0, 1, 2), evaluate(batch, "director.name!=Ridley", 64));
+		assertEquals(bits(1, 3), evaluate(batch, "budget=gt=5", 64));
+		assertEquals(bits(0, 1, 2), evaluate(batch, "(year=lt=2005,budget=le=1);director.name==*i*", 64));
+	}
+
+	@Test
+	public void testChunksAndThreadsAgreeWithRowByRow() throws Exception {
+		final int size = 100003;
+		final Random random = new Random(7);
+		final int[] years = new int[size];
+		final double[] budgets = new double[size];
+		final String[] directors = new String[size];
+		for (int i = 0; i < size; i++) {
+			years[i] = 1980 + random.nextInt(40);
+			budgets[i] = random.nextDouble() * 10;
+			directors[i] = DIRECTORS[random.nextInt(DIRECTORS.length)];
+		}
+		final ColumnBatch batch = new ColumnBatch(size).addInts("year", years).addDoubles("budget", budgets)
+				.addStrings("director.name", directors);
+		final String expression = "year=ge=2000;year=lt=2010;(director.name==Christopher*,budget=gt=7.5)";
+		final BitSet expected = new BitSet(size);
+		for (int i = 0; i < size; i++) {
+			if (years[i] >= 2000 && years[i] < 2010
+					&& (directors[i] != null && directors[i].startsWith("Christopher") || budgets[i] > 7.5)) {
+				expected.set(i);
+			}
+		}
+		assertEquals(expected, evaluate(batch, expression, 64));
+		assertEquals(expected, evaluate(batch, expression, ColumnarEvaluator.DEFAULT_CHUNK_ROWS));
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			assertEquals(expected, new ColumnarEvaluator(compile(expression), parser.getDialect(), 1024).evaluate(batch, executor));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testOperatorsOfTheParserDialect() throws Exception {
+		parser.setDialect(FiqlDialect.getDefault().with(FiqlOperators.in("=in="), FiqlOperators.regex("=regex=")));
+		final ColumnBatch batch = new ColumnBatch(4).addInts("year", new int[] { 1999, 2003, 2010, 2014 })
+				.addStrings("director.name", DIRECTORS);
+		for (final String expression : new String[] { "director.name=in=(Ridley Scott,Quentin Tarantino)",
+				"director.name=regex=[QR].*;year=gt=2000" }) {
+			assertEquals(expression, bits(1, 2), new ColumnarEvaluator(parser, expression).evaluate(batch));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOperatorsOnPrimitiveColumnsAreComparisons() throws Exception {
+		parser.setDialect(FiqlDialect.getDefault().with(FiqlOperators.in("=in=")));
+		new ColumnarEvaluator(parser, "year=in=(2000,2001)").evaluate(new ColumnBatch(1).addInts("year", new int[1]));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingColumn() throws Exception {
+		evaluate(new ColumnBatch(1).addInts("year", new int[1]), "name==a", 64);
+	}
+
+	private BitSet evaluate(final ColumnBatch batch, final String expression, final int chunkRows) throws Exception {
+		return new ColumnarEvaluator(compile(expression), parser.getDialect(), chunkRows).evaluate(batch);
+	}
+
+	private CompactAst compile(final String expression) throws Exception {
+		return parser.compile(expression);
+	}
+
+	private static BitSet bits(final int... indexes) {
+		final BitSet bits = new BitSet();
+		for (final int i : indexes) {
+			bits.set(i);
+		}
+		return bits;
+	}
+}
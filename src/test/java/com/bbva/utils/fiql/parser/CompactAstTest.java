@@ -0,0 +1,114 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Movie;
+
+public class CompactAstTest {
+
+	private static final String QUERY_STRING_1 = "name==\"Kill Bill\";year=gt=2003";
+	private static final String QUERY_STRING_2 = "(director.name==Nolan,director.name==Tarantino);year=ge=2000,year=lt=1980;budget==948374.27";
+	private static final String QUERY_STRING_3 = "director.awards.year=ge=2013";
+
+	private ExtendableFiqlParser<Movie> parser;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new ExtendableFiqlParser<Movie>(Movie.class);
+	}
+
+	@Test
+	public void testCompileKeepsTreeShape() throws Exception {
+		final CompactAst ast = parser.compile(QUERY_STRING_2);
+		assertEquals(CompactAst.OR, ast.kind(0));
+		assertEquals(2, ast.arity(0));
+		assertEquals(CompactAst.AND, ast.kind(1));
+		assertEquals(CompactAst.OR, ast.kind(2));
+		assertEquals("director.name", ast.name(3));
+		assertEquals("==", ast.operator(3));
+		assertEquals("Nolan", ast.value(3));
+		// "director.name" and "==" are pooled
+		assertEquals(11, ast.literalCount());
+		assertEquals(QUERY_STRING_2, ast.toString());
+		assertEquals(ast, parser.compile(ast.toString()));
+		// redundant brackets do not change the tree
+		assertEquals(ast, parser.compile("(director.name==Nolan,director.name==Tarantino);year=ge=2000,(year=lt=1980;budget==948374.27)"));
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws Exception {
+		for (final String expression : new String[] { QUERY_STRING_1, QUERY_STRING_2, QUERY_STRING_3 }) {
+			final CompactAst ast = parser.compile(expression);
+			final CompactAst copy = CompactAst.fromByteArray(ast.toByteArray());
+			assertEquals(ast, copy);
+			assertEquals(ast.hashCode(), copy.hashCode());
+			assertEquals(expression, copy.toString());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptedBytesAreRejected() throws Exception {
+		final byte[] bytes = parser.compile(QUERY_STRING_2).toByteArray();
+		// last node: second byte of a comparison holds part of its value index
+		bytes[bytes.length - 7] = (byte) 0x7F;
+		CompactAst.fromByteArray(bytes);
+	}
+
+	@Test
+	public void testLargestTreeKeepsItsSubtreeSize() throws Exception {
+		final CompactAst.Builder builder = new CompactAst.Builder();
+		final int root = builder.reserve();
+		for (int i = 1; i < CompactAst.MAX_INDEX; i++) {
+			builder.comparison("year", "==", "2000");
+		}
+		try {
+			builder.comparison("year", "==", "2000");
+			fail();
+		} catch (final FiqlParseException e) {
+			// one node more would not fit the subtree size of the root
+		}
+		builder.close(root, CompactAst.AND, CompactAst.MAX_INDEX - 1);
+		final CompactAst ast = builder.build();
+		assertEquals(CompactAst.MAX_INDEX, ast.size());
+		assertEquals(ast.size(), ast.next(0));
+		assertEquals(ast, CompactAst.fromByteArray(ast.toByteArray()));
+	}
+
+	@Test
+	public void testLazyConditionIsBuiltOnFirstUse() throws Exception {
+		final CompactAst ast = parser.compile(QUERY_STRING_1);
+		final ExtendableFiqlParser<Movie> other = new ExtendableFiqlParser<Movie>(Movie.class);
+		final SearchCondition<Movie> condition = other.toSearchCondition(CompactAst.fromByteArray(ast.toByteArray()));
+		assertFalse(((LazySearchCondition<Movie>) condition).isBuilt());
+		assertEquals(ConditionType.AND, condition.getConditionType());
+		assertTrue(((LazySearchCondition<Movie>) condition).isBuilt());
+		assertEquals("\"Kill Bill\"", ((Movie) other.getBean()).getName());
+		assertEquals(2003, ((Movie) other.getBean()).getYear());
+	}
+
+	@Test(expected = FiqlParseException.class)
+	public void testCompileChecksSelectors() throws Exception {
+		parser.compile("director.awards.month=ge=2013");
+	}
+
+	@Test(expected = FiqlParseException.class)
+	public void testDanglingOperator() throws Exception {
+		parser.compile("year=ge=2013;");
+	}
+
+	@Test(expected = FiqlParseException.class)
+	public void testUnmatchedBrackets() throws Exception {
+		parser.compile("(year=ge=2013;name==a");
+	}
+}
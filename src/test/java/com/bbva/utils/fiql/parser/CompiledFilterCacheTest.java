@@ -0,0 +1,35 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Movie;
+
+public class CompiledFilterCacheTest {
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		final CompiledFilterCache cache = new CompiledFilterCache(2);
+		final ExtendableFiqlParser<Movie> parser = new ExtendableFiqlParser<Movie>(Movie.class, cache);
+		// a hot entry does not pin the cache once it is no longer used
+		for (int i = 0; i < 10; i++) {
+			parser.parse("year==2000");
+		}
+		parser.parse("year==2001");
+		parser.parse("year==2002");
+		assertEquals(2, cache.size());
+		assertNull(cache.get(Movie.class, "year==2000"));
+		parser.parse("year==2001");
+		parser.parse("year==2003");
+		assertNotNull(cache.get(Movie.class, "year==2001"));
+		assertNull(cache.get(Movie.class, "year==2002"));
+
+		cache.setMaxSize(1);
+		parser.parse("year==2004");
+		assertEquals(1, cache.size());
+		assertNotNull(cache.get(Movie.class, "year==2004"));
+	}
+}
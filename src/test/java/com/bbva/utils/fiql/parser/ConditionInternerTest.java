@@ -0,0 +1,136 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.collections.Predicate;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConditionInternerTest {
+
+	private static int evaluations;
+
+	private ConditionInterner interner;
+	private ExtendableFiqlParser<Item> parser;
+
+	@Before
+	public void setUp() throws Exception {
+		interner = new ConditionInterner();
+		parser = new ExtendableFiqlParser<Item>(Item.class, new CompiledFilterCache(0));
+		parser.setInterner(interner);
+		parser.setDialect(FiqlDialect.getDefault().with(new FiqlOperator("=counted=", ConditionType.CUSTOM) {
+			@Override
+			public Predicate compile(final Object operand, final Class<?> propertyType) {
+				return new Predicate() {
+					public boolean evaluate(final Object value) {
+						evaluations++;
+						return value.equals(operand);
+					}
+				};
+			}
+		}));
+	}
+
+	@Test
+	public void testEqualSubexpressionsAreShared() throws Exception {
+		final SearchCondition<Item> first = parser.parse("(name==Ana;year=ge=2000),year==1990");
+		final SearchCondition<Item> second = parser.parse("(name==Ana;year=ge=2000),name==Bea");
+		assertNotSame(first, second);
+		assertSame(first.getSearchConditions().get(0), second.getSearchConditions().get(0));
+		assertSame(first, parser.parse("(name==Ana;year=ge=2000),year==1990"));
+		// name==Ana, year=ge=2000, their AND, year==1990, name==Bea, two ORs
+		// and the plans over them, as both read a property twice
+		assertEquals(9, interner.size());
+	}
+
+	@Test
+	public void testTemplateIsStillFilled() throws Exception {
+		parser.parse("name==Ana;year==2001");
+		parser.parse("name==Ana");
+		assertEquals("Ana", ((Item) parser.getBean()).getName());
+		final SearchCondition<Item> leaf = parser.parse("year==2001");
+		assertEquals(2001, leaf.getCondition().getYear());
+		assertEquals(null, leaf.getCondition().getName());
+	}
+
+	@Test
+	public void testWithoutInterner() throws Exception {
+		parser.setInterner(null);
+		assertNotSame(parser.parse("name==Ana;year=ge=2000"), parser.parse("name==Ana;year=ge=2000"));
+		assertEquals(0, interner.size());
+	}
+
+	@Test
+	public void testSharedNodesAreEvaluatedOnce() throws Exception {
+		final List<SearchCondition<Item>> conditions = new ArrayList<SearchCondition<Item>>();
+		conditions.add(parser.parse("name=counted=Ana;year=ge=2000"));
+		conditions.add(parser.parse("(name=counted=Ana;year=ge=2000),year==1990"));
+		conditions.add(parser.parse("year==1990,(name=counted=Ana;year=ge=2000)"));
+		final BatchMatcher<Item> matcher = new BatchMatcher<Item>(conditions);
+		// name=counted=Ana, year=ge=2000, their AND, year==1990 and two ORs
+		assertEquals(6, matcher.getNodeCount());
+		evaluations = 0;
+		final BitSet matched = matcher.match(new Item("Ana", 2001));
+		assertEquals(1, evaluations);
+		assertEquals(3, matched.cardinality());
+	}
+
+	@Test
+	public void testSameResultsAsConditions() throws Exception {
+		final List<SearchCondition<Item>> conditions = new ArrayList<SearchCondition<Item>>();
+		for (final String expression : Arrays.asList("name==A*;year=ge=2000", "(name==A*;year=ge=2000),year==1990",
+				"name!=Bea;(year=lt=1995,name==*a)", "year==1990,name==Bea", "name==A*")) {
+			conditions.add(parser.parse(expression));
+		}
+		final Random random = new Random(7);
+		final List<Item> items = new ArrayList<Item>();
+		for (int i = 0; i < 500; i++) {
+			items.add(new Item(random.nextInt(5) == 0 ? null : random.nextBoolean() ? "Ana" : "Bea", 1985 + random.nextInt(25)));
+		}
+		final List<BitSet> matches = new BatchMatcher<Item>(conditions).matchAll(items);
+		for (int i = 0; i < items.size(); i++) {
+			for (int j = 0; j < conditions.size(); j++) {
+				assertEquals(conditions.get(j).isMet(items.get(i)), matches.get(i).get(j));
+			}
+		}
+	}
+
+	public static class Item {
+		private String name;
+		private int year;
+
+		public Item() {
+		}
+
+		Item(final String name, final int year) {
+			this.name = name;
+			this.year = year;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(final String name) {
+			this.name = name;
+		}
+
+		public int getYear() {
+			return year;
+		}
+
+		public void setYear(final int year) {
+			this.year = year;
+		}
+	}
+}
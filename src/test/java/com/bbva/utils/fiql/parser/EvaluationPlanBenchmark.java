@@ -0,0 +1,57 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+import com.bbva.utils.filter.model.Awards;
+import com.bbva.utils.filter.model.Director;
+import com.bbva.utils.filter.model.Movie;
+
+/**
+ * Compares a wide generated filter evaluated through its
+ * {@link EvaluationPlan}, fetching each property path once per object, with
+ * the same tree walking every path in every comparison.
+ * <p/>
+ * Run with test classpath, e.g.
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.bbva.utils.fiql.parser.EvaluationPlanBenchmark</code>
+ */
+public class EvaluationPlanBenchmark {
+
+	private static final int WIDTH = 40;
+	private static final int ROWS = 200000;
+	private static final int ROUNDS = 10;
+
+	public static void main(final String[] args) throws Exception {
+		final StringBuilder expression = new StringBuilder("(");
+		for (int i = 0; i < WIDTH; i++) {
+			expression.append(i == 0 ? "" : ",").append("director.name==Director").append(i);
+		}
+		expression.append(");director.awards.year=ge=2013");
+		final Random random = new Random(1);
+		final List<Movie> movies = new ArrayList<Movie>(ROWS);
+		for (int i = 0; i < ROWS; i++) {
+			final Movie movie = new Movie();
+			movie.setDirector(new Director());
+			movie.getDirector().setName("Director" + random.nextInt(WIDTH * 2));
+			movie.getDirector().setAwards(new Awards());
+			movie.getDirector().getAwards().setYear(2000 + random.nextInt(20));
+			movies.add(movie);
+		}
+		final EvaluationPlan<Movie> plan = (EvaluationPlan<Movie>) new ExtendableFiqlParser<Movie>(Movie.class).parse(expression
+				.toString());
+		final SearchCondition<Movie> tree = plan.getTree();
+		for (int round = 0; round < ROUNDS; round++) {
+			long t0 = System.nanoTime();
+			final int planned = plan.findAll(movies).size();
+			final long planNanos = System.nanoTime() - t0;
+			t0 = System.nanoTime();
+			final int walked = tree.findAll(movies).size();
+			final long treeNanos = System.nanoTime() - t0;
+			System.out.println(String.format("plan %,d us (%d)  tree %,d us (%d)", planNanos / 1000, planned, treeNanos / 1000, walked));
+		}
+	}
+}
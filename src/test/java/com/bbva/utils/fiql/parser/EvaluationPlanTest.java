@@ -0,0 +1,148 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EvaluationPlanTest {
+
+	private ExtendableFiqlParser<Order> parser;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new ExtendableFiqlParser<Order>(Order.class, new CompiledFilterCache(0));
+	}
+
+	@Test
+	public void testSharedPathsAreReadOnce() throws Exception {
+		final SearchCondition<Order> condition = parser
+				.parse("(customer.name==A*,customer.name==B*,customer.address.city==Madrid);customer.address.zip=ge=28000;amount=gt=10");
+		assertTrue(condition instanceof EvaluationPlan);
+		// customer, customer.name, customer.address, its city and zip, amount
+		assertEquals(6, ((EvaluationPlan<Order>) condition).getSlotCount());
+		final Order order = order("Carla", "Madrid", 28001, 20);
+		Customer.reads = 0;
+		Address.reads = 0;
+		assertTrue(condition.isMet(order));
+		assertEquals(1, Customer.reads);
+		assertEquals(1, Address.reads);
+	}
+
+	@Test
+	public void testTreesWithoutSharedPathsAreNotWrapped() throws Exception {
+		assertFalse(parser.parse("customer.name==A*;amount=gt=10") instanceof EvaluationPlan);
+	}
+
+	@Test
+	public void testSameResultsAsTree() throws Exception {
+		final Random random = new Random(5);
+		final List<Order> orders = new ArrayList<Order>();
+		for (int i = 0; i < 1000; i++) {
+			orders.add(random.nextInt(10) == 0 ? new Order() : order(random.nextBoolean() ? "Ana" : "Bea",
+					random.nextBoolean() ? "Madrid" : null, 27990 + random.nextInt(20), random.nextInt(30)));
+		}
+		final String[] expressions = { "customer.name==Ana,customer.name==Bea;customer.address.city==Mad*",
+				"(customer.address.zip=lt=28000,customer.address.zip=gt=28005);customer.address.city!=Madrid",
+				"customer.name==Ana;(amount=le=5,amount=ge=25;customer.address.zip=ge=28000)" };
+		for (final String expression : expressions) {
+			final EvaluationPlan<Order> plan = (EvaluationPlan<Order>) parser.parse(expression);
+			final SearchCondition<Order> tree = plan.getTree();
+			final List<Order> expected = new ArrayList<Order>();
+			for (final Order order : orders) {
+				if (tree.isMet(order)) {
+					expected.add(order);
+				}
+				assertEquals(tree.isMet(order), plan.isMet(order));
+			}
+			assertEquals(expected, plan.findAll(orders));
+		}
+	}
+
+	private static Order order(final String name, final String city, final int zip, final int amount) {
+		final Order order = new Order();
+		order.setAmount(amount);
+		order.setCustomer(new Customer());
+		order.getCustomer().setName(name);
+		order.getCustomer().setAddress(new Address());
+		order.getCustomer().getAddress().setCity(city);
+		order.getCustomer().getAddress().setZip(zip);
+		return order;
+	}
+
+	public static class Order {
+		private Customer customer;
+		private int amount;
+
+		public Customer getCustomer() {
+			Customer.reads++;
+			return customer;
+		}
+
+		public void setCustomer(final Customer customer) {
+			this.customer = customer;
+		}
+
+		public int getAmount() {
+			return amount;
+		}
+
+		public void setAmount(final int amount) {
+			this.amount = amount;
+		}
+	}
+
+	public static class Customer {
+		static int reads;
+
+		private String name;
+		private Address address;
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(final String name) {
+			this.name = name;
+		}
+
+		public Address getAddress() {
+			Address.reads++;
+			return address;
+		}
+
+		public void setAddress(final Address address) {
+			this.address = address;
+		}
+	}
+
+	public static class Address {
+		static int reads;
+
+		private String city;
+		private int zip;
+
+		public String getCity() {
+			return city;
+		}
+
+		public void setCity(final String city) {
+			this.city = city;
+		}
+
+		public int getZip() {
+			return zip;
+		}
+
+		public void setZip(final int zip) {
+			this.zip = zip;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.collections.Predicate;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Director;
+import com.bbva.utils.filter.model.Genres;
+import com.bbva.utils.filter.model.Movie;
+
+public class FiqlDialectTest {
+
+	private static final FiqlDialect DIALECT = FiqlDialect.getDefault().with(FiqlOperators.regex("=regex="),
+			FiqlOperators.between("=between="), FiqlOperators.in("=oneof="), FiqlOperators.out("=noneof="));
+
+	private List<Movie> movies;
+	private ExtendableFiqlParser<Movie> parser;
+
+	@Before
+	public void setUp() throws Exception {
+		movies = Arrays.asList(movie("Kill Bill", 2003, "Quentin", "action", "1000000"),
+				movie("Inception", 2010, "Christopher", "sci-fi", null), movie("Memento", 2000, "Christopher", "thriller", "9"),
+				movie("Alien", 1979, null, "sci-fi", "11"));
+		parser = new ExtendableFiqlParser<Movie>(Movie.class, new CompiledFilterCache(16));
+		parser.setDialect(DIALECT);
+	}
+
+	@Test
+	public void testNestedPropertiesAndRanges() throws Exception {
+		assertEquals(names("Inception", "Memento"), names(parser.parse("director.name==Chris*").findAll(movies)));
+		assertEquals(names("Kill Bill", "Alien"), names(parser.parse("director.name!=Chris*,genres.name==sci-fi;year=lt=2000")
+				.findAll(movies)));
+		// same property twice in a group
+		assertEquals(names("Kill Bill", "Memento"), names(parser.parse("year=ge=2000;year=lt=2010").findAll(movies)));
+		assertEquals(names("Alien"), names(parser.parse("budget=gt=10;budget=lt=12").findAll(movies)));
+	}
+
+	@Test
+	public void testCustomOperators() throws Exception {
+		assertEquals(names("Kill Bill", "Memento"), names(parser.parse("name=regex=[KM].*").findAll(movies)));
+		assertEquals(names("Kill Bill", "Inception", "Memento"), names(parser.parse("year=between=(2000,2010)").findAll(movies)));
+		assertEquals(names("Inception", "Alien"), names(parser.parse("genres.name=oneof=(sci-fi,horror)").findAll(movies)));
+		// value set into the template whenever it converts to the property type
+		assertEquals("(sci-fi,horror)", ((Movie) parser.getBean()).getGenres().getName());
+		assertEquals(names("Kill Bill", "Memento"), names(parser.parse("genres.name=noneof=(sci-fi,horror)").findAll(movies)));
+		assertEquals(names("Kill Bill"), names(parser.parse("year=oneof=(2003,1984);genres.name=regex=act.*").findAll(movies)));
+	}
+
+	@Test
+	public void testRegexWorkIsBounded() throws Exception {
+		final ExtendableFiqlParser<Movie> bounded = new ExtendableFiqlParser<Movie>(Movie.class, new CompiledFilterCache(0));
+		bounded.setDialect(FiqlDialect.getDefault().with(FiqlOperators.regex("=regex=", 16, 10000)));
+		final Movie movie = movie("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!", 2000, null, "action", null);
+		// backtracks exponentially, unless given up
+		assertFalse(bounded.parse("name=regex=(a+)+b").isMet(movie));
+		assertTrue(bounded.parse("name=regex=a+!").isMet(movie));
+		try {
+			bounded.parse("name=regex=aaaaaaaaaaaaaaaaa");
+			fail();
+		} catch (final FiqlParseException e) {
+			// longer than 16
+		}
+	}
+
+	@Test
+	public void testInvalidOperands() throws Exception {
+		for (final String expression : new String[] { "name=regex=[K", "year=between=(2000)", "year=between=(2000,x)",
+				"year=oneof=(2000,,2001)", "year=near=1" }) {
+			try {
+				parser.parse(expression);
+				fail(expression + " should not parse");
+			} catch (final FiqlParseException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testDialectsAreIsolated() throws Exception {
+		final ExtendableFiqlParser<Movie> global = new ExtendableFiqlParser<Movie>(Movie.class, new CompiledFilterCache(16));
+		assertNull(global.getDialect().getOperator("=regex="));
+		try {
+			global.parse("name=regex=K.*");
+			fail("=regex= is not global");
+		} catch (final FiqlParseException e) {
+			// expected
+		}
+		final FiqlDialect more = DIALECT.with(FiqlOperators.comparison("=eq=", ConditionType.EQUALS));
+		assertNotSame(DIALECT, more);
+		assertNull(DIALECT.getOperator("=eq="));
+		try {
+			DIALECT.with(FiqlOperators.in("=regex="));
+			fail("operators can not be overwritten");
+		} catch (final UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCacheIsPerDialect() throws Exception {
+		final CompiledFilterCache cache = new CompiledFilterCache(16);
+		final ExtendableFiqlParser<Movie> p1 = new ExtendableFiqlParser<Movie>(Movie.class, cache);
+		final ExtendableFiqlParser<Movie> p2 = new ExtendableFiqlParser<Movie>(Movie.class, cache);
+		p1.setDialect(FiqlDialect.getDefault().with(FiqlOperators.comparison("=x=", ConditionType.EQUALS)));
+		p2.setDialect(FiqlDialect.getDefault());
+		// "=x=" splits the expression only for the first dialect
+		assertEquals("name", p1.compile("name=x=a").name(0));
+		try {
+			p2.compile("name=x=a");
+			fail("=x= is unknown to the default dialect");
+		} catch (final FiqlParseException e) {
+			// expected
+		}
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testLegacyCustomOperatorIsRejectedWhenBuilt() throws Exception {
+		ExtendableFiqlParser.addOperator("=legacy=", ConditionType.CUSTOM);
+		final ExtendableFiqlParser<Movie> legacy = new ExtendableFiqlParser<Movie>(Movie.class, new CompiledFilterCache(16));
+		try {
+			legacy.parse("name=legacy=x");
+			fail("CUSTOM operators have no semantics");
+		} catch (final FiqlParseException e) {
+			// expected
+		}
+		try {
+			legacy.compile("name=legacy=x");
+			fail("CUSTOM operators have no semantics");
+		} catch (final FiqlParseException e) {
+			// expected
+		}
+		assertFalse(legacy.validate("name=legacy=x").isValid());
+	}
+
+	@Test
+	public void testRegisterKeepsCachedExpressionsOfOtherDialects() throws Exception {
+		final ExtendableFiqlParser<Movie> shared = new ExtendableFiqlParser<Movie>(Movie.class);
+		shared.setDialect(DIALECT);
+		shared.compile("name=regex=K.*");
+		FiqlDialect.register(FiqlOperators.between("=registered="));
+		assertNotNull(CompiledFilterCache.getShared().get(Movie.class, DIALECT, ParseLimits.getDefault(), "name=regex=K.*"));
+	}
+
+	@Test
+	public void testRegisterWhileParsing() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+			for (int t = 0; t < 3; t++) {
+				tasks.add(new Callable<Integer>() {
+					public Integer call() throws Exception {
+						int matches = 0;
+						for (int i = 0; i < 2000; i++) {
+							matches += new ExtendableFiqlParser<Movie>(Movie.class).parse("year=ge=2000;name==*e*").findAll(movies)
+									.size();
+						}
+						return matches;
+					}
+				});
+			}
+			tasks.add(new Callable<Integer>() {
+				public Integer call() {
+					for (int i = 0; i < 200; i++) {
+						FiqlDialect.register(new FiqlOperator("=concurrent" + i + "=", ConditionType.CUSTOM) {
+							@Override
+							public Predicate compile(final Object operand, final Class<?> propertyType) {
+								return null;
+							}
+						});
+					}
+					return 0;
+				}
+			});
+			final List<Future<Integer>> futures = executor.invokeAll(tasks);
+			for (int t = 0; t < 3; t++) {
+				assertEquals(Integer.valueOf(2000 * 2), futures.get(t).get());
+			}
+			futures.get(3).get();
+		} finally {
+			executor.shutdown();
+		}
+		for (int i = 0; i < 200; i++) {
+			assertTrue(FiqlDialect.getGlobal().getOperator("=concurrent" + i + "=") != null);
+		}
+		assertFalse(FiqlDialect.getDefault().getOperator("=concurrent0=") != null);
+	}
+
+	private static Movie movie(final String name, final int year, final String director, final String genre, final String budget) {
+		final Movie movie = new Movie();
+		movie.setName(name);
+		movie.setYear(year);
+		if (director != null) {
+			movie.setDirector(new Director());
+			movie.getDirector().setName(director);
+		}
+		movie.setGenres(new Genres());
+		movie.getGenres().setName(genre);
+		movie.setBudget(budget == null ? null : new BigDecimal(budget));
+		return movie;
+	}
+
+	private static List<String> names(final String... names) {
+		return Arrays.asList(names);
+	}
+
+	private static List<String> names(final List<Movie> movies) {
+		final List<String> names = new ArrayList<String>();
+		for (final Movie movie : movies) {
+			names.add(movie.getName());
+		}
+		return names;
+	}
+}
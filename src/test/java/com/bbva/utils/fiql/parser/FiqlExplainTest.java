@@ -0,0 +1,71 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Director;
+import com.bbva.utils.filter.model.Movie;
+
+public class FiqlExplainTest {
+
+	private ExtendableFiqlParser<Movie> parser;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new ExtendableFiqlParser<Movie>(Movie.class, new CompiledFilterCache(0));
+	}
+
+	@Test
+	public void testExplain() throws Exception {
+		final String explain = parser.explain("director.name==Chris*,director.name==Quentin*;year=ge=2000");
+		final String[] lines = explain.split("\n");
+		assertEquals(6, lines.length);
+		assertEquals("PLAN shared paths, 3 slots", lines[0]);
+		assertEquals("  OR", lines[1]);
+		assertEquals("    director.name==Chris* [String, == EQUALS, operand String, compiled predicate]", lines[2]);
+		assertEquals("    AND", lines[3]);
+		assertEquals("      year=ge=2000 [int, =ge= GREATER_OR_EQUALS, operand Integer, compiled predicate]", lines[5]);
+	}
+
+	@Test
+	public void testExplainLazyCondition() throws Exception {
+		final String explain = FiqlExplain.explain(parser.toSearchCondition(parser.compile("year=lt=1990")));
+		assertTrue(explain, explain.startsWith("LAZY built for explain\n  year=lt=1990 [int"));
+	}
+
+	@Test
+	public void testAnalyze() throws Exception {
+		final List<Movie> movies = new ArrayList<Movie>();
+		for (int i = 0; i < 100; i++) {
+			final Movie movie = new Movie();
+			movie.setYear(1950 + i);
+			movie.setDirector(new Director());
+			movie.getDirector().setName(i % 4 == 0 ? "Christopher" : "Quentin");
+			movies.add(movie);
+		}
+		final SearchCondition<Movie> condition = parser.parse("year=ge=2000;director.name==Chris*");
+		final FiqlExplain.Analysis<Movie> analysis = FiqlExplain.analyze(condition, movies);
+		assertEquals(condition.findAll(movies), analysis.getMatches());
+		assertEquals(100, analysis.getRows());
+		final List<FiqlExplain.NodeStats> nodes = analysis.getNodes();
+		assertEquals(3, nodes.size());
+		assertEquals("AND", nodes.get(0).getDescription());
+		assertEquals(100, nodes.get(0).getInvocations());
+		assertEquals(12, nodes.get(0).getPasses());
+		// the name is only compared for the 50 movies since 2000
+		assertEquals(100, nodes.get(1).getInvocations());
+		assertEquals(0.5, nodes.get(1).getPassRate(), 0);
+		assertEquals(50, nodes.get(2).getInvocations());
+		assertEquals(12, nodes.get(2).getPasses());
+		assertTrue(nodes.get(0).getNanos() >= nodes.get(1).getNanos());
+		assertTrue(analysis.toString(), analysis.toString().contains("  year=ge=2000 [int, =ge= GREATER_OR_EQUALS, operand Integer, "
+				+ "compiled predicate] (calls=100, passed=50 50.0%"));
+	}
+}
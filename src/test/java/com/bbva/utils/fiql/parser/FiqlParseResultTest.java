@@ -0,0 +1,168 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Movie;
+import com.bbva.utils.fiql.parser.FiqlLimitExceededException.Limit;
+import com.bbva.utils.fiql.parser.FiqlParseResult.Error;
+
+public class FiqlParseResultTest {
+
+	private CompiledFilterCache cache;
+	private ExtendableFiqlParser<Movie> parser;
+
+	@Before
+	public void setUp() throws Exception {
+		cache = new CompiledFilterCache(16);
+		parser = new ExtendableFiqlParser<Movie>(Movie.class, cache);
+	}
+
+	private void assertRejected(final String expression, final Error error, final int position) {
+		final FiqlParseResult<Movie> result = parser.tryParse(expression);
+		assertFalse(result.isValid());
+		assertEquals(error, result.getError());
+		assertEquals(position, result.getPosition());
+		assertNull(result.getCondition());
+		try {
+			parser.parse(expression);
+			fail(expression);
+		} catch (final FiqlParseException e) {
+			// same message as the exception parse throws
+			assertEquals(e.getMessage(), result.getMessage());
+		}
+	}
+
+	@Test
+	public void testGrammarErrorsAreReported() throws Exception {
+		assertRejected("", Error.EMPTY_EXPRESSION, 0);
+		assertRejected("year=gt=2003)", Error.UNEXPECTED_CLOSING_BRACKET, 12);
+		assertRejected("(year=gt=2003", Error.UNMATCHED_BRACKETS, 0);
+		assertRejected("(year=gt=2003)x", Error.UNEXPECTED_CHARACTER, 14);
+		assertRejected("year=gt=2003;", Error.DANGLING_OPERATOR, 13);
+		assertRejected("year=gt=2003;name", Error.NOT_A_COMPARISON, 13);
+	}
+
+	@Test
+	public void testSelectorsAndValuesAreChecked() throws Exception {
+		FiqlParseResult<Movie> result = parser.tryParse("year=gt=2003;title==Heat");
+		assertEquals(Error.UNKNOWN_SELECTOR, result.getError());
+		assertEquals(13, result.getPosition());
+		assertEquals("Unknown selector 'title' at position 13", result.getMessage());
+		result = parser.validate("name==Heat;director.nickname==Mike");
+		assertEquals(Error.UNKNOWN_SELECTOR, result.getError());
+		assertEquals(11, result.getPosition());
+
+		result = parser.tryParse("name==Heat;year=gt=late");
+		assertEquals(Error.INVALID_VALUE, result.getError());
+		assertEquals(19, result.getPosition());
+		assertTrue(result.getMessage(), result.getMessage().contains("late"));
+		assertEquals(result.getMessage(), result.toException().getMessage());
+	}
+
+	@Test
+	public void testValuesOfReflectiveModelsAreChecked() throws Exception {
+		final ExtendableFiqlParser<Project> projects = new ExtendableFiqlParser<Project>(Project.class, cache);
+		assertTrue(projects.tryParse("budget=gt=10.5;name==Apollo").isValid());
+		// positions are those of the term which fails, not of a former one
+		// alike
+		final FiqlParseResult<Project> result = projects.tryParse("budget==abc,budget==abc;name==x");
+		assertEquals(Error.INVALID_VALUE, result.getError());
+		assertEquals(8, result.getPosition());
+		assertTrue(result.getMessage(), result.getMessage().contains("abc"));
+		try {
+			projects.parse("budget==abc,budget==abc;name==x");
+			fail();
+		} catch (final FiqlParseException e) {
+			assertEquals(e.getMessage(), result.getMessage());
+		}
+		assertEquals(Error.UNKNOWN_SELECTOR, projects.tryParse("name==a,name==b;name==a,nam==b").getError());
+		assertEquals(24, projects.tryParse("name==a,name==b;name==a,nam==b").getPosition());
+	}
+
+	@Test
+	public void testLimitsAreReported() throws Exception {
+		parser.setLimits(ParseLimits.getDefault().withMaxTerms(2));
+		final FiqlParseResult<Movie> result = parser.tryParse("year=gt=2003;year=lt=2010;name==a");
+		assertEquals(Error.LIMIT_EXCEEDED, result.getError());
+		assertEquals(Limit.TERMS, result.getLimit());
+		assertEquals(26, result.getPosition());
+		final FiqlLimitExceededException e = (FiqlLimitExceededException) result.toException();
+		assertEquals(Limit.TERMS, e.getLimit());
+		assertEquals(result.getMessage(), e.getMessage());
+		// not cached, a parser with other limits may accept it
+		assertEquals(0, cache.rejectedSize());
+		parser.setLimits(ParseLimits.getDefault());
+		assertTrue(parser.tryParse("year=gt=2003;year=lt=2010;name==a").isValid());
+	}
+
+	@Test
+	public void testRejectionsAreCached() throws Exception {
+		final FiqlParseResult<Movie> result = parser.tryParse("year=gt=2003;title==Heat");
+		assertEquals(1, cache.rejectedSize());
+		assertSame(result, parser.tryParse("year=gt=2003;title==Heat"));
+		assertSame(result, parser.validate("year=gt=2003;title==Heat"));
+		assertEquals(0, cache.size());
+		cache.clear();
+		assertEquals(0, cache.rejectedSize());
+	}
+
+	@Test
+	public void testValidExpressions() throws Exception {
+		final FiqlParseResult<Movie> validated = parser.validate("name==Heat;year=gt=1990");
+		assertTrue(validated.isValid());
+		assertNull(validated.getCondition());
+		assertEquals(-1, validated.getPosition());
+		assertEquals(1, cache.size());
+
+		final FiqlParseResult<Movie> parsed = parser.tryParse("name==Heat;year=gt=1990");
+		assertTrue(parsed.isValid());
+		assertNull(parsed.getError());
+		assertNull(parsed.getMessage());
+		final Movie heat = new Movie();
+		heat.setName("Heat");
+		heat.setYear(1995);
+		assertTrue(parsed.getCondition().isMet(heat));
+		assertEquals("Heat", ((Movie) parser.getBean()).getName());
+		try {
+			parsed.toException();
+			fail();
+		} catch (final IllegalStateException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Model without a generated one, read by reflection.
+	 */
+	public static class Project {
+		private String name;
+		private BigDecimal budget;
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(final String name) {
+			this.name = name;
+		}
+
+		public BigDecimal getBudget() {
+			return budget;
+		}
+
+		public void setBudget(final BigDecimal budget) {
+			this.budget = budget;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FiqlProgramTest {
+
+	private ExtendableFiqlParser<Account> parser;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new ExtendableFiqlParser<Account>(Account.class, new CompiledFilterCache(0));
+		parser.setInterner(null);
+		parser.setEngine(FiqlEngine.INTERPRETED);
+	}
+
+	@Test
+	public void testLowering() throws Exception {
+		final FiqlProgram<Account> program = (FiqlProgram<Account>) parser.parse("owner==Ana*;(age=ge=18,balance=lt=100)");
+		assertEquals("0: LOAD r0 owner\n" //
+				+ "1: CMP_STR r0 STARTS 'Ana'\n" //
+				+ "2: JUMP_IF_FALSE 8\n" //
+				+ "3: LOAD r1 age\n" //
+				+ "4: CMP_INT r1 GE 18\n" //
+				+ "5: JUMP_IF_TRUE 8\n" //
+				+ "6: LOAD r2 balance\n" //
+				+ "7: CMP_LONG r2 LT 100\n", program.disassemble());
+	}
+
+	@Test
+	public void testLoadsAlwaysRunBeforeAreLeftOut() throws Exception {
+		final FiqlProgram<Account> program = (FiqlProgram<Account>) parser
+				.parse("branch.city!=Madrid;(branch.city==*id,branch.code=gt=3);tags==vip");
+		// branch and branch.city loaded once, branch.code under the OR
+		assertEquals(3, program.getRegisterCount());
+		assertEquals("0: LOAD r0 branch\n" //
+				+ "1: LOAD r1 branch.city\n" //
+				+ "2: CMP_STR r1 NOT_EXACT 'Madrid'\n" //
+				+ "3: JUMP_IF_FALSE 10\n" //
+				+ "4: CMP_STR r1 ENDS 'id'\n" //
+				+ "5: JUMP_IF_TRUE 8\n" //
+				+ "6: LOAD r2 branch.code\n" //
+				+ "7: CMP_INT r2 GT 3\n" //
+				+ "8: JUMP_IF_FALSE 10\n" //
+				+ "9: EVAL #0 tags==vip\n", program.disassemble());
+	}
+
+	@Test
+	public void testSameResultsAsTree() throws Exception {
+		final Random random = new Random(7);
+		final List<Account> accounts = new ArrayList<Account>();
+		final String[] owners = { "Ana", "Anabel", "Bea", null };
+		final String[] cities = { "Madrid", "Valladolid", "Bilbao", null };
+		for (int i = 0; i < 1000; i++) {
+			final Account account = new Account();
+			account.setOwner(owners[random.nextInt(owners.length)]);
+			account.setAge(random.nextInt(80));
+			account.setBalance(random.nextInt(1000) - 500L);
+			account.setRate(new BigDecimal(random.nextInt(10)).movePointLeft(1));
+			if (random.nextInt(5) > 0) {
+				account.setBranch(new Branch());
+				account.getBranch().setCity(cities[random.nextInt(cities.length)]);
+				account.getBranch().setCode(random.nextInt(10));
+			}
+			account.setTags(random.nextBoolean() ? Arrays.asList("vip", "new") : Arrays.asList("new"));
+			accounts.add(account);
+		}
+		final String[] expressions = { "owner==Ana", "owner!=Ana*;age=lt=30", "owner==*bel,owner==*e*;balance=ge=0",
+				"branch.city==*id;(branch.code=le=4,age=gt=65)", "(age==40,age!=41;balance!=-3),branch.city!=Bilbao",
+				"rate=gt=0.5;tags==vip", "balance=lt=-100,balance=gt=100;(branch.code==3,owner==Bea)" };
+		final ExtendableFiqlParser<Account> compiled = new ExtendableFiqlParser<Account>(Account.class, new CompiledFilterCache(0));
+		for (final String expression : expressions) {
+			final SearchCondition<Account> tree = compiled.parse(expression);
+			final SearchCondition<Account> program = parser.parse(expression);
+			assertTrue(expression, program instanceof FiqlProgram);
+			final List<Account> expected = new ArrayList<Account>();
+			for (final Account account : accounts) {
+				if (tree.isMet(account)) {
+					expected.add(account);
+				}
+				assertEquals(expression, tree.isMet(account), program.isMet(account));
+			}
+			assertFalse(expression, expected.isEmpty());
+			assertEquals(expression, expected, program.findAll(accounts));
+		}
+	}
+
+	@Test
+	public void testEngineIsSelectedPerParser() throws Exception {
+		final ConditionInterner interner = new ConditionInterner();
+		final ExtendableFiqlParser<Account> compiled = new ExtendableFiqlParser<Account>(Account.class);
+		compiled.setInterner(interner);
+		parser.setInterner(interner);
+		assertEquals(FiqlEngine.COMPILED, compiled.getEngine());
+		assertFalse(compiled.parse("owner==Ana;age=gt=3") instanceof FiqlProgram);
+		assertTrue(parser.parse("owner==Ana;age=gt=3") instanceof FiqlProgram);
+		assertTrue(FiqlExplain.explain(parser.parse("owner==Ana;age=gt=3")).startsWith("PROGRAM 5 instructions, 2 registers\n"));
+		try {
+			parser.setEngine(null);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public static class Account {
+		private String owner;
+		private int age;
+		private long balance;
+		private BigDecimal rate;
+		private Branch branch;
+		private List<String> tags;
+
+		public String getOwner() {
+			return owner;
+		}
+
+		public void setOwner(final String owner) {
+			this.owner = owner;
+		}
+
+		public int getAge() {
+			return age;
+		}
+
+		public void setAge(final int age) {
+			this.age = age;
+		}
+
+		public long getBalance() {
+			return balance;
+		}
+
+		public void setBalance(final long balance) {
+			this.balance = balance;
+		}
+
+		public BigDecimal getRate() {
+			return rate;
+		}
+
+		public void setRate(final BigDecimal rate) {
+			this.rate = rate;
+		}
+
+		public Branch getBranch() {
+			return branch;
+		}
+
+		public void setBranch(final Branch branch) {
+			this.branch = branch;
+		}
+
+		public List<String> getTags() {
+			return tags;
+		}
+
+		public void setTags(final List<String> tags) {
+			this.tags = tags;
+		}
+	}
+
+	public static class Branch {
+		private String city;
+		private int code;
+
+		public String getCity() {
+			return city;
+		}
+
+		public void setCity(final String city) {
+			this.city = city;
+		}
+
+		public int getCode() {
+			return code;
+		}
+
+		public void setCode(final int code) {
+			this.code = code;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Awards;
+import com.bbva.utils.filter.model.Genres;
+import com.bbva.utils.filter.model.Movie;
+
+public class FiqlWarmupTest {
+
+	private static final String QUERY_STRING_1 = "director.awards.year=ge=2013";
+	private static final String QUERY_STRING_2 = "genres.name==sci-fi;year=ge=2000";
+
+	@Before
+	public void setUp() throws Exception {
+		ClassModel.clear();
+		CompiledFilterCache.getShared().clear();
+	}
+
+	@Test
+	public void testPackageScan() throws Exception {
+		final FiqlWarmup.Result result = new FiqlWarmup().addPackage("com.bbva.utils.filter.model").run();
+		assertEquals(5, result.getClasses());
+		assertTrue(result.getFailures().isEmpty());
+		assertTrue(ClassModel.isCached(Genres.class));
+		assertTrue(ClassModel.isCached(Awards.class));
+		assertTrue(ClassModel.of(Movie.class).getResolvedPaths().contains("director.awards.grantor"));
+		// accessors used by parsing are resolved too
+		assertTrue(ClassModel.of(Movie.class).hasPath("director.awards.grantor"));
+	}
+
+	@Test
+	public void testPackageScanOfDirectoryWithReservedCharacters() throws Exception {
+		final File root = new File(System.getProperty("java.io.tmpdir"), "fiql warmup+" + System.nanoTime());
+		final File dir = new File(root, "com/bbva/utils/filter/model");
+		assertTrue(dir.mkdirs());
+		try {
+			assertTrue(new File(dir, "Genres.class").createNewFile());
+			final URL url = root.toURI().toURL();
+			final ClassLoader loader = new ClassLoader(getClass().getClassLoader()) {
+				@Override
+				public Enumeration<URL> getResources(final String name) throws IOException {
+					return Collections.enumeration(Collections.singletonList(new URL(url, name)));
+				}
+			};
+			final FiqlWarmup.Result result = new FiqlWarmup().setClassLoader(loader).addPackage("com.bbva.utils.filter.model")
+					.run();
+			assertEquals(1, result.getClasses());
+			assertTrue(ClassModel.isCached(Genres.class));
+		} finally {
+			new File(dir, "Genres.class").delete();
+			for (File file = dir; !file.equals(root.getParentFile()); file = file.getParentFile()) {
+				file.delete();
+			}
+		}
+	}
+
+	@Test
+	public void testParallelPrecompilation() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final FiqlWarmup.Result result = new FiqlWarmup().addFilters(Movie.class, QUERY_STRING_1, QUERY_STRING_2, "year=ge=")
+					.run(executor);
+			assertEquals(1, result.getClasses());
+			assertEquals(2, result.getFilters());
+			assertEquals(1, result.getFailures().size());
+			assertNotNull(result.getFailures().get("year=ge="));
+			assertNotNull(CompiledFilterCache.getShared().get(Movie.class, QUERY_STRING_1));
+			assertNotNull(CompiledFilterCache.getShared().get(Movie.class, QUERY_STRING_2));
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Actor;
+import com.bbva.utils.filter.model.Awards;
+import com.bbva.utils.filter.model.Director;
+import com.bbva.utils.filter.model.Movie;
+
+public class GeneratedModelTest {
+
+	@Test
+	public void testModelsAreGeneratedForSearchableClassesOnly() throws Exception {
+		final GeneratedModel<Movie> model = GeneratedModel.of(Movie.class);
+		assertNotNull(model);
+		assertSame(model, GeneratedModel.of(Movie.class));
+		assertEquals(Movie.class, model.getType());
+		assertTrue(model.getPropertyNames().contains("distributionDate"));
+		assertEquals(int.class, model.getPropertyType(model.indexOf("year")));
+		assertEquals("distribution_date", model.getColumns().get("distributionDate"));
+		assertEquals("year", model.getColumns().get("year"));
+		assertFalse(model.getColumns().containsKey("class"));
+		assertNull(GeneratedModel.of(Actor.class));
+		assertNull(GeneratedModel.of(String.class));
+	}
+
+	@Test
+	public void testColumnsAreUsedInSql() throws Exception {
+		final ExtendableFiqlParser<Movie> parser = new ExtendableFiqlParser<Movie>(Movie.class, new CompiledFilterCache(0));
+		assertEquals("SELECT * FROM movies WHERE (distribution_date = '2010-01-01') AND (year > '2003')",
+				parser.parse("distributionDate==2010-01-01;year=gt=2003").toSQL("movies"));
+	}
+
+	@Test
+	public void testReflectiveAccessorsAreNamedByTheirPrefixOnly() throws Exception {
+		// setters used to lose every "is" and "set" of their name, so setPrecision named "precon"
+		assertEquals("precision", ClassModel.propertyName("setPrecision"));
+		assertEquals("island", ClassModel.propertyName("setIsland"));
+		assertEquals("precision", ClassModel.propertyName("isPrecision"));
+		final ClassModel model = ClassModel.of(Gauge.class);
+		assertEquals(2, model.getSetters().size());
+		assertTrue(model.getSetters().containsKey("precision"));
+		assertTrue(model.getSetters().containsKey("settings"));
+		assertEquals(int.class, model.getPropertyType("precision"));
+	}
+
+	@Test
+	public void testAccessorsAndConverters() throws Exception {
+		final GeneratedModel<Movie> model = GeneratedModel.of(Movie.class);
+		final Movie movie = model.newInstance();
+		assertTrue(model.set(movie, "director.awards.year", 2001));
+		assertEquals(2001, movie.getDirector().getAwards().getYear());
+		assertEquals(2001, model.get(movie, "director.awards.year"));
+		assertTrue(model.set(movie, model.indexOf("name"), "Memento"));
+		assertEquals("Memento", model.get(movie, model.indexOf("name")));
+		assertNull(model.get(new Movie(), "director.name"));
+		// Actor is not searchable, left to reflection
+		assertFalse(model.set(movie, "actor.name", "Guy"));
+		assertFalse(model.set(movie, "unknown", "x"));
+		assertEquals(2001, model.convert(model.indexOf("year"), "2001"));
+		assertEquals(new BigDecimal("9.5"), model.convert(model.indexOf("budget"), "9.5"));
+		assertSame(GeneratedModel.UNCONVERTED, model.convert(model.indexOf("director"), "x"));
+		try {
+			model.convert(model.indexOf("year"), "soon");
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testPathsReadThroughGeneratedModels() throws Exception {
+		for (final Getter getter : ClassModel.of(Movie.class).getPath("director.awards.year").getAccessors()) {
+			assertTrue(getter.toString(), getter.isGenerated());
+		}
+		final Getter[] actor = ClassModel.of(Movie.class).getPath("actor.name").getAccessors();
+		assertTrue(actor[0].isGenerated());
+		assertFalse(actor[1].isGenerated());
+
+		final List<Movie> movies = new ArrayList<Movie>();
+		for (int i = 0; i < 50; i++) {
+			final Movie movie = new Movie();
+			movie.setYear(1990 + i);
+			movie.setActor(new Actor());
+			movie.getActor().setName(i % 2 == 0 ? "Guy" : "Carrie");
+			if (i % 5 > 0) {
+				movie.setDirector(new Director());
+				movie.getDirector().setAwards(new Awards());
+				movie.getDirector().getAwards().setYear(2000 + i % 10);
+			}
+			movies.add(movie);
+		}
+		final ExtendableFiqlParser<Movie> parser = new ExtendableFiqlParser<Movie>(Movie.class);
+		final SearchCondition<Movie> condition = parser.parse("director.awards.year=ge=2005;actor.name==Guy,year=lt=1992");
+		final List<Movie> expected = new ArrayList<Movie>();
+		for (final Movie movie : movies) {
+			final boolean awarded = movie.getDirector() != null && movie.getDirector().getAwards().getYear() >= 2005;
+			if (awarded && movie.getActor().getName().equals("Guy") || movie.getYear() < 1992) {
+				expected.add(movie);
+			}
+		}
+		assertEquals(expected, condition.findAll(movies));
+	}
+
+	@Test
+	public void testTemplatesAndLiteralsUseGeneratedModels() throws Exception {
+		final ExtendableFiqlParser<Movie> parser = new ExtendableFiqlParser<Movie>(Movie.class);
+		parser.parse("director.awards.year=ge=2000");
+		assertEquals(2000, ((Movie) parser.getBean()).getDirector().getAwards().getYear());
+		try {
+			parser.parse("year=ge=soon");
+			fail();
+		} catch (final FiqlParseException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("soon"));
+		}
+	}
+
+	public static class Gauge {
+		private int precision;
+		private String settings;
+
+		public int getPrecision() {
+			return precision;
+		}
+
+		public void setPrecision(final int precision) {
+			this.precision = precision;
+		}
+
+		public String getSettings() {
+			return settings;
+		}
+
+		public void setSettings(final String settings) {
+			this.settings = settings;
+		}
+	}
+}
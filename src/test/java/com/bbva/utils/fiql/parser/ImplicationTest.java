@@ -0,0 +1,100 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Genres;
+import com.bbva.utils.filter.model.Movie;
+
+public class ImplicationTest {
+
+	private static final FiqlDialect DIALECT = FiqlDialect.getDefault().with(FiqlOperators.in("=in="), FiqlOperators.out("=out="),
+			FiqlOperators.between("=between="), FiqlOperators.regex("=regex="));
+
+	private ExtendableFiqlParser<Movie> parser;
+
+	@Before
+	public void setUp() {
+		parser = new ExtendableFiqlParser<Movie>(Movie.class);
+		parser.setDialect(DIALECT);
+	}
+
+	private boolean implies(final String narrow, final String broad) throws FiqlParseException {
+		return Implication.implies(parser.parse(narrow), parser.parse(broad));
+	}
+
+	@Test
+	public void testRanges() throws Exception {
+		assertTrue(implies("year=ge=2005", "year=ge=2000"));
+		assertTrue(implies("year=gt=2000", "year=ge=2000"));
+		assertFalse(implies("year=ge=2000", "year=gt=2000"));
+		assertTrue(implies("year=between=(2001,2004)", "year=gt=2000;year=lt=2005"));
+		assertFalse(implies("year=between=(2001,2005)", "year=gt=2000;year=lt=2005"));
+		assertTrue(implies("year=lt=1990", "year!=1995"));
+		assertTrue(implies("year=lt=1990", "year=out=(1990,1995)"));
+		assertFalse(implies("year=le=1990", "year=out=(1990,1995)"));
+		assertFalse(implies("year=ge=2000", "year=le=2010"));
+		assertFalse(implies("year=ge=2000", "budget=ge=1"));
+	}
+
+	@Test
+	public void testEqualitiesAndSets() throws Exception {
+		assertTrue(implies("year==2003", "year=ge=2000"));
+		assertTrue(implies("year=in=(2003,2004)", "year=between=(2000,2004)"));
+		assertFalse(implies("year=in=(2003,2005)", "year=between=(2000,2004)"));
+		assertTrue(implies("name==Memento", "name==Mem*"));
+		assertTrue(implies("name==Memento", "name=regex=M.*o"));
+		assertTrue(implies("name=in=(Memento,Tenet)", "name=out=(Alien)"));
+		assertFalse(implies("name==Mem*", "name==Memento"));
+		assertTrue(implies("name=out=(Alien,Tenet)", "name!=Alien"));
+		assertFalse(implies("name!=Alien", "name=out=(Alien,Tenet)"));
+		assertTrue(implies("name==Mem*", "name==Mem*"));
+	}
+
+	@Test
+	public void testConjunctionsAndDisjunctions() throws Exception {
+		assertTrue(implies("year=ge=2005;genres.name==sci-fi", "year=ge=2000"));
+		assertTrue(implies("year=ge=2005;genres.name==sci-fi", "genres.name==sci-fi;year=gt=2000"));
+		assertFalse(implies("year=ge=2000", "year=ge=2005;genres.name==sci-fi"));
+		assertTrue(implies("year==2001,year==2002", "year=between=(2000,2010)"));
+		assertFalse(implies("year==2001,name==Alien", "year=between=(2000,2010)"));
+		assertTrue(implies("name==Alien", "year=ge=2000,name==Alien"));
+		assertTrue(implies("(year==2001,year==2002);name==Alien", "year=ge=2000,name==Tenet"));
+	}
+
+	@Test
+	public void testImpliedConditionsMatchSubsets() throws Exception {
+		final String[] conditions = { "year=ge=2005;genres.name==sci-fi", "year=ge=2000", "year=between=(2001,2004)",
+				"year=gt=2000;year=lt=2005", "year=lt=2003", "year!=2002", "year=in=(2003,2004)", "genres.name=out=(drama)",
+				"genres.name==sci-fi", "genres.name==sci*", "year=le=2002,genres.name==drama" };
+		final String[] genres = { "sci-fi", "drama", "science" };
+		final List<Movie> movies = new ArrayList<Movie>();
+		for (int i = 0; i < 60; i++) {
+			final Movie movie = new Movie();
+			movie.setYear(1998 + i % 10);
+			movie.setGenres(new Genres());
+			movie.getGenres().setName(genres[i % 3]);
+			movies.add(movie);
+		}
+		int implied = 0;
+		for (final String narrow : conditions) {
+			for (final String broad : conditions) {
+				if (implies(narrow, broad)) {
+					implied++;
+					assertTrue(narrow + " => " + broad,
+							parser.parse(broad).findAll(movies).containsAll(parser.parse(narrow).findAll(movies)));
+				}
+			}
+		}
+		assertTrue(String.valueOf(implied), implied > conditions.length);
+		assertEquals(parser.parse("year=ge=2000").findAll(movies).size(), 48);
+	}
+}
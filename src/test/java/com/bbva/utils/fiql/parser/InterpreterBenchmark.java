@@ -0,0 +1,64 @@
+package com.bbva.utils.fiql.parser;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+
+import com.bbva.utils.filter.model.Movie;
+
+/**
+ * Compares the same filter evaluated by a {@link FiqlProgram}, by the tree
+ * of compiled predicates a parser builds by default and by reflective
+ * evaluation of a template with {@link ExtendedSearchCondition}.
+ * <p/>
+ * Run with test classpath, e.g.
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.bbva.utils.fiql.parser.InterpreterBenchmark</code>
+ */
+public class InterpreterBenchmark {
+
+	private static final int ROWS = 200000;
+	private static final int ROUNDS = 10;
+
+	public static void main(final String[] args) throws Exception {
+		final String expression = "year=ge=1990;name!=Movie7";
+		final Random random = new Random(1);
+		final List<Movie> movies = new ArrayList<Movie>(ROWS);
+		for (int i = 0; i < ROWS; i++) {
+			final Movie movie = new Movie();
+			movie.setName("Movie" + random.nextInt(10));
+			movie.setYear(1950 + random.nextInt(70));
+			movies.add(movie);
+		}
+		final ExtendableFiqlParser<Movie> parser = new ExtendableFiqlParser<Movie>(Movie.class);
+		final SearchCondition<Movie> compiled = parser.parse(expression);
+		parser.setEngine(FiqlEngine.INTERPRETED);
+		final SearchCondition<Movie> interpreted = parser.parse(expression);
+		final Movie template = new Movie();
+		template.setYear(1990);
+		template.setName("Movie7");
+		final Map<String, ConditionType> operators = new LinkedHashMap<String, ConditionType>();
+		operators.put("year", ConditionType.GREATER_OR_EQUALS);
+		operators.put("name", ConditionType.NOT_EQUALS);
+		final SearchCondition<Movie> reflective = new ExtendedSearchCondition<Movie>(operators, template);
+		for (int round = 0; round < ROUNDS; round++) {
+			long t0 = System.nanoTime();
+			final int programMatches = interpreted.findAll(movies).size();
+			final long programNanos = System.nanoTime() - t0;
+			t0 = System.nanoTime();
+			final int compiledMatches = compiled.findAll(movies).size();
+			final long compiledNanos = System.nanoTime() - t0;
+			t0 = System.nanoTime();
+			final int reflectiveMatches = reflective.findAll(movies).size();
+			final long reflectiveNanos = System.nanoTime() - t0;
+			System.out.println(String.format("interpreted %,d us (%d)  compiled %,d us (%d)  reflective %,d us (%d)",
+					programNanos / 1000, programMatches, compiledNanos / 1000, compiledMatches, reflectiveNanos / 1000,
+					reflectiveMatches));
+		}
+	}
+}
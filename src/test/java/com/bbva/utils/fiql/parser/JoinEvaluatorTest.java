@@ -0,0 +1,152 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Awards;
+import com.bbva.utils.filter.model.Director;
+import com.bbva.utils.filter.model.Movie;
+
+public class JoinEvaluatorTest {
+
+	private static final String[] EXPRESSIONS = { "year=ge=2000;director.awards.year=ge=2013",
+			"director.awards.year=ge=2013,year=lt=1960", "(director.lastName==S*;year=gt=1990),director.awards.grantor==Oscar",
+			"director.awards.year=ge=2010;name==Movie 1*;director.lastName==S*,year==1977",
+			"name==Movie 17;director.awards.year=ge=1900", "director.lastName==Q*", "director.awards.year=lt=1900,name==Movie 4*" };
+
+	private ExtendableFiqlParser<Movie> parser;
+	// movies only know the name of their director
+	private List<Movie> movies;
+	private List<Director> directors;
+	// same movies, holding the whole director
+	private List<Movie> denormalized;
+
+	@Before
+	public void setUp() {
+		parser = new ExtendableFiqlParser<Movie>(Movie.class);
+		final Random random = new Random(11);
+		directors = new ArrayList<Director>();
+		for (int i = 0; i < 300; i++) {
+			final Director director = new Director();
+			director.setName("Director " + i);
+			director.setLastName((char) ('A' + random.nextInt(26)) + "mith");
+			if (i % 7 != 0) {
+				final Awards awards = new Awards();
+				awards.setYear(1990 + random.nextInt(30));
+				awards.setGrantor(random.nextBoolean() ? "Oscar" : "Goya");
+				director.setAwards(awards);
+			}
+			directors.add(director);
+		}
+		movies = new ArrayList<Movie>();
+		denormalized = new ArrayList<Movie>();
+		for (int i = 0; i < 10000; i++) {
+			final int year = 1950 + random.nextInt(70);
+			// some directors are unknown
+			final int d = random.nextInt(directors.size() + 20);
+			final Movie movie = new Movie();
+			movie.setName("Movie " + i);
+			movie.setYear(year);
+			final Movie whole = new Movie();
+			whole.setName("Movie " + i);
+			whole.setYear(year);
+			if (d < directors.size()) {
+				final Director stub = new Director();
+				stub.setName(directors.get(d).getName());
+				movie.setDirector(stub);
+				whole.setDirector(directors.get(d));
+			}
+			movies.add(movie);
+			denormalized.add(whole);
+		}
+	}
+
+	private JoinEvaluator<Movie> evaluator() {
+		return new JoinEvaluator<Movie>(parser, movies).join("director", "director.name", Director.class, directors, "name");
+	}
+
+	private static List<String> names(final List<Movie> movies) {
+		final List<String> names = new ArrayList<String>(movies.size());
+		for (final Movie movie : movies) {
+			names.add(movie.getName());
+		}
+		return names;
+	}
+
+	private void assertSameAsDenormalized(final JoinEvaluator<Movie> evaluator) throws Exception {
+		for (final String expression : EXPRESSIONS) {
+			final List<Movie> expected = parser.parse(expression).findAll(denormalized);
+			assertEquals(expression, names(expected), names(evaluator.findAll(expression)));
+			assertEquals(expression, expected.size(), evaluator.count(expression));
+			assertEquals(expression, Searches.match(parser.parse(expression), denormalized), evaluator.match(expression));
+		}
+	}
+
+	@Test
+	public void testResultsEqualDenormalizedEvaluation() throws Exception {
+		final JoinEvaluator<Movie> evaluator = evaluator();
+		assertSameAsDenormalized(evaluator);
+		assertTrue(evaluator.count(EXPRESSIONS[0]) > 0);
+		assertEquals(parser.parse("director.awards.year=ge=1900;name==Movie 1*").findAll(denormalized).size(),
+				evaluator.count("director.awards.year=ge=1900;name==Movie 1*"));
+		// cached plans give the same results
+		assertSameAsDenormalized(evaluator);
+	}
+
+	@Test
+	public void testParallelEvaluation() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final JoinEvaluator<Movie> evaluator = evaluator();
+			evaluator.setExecutor(executor);
+			assertTrue(movies.size() > 2 * JoinEvaluator.CHUNK_SIZE);
+			assertSameAsDenormalized(evaluator);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testInvalidJoins() throws Exception {
+		try {
+			new JoinEvaluator<Movie>(parser, movies).join("director", "directorId", Director.class, directors, "name");
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// not a property of movies
+		}
+		try {
+			new JoinEvaluator<Movie>(parser, movies).join("library", "name", PropertyPathTest.Library.class,
+					new ArrayList<PropertyPathTest.Library>(), "books.title");
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// multi-valued key
+		}
+		try {
+			evaluator().join("director", "director.name", Director.class, directors, "name");
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// already joined
+		}
+		final JoinEvaluator<Movie> evaluator = evaluator();
+		for (final String expression : new String[] { "director.awards.nothing==1", "studio.name==X;year==2000",
+				"director.awards.year=ge=bad" }) {
+			try {
+				evaluator.count(expression);
+				fail(expression);
+			} catch (final FiqlParseException e) {
+				// expected
+			}
+		}
+	}
+}
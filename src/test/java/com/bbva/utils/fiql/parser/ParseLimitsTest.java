@@ -0,0 +1,107 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Movie;
+import com.bbva.utils.fiql.parser.FiqlLimitExceededException.Limit;
+
+public class ParseLimitsTest {
+
+	private CompiledFilterCache cache;
+	private ExtendableFiqlParser<Movie> parser;
+
+	@Before
+	public void setUp() throws Exception {
+		cache = new CompiledFilterCache(16);
+		parser = new ExtendableFiqlParser<Movie>(Movie.class, cache);
+	}
+
+	@Test
+	public void testLength() throws Exception {
+		parser.setLimits(ParseLimits.getDefault().withMaxLength(16));
+		assertLimit("name==\"Kill Bill\";year=gt=2003", Limit.LENGTH, 16);
+	}
+
+	@Test
+	public void testDepthIsCheckedBeforeScanning() throws Exception {
+		assertLimit(StringUtils.repeat('(', 4000), Limit.DEPTH, 32);
+	}
+
+	@Test
+	public void testTerms() throws Exception {
+		parser.setLimits(ParseLimits.getDefault().withMaxTerms(2));
+		parser.parse("year=gt=2003;year=lt=2010");
+		assertLimit("year=gt=2003;year=lt=2010;name==a", Limit.TERMS, 26);
+	}
+
+	@Test
+	public void testSetSize() throws Exception {
+		parser.setLimits(ParseLimits.getDefault().withMaxSetSize(2));
+		parser.parse("name==(a,b)");
+		assertLimit("name==(a,b,c)", Limit.SET_SIZE, 10);
+	}
+
+	@Test
+	public void testSteps() throws Exception {
+		parser.setLimits(ParseLimits.getDefault().withMaxSteps(100));
+		assertLimit("name==" + StringUtils.repeat('=', 200), Limit.STEPS, 206);
+	}
+
+	@Test
+	public void testHostileInputFailsFast() throws Exception {
+		// no operator can be found: every position is inspected once per
+		// operator, no backtracking
+		final String hostile = StringUtils.repeat("a=", 2000);
+		for (int i = 0; i < 100; i++) {
+			try {
+				parser.parse(hostile);
+				fail("expression is not a comparison");
+			} catch (final FiqlLimitExceededException e) {
+				fail("default limits are not reached");
+			} catch (final Exception e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testCachedExpressionsAreBoundedByLength() throws Exception {
+		final String expression = "year=gt=2003";
+		parser.parse(expression);
+		parser.setLimits(ParseLimits.getDefault().withMaxLength(4));
+		assertLimit(expression, Limit.LENGTH, 4);
+	}
+
+	@Test
+	public void testCachedExpressionsAreCheckedAgainstStricterLimits() throws Exception {
+		final String expression = "year=gt=2003;year=lt=2010;name==(a,b,c)";
+		parser.parse(expression);
+		parser.setLimits(ParseLimits.getDefault().withMaxTerms(2));
+		assertLimit(expression, Limit.TERMS, 26);
+		parser.setLimits(ParseLimits.getDefault().withMaxSetSize(2));
+		assertLimit(expression, Limit.SET_SIZE, 36);
+		// equal limits share cached expressions
+		parser.setLimits(ParseLimits.getDefault().withMaxSetSize(3));
+		parser.parse(expression);
+		parser.setLimits(ParseLimits.getDefault().withMaxSetSize(3));
+		parser.parse(expression);
+		assertEquals(2, cache.size());
+	}
+
+	private void assertLimit(final String expression, final Limit limit, final int position) {
+		try {
+			parser.parse(expression);
+			fail("limit " + limit + " not reached");
+		} catch (final FiqlLimitExceededException e) {
+			assertEquals(limit, e.getLimit());
+			assertEquals(position, e.getPosition());
+		} catch (final Exception e) {
+			fail("unexpected " + e);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PropertyPathTest {
+
+	private ExtendableFiqlParser<Library> parser;
+	private Library library;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new ExtendableFiqlParser<Library>(Library.class, new CompiledFilterCache(0));
+		parser.setDialect(FiqlDialect.getDefault().with(FiqlOperators.in("=in="), FiqlOperators.out("=out=")));
+		library = library(book("Dune", 1965, "Herbert"), book("Emma", 1815, "Austen"), book("Solaris", 1961, "Lem"));
+		library.setTags(new String[] { "classic", "fiction" });
+		library.setRatings(new int[] { 3, 5 });
+	}
+
+	@Test
+	public void testAnyIsTheDefault() throws Exception {
+		assertTrue(parser.parse("books.title==Dune").isMet(library));
+		assertTrue(parser.parse("books[any].title==Sol*").isMet(library));
+		assertFalse(parser.parse("books.title==Ubik").isMet(library));
+		assertTrue(parser.parse("books.title=in=(Ubik,Emma)").isMet(library));
+		assertTrue(parser.parse("books.authors==Lem").isMet(library));
+		assertTrue(parser.parse("tags==fiction").isMet(library));
+		assertTrue(parser.parse("ratings=gt=4").isMet(library));
+		assertFalse(parser.parse("ratings=gt=5").isMet(library));
+	}
+
+	@Test
+	public void testAll() throws Exception {
+		assertTrue(parser.parse("books[all].year=lt=2000").isMet(library));
+		assertFalse(parser.parse("books[all].year=gt=1900").isMet(library));
+		assertTrue(parser.parse("books[all].title=out=(Ubik,Neuromancer)").isMet(library));
+		assertTrue(parser.parse("books[all].authors[all]!=Asimov").isMet(library));
+		assertFalse(parser.parse("books[all].authors[any]==Lem").isMet(library));
+		assertFalse(parser.parse("ratings[all]=ge=4").isMet(library));
+	}
+
+	@Test
+	public void testEmptyAndNullCollections() throws Exception {
+		final Library empty = library();
+		assertFalse(parser.parse("books.title==Dune").isMet(empty));
+		assertTrue(parser.parse("books[all].title==Dune").isMet(empty));
+		empty.setBooks(null);
+		assertFalse(parser.parse("books[all].title==Dune").isMet(empty));
+		assertFalse(parser.parse("tags==classic").isMet(empty));
+	}
+
+	@Test
+	public void testFirstDecidingElementStops() throws Exception {
+		Book.reads = 0;
+		assertTrue(parser.parse("books.title==Dune").isMet(library));
+		assertEquals(1, Book.reads);
+		Book.reads = 0;
+		assertFalse(parser.parse("books[all].title==Dune").isMet(library));
+		assertEquals(2, Book.reads);
+	}
+
+	@Test
+	public void testIterablesWithoutRandomAccess() throws Exception {
+		library.setBooks(new LinkedList<Book>(library.getBooks()));
+		assertTrue(parser.parse("books.title==Emma;books[all].year=lt=2000").isMet(library));
+	}
+
+	@Test(expected = FiqlParseException.class)
+	public void testSingleValuedCanNotBeQuantified() throws Exception {
+		parser.parse("books.title[all]==Dune");
+	}
+
+	@Test
+	public void testIndexHoldsEveryElement() throws Exception {
+		final Library other = library(book("Emma", 1815, "Austen"), book("Ubik", 1969, "Dick"));
+		final List<Library> libraries = Arrays.asList(library, other, library());
+		final PropertyIndex<Library> index = PropertyIndex.build(Library.class, "books.title", libraries);
+		assertEquals(4, index.getKeyCount());
+		assertEquals(bits(0, 1), index.lookup("Emma"));
+		assertEquals(bits(1), index.lookup("Ubik"));
+		assertEquals(bits(), index.lookup("Neuromancer"));
+		assertEquals(bits(0, 1), index.lookupAny(Arrays.asList("Dune", "Ubik")));
+		assertEquals(bits(0), PropertyIndex.build(Library.class, "ratings", libraries).lookup(5));
+	}
+
+	private static BitSet bits(final int... indexes) {
+		final BitSet bits = new BitSet();
+		for (final int i : indexes) {
+			bits.set(i);
+		}
+		return bits;
+	}
+
+	private static Library library(final Book... books) {
+		final Library library = new Library();
+		library.setBooks(new ArrayList<Book>(Arrays.asList(books)));
+		return library;
+	}
+
+	private static Book book(final String title, final int year, final String author) {
+		final Book book = new Book();
+		book.setTitle(title);
+		book.setYear(year);
+		book.setAuthors(Collections.singletonList(author));
+		return book;
+	}
+
+	public static class Library {
+		private List<Book> books;
+		private String[] tags;
+		private int[] ratings;
+
+		public List<Book> getBooks() {
+			return books;
+		}
+
+		public void setBooks(final List<Book> books) {
+			this.books = books;
+		}
+
+		public String[] getTags() {
+			return tags;
+		}
+
+		public void setTags(final String[] tags) {
+			this.tags = tags;
+		}
+
+		public int[] getRatings() {
+			return ratings;
+		}
+
+		public void setRatings(final int[] ratings) {
+			this.ratings = ratings;
+		}
+	}
+
+	public static class Book {
+		static int reads;
+
+		private String title;
+		private int year;
+		private List<String> authors;
+
+		public String getTitle() {
+			reads++;
+			return title;
+		}
+
+		public void setTitle(final String title) {
+			this.title = title;
+		}
+
+		public int getYear() {
+			return year;
+		}
+
+		public void setYear(final int year) {
+			this.year = year;
+		}
+
+		public List<String> getAuthors() {
+			return authors;
+		}
+
+		public void setAuthors(final List<String> authors) {
+			this.authors = authors;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cxf.jaxrs.ext.search.FiqlParseException;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RelativeDateTest {
+
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+	private static final long START = 1500000000000L;
+
+	private final AtomicLong now = new AtomicLong(START);
+	private ExtendableFiqlParser<Event> parser;
+
+	public static class Event {
+		private Date date;
+
+		public Date getDate() {
+			return date;
+		}
+
+		public void setDate(final Date date) {
+			this.date = date;
+		}
+	}
+
+	@Before
+	public void setUp() {
+		FiqlClock.setGlobal(new FiqlClock() {
+			@Override
+			public long millis() {
+				return now.get();
+			}
+		});
+		parser = new ExtendableFiqlParser<Event>(Event.class);
+		parser.setDialect(FiqlDialect.getDefault().with(FiqlOperators.between("=between=")));
+	}
+
+	@After
+	public void tearDown() {
+		FiqlClock.setGlobal(FiqlClock.system(FiqlClock.DEFAULT_RESOLUTION));
+	}
+
+	private static Event event(final long millis) {
+		final Event event = new Event();
+		event.setDate(new Date(millis));
+		return event;
+	}
+
+	@Test
+	public void testDurationsAreResolvedWhenEvaluating() throws Exception {
+		final Event recent = event(START - 3 * DAY);
+		final SearchCondition<Event> lastWeek = parser.parse("date=ge=-P7D");
+		assertTrue(lastWeek.isMet(recent));
+		assertEquals(START - 7 * DAY, ((Event) parser.getBean()).getDate().getTime());
+
+		now.addAndGet(5 * DAY);
+		assertFalse(lastWeek.isMet(recent));
+		// compiled and interned once, still resolved at evaluation
+		assertFalse(parser.parse("date=ge=-P7D").isMet(recent));
+		assertTrue(parser.parse("date=ge=-P9D").isMet(recent));
+
+		final SearchCondition<Event> window = parser.parse("date=between=(-P10D,-P5D)");
+		assertTrue(window.isMet(recent));
+		now.addAndGet(-5 * DAY);
+		assertFalse(window.isMet(recent));
+		assertTrue(parser.parse("date=lt=-P1D;date=gt=2017-07-01T00:00:00.000+00:00").isMet(recent));
+
+		try {
+			parser.parse("date=ge=yesterday");
+			fail();
+		} catch (final FiqlParseException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("yesterday"));
+		}
+	}
+
+	@Test
+	public void testResolvedOncePerTick() throws Exception {
+		final RelativeDate relative = RelativeDate.parse("-PT1H");
+		final Date bound = relative.bound();
+		assertEquals(START - TimeUnit.HOURS.toMillis(1), bound.getTime());
+		assertSame(bound, relative.bound());
+		assertEquals(bound, relative.resolve());
+		now.incrementAndGet();
+		assertFalse(bound.equals(relative.bound()));
+		assertEquals(relative, RelativeDate.parse("-PT1H"));
+		assertEquals("-PT1H", relative.toString());
+
+		final long millis = FiqlClock.system(1000).millis();
+		assertEquals(0, millis % 1000);
+		try {
+			FiqlClock.system(0);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCachedResultsFollowTheClock() throws Exception {
+		final List<Event> events = new ArrayList<Event>();
+		for (int i = 0; i < 30; i++) {
+			events.add(event(START - i * DAY - 1));
+		}
+		final ResultCache<Event> cache = new ResultCache<Event>();
+		assertEquals(7, cache.findAll(parser.parse("date=ge=-P7D"), events, 1).size());
+		assertEquals(7, cache.findAll(parser.parse("date=ge=-P7D"), events, 1).size());
+		assertEquals(1, cache.getLoadCount());
+
+		now.addAndGet(2 * DAY);
+		assertEquals(5, cache.findAll(parser.parse("date=ge=-P7D"), events, 1).size());
+		// scans the broader result of the current tick, not of the past one
+		assertEquals(3, cache.findAll(parser.parse("date=ge=-P7D;date=le=-P4D"), events, 1).size());
+		assertEquals(3, cache.getLoadCount());
+		assertEquals(1, cache.getSubsumedLoadCount());
+	}
+}
@@ -0,0 +1,206 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Movie;
+
+public class ResultCacheTest {
+
+	private ExtendableFiqlParser<Movie> parser;
+	private List<Movie> movies;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new ExtendableFiqlParser<Movie>(Movie.class);
+		movies = new ArrayList<Movie>();
+		for (int i = 0; i < 200; i++) {
+			final Movie movie = new Movie();
+			movie.setName("Movie " + i % 7);
+			movie.setYear(1990 + i % 30);
+			movies.add(movie);
+		}
+	}
+
+	@Test
+	public void testResultsAreKeyedByNormalizedConditionAndVersion() throws Exception {
+		final ResultCache<Movie> cache = new ResultCache<Movie>();
+		final List<Movie> first = cache.findAll(parser.parse("year=ge=2000;name==Movie 3"), movies, 1);
+		assertEquals(parser.parse("year=ge=2000;name==Movie 3").findAll(movies), first);
+		assertSame(first, cache.findAll(parser.parse("name==Movie 3;year=ge=2000"), movies, 1));
+		assertSame(first, cache.findAll(parser.parse("name==Movie 3;(year=ge=2000;name==Movie 3)"), movies, 1));
+		assertEquals(1, cache.getLoadCount());
+		assertEquals(2, cache.getHitCount());
+		try {
+			first.clear();
+			fail();
+		} catch (final UnsupportedOperationException e) {
+			// expected
+		}
+
+		final BitSet bits = cache.match(parser.parse("year=ge=2000;name==Movie 3"), movies, 1);
+		assertEquals(first.size(), bits.cardinality());
+		bits.clear();
+		assertEquals(first.size(), cache.match(parser.parse("year=ge=2000;name==Movie 3"), movies, 1).cardinality());
+		assertEquals(1, cache.getLoadCount());
+
+		// OR is not AND, and a new version is a new dataset
+		assertFalse(first.equals(cache.findAll(parser.parse("year=ge=2000,name==Movie 3"), movies, 1)));
+		movies.get(0).setName("Movie 3");
+		movies.get(0).setYear(2010);
+		final List<Movie> second = cache.findAll(parser.parse("year=ge=2000;name==Movie 3"), movies, 2);
+		assertEquals(first.size() + 1, second.size());
+		assertEquals(3, cache.getLoadCount());
+		assertEquals(3, cache.invalidateOlderThan(2) + cache.size());
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.invalidate(parser.parse("name==Movie 3;year=ge=2000")));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeight());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsedBySizeAndWeight() throws Exception {
+		final ResultCache<Movie> bySize = new ResultCache<Movie>(2, Long.MAX_VALUE);
+		final SearchCondition<Movie> a = parser.parse("year==1990");
+		final SearchCondition<Movie> b = parser.parse("year==1991");
+		final SearchCondition<Movie> c = parser.parse("year==1992");
+		bySize.findAll(a, movies, 1);
+		bySize.findAll(b, movies, 1);
+		bySize.findAll(a, movies, 1);
+		bySize.findAll(c, movies, 1);
+		assertEquals(2, bySize.size());
+		assertEquals(1, bySize.getEvictionCount());
+		bySize.findAll(a, movies, 1);
+		assertEquals(3, bySize.getLoadCount());
+
+		// 7 matches plus one per result
+		final ResultCache<Movie> byWeight = new ResultCache<Movie>(100, 20);
+		byWeight.findAll(a, movies, 1);
+		byWeight.findAll(b, movies, 1);
+		assertEquals(16, byWeight.getWeight());
+		byWeight.findAll(c, movies, 1);
+		assertEquals(2, byWeight.size());
+		assertEquals(16, byWeight.getWeight());
+		byWeight.findAll(b, movies, 1);
+		assertEquals(3, byWeight.getLoadCount());
+		assertEquals(0.25, byWeight.getHitRate(), 0);
+
+		final ResultCache<Movie> disabled = new ResultCache<Movie>(0, 0);
+		disabled.findAll(a, movies, 1);
+		disabled.findAll(a, movies, 1);
+		assertEquals(0, disabled.size());
+		assertEquals(2, disabled.getLoadCount());
+	}
+
+	@Test
+	public void testNarrowerConditionsScanCachedBroaderResults() throws Exception {
+		final ResultCache<Movie> cache = new ResultCache<Movie>();
+		final List<Movie> broad = cache.findAll(parser.parse("year=ge=2000"), movies, 1);
+		final List<Movie> narrow = cache.findAll(parser.parse("year=ge=2005;name==Movie 3"), movies, 1);
+		assertEquals(parser.parse("year=ge=2005;name==Movie 3").findAll(movies), narrow);
+		assertEquals(1, cache.getSubsumedLoadCount());
+		assertTrue(broad.containsAll(narrow));
+
+		// the smallest implied result is scanned, of the same version only
+		assertEquals(parser.parse("year=ge=2006;name==Movie 3").findAll(movies),
+				cache.findAll(parser.parse("year=ge=2006;name==Movie 3"), movies, 1));
+		assertEquals(2, cache.getSubsumedLoadCount());
+		cache.findAll(parser.parse("year=ge=2006"), movies, 2);
+		cache.findAll(parser.parse("year=le=1995"), movies, 1);
+		assertEquals(2, cache.getSubsumedLoadCount());
+	}
+
+	@Test
+	public void testConcurrentMissesLoadOnce() throws Exception {
+		final ResultCache<Movie> cache = new ResultCache<Movie>();
+		final AtomicInteger evaluations = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final SearchCondition<Movie> slow = new CountingCondition(evaluations);
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final List<Future<List<Movie>>> futures = new ArrayList<Future<List<Movie>>>();
+			for (int i = 0; i < 8; i++) {
+				futures.add(executor.submit(new Callable<List<Movie>>() {
+					public List<Movie> call() throws Exception {
+						start.await();
+						return cache.findAll(slow, movies, 1);
+					}
+				}));
+			}
+			start.countDown();
+			final List<Movie> first = futures.get(0).get();
+			for (final Future<List<Movie>> future : futures) {
+				assertSame(first, future.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(movies.size(), evaluations.get());
+		assertEquals(1, cache.getLoadCount());
+		assertEquals(8, cache.getHitCount() + cache.getMissCount());
+		assertTrue(cache.toString(), cache.toString().contains("loads=1"));
+	}
+
+	private static final class CountingCondition implements SearchCondition<Movie> {
+		private final AtomicInteger evaluations;
+
+		CountingCondition(final AtomicInteger evaluations) {
+			this.evaluations = evaluations;
+		}
+
+		public boolean isMet(final Movie pojo) {
+			if (evaluations.getAndIncrement() == 0) {
+				try {
+					Thread.sleep(100);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return pojo.getYear() > 2000;
+		}
+
+		public List<Movie> findAll(final Collection<Movie> pojos) {
+			throw new UnsupportedOperationException();
+		}
+
+		public Movie getCondition() {
+			return null;
+		}
+
+		public ConditionType getConditionType() {
+			return ConditionType.CUSTOM;
+		}
+
+		public List<SearchCondition<Movie>> getSearchConditions() {
+			return null;
+		}
+
+		public PrimitiveStatement getStatement() {
+			return null;
+		}
+
+		public String toSQL(final String table, final String... columns) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
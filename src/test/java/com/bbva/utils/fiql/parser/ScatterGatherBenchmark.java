@@ -0,0 +1,74 @@
+package com.bbva.utils.fiql.parser;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.bbva.utils.filter.model.Movie;
+
+/**
+ * Measures {@link ScatterGather} throughput as the same dataset is split
+ * across more {@link PartitionWorker}s, all listening on loopback in this
+ * JVM. Each round runs a count, a top-k page and a selective find all.
+ * <p/>
+ * Run with test classpath, e.g.
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.bbva.utils.fiql.parser.ScatterGatherBenchmark</code>
+ */
+public class ScatterGatherBenchmark {
+
+	private static final int ROWS = 1000000;
+	private static final int ROUNDS = 20;
+	private static final int[] PARTITIONS = { 1, 2, 4, 8 };
+
+	public static void main(final String[] args) throws Exception {
+		final Random random = new Random(1);
+		final List<Movie> movies = new ArrayList<Movie>(ROWS);
+		for (int i = 0; i < ROWS; i++) {
+			final Movie movie = new Movie();
+			movie.setYear(1950 + random.nextInt(70));
+			movie.setName((char) ('A' + random.nextInt(26)) + "ill Bill " + i);
+			movies.add(movie);
+		}
+		final ExtendableFiqlParser<Movie> parser = new ExtendableFiqlParser<Movie>(Movie.class);
+		final CompactAst count = parser.compile("year=ge=2000;name==K*");
+		final CompactAst top = parser.compile("year=lt=1960");
+		final CompactAst selective = parser.compile("year==1977;name==S*");
+		for (final int partitions : PARTITIONS) {
+			final List<PartitionWorker<Movie>> workers = new ArrayList<PartitionWorker<Movie>>();
+			final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+			final int size = ROWS / partitions;
+			for (int p = 0; p < partitions; p++) {
+				final List<Movie> partition = movies.subList(p * size, p == partitions - 1 ? ROWS : (p + 1) * size);
+				final PartitionWorker<Movie> worker = new PartitionWorker<Movie>(parser, partition, new ScatterGatherTest.MovieCodec());
+				workers.add(worker);
+				addresses.add(worker.getAddress());
+			}
+			final ExecutorService executor = Executors.newFixedThreadPool(partitions);
+			final ScatterGather<Movie> scatterGather = new ScatterGather<Movie>(parser, new ScatterGatherTest.MovieCodec(), addresses,
+					executor);
+			try {
+				long best = Long.MAX_VALUE;
+				long matches = 0;
+				for (int round = 0; round < ROUNDS; round++) {
+					final long t0 = System.nanoTime();
+					matches = scatterGather.count(count);
+					matches += scatterGather.findTopK(top, "-year,name", 0, 50).size();
+					matches += scatterGather.findAll(selective).size();
+					best = Math.min(best, System.nanoTime() - t0);
+				}
+				System.out.println(String.format("%d partitions: best round %,d us, %.1f rounds/s (%d matches)", partitions,
+						best / 1000, 1e9 / best, matches));
+			} finally {
+				scatterGather.close();
+				executor.shutdown();
+				for (final PartitionWorker<Movie> worker : workers) {
+					worker.close();
+				}
+			}
+		}
+	}
+}
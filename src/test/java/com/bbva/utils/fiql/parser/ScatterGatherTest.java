@@ -0,0 +1,227 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.collections.Predicate;
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Movie;
+
+public class ScatterGatherTest {
+
+	private static final int PARTITIONS = 4;
+
+	private final List<PartitionWorker<Movie>> workers = new ArrayList<PartitionWorker<Movie>>();
+	private ExtendableFiqlParser<Movie> parser;
+	private List<Movie> movies;
+	private ExecutorService executor;
+	private ScatterGather<Movie> scatterGather;
+
+	/**
+	 * Streams the name and year of movies.
+	 */
+	static final class MovieCodec extends PartitionCodec<Movie> {
+		@Override
+		public void write(final Movie movie, final DataOutput out) throws IOException {
+			out.writeUTF(movie.getName());
+			out.writeInt(movie.getYear());
+		}
+
+		@Override
+		public Movie read(final DataInput in) throws IOException {
+			final Movie movie = new Movie();
+			movie.setName(in.readUTF());
+			movie.setYear(in.readInt());
+			return movie;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new ExtendableFiqlParser<Movie>(Movie.class);
+		final Random random = new Random(5);
+		movies = new ArrayList<Movie>();
+		for (int i = 0; i < 5000; i++) {
+			final Movie movie = new Movie();
+			movie.setName("Movie " + i);
+			movie.setYear(1950 + random.nextInt(70));
+			movies.add(movie);
+		}
+		final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		final int size = movies.size() / PARTITIONS;
+		for (int p = 0; p < PARTITIONS; p++) {
+			final List<Movie> partition = movies.subList(p * size, p == PARTITIONS - 1 ? movies.size() : (p + 1) * size);
+			final PartitionWorker<Movie> worker = new PartitionWorker<Movie>(parser, partition, new MovieCodec());
+			workers.add(worker);
+			addresses.add(worker.getAddress());
+		}
+		executor = Executors.newFixedThreadPool(PARTITIONS);
+		scatterGather = new ScatterGather<Movie>(parser, new MovieCodec(), addresses, executor);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		scatterGather.close();
+		executor.shutdown();
+		for (final PartitionWorker<Movie> worker : workers) {
+			worker.close();
+		}
+	}
+
+	private static List<String> names(final List<Movie> movies) {
+		final List<String> names = new ArrayList<String>(movies.size());
+		for (final Movie movie : movies) {
+			names.add(movie.getName() + "/" + movie.getYear());
+		}
+		return names;
+	}
+
+	@Test
+	public void testResultsEqualLocalEvaluation() throws Exception {
+		final String expression = "year=ge=2000,name==Movie 1*";
+		final SearchCondition<Movie> condition = parser.parse(expression);
+		final List<Movie> local = condition.findAll(movies);
+		assertTrue(local.size() > 2 * PartitionWorker.CHUNK_SIZE);
+		assertEquals(names(local), names(scatterGather.findAll(expression)));
+		assertEquals(local.size(), scatterGather.count(expression));
+		assertEquals(0, scatterGather.count("year=lt=1900"));
+
+		assertEquals(names(Searches.findTopK(condition, movies, Movie.class, "-year,name", 0, 20)),
+				names(scatterGather.findTopK(expression, "-year,name", 0, 20)));
+		// ties on year keep partition order
+		assertEquals(names(Searches.findTopK(condition, movies, Movie.class, "year", 700, 600)),
+				names(scatterGather.findTopK(expression, "year", 700, 600)));
+		assertTrue(scatterGather.findTopK(expression, "year", 0, 0).isEmpty());
+	}
+
+	@Test
+	public void testConnectionsAreReused() throws Exception {
+		final CompactAst ast = parser.compile("year=ge=2010");
+		for (int i = 0; i < 20; i++) {
+			scatterGather.count(ast);
+		}
+		for (final PartitionWorker<Movie> worker : workers) {
+			assertEquals(20, worker.getRequestCount());
+		}
+		// pooled connections closed by a worker are replaced
+		workers.get(0).setIdleTimeout(50);
+		scatterGather.count(ast);
+		Thread.sleep(300);
+		assertEquals(parser.parse("year=ge=2010").findAll(movies).size(), scatterGather.count(ast));
+		assertEquals(22, workers.get(0).getRequestCount());
+	}
+
+	@Test
+	public void testFailures() throws Exception {
+		try {
+			scatterGather.findTopK("year=ge=2000", "director", 0, 10);
+			fail();
+		} catch (final IllegalArgumentException e) {
+			// not a sortable property, checked before scattering
+		}
+		final ExtendableFiqlParser<Movie> strict = new ExtendableFiqlParser<Movie>(Movie.class);
+		strict.setDialect(FiqlDialect.getDefault().with(FiqlOperators.in("=in=")));
+		final CompactAst ast = strict.compile("year=in=(2000,2001)");
+		final ExtendableFiqlParser<Movie> plain = new ExtendableFiqlParser<Movie>(Movie.class);
+		plain.setDialect(FiqlDialect.getDefault());
+		final PartitionWorker<Movie> worker = new PartitionWorker<Movie>(plain, movies, new MovieCodec());
+		final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		addresses.add(worker.getAddress());
+		final ScatterGather<Movie> remote = new ScatterGather<Movie>(strict, new MovieCodec(), addresses, executor);
+		try {
+			remote.findAll(ast);
+			fail();
+		} catch (final IOException e) {
+			// worker does not know the operator
+			assertTrue(e.getMessage(), e.getMessage().contains(worker.getAddress().toString()));
+		}
+		// connection is still usable
+		assertEquals(parser.parse("year=ge=2000").findAll(movies).size(), remote.count(strict.compile("year=ge=2000")));
+		worker.close();
+		try {
+			remote.count(strict.compile("year=ge=2000"));
+			fail();
+		} catch (final IOException e) {
+			// expected
+		}
+		remote.close();
+	}
+
+	@Test
+	public void testEvaluationFailuresAndLimits() throws Exception {
+		// fails on a movie far enough for some chunks to be streamed before
+		final FiqlOperator failing = new FiqlOperator("=failing=", ConditionType.CUSTOM) {
+			@Override
+			public Predicate compile(final Object operand, final Class<?> propertyType) {
+				return new Predicate() {
+					public boolean evaluate(final Object value) {
+						if (operand.equals(value)) {
+							throw new IllegalStateException("failing on " + value);
+						}
+						return true;
+					}
+				};
+			}
+		};
+		final ExtendableFiqlParser<Movie> local = new ExtendableFiqlParser<Movie>(Movie.class);
+		local.setDialect(FiqlDialect.getDefault().with(failing));
+		local.setLimits(ParseLimits.getDefault().withMaxTerms(5).withMaxDepth(1));
+		final PartitionWorker<Movie> worker = new PartitionWorker<Movie>(local, movies, new MovieCodec());
+		final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		addresses.add(worker.getAddress());
+		final ExtendableFiqlParser<Movie> coordinator = new ExtendableFiqlParser<Movie>(Movie.class);
+		coordinator.setDialect(local.getDialect());
+		final ScatterGather<Movie> remote = new ScatterGather<Movie>(coordinator, new MovieCodec(), addresses, executor);
+		try {
+			for (final String expression : new String[] { "name=failing=Movie 4000", "name=failing=Movie 10" }) {
+				try {
+					remote.findAll(expression);
+					fail(expression);
+				} catch (final IOException e) {
+					assertTrue(e.getMessage(), e.getMessage().contains("failing on " + expression.substring(13)));
+				}
+			}
+			try {
+				remote.count("name=failing=Movie 10");
+				fail();
+			} catch (final IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("failing on Movie 10"));
+			}
+			// held to the limits of the worker
+			try {
+				remote.count("year=ge=2000;year=lt=2010;name==M*;name==N*;year==2001;year==2002");
+				fail();
+			} catch (final IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("terms limit"));
+			}
+			try {
+				remote.count("year==2000;(name==a,year==2001;(name==b,year==2002))");
+				fail();
+			} catch (final IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("depth limit"));
+			}
+			// failures leave the connection usable, and no retry was made
+			assertEquals(parser.parse("year=ge=2000").findAll(movies).size(), remote.count("year=ge=2000"));
+			assertEquals(6, worker.getRequestCount());
+		} finally {
+			remote.close();
+			worker.close();
+		}
+	}
+}
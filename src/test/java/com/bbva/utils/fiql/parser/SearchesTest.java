@@ -0,0 +1,165 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Director;
+import com.bbva.utils.filter.model.Movie;
+
+public class SearchesTest {
+
+	private static final String[] DIRECTORS = { "Nolan", "Tarantino", "Scott", null };
+
+	private ExtendableFiqlParser<Movie> parser;
+	private List<Movie> movies;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new ExtendableFiqlParser<Movie>(Movie.class);
+		final Random random = new Random(3);
+		movies = new ArrayList<Movie>();
+		for (int i = 0; i < 3 * Searches.CHUNK_SIZE + 17; i++) {
+			final Movie movie = new Movie();
+			movie.setName("Movie " + random.nextInt(1000));
+			movie.setYear(1990 + random.nextInt(30));
+			final String name = DIRECTORS[random.nextInt(DIRECTORS.length)];
+			if (name != null) {
+				final Director director = new Director();
+				director.setName(name);
+				movie.setDirector(director);
+			}
+			movies.add(movie);
+		}
+	}
+
+	@Test
+	public void testTopKIsPageOfSortedMatches() throws Exception {
+		final SearchCondition<Movie> condition = parser.parse("year=ge=2000");
+		final SortSpec<Movie> sort = SortSpec.parse(Movie.class, "-year,director.name,+name");
+		final List<Movie> all = condition.findAll(movies);
+		Collections.sort(all, sort);
+		assertEquals(all.subList(0, 10), Searches.findTopK(condition, movies, sort, 0, 10));
+		assertEquals(all.subList(500, 550), Searches.findTopK(condition, new LinkedList<Movie>(movies), sort, 500, 50));
+		assertEquals(all.subList(all.size() - 5, all.size()), Searches.findTopK(condition, movies, sort, all.size() - 5, 10));
+		assertTrue(Searches.findTopK(condition, movies, sort, all.size(), 10).isEmpty());
+		assertTrue(Searches.findTopK(condition, movies, sort, 0, 0).isEmpty());
+	}
+
+	@Test
+	public void testParallelTopKEqualsSequential() throws Exception {
+		final SearchCondition<Movie> condition = parser.parse("year=lt=2010");
+		final SortSpec<Movie> sort = SortSpec.parse(Movie.class, "director.name");
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			assertEquals(Searches.findTopK(condition, movies, sort, 100, 200),
+					Searches.findTopK(condition, movies, sort, 100, 200, executor));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testNullsLast() throws Exception {
+		final SearchCondition<Movie> condition = parser.parse("year=ge=1990");
+		final List<Movie> last = Searches.findTopK(condition, movies, Movie.class, "-director.name", movies.size() - 1, 1);
+		assertEquals(null, last.get(0).getDirector());
+		assertEquals("Tarantino", Searches.findTopK(condition, movies, Movie.class, "-director.name", 0, 1).get(0).getDirector()
+				.getName());
+	}
+
+	@Test
+	public void testEarlyTermination() throws Exception {
+		final SearchCondition<Movie> condition = parser.parse("name==*7;year=ge=1990");
+		final List<Movie> all = condition.findAll(movies);
+		final int first = movies.indexOf(all.get(0));
+		final CountingList visited = new CountingList(movies);
+		assertTrue(Searches.exists(condition, visited));
+		assertEquals(first + 1, visited.count);
+		visited.count = 0;
+		assertEquals(all.get(0), Searches.findFirst(condition, visited));
+		assertEquals(first + 1, visited.count);
+		visited.count = 0;
+		assertEquals(all.subList(0, 5), Searches.findLimited(condition, visited, 5));
+		assertEquals(movies.indexOf(all.get(4)) + 1, visited.count);
+		visited.count = 0;
+		assertEquals(3, Searches.count(condition, visited, 3));
+		assertEquals(movies.indexOf(all.get(2)) + 1, visited.count);
+		assertEquals(all.size(), Searches.count(condition, movies));
+		assertEquals(null, Searches.findFirst(parser.parse("year=lt=1900"), movies));
+		assertEquals(-1, Searches.findFirstIndex(parser.parse("year=lt=1900"), movies));
+	}
+
+	@Test
+	public void testIndexes() throws Exception {
+		final SearchCondition<Movie> condition = parser.parse("year=ge=2015;name==*1");
+		final int[] indexes = Searches.findIndexes(condition, movies, Integer.MAX_VALUE);
+		final BitSet bits = Searches.match(condition, movies);
+		assertEquals(condition.findAll(movies).size(), indexes.length);
+		assertEquals(indexes.length, bits.cardinality());
+		for (int i = 0, bit = bits.nextSetBit(0); i < indexes.length; i++, bit = bits.nextSetBit(bit + 1)) {
+			assertEquals(bit, indexes[i]);
+			assertTrue(condition.isMet(movies.get(indexes[i])));
+		}
+		assertEquals(indexes[0], Searches.findFirstIndex(condition, movies));
+		assertEquals(indexes[39], Searches.findIndexes(condition, movies, 40)[39]);
+		assertEquals(0, Searches.findIndexes(condition, movies, 0).length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIndexesNeedRandomAccess() throws Exception {
+		Searches.match(parser.parse("year=ge=2000"), new LinkedList<Movie>(movies));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownSortProperty() throws Exception {
+		SortSpec.parse(Movie.class, "director.age");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNotComparableSortProperty() throws Exception {
+		SortSpec.parse(Movie.class, "director");
+	}
+
+	private static final class CountingList extends ArrayList<Movie> {
+		private static final long serialVersionUID = 1L;
+
+		int count;
+
+		CountingList(final List<Movie> movies) {
+			super(movies);
+		}
+
+		@Override
+		public Iterator<Movie> iterator() {
+			final Iterator<Movie> iterator = super.iterator();
+			return new Iterator<Movie>() {
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+
+				public Movie next() {
+					count++;
+					return iterator.next();
+				}
+
+				public void remove() {
+					iterator.remove();
+				}
+			};
+		}
+	}
+}
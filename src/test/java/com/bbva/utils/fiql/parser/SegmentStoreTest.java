@@ -0,0 +1,92 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Director;
+import com.bbva.utils.filter.model.Movie;
+
+public class SegmentStoreTest {
+
+	private static final int CHUNK = 100;
+	private static final int CHUNKS = 20;
+
+	private ExtendableFiqlParser<Movie> parser;
+	private SegmentStore<Movie> store;
+	private List<Movie> movies;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new ExtendableFiqlParser<Movie>(Movie.class, new CompiledFilterCache(0));
+		parser.setDialect(FiqlDialect.getDefault().with(FiqlOperators.in("=in="), FiqlOperators.regex("=regex=")));
+		store = new SegmentStore<Movie>(Movie.class, CHUNK, "year", "director.name");
+		movies = new ArrayList<Movie>();
+		// appended by year, directors alternate so that every chunk spans
+		// from A to Z
+		for (int i = 0; i < CHUNK * CHUNKS; i++) {
+			final Movie movie = new Movie();
+			movie.setYear(1994 + i / CHUNK);
+			if (i % 10 != 0) {
+				movie.setDirector(new Director());
+				movie.getDirector().setName((i % 2 == 0 ? "A" : "Z") + i / CHUNK);
+			}
+			movies.add(movie);
+		}
+		store.addAll(movies);
+	}
+
+	@Test
+	public void testZoneMapsSkipChunks() throws Exception {
+		assertEquals(CHUNKS, store.getChunkCount());
+		assertEquals(bits(19), store.candidateChunks(parser.parse("year=ge=2013")));
+		assertEquals(bits(0, 1, 18, 19), store.candidateChunks(parser.parse("year=lt=1996,year=gt=2011")));
+		assertEquals(bits(5), store.candidateChunks(parser.parse("year==1999")));
+		assertEquals(bits(), store.candidateChunks(parser.parse("year=gt=2013;director.name==A3")));
+	}
+
+	@Test
+	public void testBloomFiltersSkipChunks() throws Exception {
+		assertEquals(bits(7), store.candidateChunks(parser.parse("director.name==Z7")));
+		assertEquals(bits(2, 11), store.candidateChunks(parser.parse("director.name=in=(A2,Z11,M3)")));
+		// min and max alone could not rule out any chunk
+		assertEquals(bits(), store.candidateChunks(parser.parse("director.name==M5")));
+	}
+
+	@Test
+	public void testConditionsWithoutSummariesKeepEveryChunk() throws Exception {
+		final BitSet all = new BitSet();
+		all.set(0, CHUNKS);
+		assertEquals(all, store.candidateChunks(parser.parse("director.name==A*")));
+		assertEquals(all, store.candidateChunks(parser.parse("director.name=regex=A1.")));
+		assertEquals(all, store.candidateChunks(parser.parse("name==Alien")));
+		assertEquals(bits(3), store.candidateChunks(parser.parse("name==Alien;year==1997")));
+	}
+
+	@Test
+	public void testSameResultsAsConditions() throws Exception {
+		final String[] expressions = { "year=ge=2013", "year=lt=1996,director.name==Z12", "director.name!=A4;year=le=1998",
+				"director.name=in=(A2,Z11);year=gt=1995", "year!=2000;director.name==*7" };
+		for (final String expression : expressions) {
+			final SearchCondition<Movie> condition = parser.parse(expression);
+			assertEquals(expression, condition.findAll(movies), store.findAll(condition));
+			assertEquals(expression, condition.findAll(movies).size(), store.count(condition));
+		}
+		assertTrue(store.findAll(parser.parse("year=gt=2013")).isEmpty());
+	}
+
+	private static BitSet bits(final int... indexes) {
+		final BitSet bits = new BitSet();
+		for (final int i : indexes) {
+			bits.set(i);
+		}
+		return bits;
+	}
+}
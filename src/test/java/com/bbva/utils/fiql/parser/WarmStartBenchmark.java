@@ -0,0 +1,116 @@
+package com.bbva.utils.fiql.parser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.bbva.utils.filter.model.Movie;
+
+/**
+ * Measures time to first fast request of a fresh JVM, with and without a
+ * {@link WarmStartSnapshot}, together with the startup time spent loading the
+ * snapshot and the latency of the very first request. Every measure runs in
+ * its own process so that class models, caches and JIT state start cold.
+ * <p/>
+ * Run with test classpath, e.g.
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.bbva.utils.fiql.parser.WarmStartBenchmark</code>
+ */
+public class WarmStartBenchmark {
+
+	private static final String[] FILTERS = { "name==\"Kill Bill\";year=gt=2003",
+			"genres.name==sci-fi;(director.name=='Christopher Nolan',actor.name==*Bale);year=ge=2000",
+			"director.lastName==Nolan;year=ge=2000;year=lt=2010;distributionDate==20015;budget==948374.27",
+			"director.awards.year=ge=2013" };
+
+	// a request is fast once all filters are served under this latency
+	private static final long FAST_NANOS = 500000;
+	private static final int MAX_REQUESTS = 100000;
+	private static final int RUNS = 5;
+
+	public static void main(final String[] args) throws Exception {
+		if (args.length > 0) {
+			child(args);
+			return;
+		}
+		final File snapshot = File.createTempFile("fiql", ".snapshot");
+		try {
+			fork("save", snapshot.getPath());
+			final List<long[]> cold = new ArrayList<long[]>();
+			final List<long[]> warm = new ArrayList<long[]>();
+			for (int i = 0; i < RUNS; i++) {
+				cold.add(fork("cold", snapshot.getPath()));
+				warm.add(fork("warm", snapshot.getPath()));
+			}
+			report("without snapshot", cold);
+			report("with snapshot   ", warm);
+		} finally {
+			snapshot.delete();
+		}
+	}
+
+	private static void report(final String label, final List<long[]> runs) {
+		final StringBuilder sb = new StringBuilder(label);
+		final String[] names = { "startup", "first request", "time to first fast request" };
+		for (int i = 0; i < names.length; i++) {
+			final List<Long> values = new ArrayList<Long>();
+			for (final long[] run : runs) {
+				values.add(run[i]);
+			}
+			Collections.sort(values);
+			sb.append(String.format("  %s %,d us", names[i], values.get(values.size() / 2) / 1000));
+		}
+		System.out.println(sb);
+	}
+
+	private static long[] fork(final String mode, final String snapshot) throws Exception {
+		final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		final Process process = new ProcessBuilder(Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+				WarmStartBenchmark.class.getName(), mode, snapshot)).redirectErrorStream(true).start();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+		String line;
+		String last = "0 0 0";
+		while ((line = reader.readLine()) != null) {
+			last = line;
+		}
+		process.waitFor();
+		final String[] tokens = last.trim().split(" ");
+		final long[] values = new long[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			values[i] = Long.parseLong(tokens[i]);
+		}
+		return values;
+	}
+
+	private static void child(final String[] args) throws Exception {
+		final String mode = args[0];
+		final WarmStartSnapshot snapshot = new WarmStartSnapshot(new File(args[1]));
+		final long boot = System.nanoTime();
+		if ("warm".equals(mode)) {
+			snapshot.load();
+		}
+		final long start = System.nanoTime();
+		long first = -1;
+		long request;
+		int requests = 0;
+		do {
+			final long t0 = System.nanoTime();
+			for (final String filter : FILTERS) {
+				new ExtendableFiqlParser<Movie>(Movie.class).parse(filter);
+			}
+			request = System.nanoTime() - t0;
+			if (first < 0) {
+				first = request;
+			}
+		} while (request > FAST_NANOS && ++requests < MAX_REQUESTS);
+		final long elapsed = System.nanoTime() - start;
+		if ("save".equals(mode)) {
+			snapshot.save();
+		}
+		System.out.println((start - boot) + " " + first + " " + elapsed);
+	}
+}
@@ -0,0 +1,110 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Director;
+import com.bbva.utils.filter.model.Movie;
+
+public class WarmStartSnapshotTest {
+
+	private static final String QUERY_STRING_1 = "director.awards.year=ge=2013";
+	private static final String QUERY_STRING_2 = "name==\"Kill Bill\";year=gt=2003";
+
+	private File file;
+	private CompiledFilterCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("fiql", ".snapshot");
+		cache = new CompiledFilterCache(16);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		final ExtendableFiqlParser<Movie> parser = new ExtendableFiqlParser<Movie>(Movie.class, cache);
+		parser.parse(QUERY_STRING_1);
+		parser.parse(QUERY_STRING_1);
+		parser.parse(QUERY_STRING_2);
+		new WarmStartSnapshot(file, cache, 1).save();
+
+		ClassModel.clear();
+		final CompiledFilterCache restored = new CompiledFilterCache(16);
+		final WarmStartSnapshot.LoadResult result = new WarmStartSnapshot(file, restored, 1).load();
+		assertTrue(result.getRejectedClasses().isEmpty());
+		assertTrue(result.getUnresolvedPaths().isEmpty());
+		assertTrue(ClassModel.isCached(Movie.class));
+		assertTrue(ClassModel.isCached(Director.class));
+		assertTrue(ClassModel.of(Movie.class).getResolvedPaths().contains(QUERY_STRING_1.substring(0, 20)));
+		// only the most used expression is kept
+		assertEquals(1, result.getFilters());
+		assertNotNull(restored.get(Movie.class, QUERY_STRING_1));
+		assertNull(restored.get(Movie.class, QUERY_STRING_2));
+		assertEquals(2, restored.mostUsed(1).get(0).getHits());
+	}
+
+	@Test
+	public void testFiltersAreRestoredForTheirDialect() throws Exception {
+		final FiqlDialect dialect = FiqlDialect.getDefault().with(FiqlOperators.in("=in="));
+		final ExtendableFiqlParser<Movie> parser = new ExtendableFiqlParser<Movie>(Movie.class, cache);
+		parser.setDialect(dialect);
+		parser.parse("year=in=(2000,2001)");
+		new WarmStartSnapshot(file, cache, 1, dialect).save();
+
+		final CompiledFilterCache restored = new CompiledFilterCache(16);
+		assertEquals(1, new WarmStartSnapshot(file, restored, 1, dialect).load().getFilters());
+		assertNotNull(restored.get(Movie.class, dialect, ParseLimits.getDefault(), "year=in=(2000,2001)"));
+		assertNull(restored.get(Movie.class, "year=in=(2000,2001)"));
+		// same expressions would not mean the same with other operators
+		final FiqlDialect other = FiqlDialect.getDefault().with(FiqlOperators.in("=in="), FiqlOperators.out("=out="));
+		assertEquals(0, new WarmStartSnapshot(file, new CompiledFilterCache(16), 1, other).load().getFilters());
+	}
+
+	@Test
+	public void testScheduledSaveFailure() throws Exception {
+		final File missing = new File(file.getPath() + ".d", "fiql.snapshot");
+		final WarmStartSnapshot snapshot = new WarmStartSnapshot(missing, cache, 1);
+		final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		try {
+			snapshot.scheduleSave(executor, 10, TimeUnit.MILLISECONDS);
+			for (int i = 0; i < 100 && snapshot.getLastSaveFailure() == null; i++) {
+				Thread.sleep(10);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertNotNull(snapshot.getLastSaveFailure());
+	}
+
+	@Test
+	public void testMissingFileIsEmpty() throws Exception {
+		file.delete();
+		assertEquals(0, new WarmStartSnapshot(file, cache, 1).load().getClasses());
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptedFile() throws Exception {
+		final FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+		out.close();
+		new WarmStartSnapshot(file, cache, 1).load();
+	}
+}
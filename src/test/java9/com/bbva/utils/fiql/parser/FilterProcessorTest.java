@@ -0,0 +1,276 @@
+package com.bbva.utils.fiql.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cxf.jaxrs.ext.search.ConditionType;
+import org.apache.cxf.jaxrs.ext.search.PrimitiveStatement;
+import org.apache.cxf.jaxrs.ext.search.SearchCondition;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bbva.utils.filter.model.Movie;
+
+public class FilterProcessorTest {
+
+	private List<Movie> movies;
+	private SearchCondition<Movie> condition;
+
+	@Before
+	public void setUp() throws Exception {
+		movies = new ArrayList<Movie>();
+		for (int i = 0; i < 1000; i++) {
+			final Movie movie = new Movie();
+			movie.setYear(1950 + i % 70);
+			movie.setName("movie" + i);
+			movies.add(movie);
+		}
+		condition = new ExtendableFiqlParser<Movie>(Movie.class, new CompiledFilterCache(0)).parse("year=ge=2000");
+	}
+
+	@Test
+	public void testFiltersInOrder() throws Exception {
+		final FilterProcessor<Movie> processor = new FilterProcessor<Movie>(condition, 16, null, 1);
+		final Collector collector = new Collector(Long.MAX_VALUE);
+		new ListPublisher(movies).subscribe(processor);
+		processor.subscribe(collector);
+		assertTrue(collector.completed.await(5, TimeUnit.SECONDS));
+		assertEquals(condition.findAll(movies), collector.items);
+		assertEquals(1000, processor.getReceived());
+		assertEquals(collector.items.size(), processor.getEmitted());
+		assertEquals(1000 - collector.items.size(), processor.getDropped());
+		assertEquals(0, processor.getInFlight());
+	}
+
+	@Test
+	public void testParallelBatchesKeepOrder() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final FilterProcessor<Movie> processor = new FilterProcessor<Movie>(condition, 10, executor, 8);
+			final Collector collector = new Collector(Long.MAX_VALUE);
+			processor.subscribe(collector);
+			new ListPublisher(movies).subscribe(processor);
+			assertTrue(collector.completed.await(5, TimeUnit.SECONDS));
+			assertEquals(condition.findAll(movies), collector.items);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testParallelExecutor() throws Exception {
+		final FilterProcessor<Movie> processor = new FilterProcessor<Movie>(condition, 32, FilterProcessor.parallelExecutor(), 4);
+		final Collector collector = new Collector(Long.MAX_VALUE);
+		processor.subscribe(collector);
+		new ListPublisher(movies).subscribe(processor);
+		assertTrue(collector.completed.await(5, TimeUnit.SECONDS));
+		assertEquals(condition.findAll(movies), collector.items);
+	}
+
+	@Test
+	public void testBackpressure() throws Exception {
+		final FilterProcessor<Movie> processor = new FilterProcessor<Movie>(condition, 20, null, 1);
+		final Collector collector = new Collector(5);
+		final ListPublisher publisher = new ListPublisher(movies);
+		publisher.subscribe(processor);
+		processor.subscribe(collector);
+		// movies since 2000 are the 50th to 69th of each 70, so the third
+		// batch of 20 is the first one holding some, ten of them
+		assertEquals(5, collector.items.size());
+		assertEquals(60, publisher.requested.get());
+		assertEquals(5, processor.getInFlight());
+		collector.subscription.request(2);
+		assertEquals(7, collector.items.size());
+		assertEquals(60, publisher.requested.get());
+		collector.subscription.request(10);
+		assertEquals(17, collector.items.size());
+		assertEquals(80, publisher.requested.get());
+		assertEquals(3, processor.getInFlight());
+		collector.subscription.cancel();
+		assertEquals(condition.findAll(movies).subList(0, 17), collector.items);
+		assertTrue(publisher.cancelled);
+	}
+
+	@Test
+	public void testCancelWithQueuedBatches() throws Exception {
+		// batches wait in the queue until run
+		final List<Runnable> queue = new ArrayList<Runnable>();
+		final Executor executor = new Executor() {
+			public void execute(final Runnable command) {
+				queue.add(command);
+			}
+		};
+		final FilterProcessor<Movie> processor = new FilterProcessor<Movie>(condition, 10, executor, 4);
+		final Collector collector = new Collector(Long.MAX_VALUE);
+		processor.subscribe(collector);
+		new ListPublisher(movies).subscribe(processor);
+		for (int i = 0; i < 3; i++) {
+			collector.subscription.request(1);
+		}
+		assertEquals(4, queue.size());
+		assertEquals(40, processor.getInFlight());
+		// the first ten movies do not match
+		queue.remove(0).run();
+		assertEquals(10, processor.getDropped());
+		// which makes room for another one
+		assertEquals(4, queue.size());
+		collector.subscription.cancel();
+		assertEquals(0, processor.getInFlight());
+		for (final Runnable batch : queue) {
+			batch.run();
+		}
+		queue.clear();
+		assertEquals(50, processor.getDropped());
+		// a batch submitted after cancel is dropped too, once
+		for (final Movie movie : movies.subList(50, 60)) {
+			processor.onNext(movie);
+		}
+		assertEquals(1, queue.size());
+		queue.get(0).run();
+		assertEquals(60, processor.getReceived());
+		assertEquals(0, processor.getEmitted());
+		assertEquals(60, processor.getDropped());
+		assertEquals(0, processor.getInFlight());
+		assertTrue(collector.items.isEmpty());
+	}
+
+	@Test
+	public void testFailingCondition() throws Exception {
+		final SearchCondition<Movie> failing = new ExtendableFiqlParser<Movie>(Movie.class, new CompiledFilterCache(0))
+				.parse("year=ge=2015");
+		final FilterProcessor<Movie> processor = new FilterProcessor<Movie>(new Failing(failing), 100, null, 1);
+		final Collector collector = new Collector(Long.MAX_VALUE);
+		processor.subscribe(collector);
+		new ListPublisher(movies).subscribe(processor);
+		assertTrue(collector.completed.await(5, TimeUnit.SECONDS));
+		assertTrue(collector.error instanceof IllegalStateException);
+		assertEquals(failing.findAll(movies.subList(0, 500)), collector.items);
+	}
+
+	/**
+	 * Publisher of a list, emitting on the requesting thread.
+	 */
+	private static final class ListPublisher implements Flow.Publisher<Movie> {
+		private final List<Movie> items;
+		private final AtomicLong requested = new AtomicLong();
+		private volatile boolean cancelled;
+
+		ListPublisher(final List<Movie> items) {
+			this.items = items;
+		}
+
+		public void subscribe(final Flow.Subscriber<? super Movie> subscriber) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				private int next;
+				private boolean emitting;
+				private long credit;
+
+				public synchronized void request(final long n) {
+					requested.addAndGet(n);
+					credit += n;
+					if (emitting) {
+						return;
+					}
+					emitting = true;
+					while (credit > 0 && next < items.size() && !cancelled) {
+						credit--;
+						subscriber.onNext(items.get(next++));
+					}
+					emitting = false;
+					if (next == items.size() && !cancelled) {
+						cancelled = true;
+						subscriber.onComplete();
+					}
+				}
+
+				public void cancel() {
+					cancelled = true;
+				}
+			});
+		}
+	}
+
+	private static final class Collector implements Flow.Subscriber<Movie> {
+		private final List<Movie> items = Collections.synchronizedList(new ArrayList<Movie>());
+		private final CountDownLatch completed = new CountDownLatch(1);
+		private final long initial;
+		private volatile Flow.Subscription subscription;
+		private volatile Throwable error;
+
+		Collector(final long initial) {
+			this.initial = initial;
+		}
+
+		public void onSubscribe(final Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(initial);
+		}
+
+		public void onNext(final Movie item) {
+			items.add(item);
+		}
+
+		public void onError(final Throwable throwable) {
+			error = throwable;
+			completed.countDown();
+		}
+
+		public void onComplete() {
+			completed.countDown();
+		}
+	}
+
+	/**
+	 * Condition failing on the movie at position 500.
+	 */
+	private static final class Failing implements SearchCondition<Movie> {
+		private final SearchCondition<Movie> delegate;
+
+		Failing(final SearchCondition<Movie> delegate) {
+			this.delegate = delegate;
+		}
+
+		public boolean isMet(final Movie pojo) {
+			if ("movie500".equals(pojo.getName())) {
+				throw new IllegalStateException("failing on " + pojo.getName());
+			}
+			return delegate.isMet(pojo);
+		}
+
+		public List<Movie> findAll(final Collection<Movie> pojos) {
+			return delegate.findAll(pojos);
+		}
+
+		public Movie getCondition() {
+			return delegate.getCondition();
+		}
+
+		public PrimitiveStatement getStatement() {
+			return delegate.getStatement();
+		}
+
+		public List<SearchCondition<Movie>> getSearchConditions() {
+			return delegate.getSearchConditions();
+		}
+
+		public ConditionType getConditionType() {
+			return delegate.getConditionType();
+		}
+
+		public String toSQL(final String table, final String... columns) {
+			return delegate.toSQL(table, columns);
+		}
+	}
+}